@@ -0,0 +1,159 @@
+package net.simohaya;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import net.minecraft.registry.RegistryWrapper;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 現在の形式の本体（圧縮前）を、圧縮方式ごとに圧縮・展開する時間を比較します。
+ * 圧縮前後のバイト数は補助カウンタ rawBytes / compressedBytes として結果に出力します。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    private static final LZ4Factory LZ4 = LZ4Factory.fastestInstance();
+
+    @Param({"typical", "full", "shulker_heavy"})
+    public String profile;
+
+    @Param({"none", "lz4_fast", "lz4_high", "deflate_fast", "gzip"})
+    public String codec;
+
+    private byte[] body;
+    private byte[] compressed;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        RegistryWrapper.WrapperLookup registryLookup = InventoryFixtures.bootstrap();
+        byte[] encoded = InventoryFixtures.encode(InventoryFixtures.create(profile, registryLookup), registryLookup);
+        body = InventoryCodec.unframe(encoded);
+        compressed = compressBody();
+    }
+
+    /**
+     * JMHの補助カウンタ。圧縮前後のバイト数を、プロファイルと圧縮方式ごとの結果として出力します。
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class CompressedSize {
+        public long rawBytes;
+        public long compressedBytes;
+
+        @Setup(Level.Iteration)
+        public void record(CompressionBenchmark benchmark) {
+            rawBytes = benchmark.body.length;
+            compressedBytes = benchmark.compressed.length;
+        }
+    }
+
+    @Benchmark
+    public byte[] compress(CompressedSize size) throws IOException {
+        return compressBody();
+    }
+
+    @Benchmark
+    public byte[] decompress(CompressedSize size) throws IOException {
+        return switch (codec) {
+            case "none" -> compressed.clone();
+            case "lz4_fast", "lz4_high" -> {
+                LZ4FastDecompressor decompressor = LZ4.fastDecompressor();
+                yield decompressor.decompress(compressed, body.length);
+            }
+            case "deflate_fast" -> inflate();
+            case "gzip" -> {
+                try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+                    yield in.readAllBytes();
+                }
+            }
+            default -> throw new IllegalArgumentException("不明な圧縮方式です: " + codec);
+        };
+    }
+
+    private byte[] compressBody() throws IOException {
+        return switch (codec) {
+            case "none" -> body.clone();
+            case "lz4_fast" -> lz4(LZ4.fastCompressor());
+            case "lz4_high" -> lz4(LZ4.highCompressor());
+            case "deflate_fast" -> deflate(Deflater.BEST_SPEED);
+            case "gzip" -> gzip();
+            default -> throw new IllegalArgumentException("不明な圧縮方式です: " + codec);
+        };
+    }
+
+    private byte[] lz4(LZ4Compressor compressor) {
+        byte[] target = new byte[compressor.maxCompressedLength(body.length)];
+        int length = compressor.compress(body, 0, body.length, target, 0, target.length);
+        return Arrays.copyOf(target, length);
+    }
+
+    private byte[] deflate(int level) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(body);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private byte[] inflate() throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] result = new byte[body.length];
+            int offset = 0;
+            while (!inflater.finished() && offset < result.length) {
+                offset += inflater.inflate(result, offset, result.length - offset);
+            }
+            return result;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private byte[] gzip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(body);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,224 @@
+package net.simohaya;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * 負荷試験用の、メモリ上の共有保存先。複数のサーバーで共有される MySQL の代わりに使用します。
+ * 引き継ぎロックは MySQL の保存先と同じ規則（解放済み、期限切れ、または同じサーバーIDのロックなら取得できる）で扱い、
+ * 書き込みと同時の解放も1回の操作で行うため、サーバー間の移動の待機を再現できます。
+ *
+ * <p>各操作の前に latencyMicros だけ待機し、データベースとの往復時間を模擬します。
+ */
+public class InMemoryStorageBackend implements StorageBackend {
+
+    private final long latencyNanos;
+    private final Consumer<InventoryRecord> writeListener;
+    // UUIDの文字列表現の順に並べ、scan のページングに使う
+    private final ConcurrentSkipListMap<String, Row> rows = new ConcurrentSkipListMap<>();
+
+    private static final class Row {
+        byte[] data;
+        long version;
+        String leaseToken;
+        long leaseExpiresNanos;
+    }
+
+    /**
+     * @param latencyMicros 各操作で待機する時間（マイクロ秒）
+     * @param writeListener 書き込んだレコードごとに、書き込みスレッドから呼び出されます
+     */
+    public InMemoryStorageBackend(long latencyMicros, Consumer<InventoryRecord> writeListener) {
+        this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+        this.writeListener = writeListener;
+    }
+
+    @Override
+    public String getName() {
+        return "メモリ上の共有保存先（負荷試験用）";
+    }
+
+    @Override
+    public void open() {
+    }
+
+    private void roundTrip() {
+        if (latencyNanos > 0) {
+            LockSupport.parkNanos(latencyNanos);
+        }
+    }
+
+    private Row rowOf(UUID playerUuid) {
+        return rows.computeIfAbsent(playerUuid.toString(), key -> new Row());
+    }
+
+    @Override
+    public List<InventoryRecord> saveBatch(Collection<InventoryRecord> records) {
+        roundTrip();
+        List<InventoryRecord> lost = new ArrayList<>();
+        for (InventoryRecord record : records) {
+            Row row = rowOf(record.playerUuid());
+            synchronized (row) {
+                if (!InventoryLease.canWrite(row.leaseToken, record.leaseToken())) {
+                    lost.add(record);
+                    continue;
+                }
+                row.data = record.data();
+                row.version = record.version();
+                if (record.releaseLeaseToken() != null && record.releaseLeaseToken().equals(row.leaseToken)) {
+                    row.leaseToken = null;
+                }
+            }
+            writeListener.accept(record);
+        }
+        return lost;
+    }
+
+    @Override
+    public Optional<byte[]> load(UUID playerUuid) {
+        roundTrip();
+        Row row = rows.get(playerUuid.toString());
+        if (row == null) {
+            return Optional.empty();
+        }
+        synchronized (row) {
+            return Optional.of(row.data != null ? row.data : new byte[0]);
+        }
+    }
+
+    @Override
+    public List<InventoryRecord> scan(String after, int limit) {
+        roundTrip();
+        Map<String, Row> page = after == null ? rows : rows.tailMap(after, false);
+        List<InventoryRecord> records = new ArrayList<>(Math.min(limit, 1024));
+        for (Map.Entry<String, Row> entry : page.entrySet()) {
+            if (records.size() >= limit) {
+                break;
+            }
+            Row row = entry.getValue();
+            synchronized (row) {
+                records.add(new InventoryRecord(UUID.fromString(entry.getKey()), row.data != null ? row.data : new byte[0], null, false, row.version));
+            }
+        }
+        return records;
+    }
+
+    @Override
+    public OptionalLong loadVersion(UUID playerUuid) {
+        roundTrip();
+        Row row = rows.get(playerUuid.toString());
+        if (row == null) {
+            return OptionalLong.empty();
+        }
+        synchronized (row) {
+            return row.data != null ? OptionalLong.of(row.version) : OptionalLong.empty();
+        }
+    }
+
+    @Override
+    public boolean isShared() {
+        return true;
+    }
+
+    @Override
+    public void delete(UUID playerUuid) {
+        roundTrip();
+        rows.remove(playerUuid.toString());
+    }
+
+    @Override
+    public boolean tryAcquireLease(UUID playerUuid, String leaseToken, int leaseSeconds) {
+        roundTrip();
+        Row row = rowOf(playerUuid);
+        long now = System.nanoTime();
+        synchronized (row) {
+            boolean available = row.leaseToken == null
+                    || now - row.leaseExpiresNanos >= 0
+                    || serverIdOf(row.leaseToken).equals(serverIdOf(leaseToken));
+            if (available) {
+                row.leaseToken = leaseToken;
+                row.leaseExpiresNanos = now + TimeUnit.SECONDS.toNanos(leaseSeconds);
+            }
+            return available;
+        }
+    }
+
+    private static String serverIdOf(String leaseToken) {
+        return leaseToken.substring(0, leaseToken.indexOf(':'));
+    }
+
+    @Override
+    public void renewLeases(Map<UUID, String> leases, int leaseSeconds) {
+        roundTrip();
+        long expiresNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(leaseSeconds);
+        for (Map.Entry<UUID, String> lease : leases.entrySet()) {
+            Row row = rows.get(lease.getKey().toString());
+            if (row == null) {
+                continue;
+            }
+            synchronized (row) {
+                if (lease.getValue().equals(row.leaseToken)) {
+                    row.leaseExpiresNanos = expiresNanos;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void releaseLeases(Map<UUID, String> leases) {
+        roundTrip();
+        for (Map.Entry<UUID, String> lease : leases.entrySet()) {
+            Row row = rows.get(lease.getKey().toString());
+            if (row == null) {
+                continue;
+            }
+            synchronized (row) {
+                if (lease.getValue().equals(row.leaseToken)) {
+                    row.leaseToken = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * 保存されているデータを、待機時間なしで直接読み込みます。整合性の確認に使用します。
+     */
+    public Optional<byte[]> peek(UUID playerUuid) {
+        Row row = rows.get(playerUuid.toString());
+        if (row == null) {
+            return Optional.empty();
+        }
+        synchronized (row) {
+            return Optional.ofNullable(row.data);
+        }
+    }
+
+    /**
+     * 期限内の引き継ぎロックが残っているプレイヤー数を返します。
+     */
+    public int countHeldLeases() {
+        long now = System.nanoTime();
+        int held = 0;
+        for (Row row : rows.values()) {
+            synchronized (row) {
+                if (row.leaseToken != null && now - row.leaseExpiresNanos < 0) {
+                    held++;
+                }
+            }
+        }
+        return held;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,89 @@
+package net.simohaya;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import net.minecraft.item.ItemStack;
+import net.minecraft.registry.RegistryWrapper;
+import net.minecraft.util.collection.DefaultedList;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 旧形式（スロットごとのNBT + GZIP）と現在の形式（スロット番号付きエントリ + LZ4）のエンコード・デコード時間を比較します。
+ * エンコード後のバイト数は補助カウンタ legacyBytes / compactBytes として結果に出力します。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InventoryCodecBenchmark {
+
+    private static final UUID PLAYER_UUID = new UUID(0L, 1L);
+
+    @Param({"empty", "typical", "full", "shulker_heavy"})
+    public String profile;
+
+    private RegistryWrapper.WrapperLookup registryLookup;
+    private DefaultedList<ItemStack> inventory;
+    private byte[] legacyData;
+    private byte[] compactData;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        registryLookup = InventoryFixtures.bootstrap();
+        inventory = InventoryFixtures.create(profile, registryLookup);
+        legacyData = InventoryFixtures.encodeLegacy(inventory, registryLookup);
+        compactData = InventoryFixtures.encode(inventory, registryLookup);
+    }
+
+    /**
+     * JMHの補助カウンタ。各形式でエンコードしたバイト数を、プロファイルごとの結果として出力します。
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class EncodedSize {
+        public long legacyBytes;
+        public long compactBytes;
+
+        @Setup(Level.Iteration)
+        public void record(InventoryCodecBenchmark benchmark) {
+            legacyBytes = benchmark.legacyData.length;
+            compactBytes = benchmark.compactData.length;
+        }
+    }
+
+    @Benchmark
+    public byte[] encodeLegacy(EncodedSize size) throws IOException {
+        return InventoryFixtures.encodeLegacy(inventory, registryLookup);
+    }
+
+    @Benchmark
+    public byte[] encodeCompact(EncodedSize size) throws IOException {
+        return InventoryFixtures.encode(inventory, registryLookup);
+    }
+
+    @Benchmark
+    public DefaultedList<ItemStack> decodeLegacy(EncodedSize size) throws IOException {
+        return InventoryCodec.decodeLegacy(legacyData, InventoryFixtures.INVENTORY_SIZE, registryLookup);
+    }
+
+    @Benchmark
+    public InventorySnapshot decodeCompact(EncodedSize size) throws IOException {
+        return InventoryCodec.decode(PLAYER_UUID, compactData, registryLookup);
+    }
+}
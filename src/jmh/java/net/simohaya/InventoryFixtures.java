@@ -0,0 +1,257 @@
+package net.simohaya;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import com.mojang.serialization.DynamicOps;
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import net.minecraft.component.DataComponentTypes;
+import net.minecraft.component.type.ContainerComponent;
+import net.minecraft.component.type.LoreComponent;
+import net.minecraft.enchantment.Enchantment;
+import net.minecraft.enchantment.Enchantments;
+import net.minecraft.item.Item;
+import net.minecraft.item.ItemStack;
+import net.minecraft.item.Items;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtOps;
+import net.minecraft.registry.BuiltinRegistries;
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.registry.RegistryKeys;
+import net.minecraft.registry.RegistryOps;
+import net.minecraft.registry.RegistryWrapper;
+import net.minecraft.text.Text;
+import net.minecraft.util.collection.DefaultedList;
+
+/**
+ * ベンチマーク用のインベントリを生成します。
+ */
+public final class InventoryFixtures {
+
+    public static final int INVENTORY_SIZE = 41;
+
+    // 乱数で生成するインベントリに使うアイテム（スタックできるものとできないものを混ぜる）
+    private static final Item[] RANDOM_ITEMS = {
+            Items.STONE, Items.COBBLESTONE, Items.DIRT, Items.OAK_LOG, Items.OAK_PLANKS, Items.TORCH, Items.COAL,
+            Items.IRON_INGOT, Items.GOLD_INGOT, Items.DIAMOND, Items.REDSTONE, Items.BREAD, Items.COOKED_BEEF,
+            Items.ARROW, Items.ENDER_PEARL, Items.SAND, Items.GLASS, Items.WATER_BUCKET, Items.IRON_SWORD, Items.BOW
+    };
+
+    private static RegistryWrapper.WrapperLookup registryLookup;
+
+    private InventoryFixtures() {
+    }
+
+    /**
+     * Minecraftのレジストリを初期化し、ItemStackのエンコードに使うレジストリを返します。
+     */
+    public static synchronized RegistryWrapper.WrapperLookup bootstrap() {
+        if (registryLookup == null) {
+            SharedConstants.createGameVersion();
+            Bootstrap.initialize();
+            registryLookup = BuiltinRegistries.createWrapperLookup();
+        }
+        return registryLookup;
+    }
+
+    /**
+     * 名前で指定したプロファイルのインベントリを生成します。
+     * @param profile empty, typical, full, shulker_heavy（NBTの多い最悪ケース）のいずれか
+     */
+    public static DefaultedList<ItemStack> create(String profile, RegistryWrapper.WrapperLookup lookup) {
+        return switch (profile) {
+            case "empty" -> empty();
+            case "typical" -> typical(lookup);
+            case "full" -> full(lookup);
+            case "shulker_heavy" -> shulkerHeavy(lookup);
+            default -> throw new IllegalArgumentException("不明なプロファイルです: " + profile);
+        };
+    }
+
+    public static DefaultedList<ItemStack> empty() {
+        return DefaultedList.ofSize(INVENTORY_SIZE, ItemStack.EMPTY);
+    }
+
+    /**
+     * サバイバルで遊んでいるプレイヤーの典型的なインベントリ（エンチャント付きの道具と防具、ブロックや食料のスタック）。
+     */
+    public static DefaultedList<ItemStack> typical(RegistryWrapper.WrapperLookup lookup) {
+        DefaultedList<ItemStack> inventory = empty();
+        ItemStack sword = enchanted(lookup, Items.DIAMOND_SWORD, Enchantments.SHARPNESS, 5, Enchantments.UNBREAKING, 3, Enchantments.MENDING, 1);
+        sword.set(DataComponentTypes.CUSTOM_NAME, Text.literal("Excalibur"));
+        sword.setDamage(312);
+        inventory.set(0, sword);
+        inventory.set(1, enchanted(lookup, Items.DIAMOND_PICKAXE, Enchantments.EFFICIENCY, 5, Enchantments.FORTUNE, 3, Enchantments.UNBREAKING, 3));
+        inventory.set(2, enchanted(lookup, Items.IRON_AXE, Enchantments.EFFICIENCY, 4, Enchantments.UNBREAKING, 2, Enchantments.MENDING, 1));
+        inventory.set(3, new ItemStack(Items.COBBLESTONE, 64));
+        inventory.set(4, new ItemStack(Items.TORCH, 48));
+        inventory.set(5, new ItemStack(Items.COOKED_BEEF, 23));
+        inventory.set(6, new ItemStack(Items.WATER_BUCKET));
+        inventory.set(7, new ItemStack(Items.OAK_LOG, 64));
+        inventory.set(8, new ItemStack(Items.SHIELD));
+        inventory.set(9, new ItemStack(Items.STONE, 64));
+        inventory.set(10, new ItemStack(Items.DIRT, 37));
+        inventory.set(11, new ItemStack(Items.IRON_INGOT, 19));
+        inventory.set(12, new ItemStack(Items.REDSTONE, 64));
+        inventory.set(13, new ItemStack(Items.GOLDEN_CARROT, 64));
+        inventory.set(14, new ItemStack(Items.ENDER_PEARL, 16));
+        inventory.set(15, new ItemStack(Items.OAK_PLANKS, 64));
+        inventory.set(20, new ItemStack(Items.COAL, 41));
+        inventory.set(36, enchanted(lookup, Items.DIAMOND_BOOTS, Enchantments.PROTECTION, 4, Enchantments.FEATHER_FALLING, 4, Enchantments.UNBREAKING, 3));
+        inventory.set(37, enchanted(lookup, Items.DIAMOND_LEGGINGS, Enchantments.PROTECTION, 4, Enchantments.UNBREAKING, 3, Enchantments.MENDING, 1));
+        inventory.set(38, enchanted(lookup, Items.DIAMOND_CHESTPLATE, Enchantments.PROTECTION, 4, Enchantments.UNBREAKING, 3, Enchantments.MENDING, 1));
+        inventory.set(39, enchanted(lookup, Items.DIAMOND_HELMET, Enchantments.PROTECTION, 4, Enchantments.RESPIRATION, 3, Enchantments.AQUA_AFFINITY, 1));
+        inventory.set(40, new ItemStack(Items.TOTEM_OF_UNDYING));
+        return inventory;
+    }
+
+    /**
+     * 全スロットが埋まったインベントリ。典型的なインベントリの空きスロットをブロックのスタックで埋めます。
+     */
+    public static DefaultedList<ItemStack> full(RegistryWrapper.WrapperLookup lookup) {
+        DefaultedList<ItemStack> inventory = typical(lookup);
+        Item[] fillers = {Items.ANDESITE, Items.DIORITE, Items.GRANITE, Items.DEEPSLATE, Items.GRAVEL, Items.SAND};
+        for (int i = 0; i < inventory.size(); i++) {
+            if (inventory.get(i).isEmpty()) {
+                inventory.set(i, new ItemStack(fillers[i % fillers.length], 64));
+            }
+        }
+        return inventory;
+    }
+
+    /**
+     * 最悪ケース：メインインベントリの全スロットに、名前と説明文付きのエンチャント済み道具を詰めたシュルカーボックスを持つ。
+     */
+    public static DefaultedList<ItemStack> shulkerHeavy(RegistryWrapper.WrapperLookup lookup) {
+        DefaultedList<ItemStack> inventory = typical(lookup);
+        for (int slot = 0; slot < 36; slot++) {
+            List<ItemStack> contents = new ArrayList<>(27);
+            for (int i = 0; i < 27; i++) {
+                ItemStack tool = enchanted(lookup, Items.NETHERITE_PICKAXE, Enchantments.EFFICIENCY, 5, Enchantments.FORTUNE, 3, Enchantments.MENDING, 1);
+                tool.set(DataComponentTypes.CUSTOM_NAME, Text.literal("Pickaxe #" + slot + "-" + i));
+                tool.set(DataComponentTypes.LORE, new LoreComponent(List.of(Text.literal("Stored in box " + slot), Text.literal("Slot " + i))));
+                tool.setDamage(i * 7);
+                contents.add(tool);
+            }
+            ItemStack box = new ItemStack(Items.SHULKER_BOX);
+            box.set(DataComponentTypes.CONTAINER, ContainerComponent.fromStacks(contents));
+            inventory.set(slot, box);
+        }
+        return inventory;
+    }
+
+    /**
+     * 乱数でインベントリを生成します。3割は典型的なインベントリを基に、残りは空のインベントリに、ランダムなアイテムを詰めます。
+     * 同じ状態の乱数からは同じインベントリが生成されます。
+     */
+    public static DefaultedList<ItemStack> random(Random random, RegistryWrapper.WrapperLookup lookup) {
+        DefaultedList<ItemStack> inventory = random.nextInt(10) < 3 ? typical(lookup) : empty();
+        int filled = random.nextInt(INVENTORY_SIZE + 1);
+        for (int i = 0; i < filled; i++) {
+            int slot = random.nextInt(INVENTORY_SIZE);
+            if (inventory.get(slot).isEmpty()) {
+                inventory.set(slot, randomStack(random));
+            }
+        }
+        return inventory;
+    }
+
+    /**
+     * ランダムなアイテムを、1個から最大スタック数までのランダムな個数で生成します。
+     */
+    public static ItemStack randomStack(Random random) {
+        Item item = RANDOM_ITEMS[random.nextInt(RANDOM_ITEMS.length)];
+        ItemStack stack = new ItemStack(item);
+        stack.setCount(1 + random.nextInt(stack.getMaxCount()));
+        return stack;
+    }
+
+    /**
+     * インベントリの各スタックを複製してスナップショットを作成します（{@link InventorySnapshot#capture} の複製処理に相当）。
+     */
+    public static InventorySnapshot snapshot(UUID playerUuid, DefaultedList<ItemStack> inventory) {
+        DefaultedList<ItemStack> copy = DefaultedList.ofSize(inventory.size(), ItemStack.EMPTY);
+        for (int i = 0; i < inventory.size(); i++) {
+            copy.set(i, inventory.get(i).copy());
+        }
+        Map<String, Object> components = new LinkedHashMap<>();
+        components.put(SyncComponents.INVENTORY.getId(), copy);
+        return InventorySnapshot.of(playerUuid, components, Map.of());
+    }
+
+    /**
+     * インベントリのみを持つスナップショットとして、現在の形式でエンコードします。
+     * スタックは複製しないため、{@link #snapshot} を使う場合よりもエンコード自体の時間に近い値になります。
+     */
+    public static byte[] encode(DefaultedList<ItemStack> inventory, RegistryWrapper.WrapperLookup lookup) throws IOException {
+        Map<String, Object> components = new LinkedHashMap<>();
+        components.put(SyncComponents.INVENTORY.getId(), inventory);
+        return InventoryCodec.encode(InventorySnapshot.of(new UUID(0L, 0L), components, Map.of()), lookup);
+    }
+
+    /**
+     * 旧形式（スロットごとに "slot_" + i をキーとするNBTをGZIP圧縮したもの）でエンコードします。
+     * 本体は旧形式を読み込むだけなので、比較用にベンチマーク側で生成します。
+     */
+    public static byte[] encodeLegacy(DefaultedList<ItemStack> inventory, RegistryWrapper.WrapperLookup lookup) throws IOException {
+        DynamicOps<NbtElement> registryOps = RegistryOps.of(NbtOps.INSTANCE, lookup);
+
+        NbtCompound rootNbt = new NbtCompound();
+        for (int i = 0; i < inventory.size(); i++) {
+            ItemStack stack = inventory.get(i);
+            if (!stack.isEmpty()) {
+                rootNbt.put("slot_" + i, ItemStack.CODEC.encodeStart(registryOps, stack).getOrThrow());
+            }
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        NbtIo.writeCompressed(rootNbt, bos);
+        return bos.toByteArray();
+    }
+
+    /**
+     * ベンチマーク用の一時ディレクトリを作成します。
+     */
+    public static Path createTempDirectory(String prefix) throws IOException {
+        return Files.createTempDirectory("fabsyncmod-" + prefix);
+    }
+
+    /**
+     * 一時ディレクトリを中身ごと削除します。
+     */
+    public static void deleteRecursively(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static ItemStack enchanted(RegistryWrapper.WrapperLookup lookup, Item item,
+                                       RegistryKey<Enchantment> first, int firstLevel,
+                                       RegistryKey<Enchantment> second, int secondLevel,
+                                       RegistryKey<Enchantment> third, int thirdLevel) {
+        RegistryWrapper.Impl<Enchantment> enchantments = lookup.getOrThrow(RegistryKeys.ENCHANTMENT);
+        ItemStack stack = new ItemStack(item);
+        stack.addEnchantment(enchantments.getOrThrow(first), firstLevel);
+        stack.addEnchantment(enchantments.getOrThrow(second), secondLevel);
+        stack.addEnchantment(enchantments.getOrThrow(third), thirdLevel);
+        return stack;
+    }
+}
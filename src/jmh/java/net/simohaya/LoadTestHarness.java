@@ -0,0 +1,877 @@
+package net.simohaya;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import net.minecraft.inventory.SimpleInventory;
+import net.minecraft.item.Item;
+import net.minecraft.item.ItemStack;
+import net.minecraft.registry.RegistryWrapper;
+import net.minecraft.util.collection.DefaultedList;
+
+/**
+ * 同期処理の負荷試験。実際のプレイヤーの代わりに、乱数で生成したインベントリを持つ架空のプレイヤーを players 人用意し、
+ * 本番と同じ経路（ロード用スレッドでの引き継ぎロックの取得と読み込み、書き込みキュー、ジャーナル、{@link DatabaseManager}）で
+ * 次のシナリオを順に実行します。
+ * <ol>
+ *   <li>login_storm: 再起動直後（キャッシュが空）に、全員が短時間にログインする</li>
+ *   <li>steady_autosave: 全員がオンラインのまま、インベントリを変更しながら自動保存の間隔で保存し続ける</li>
+ *   <li>server_switching: 全員が他のサーバーへの移動と復帰を繰り返す。移動先のサーバーは別のスレッドで模擬し、移動先での変更も書き込む</li>
+ *   <li>mass_disconnect: 全員が短時間にログアウトする</li>
+ * </ol>
+ * 保存先は、引き継ぎロックを MySQL と同じ規則で扱うメモリ上の共有保存先（{@link InMemoryStorageBackend}）です。
+ * サーバーのメインスレッドの代わりに50ミリ秒ごとにtickを実行するスレッドを用意し、スナップショットの取得、書き込みキューへの投入、
+ * ロード結果の適用をそのスレッドで行って、tickを止めた時間を計測します。
+ *
+ * <p>ender_chest の同期はこのサーバーでは無効にし、保存データにはエンダーチェストの内容を含めておきます。
+ * このサーバーでは扱わない要素の保存データは、保存やログアウト、サーバー間の移動を経ても変わらずに残っていなければなりません。
+ *
+ * <p>結果は、シナリオごとのスループット、レイテンシ（p50/p99）、tickの停止時間、整合性の確認結果を JSON で出力します。
+ * 整合性の確認では、各プレイヤーについて最後に保存した（または移動先で書き込まれた）内容と、ロードした内容・保存先の内容を
+ * スロットごとに比較し、アイテムの種類ごとの個数の不足（消失）と超過（増殖）を数えます。確認に失敗した場合は終了コード1で終了します。
+ *
+ * <p>./gradlew loadTest -PloadTestArgs="--players=1000 --seed=7" のように実行します。指定できる引数は {@link Options} を参照してください。
+ */
+public class LoadTestHarness {
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final int TICKS_PER_SECOND = 20;
+    private static final String LOCAL_SERVER_ID = "loadtest-local";
+    private static final String REMOTE_SERVER_ID = "loadtest-remote";
+    // このサーバーでは無効にして、保存データの引き継ぎを確認する要素
+    private static final String PRESERVED_COMPONENT_ID = SyncComponents.ENDER_CHEST.getId();
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    private final Options options;
+    private final RegistryWrapper.WrapperLookup registryLookup;
+    private final List<SimPlayer> players = new ArrayList<>();
+    private final ConcurrentLinkedQueue<Runnable> tickTasks = new ConcurrentLinkedQueue<>();
+    // 保存を投入してから、まだ保存先に書き込まれていないプレイヤーと、最初に投入した時刻
+    private final Map<UUID, Long> unsavedSince = new ConcurrentHashMap<>();
+    // ロード中のプレイヤーと、移動先のサーバーにいるプレイヤーの数
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private Path directory;
+    private InMemoryStorageBackend backend;
+    private ExecutorService remoteExecutor;
+    private Thread tickThread;
+    private volatile boolean running;
+    private volatile Scenario current;
+
+    /**
+     * 負荷試験の条件。引数は --名前=値 の形式で指定します。
+     */
+    static final class Options {
+        int players = 500; // 架空のプレイヤーの人数
+        long seed = 1; // インベントリの生成と変更に使う乱数の種
+        int loadThreads = 4; // ロード用スレッド数（移動先のサーバーのスレッド数も同じ）
+        int queueCapacity = 1024; // 書き込みキューの容量
+        long dbLatencyMicros = 500; // 保存先の各操作の往復時間
+        int stormSeconds = 1; // login_storm で全員がログインし終えるまでの時間
+        int autosaveSeconds = 20; // steady_autosave の長さ
+        int autosaveIntervalSeconds = 5; // steady_autosave で各プレイヤーを保存する間隔
+        int switchRounds = 3; // server_switching で各プレイヤーが移動する回数
+        int switchWindowSeconds = 2; // server_switching の1回分の時間
+        int remoteDwellMillis = 100; // 移動先のサーバーが保存を書き込むまでの最大時間
+        int disconnectSeconds = 1; // mass_disconnect で全員がログアウトし終えるまでの時間
+        int scenarioTimeoutSeconds = 120; // 各シナリオの保存が全て書き込まれるまでの最大待ち時間
+        Path out = Path.of("loadtest-report.json"); // 結果の出力先
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                if (arg.isBlank()) {
+                    continue;
+                }
+                int separator = arg.indexOf('=');
+                if (!arg.startsWith("--") || separator < 0) {
+                    throw new IllegalArgumentException("引数は --名前=値 の形式で指定してください: " + arg);
+                }
+                String value = arg.substring(separator + 1);
+                switch (arg.substring(2, separator)) {
+                    case "players" -> options.players = Integer.parseInt(value);
+                    case "seed" -> options.seed = Long.parseLong(value);
+                    case "load-threads" -> options.loadThreads = Integer.parseInt(value);
+                    case "queue-capacity" -> options.queueCapacity = Integer.parseInt(value);
+                    case "db-latency-micros" -> options.dbLatencyMicros = Long.parseLong(value);
+                    case "storm-seconds" -> options.stormSeconds = Integer.parseInt(value);
+                    case "autosave-seconds" -> options.autosaveSeconds = Integer.parseInt(value);
+                    case "autosave-interval-seconds" -> options.autosaveIntervalSeconds = Integer.parseInt(value);
+                    case "switch-rounds" -> options.switchRounds = Integer.parseInt(value);
+                    case "switch-window-seconds" -> options.switchWindowSeconds = Integer.parseInt(value);
+                    case "remote-dwell-millis" -> options.remoteDwellMillis = Integer.parseInt(value);
+                    case "disconnect-seconds" -> options.disconnectSeconds = Integer.parseInt(value);
+                    case "scenario-timeout-seconds" -> options.scenarioTimeoutSeconds = Integer.parseInt(value);
+                    case "out" -> options.out = Path.of(value);
+                    default -> throw new IllegalArgumentException("不明な引数です: " + arg);
+                }
+            }
+            if (options.players <= 0 || options.loadThreads <= 0 || options.queueCapacity <= 0) {
+                throw new IllegalArgumentException("players、load-threads、queue-capacity は1以上を指定してください。");
+            }
+            return options;
+        }
+
+        Map<String, Object> toReport() {
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("players", players);
+            report.put("seed", seed);
+            report.put("load_threads", loadThreads);
+            report.put("queue_capacity", queueCapacity);
+            report.put("db_latency_micros", dbLatencyMicros);
+            report.put("storm_seconds", stormSeconds);
+            report.put("autosave_seconds", autosaveSeconds);
+            report.put("autosave_interval_seconds", autosaveIntervalSeconds);
+            report.put("switch_rounds", switchRounds);
+            report.put("switch_window_seconds", switchWindowSeconds);
+            report.put("remote_dwell_millis", remoteDwellMillis);
+            report.put("disconnect_seconds", disconnectSeconds);
+            return report;
+        }
+    }
+
+    private enum State {
+        OFFLINE, JOINING, ONLINE, REMOTE
+    }
+
+    /**
+     * 架空のプレイヤー。inventory と baseline はtickのスレッドだけが扱い、移動先のサーバーにいる間はそのスレッドに引き渡します。
+     */
+    private static final class SimPlayer {
+        final UUID uuid;
+        final Random random;
+        final SimpleInventory inventory = new SimpleInventory(InventoryFixtures.INVENTORY_SIZE);
+        // 最後に取得したスナップショットの内容（変わったスロットだけを複製するための基準）
+        DefaultedList<ItemStack> baseline;
+        State state = State.OFFLINE;
+        // 移動先のサーバーで書き込まれた内容。戻ってきた時のロードで期待する内容
+        volatile DefaultedList<ItemStack> remoteWritten;
+        // このサーバーでは扱わない要素（エンダーチェスト）の、最初に保存したエンコード済みのデータ
+        byte[] preservedSection;
+
+        SimPlayer(UUID uuid, Random random) {
+            this.uuid = uuid;
+            this.random = random;
+        }
+    }
+
+    /**
+     * シナリオ。rounds 回、全員が windowTicks のtickに分散して1回ずつ action を実行し、その後の保存が全て書き込まれるまでを計測します。
+     */
+    private final class Scenario {
+        final String name;
+        final int rounds;
+        final int windowTicks;
+        final BiConsumer<SimPlayer, Stats> action;
+        final Stats stats = new Stats();
+        int tick;
+        volatile boolean issued;
+
+        Scenario(String name, int rounds, int windowSeconds, BiConsumer<SimPlayer, Stats> action) {
+            this.name = name;
+            this.rounds = Math.max(1, rounds);
+            this.windowTicks = Math.max(1, windowSeconds * TICKS_PER_SECOND);
+            this.action = action;
+        }
+
+        void tick() {
+            if (issued) {
+                return;
+            }
+            int offset = tick % windowTicks;
+            int from = (int) ((long) offset * players.size() / windowTicks);
+            int to = (int) ((long) (offset + 1) * players.size() / windowTicks);
+            for (int i = from; i < to; i++) {
+                action.accept(players.get(i), stats);
+            }
+            tick++;
+            if (tick >= rounds * windowTicks) {
+                issued = true;
+            }
+        }
+    }
+
+    /**
+     * シナリオごとの計測値。
+     */
+    private static final class Stats {
+        final Latency join = new Latency();
+        final Latency save = new Latency();
+        final Latency tick = new Latency();
+        final Latency saveCall = new Latency();
+        final LongAdder joins = new LongAdder();
+        final LongAdder saves = new LongAdder();
+        final LongAdder leaves = new LongAdder();
+        final LongAdder switches = new LongAdder();
+        final LongAdder skipped = new LongAdder();
+        final LongAdder loadFailures = new LongAdder();
+        final LongAdder remoteFailures = new LongAdder();
+        final LongAdder staleHandoffReads = new LongAdder();
+        final Integrity loaded = new Integrity();
+        Integrity stored;
+        long saveFailures;
+        int leakedLeases;
+        long durationNanos;
+        boolean timedOut;
+
+        boolean passed() {
+            return !timedOut && loaded.passed() && stored.passed() && loadFailures.sum() == 0 && remoteFailures.sum() == 0
+                    && staleHandoffReads.sum() == 0 && saveFailures == 0 && leakedLeases == 0;
+        }
+
+        Map<String, Object> toReport() {
+            double seconds = durationNanos / 1e9;
+            Map<String, Object> operations = new LinkedHashMap<>();
+            operations.put("joins", joins.sum());
+            operations.put("saves", saves.sum());
+            operations.put("leaves", leaves.sum());
+            operations.put("server_switches", switches.sum());
+            operations.put("skipped", skipped.sum());
+
+            Map<String, Object> throughput = new LinkedHashMap<>();
+            throughput.put("joins", round(joins.sum() / seconds));
+            throughput.put("saves", round(saves.sum() / seconds));
+            throughput.put("leaves", round(leaves.sum() / seconds));
+
+            Map<String, Object> latency = new LinkedHashMap<>();
+            latency.put("join", join.toReport());
+            latency.put("save", save.toReport());
+
+            Map<String, Object> tickReport = new LinkedHashMap<>();
+            tickReport.put("ticks", tick.count());
+            tickReport.put("blocked_ms_total", round(tick.sumNanos() / 1e6));
+            tickReport.put("p50_ms", round(tick.percentileNanos(0.50) / 1e6));
+            tickReport.put("p99_ms", round(tick.percentileNanos(0.99) / 1e6));
+            tickReport.put("max_ms", round(tick.maxNanos() / 1e6));
+            tickReport.put("over_budget", tick.countAbove(TICK_NANOS));
+            tickReport.put("save_call", saveCall.toReport());
+
+            Map<String, Object> integrity = new LinkedHashMap<>();
+            integrity.put("loaded", loaded.toReport());
+            integrity.put("stored", stored.toReport());
+            integrity.put("stale_handoff_reads", staleHandoffReads.sum());
+            integrity.put("load_failures", loadFailures.sum());
+            integrity.put("remote_failures", remoteFailures.sum());
+            integrity.put("save_failures", saveFailures);
+            integrity.put("leaked_leases", leakedLeases);
+
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("duration_ms", round(durationNanos / 1e6));
+            report.put("timed_out", timedOut);
+            report.put("operations", operations);
+            report.put("throughput_per_second", throughput);
+            report.put("latency_ms", latency);
+            report.put("tick", tickReport);
+            report.put("integrity", integrity);
+            report.put("passed", passed());
+            return report;
+        }
+    }
+
+    /**
+     * 計測値を全て保持し、正確なパーセンティルを求めます。負荷試験の件数（数万件）では {@link SyncMetrics.Histogram} の近似より比較しやすいためです。
+     */
+    private static final class Latency {
+        private long[] values = new long[1024];
+        private int size;
+
+        synchronized void record(long nanos) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = nanos;
+        }
+
+        synchronized long count() {
+            return size;
+        }
+
+        synchronized long sumNanos() {
+            long sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += values[i];
+            }
+            return sum;
+        }
+
+        synchronized long maxNanos() {
+            long max = 0;
+            for (int i = 0; i < size; i++) {
+                max = Math.max(max, values[i]);
+            }
+            return max;
+        }
+
+        synchronized long countAbove(long thresholdNanos) {
+            long count = 0;
+            for (int i = 0; i < size; i++) {
+                if (values[i] > thresholdNanos) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        synchronized long percentileNanos(double quantile) {
+            if (size == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(quantile * size);
+            return sorted[Math.max(rank, 1) - 1];
+        }
+
+        Map<String, Object> toReport() {
+            Map<String, Object> report = new LinkedHashMap<>();
+            long count = count();
+            report.put("count", count);
+            report.put("p50_ms", round(percentileNanos(0.50) / 1e6));
+            report.put("p99_ms", round(percentileNanos(0.99) / 1e6));
+            report.put("max_ms", round(maxNanos() / 1e6));
+            report.put("mean_ms", count == 0 ? 0.0 : round(sumNanos() / (double) count / 1e6));
+            return report;
+        }
+    }
+
+    /**
+     * 期待する内容と実際の内容の比較結果。スロットごとに一致を確認し、アイテムの種類ごとの個数の差を消失・増殖として数えます。
+     */
+    private static final class Integrity {
+        final LongAdder checkedPlayers = new LongAdder();
+        final LongAdder mismatchedPlayers = new LongAdder();
+        final LongAdder lostItems = new LongAdder();
+        final LongAdder duplicatedItems = new LongAdder();
+        final LongAdder lostPreservedSections = new LongAdder();
+
+        /**
+         * @return 全てのスロットが一致した場合 true
+         */
+        boolean check(List<ItemStack> expected, List<ItemStack> actual) {
+            checkedPlayers.increment();
+            int size = Math.max(expected.size(), actual.size());
+            boolean matched = true;
+            Map<Item, Long> difference = new HashMap<>();
+            for (int slot = 0; slot < size; slot++) {
+                ItemStack expectedStack = slot < expected.size() ? expected.get(slot) : ItemStack.EMPTY;
+                ItemStack actualStack = slot < actual.size() ? actual.get(slot) : ItemStack.EMPTY;
+                if (!ItemStack.areEqual(expectedStack, actualStack)) {
+                    matched = false;
+                }
+                if (!expectedStack.isEmpty()) {
+                    difference.merge(expectedStack.getItem(), (long) -expectedStack.getCount(), Long::sum);
+                }
+                if (!actualStack.isEmpty()) {
+                    difference.merge(actualStack.getItem(), (long) actualStack.getCount(), Long::sum);
+                }
+            }
+            for (long delta : difference.values()) {
+                if (delta < 0) {
+                    lostItems.add(-delta);
+                } else if (delta > 0) {
+                    duplicatedItems.add(delta);
+                }
+            }
+            if (!matched) {
+                mismatchedPlayers.increment();
+            }
+            return matched;
+        }
+
+        /**
+         * このサーバーでは扱わない要素の保存データが、元のバイト列のまま残っているかを確認します。
+         */
+        void checkPreserved(byte[] expected, InventorySnapshot actual) {
+            if (!Arrays.equals(expected, actual.getPreservedSections().get(PRESERVED_COMPONENT_ID))) {
+                lostPreservedSections.increment();
+            }
+        }
+
+        boolean passed() {
+            return mismatchedPlayers.sum() == 0 && lostItems.sum() == 0 && duplicatedItems.sum() == 0 && lostPreservedSections.sum() == 0;
+        }
+
+        Map<String, Object> toReport() {
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("checked_players", checkedPlayers.sum());
+            report.put("mismatched_players", mismatchedPlayers.sum());
+            report.put("lost_items", lostItems.sum());
+            report.put("duplicated_items", duplicatedItems.sum());
+            report.put("lost_preserved_sections", lostPreservedSections.sum());
+            return report;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options = Options.parse(args);
+        LoadTestHarness harness = new LoadTestHarness(options);
+        boolean passed;
+        try {
+            harness.start();
+            passed = harness.run();
+        } finally {
+            harness.stop();
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    LoadTestHarness(Options options) {
+        this.options = options;
+        this.registryLookup = InventoryFixtures.bootstrap();
+    }
+
+    private void start() throws IOException {
+        ConfigManager.ConfigData config = new ConfigManager.ConfigData("localhost", 3306, "loadtest", "loadtest", "", options.autosaveIntervalSeconds);
+        config.serverId = LOCAL_SERVER_ID;
+        config.saveQueueCapacity = options.queueCapacity;
+        config.loadThreads = options.loadThreads;
+        config.syncComponents.put(PRESERVED_COMPONENT_ID, false);
+        ConfigManager.setConfig(config);
+
+        directory = InventoryFixtures.createTempDirectory("loadtest");
+        backend = new InMemoryStorageBackend(options.dbLatencyMicros, this::onWritten);
+        backend.open();
+        DatabaseManager.useBackend(backend, registryLookup);
+        SaveJournal.open(directory.resolve("journal"));
+        InventorySaveQueue.start(config.saveQueueCapacity);
+        InventorySync.startLoadExecutor(config.loadThreads);
+        AtomicInteger threadIndex = new AtomicInteger();
+        remoteExecutor = Executors.newFixedThreadPool(options.loadThreads, runnable -> {
+            Thread thread = new Thread(runnable, "LoadTest-Remote-Server-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        running = true;
+        tickThread = new Thread(this::runTicks, "LoadTest-Server-Tick");
+        tickThread.setDaemon(true);
+        tickThread.start();
+    }
+
+    private void stop() throws IOException {
+        running = false;
+        if (tickThread != null) {
+            try {
+                tickThread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        InventorySaveQueue.shutdownAndDrain(60);
+        SaveJournal.close();
+        InventorySync.stopLoadExecutor();
+        if (remoteExecutor != null) {
+            remoteExecutor.shutdownNow();
+        }
+        if (backend != null) {
+            backend.close();
+        }
+        if (directory != null) {
+            InventoryFixtures.deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * 全てのシナリオを実行し、結果を出力します。
+     * @return 全てのシナリオで整合性の確認に成功した場合 true
+     */
+    private boolean run() throws IOException {
+        seedStorage();
+
+        List<Scenario> scenarios = List.of(
+                new Scenario("login_storm", 1, options.stormSeconds, this::joinIfOffline),
+                new Scenario("steady_autosave", options.autosaveSeconds / Math.max(1, options.autosaveIntervalSeconds),
+                        options.autosaveIntervalSeconds, this::saveIfOnline),
+                new Scenario("server_switching", options.switchRounds, options.switchWindowSeconds, this::switchServerIfOnline),
+                new Scenario("mass_disconnect", 1, options.disconnectSeconds, this::leaveIfOnline));
+        Map<String, Object> scenarioReports = new LinkedHashMap<>();
+        boolean passed = true;
+        for (Scenario scenario : scenarios) {
+            runScenario(scenario);
+            scenarioReports.put(scenario.name, scenario.stats.toReport());
+            passed &= scenario.stats.passed();
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("format", 1);
+        report.put("parameters", options.toReport());
+        report.put("scenarios", scenarioReports);
+        report.put("passed", passed);
+        Path out = options.out.toAbsolutePath();
+        Files.createDirectories(out.getParent());
+        Files.writeString(out, GSON.toJson(report));
+        Fabsyncmod.LOGGER.info("負荷試験の結果を出力しました（" + (passed ? "成功" : "失敗") + "）: " + out);
+        return passed;
+    }
+
+    /**
+     * 再起動前の状態として、全員のインベントリを乱数で生成して保存先に書き込みます。この書き込みは計測しません。
+     */
+    private void seedStorage() {
+        List<InventoryRecord> records = new ArrayList<>();
+        for (int i = 0; i < options.players; i++) {
+            SimPlayer player = new SimPlayer(new UUID(0x10ad7e57L, i + 1L), new Random(options.seed * 1_000_003L + i));
+            DefaultedList<ItemStack> inventory = InventoryFixtures.random(player.random, registryLookup);
+            for (int slot = 0; slot < inventory.size(); slot++) {
+                player.inventory.setStack(slot, inventory.get(slot));
+            }
+            players.add(player);
+            DefaultedList<ItemStack> enderChest = DefaultedList.ofSize(27, ItemStack.EMPTY);
+            for (int slot = 0; slot < enderChest.size(); slot++) {
+                if (player.random.nextBoolean()) {
+                    enderChest.set(slot, InventoryFixtures.randomStack(player.random));
+                }
+            }
+            Map<String, Object> components = new LinkedHashMap<>();
+            components.put(SyncComponents.INVENTORY.getId(), inventory);
+            components.put(PRESERVED_COMPONENT_ID, enderChest);
+            try {
+                byte[] data = DatabaseManager.encodeInventory(InventorySnapshot.of(player.uuid, components, Map.of()));
+                player.preservedSection = InventoryCodec.decode(player.uuid, data, registryLookup).getPreservedSections().get(PRESERVED_COMPONENT_ID);
+                records.add(new InventoryRecord(player.uuid, data));
+            } catch (IOException e) {
+                throw new IllegalStateException("負荷試験用のインベントリをエンコードできませんでした。", e);
+            }
+            if (records.size() >= ConfigManager.getConfig().dbBatchChunkSize) {
+                writeSeed(records);
+            }
+        }
+        writeSeed(records);
+        InventoryCache.clear();
+        Fabsyncmod.LOGGER.info(options.players + " 人分のインベントリを保存先に用意しました。");
+    }
+
+    private void writeSeed(List<InventoryRecord> records) {
+        if (!DatabaseManager.saveInventories(records)) {
+            throw new IllegalStateException("負荷試験用のインベントリを保存先に書き込めませんでした。");
+        }
+        records.clear();
+    }
+
+    /**
+     * シナリオをtickのスレッドで実行し、全ての操作を終えて保存が全て書き込まれるまで待ってから、保存先の内容を確認します。
+     */
+    private void runScenario(Scenario scenario) {
+        Fabsyncmod.LOGGER.info("シナリオ " + scenario.name + " を開始します。");
+        long saveFailuresBefore = SyncMetrics.getSaveFailureCount();
+        long startNanos = System.nanoTime();
+        long deadlineNanos = startNanos + TimeUnit.SECONDS.toNanos(options.scenarioTimeoutSeconds)
+                + (long) scenario.rounds * scenario.windowTicks * TICK_NANOS;
+        current = scenario;
+        while (!(scenario.issued && isSettled())) {
+            if (System.nanoTime() - deadlineNanos > 0) {
+                scenario.stats.timedOut = true;
+                Fabsyncmod.LOGGER.error("シナリオ " + scenario.name + " の保存が時間内に書き込まれませんでした。");
+                break;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+        }
+        current = null;
+        Stats stats = scenario.stats;
+        stats.durationNanos = System.nanoTime() - startNanos;
+        stats.saveFailures = SyncMetrics.getSaveFailureCount() - saveFailuresBefore;
+        stats.stored = verifyStored();
+        long online = players.stream().filter(player -> player.state == State.ONLINE).count();
+        stats.leakedLeases = (int) Math.max(0, backend.countHeldLeases() - online);
+        Fabsyncmod.LOGGER.info("シナリオ " + scenario.name + " が終了しました（" + TimeUnit.NANOSECONDS.toMillis(stats.durationNanos)
+                + " ミリ秒、join p99 " + round(stats.join.percentileNanos(0.99) / 1e6) + " ミリ秒、save p99 " + round(stats.save.percentileNanos(0.99) / 1e6)
+                + " ミリ秒、tick最大 " + round(stats.tick.maxNanos() / 1e6) + " ミリ秒）。" + (stats.passed() ? "" : "整合性の確認に失敗しました。"));
+    }
+
+    private boolean isSettled() {
+        return inFlight.get() == 0 && tickTasks.isEmpty() && unsavedSince.isEmpty()
+                && InventorySaveQueue.getPendingCount() == 0 && SaveJournal.getUnflushedCount() == 0;
+    }
+
+    /**
+     * 保存先の内容を、各プレイヤーの最後に保存した内容と比較します。全ての保存が書き込まれた後に呼び出してください。
+     */
+    private Integrity verifyStored() {
+        Integrity integrity = new Integrity();
+        for (SimPlayer player : players) {
+            DefaultedList<ItemStack> expected = player.remoteWritten != null ? player.remoteWritten : player.inventory.getHeldStacks();
+            InventorySnapshot stored = decode(player.uuid, backend.peek(player.uuid).orElse(new byte[0]));
+            integrity.check(expected, inventoryOf(stored));
+            integrity.checkPreserved(player.preservedSection, stored);
+        }
+        return integrity;
+    }
+
+    private InventorySnapshot decode(UUID playerUuid, byte[] data) {
+        if (data.length == 0) {
+            return InventorySnapshot.emptyInventory(playerUuid);
+        }
+        try {
+            return InventoryCodec.decode(playerUuid, data, registryLookup);
+        } catch (IOException e) {
+            Fabsyncmod.LOGGER.error("プレイヤー " + playerUuid + " の保存データをデコードできませんでした。", e);
+            return InventorySnapshot.emptyInventory(playerUuid);
+        }
+    }
+
+    private static DefaultedList<ItemStack> inventoryOf(InventorySnapshot snapshot) {
+        DefaultedList<ItemStack> inventory = snapshot.get(SyncComponents.INVENTORY);
+        return inventory != null ? inventory : InventoryFixtures.empty();
+    }
+
+    /**
+     * サーバーのメインスレッドの代わりに、50ミリ秒ごとにtickを実行します。
+     * 各tickでは、ロード結果の適用などの予約された処理と、実行中のシナリオの操作を行い、その時間をtickの停止時間として記録します。
+     */
+    private void runTicks() {
+        long nextTickNanos = System.nanoTime();
+        while (running) {
+            long startNanos = System.nanoTime();
+            Scenario scenario = current;
+            Runnable task;
+            while ((task = tickTasks.poll()) != null) {
+                task.run();
+            }
+            if (scenario != null) {
+                scenario.tick();
+                scenario.stats.tick.record(System.nanoTime() - startNanos);
+            }
+            nextTickNanos += TICK_NANOS;
+            long sleepNanos = nextTickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                LockSupport.parkNanos(sleepNanos);
+            } else {
+                nextTickNanos = System.nanoTime(); // 遅れたtickは取り戻さない（サーバーと同じ）
+            }
+        }
+    }
+
+    private void joinIfOffline(SimPlayer player, Stats stats) {
+        if (player.state == State.OFFLINE) {
+            join(player, stats);
+        } else {
+            stats.skipped.increment();
+        }
+    }
+
+    private void saveIfOnline(SimPlayer player, Stats stats) {
+        if (player.state == State.ONLINE) {
+            mutate(player.inventory.getHeldStacks(), player.random);
+            save(player, stats);
+        } else {
+            stats.skipped.increment();
+        }
+    }
+
+    private void leaveIfOnline(SimPlayer player, Stats stats) {
+        if (player.state == State.ONLINE) {
+            mutate(player.inventory.getHeldStacks(), player.random);
+            leave(player, stats);
+        } else {
+            stats.skipped.increment();
+        }
+    }
+
+    /**
+     * ログアウトして他のサーバーに移動させます。移動先のサーバーはロックを取得してロードし、インベントリを変更して保存します。
+     * プレイヤーは移動先でのロードが終わった時点でこのサーバーに戻り始めるため、このサーバーのロードは移動先の保存の書き込みを待ちます。
+     */
+    private void switchServerIfOnline(SimPlayer player, Stats stats) {
+        if (player.state != State.ONLINE) {
+            stats.skipped.increment();
+            return;
+        }
+        mutate(player.inventory.getHeldStacks(), player.random);
+        leave(player, stats);
+        player.state = State.REMOTE;
+        stats.switches.increment();
+        DefaultedList<ItemStack> leftWith = player.baseline;
+        inFlight.incrementAndGet();
+        remoteExecutor.execute(() -> visitRemote(player, leftWith, stats));
+    }
+
+    /**
+     * ログインを模擬します。{@link InventorySync#loadPlayerInventoryAsync} と同じく、ロード用スレッドでロックの取得と読み込みを行い、
+     * 結果は後続のtickで適用します。
+     */
+    private void join(SimPlayer player, Stats stats) {
+        player.state = State.JOINING;
+        inFlight.incrementAndGet();
+        stats.joins.increment();
+        long startNanos = System.nanoTime();
+        AtomicReference<String> leaseToken = new AtomicReference<>();
+        CompletableFuture.supplyAsync(() -> InventorySync.acquireAndFetch(player.uuid, leaseToken), InventorySync.getLoadExecutor())
+                .whenComplete((snapshot, error) -> tickTasks.add(() -> applyLoaded(player, snapshot, error, leaseToken.get(), startNanos, stats)));
+    }
+
+    private void applyLoaded(SimPlayer player, InventorySnapshot snapshot, Throwable error, String leaseToken, long startNanos, Stats stats) {
+        try {
+            if (error != null) {
+                stats.loadFailures.increment();
+                InventorySync.releaseLeaseAsync(player.uuid, leaseToken);
+                player.state = State.OFFLINE;
+                Fabsyncmod.LOGGER.error("プレイヤー " + player.uuid + " のロードに失敗しました。", error);
+                return;
+            }
+            DefaultedList<ItemStack> loaded = inventoryOf(snapshot);
+            DefaultedList<ItemStack> expected = player.remoteWritten != null ? player.remoteWritten : player.inventory.getHeldStacks();
+            stats.loaded.check(expected, loaded);
+            stats.loaded.checkPreserved(player.preservedSection, snapshot);
+            // InventorySnapshot#applyTo と同じく、適用時に複製する
+            for (int slot = 0; slot < player.inventory.size(); slot++) {
+                player.inventory.setStack(slot, slot < loaded.size() ? loaded.get(slot).copy() : ItemStack.EMPTY);
+            }
+            player.baseline = loaded;
+            player.remoteWritten = null;
+            InventoryChangeTracker.track(snapshot);
+            player.state = State.ONLINE;
+            stats.join.record(System.nanoTime() - startNanos);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private void save(SimPlayer player, Stats stats) {
+        long startNanos = System.nanoTime();
+        InventorySnapshot snapshot = capture(player).withLease(InventoryLease.getHeldToken(player.uuid));
+        unsavedSince.putIfAbsent(player.uuid, startNanos);
+        InventorySaveQueue.submit(snapshot, true);
+        stats.saveCall.record(System.nanoTime() - startNanos);
+        stats.saves.increment();
+    }
+
+    /**
+     * ログアウトを模擬します。{@link InventorySync#savePlayerInventoryOnLogout} と同じく、書き込みと同時に引き継ぎロックを解放し、
+     * スナップショットを取得してから変更検出の基準を破棄します。
+     */
+    private void leave(SimPlayer player, Stats stats) {
+        long startNanos = System.nanoTime();
+        String leaseToken = InventoryLease.detach(player.uuid);
+        InventorySnapshot snapshot = capture(player).withLeaseRelease(leaseToken);
+        unsavedSince.putIfAbsent(player.uuid, startNanos);
+        InventorySaveQueue.submit(snapshot, true);
+        InventoryChangeTracker.forget(player.uuid);
+        stats.saveCall.record(System.nanoTime() - startNanos);
+        stats.leaves.increment();
+        player.state = State.OFFLINE;
+    }
+
+    /**
+     * {@link InventorySnapshot#capture} と同じく、前回の状態から変わったスロットだけを複製し、
+     * このサーバーでは扱わない要素の保存データを変更検出の基準から引き継いでスナップショットを作成します。
+     */
+    private static InventorySnapshot capture(SimPlayer player) {
+        DefaultedList<ItemStack> copied = SyncComponents.ItemListComponent.copyChanged(player.inventory, player.baseline);
+        player.baseline = copied;
+        Map<String, Object> components = new LinkedHashMap<>();
+        components.put(SyncComponents.INVENTORY.getId(), copied);
+        return InventorySnapshot.ofCaptured(player.uuid, null, components, InventoryChangeTracker.getBaseline(player.uuid));
+    }
+
+    /**
+     * 移動先のサーバーでの滞在を模擬します。移動先のサーバーのスレッドで実行されます。
+     * @param leftWith このサーバーからログアウトした時に保存した内容。移動先で読み込んだ内容と一致しなければ、古い内容を読み込んだとみなします
+     */
+    private void visitRemote(SimPlayer player, DefaultedList<ItemStack> leftWith, Stats stats) {
+        ConfigManager.ConfigData config = ConfigManager.getConfig();
+        String leaseToken = REMOTE_SERVER_ID + ":" + Long.toHexString(player.random.nextLong());
+        boolean returning = false;
+        try {
+            long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.handoffTimeoutMillis);
+            while (!backend.tryAcquireLease(player.uuid, leaseToken, config.leaseSeconds)) {
+                if (System.nanoTime() - deadlineNanos > 0) {
+                    throw new IllegalStateException("移動先のサーバーがプレイヤー " + player.uuid + " の引き継ぎロックを取得できませんでした。");
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+            }
+            InventorySnapshot loadedSnapshot = decode(player.uuid, backend.load(player.uuid).orElse(new byte[0]));
+            List<ItemStack> loaded = inventoryOf(loadedSnapshot);
+            if (!stats.loaded.check(leftWith, loaded)) {
+                stats.staleHandoffReads.increment();
+            }
+            stats.loaded.checkPreserved(player.preservedSection, loadedSnapshot);
+            DefaultedList<ItemStack> written = InventoryFixtures.empty();
+            for (int slot = 0; slot < Math.min(loaded.size(), written.size()); slot++) {
+                written.set(slot, loaded.get(slot).copy());
+            }
+            mutate(written, player.random);
+            // 移動先のサーバーも、扱わない要素の保存データを書き戻す
+            Map<String, Object> components = new LinkedHashMap<>();
+            components.put(SyncComponents.INVENTORY.getId(), written);
+            byte[] data = DatabaseManager.encodeInventory(InventorySnapshot.of(player.uuid, components, loadedSnapshot.getPreservedSections()));
+            player.remoteWritten = written;
+            // 移動先でのロードが終わった時点で戻り始め、このサーバーのロードは移動先の保存の書き込み（ロックの解放）を待つ
+            tickTasks.add(() -> join(player, stats));
+            returning = true;
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(player.random.nextInt(options.remoteDwellMillis + 1)));
+            backend.saveBatch(List.of(new InventoryRecord(player.uuid, data, leaseToken, true)));
+        } catch (IOException | RuntimeException e) {
+            stats.remoteFailures.increment();
+            Fabsyncmod.LOGGER.error("移動先のサーバーでプレイヤー " + player.uuid + " の処理に失敗しました。", e);
+            if (!returning) {
+                player.remoteWritten = null;
+                tickTasks.add(() -> join(player, stats));
+            }
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * ゲーム中の操作を模擬して、インベントリを1〜4回ランダムに変更します（拾う、捨てる、使う・増える、並べ替える）。
+     * 保存済みのスナップショットと共有しているスタックを変更しないよう、スタックの変更は置き換えで行います。
+     */
+    private static void mutate(DefaultedList<ItemStack> inventory, Random random) {
+        int operations = 1 + random.nextInt(4);
+        for (int i = 0; i < operations; i++) {
+            int slot = random.nextInt(inventory.size());
+            ItemStack stack = inventory.get(slot);
+            switch (random.nextInt(4)) {
+                case 0 -> inventory.set(slot, InventoryFixtures.randomStack(random));
+                case 1 -> inventory.set(slot, ItemStack.EMPTY);
+                case 2 -> {
+                    if (!stack.isEmpty()) {
+                        inventory.set(slot, stack.copyWithCount(1 + random.nextInt(stack.getMaxCount())));
+                    }
+                }
+                default -> {
+                    int other = random.nextInt(inventory.size());
+                    inventory.set(slot, inventory.get(other));
+                    inventory.set(other, stack);
+                }
+            }
+        }
+    }
+
+    /**
+     * 通知されたレコードの書き込みで、投入から書き込みまでの時間を記録します。保存先の書き込みスレッドから呼び出されます。
+     */
+    private void onWritten(InventoryRecord record) {
+        Long submittedNanos = unsavedSince.remove(record.playerUuid());
+        Scenario scenario = current;
+        if (submittedNanos != null && scenario != null) {
+            scenario.stats.save.record(System.nanoTime() - submittedNanos);
+        }
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+}
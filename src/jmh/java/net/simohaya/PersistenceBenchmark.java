@@ -0,0 +1,89 @@
+package net.simohaya;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import net.minecraft.item.ItemStack;
+import net.minecraft.util.collection.DefaultedList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 1人分のインベントリの保存と {@link DatabaseManager#loadInventory} による読み込みの、エンコード・デコードを含む全体の時間を計測します。
+ * 保存は本番と同じく {@link InventorySaveQueue} に投入し、書き込みスレッドがジャーナルへの追記と
+ * {@link DatabaseManager#saveInventories} による反映を終えるまでを計測します。
+ * MySQLの代わりにローカルファイルの保存先（{@link LocalFileStorageBackend}）を一時ディレクトリに作成して使用するため、
+ * ファイルの fsync を含みますが、ネットワークの往復は含みません。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistenceBenchmark {
+
+    private static final int QUEUE_CAPACITY = 16;
+
+    private static final UUID PLAYER_UUID = new UUID(0L, 1L);
+
+    @Param({"empty", "typical", "full", "shulker_heavy"})
+    public String profile;
+
+    private Path directory;
+    private LocalFileStorageBackend backend;
+    private DefaultedList<ItemStack> inventory;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, StorageException {
+        directory = InventoryFixtures.createTempDirectory("persistence");
+        backend = new LocalFileStorageBackend(directory.resolve("inventories"));
+        backend.open();
+        DatabaseManager.useBackend(backend, InventoryFixtures.bootstrap());
+        SaveJournal.open(directory.resolve("journal"));
+        InventorySaveQueue.start(QUEUE_CAPACITY);
+        inventory = InventoryFixtures.create(profile, InventoryFixtures.bootstrap());
+        // 読み込みの計測用に1件保存しておく
+        byte[] data = DatabaseManager.encodeInventory(InventoryFixtures.snapshot(PLAYER_UUID, inventory));
+        if (!DatabaseManager.saveInventories(List.of(new InventoryRecord(PLAYER_UUID, data)))) {
+            throw new IllegalStateException("計測用のインベントリを保存できませんでした。");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        InventorySaveQueue.shutdownAndDrain(60);
+        SaveJournal.close();
+        backend.close();
+        InventoryFixtures.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public void save() {
+        InventorySaveQueue.submit(InventoryFixtures.snapshot(PLAYER_UUID, inventory), true);
+        // 書き込みスレッドが保存先への反映を終えるまで待つ
+        while (InventorySaveQueue.getPendingCount() > 0) {
+            LockSupport.parkNanos(20_000);
+        }
+    }
+
+    @Benchmark
+    public InventorySnapshot load() {
+        return DatabaseManager.loadInventory(PLAYER_UUID);
+    }
+}
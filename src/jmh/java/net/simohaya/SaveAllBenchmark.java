@@ -0,0 +1,87 @@
+package net.simohaya;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import net.minecraft.item.ItemStack;
+import net.minecraft.util.collection.DefaultedList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link InventorySync#saveAllPlayersInventories} と同じ経路（スナップショットの作成、書き込みキューへの投入、
+ * エンコード、ジャーナルへの追記、保存先への一括保存）で、プレイヤー全員の保存が完了するまでの時間を計測します。
+ * 実際のプレイヤーは作成できないため、同じインベントリを持つ架空のプレイヤーを players 人分用意し、
+ * スナップショットはインベントリの各スタックを複製して作成します。保存先はローカルファイルです。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SaveAllBenchmark {
+
+    private static final int QUEUE_CAPACITY = 1024;
+
+    @Param({"10", "100", "500"})
+    public int players;
+
+    @Param({"typical"})
+    public String profile;
+
+    private Path directory;
+    private LocalFileStorageBackend backend;
+    private DefaultedList<ItemStack> inventory;
+    private List<UUID> playerUuids;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, StorageException {
+        directory = InventoryFixtures.createTempDirectory("save-all");
+        backend = new LocalFileStorageBackend(directory.resolve("inventories"));
+        backend.open();
+        DatabaseManager.useBackend(backend, InventoryFixtures.bootstrap());
+        SaveJournal.open(directory.resolve("journal"));
+        InventorySaveQueue.start(QUEUE_CAPACITY);
+        inventory = InventoryFixtures.create(profile, InventoryFixtures.bootstrap());
+        playerUuids = new ArrayList<>(players);
+        for (int i = 0; i < players; i++) {
+            playerUuids.add(new UUID(0L, i + 1L));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        InventorySaveQueue.shutdownAndDrain(60);
+        SaveJournal.close();
+        backend.close();
+        InventoryFixtures.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public void saveAll() {
+        for (UUID playerUuid : playerUuids) {
+            InventorySaveQueue.submit(InventoryFixtures.snapshot(playerUuid, inventory), true);
+        }
+        // 書き込みスレッドが全員分を書き終えるまで待つ
+        while (InventorySaveQueue.getPendingCount() > 0) {
+            LockSupport.parkNanos(20_000);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package net.simohaya;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.minecraft.item.ItemStack;
+import net.minecraft.item.Items;
+import net.minecraft.registry.RegistryWrapper;
+import net.minecraft.util.collection.DefaultedList;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 1回の保存でMySQLに送るバイト数を、データ全体を書き込む方式（blob）とスロット単位で差分だけを書き込む方式（slots）で比較します。
+ * 保存のたびに changesPerSave 回の変更（道具の耐久値の減少、スタック数の増減、アイテムの拾得・移動）を、
+ * ホットバーを中心にインベントリへ加えてから保存します。
+ *
+ * <p>バイト数はSQLのパラメータとして送るデータの合計（UUID、セクション名、スロット番号、ハッシュ、版番号、データ本体）で、
+ * 補助カウンタ bytesWritten / saves と、1回あたりの値 bytesPerSave として出力します。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SlotStorageBenchmark {
+
+    private static final int UUID_BYTES = 16;
+    private static final int VERSION_BYTES = 8;
+    private static final int FORMAT_BYTES = 2;
+    private static final int SLOT_NUMBER_BYTES = 4;
+    private static final int HASH_BYTES = 8;
+    private static final int HOTBAR_SIZE = 9;
+
+    @Param({"typical", "full", "shulker_heavy"})
+    public String profile;
+
+    @Param({"1", "4", "16"})
+    public int changesPerSave;
+
+    private RegistryWrapper.WrapperLookup registryLookup;
+    private DefaultedList<ItemStack> inventory;
+    private Map<InventorySlots.SlotKey, Long> baseline;
+    private Random random;
+
+    /**
+     * JMHの補助カウンタ。イテレーションごとにリセットされ、結果に書き込んだバイト数として出力されます。
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class WrittenBytes {
+        public long bytesWritten;
+        public long saves;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytesWritten = 0;
+            saves = 0;
+        }
+
+        /**
+         * 1回の保存あたりのバイト数。イテレーションの合計から計算します。
+         */
+        public long bytesPerSave() {
+            return saves > 0 ? bytesWritten / saves : 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        registryLookup = InventoryFixtures.bootstrap();
+        inventory = InventoryFixtures.create(profile, registryLookup);
+        baseline = InventorySlots.hashes(InventorySlots.split(InventoryFixtures.encode(inventory, registryLookup)));
+        random = new Random(42);
+    }
+
+    @Benchmark
+    public byte[] blobSave(WrittenBytes counters) throws IOException {
+        churn();
+        byte[] data = InventoryFixtures.encode(inventory, registryLookup);
+        long bytes = UUID_BYTES + data.length + VERSION_BYTES + FORMAT_BYTES;
+        counters.bytesWritten += bytes;
+        counters.saves++;
+        return data;
+    }
+
+    @Benchmark
+    public InventorySlots.Delta slotSave(WrittenBytes counters) throws IOException {
+        churn();
+        List<InventorySlots.Slot> slots = InventorySlots.split(InventoryFixtures.encode(inventory, registryLookup));
+        InventorySlots.Delta delta = InventorySlots.diff(baseline, slots);
+        baseline = InventorySlots.hashes(slots);
+
+        // 行の UPSERT（データは空）と、行のロック
+        long bytes = UUID_BYTES + VERSION_BYTES + FORMAT_BYTES + UUID_BYTES;
+        for (InventorySlots.Slot slot : delta.upserts()) {
+            bytes += UUID_BYTES + sectionBytes(slot.key()) + SLOT_NUMBER_BYTES + HASH_BYTES + slot.data().length;
+        }
+        for (InventorySlots.SlotKey key : delta.deletes()) {
+            bytes += UUID_BYTES + sectionBytes(key) + SLOT_NUMBER_BYTES;
+        }
+        counters.bytesWritten += bytes;
+        counters.saves++;
+        return delta;
+    }
+
+    private static int sectionBytes(InventorySlots.SlotKey key) {
+        return key.section().getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * 自動保存の間隔の間に起きる典型的な変更を加えます。変更の8割はホットバーに集中させます。
+     */
+    private void churn() {
+        for (int i = 0; i < changesPerSave; i++) {
+            int slot = random.nextInt(10) < 8 ? random.nextInt(HOTBAR_SIZE) : random.nextInt(inventory.size());
+            ItemStack stack = inventory.get(slot);
+            if (stack.isEmpty()) {
+                inventory.set(slot, new ItemStack(Items.COBBLESTONE, 1 + random.nextInt(16)));
+            } else if (stack.isDamageable()) {
+                stack.setDamage(Math.min(stack.getDamage() + 1, stack.getMaxDamage() - 1));
+            } else if (stack.getMaxCount() > 1) {
+                int count = stack.getCount() + (random.nextBoolean() ? 1 : -1);
+                stack.setCount(Math.max(1, Math.min(count, stack.getMaxCount())));
+            } else {
+                // 重ねられないアイテムは別のスロットと入れ替える
+                int other = random.nextInt(inventory.size());
+                inventory.set(slot, inventory.get(other));
+                inventory.set(other, stack);
+            }
+        }
+    }
+}
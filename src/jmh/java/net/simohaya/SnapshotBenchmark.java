@@ -0,0 +1,110 @@
+package net.simohaya;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.minecraft.inventory.SimpleInventory;
+import net.minecraft.item.ItemStack;
+import net.minecraft.registry.RegistryWrapper;
+import net.minecraft.util.collection.DefaultedList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * メインスレッドでのスナップショット取得（インベントリの複製）を、players 人分まとめて1回として計測します。
+ * <ul>
+ *   <li>fullCopy: 全てのスロットを {@link ItemStack#copy()} する（基準がない場合の取得）</li>
+ *   <li>copyChanged: 前回の状態と比較し、変わったスロットだけを複製する（{@link SyncComponents.ItemListComponent#copyChanged}）</li>
+ * </ul>
+ * 各回の前に、各プレイヤーのインベントリの changedSlots スロットのスタック数を変更します。
+ * 割り当て量は GC プロファイラ（build.gradle の profilers = ['gc']）の gc.alloc.rate.norm（1回あたりのバイト数）で確認してください。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotBenchmark {
+
+    @Param({"typical", "full", "shulker_heavy"})
+    public String profile;
+
+    @Param({"200"})
+    public int players;
+
+    @Param({"0", "1", "4"})
+    public int changedSlots;
+
+    private SimpleInventory[] inventories;
+    private List<DefaultedList<ItemStack>> baselines;
+    // スタック数を変更する、アイテムの入っているスロット
+    private int[] mutableSlots;
+    private boolean toggle;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        RegistryWrapper.WrapperLookup registryLookup = InventoryFixtures.bootstrap();
+        DefaultedList<ItemStack> template = InventoryFixtures.create(profile, registryLookup);
+        List<Integer> occupied = new ArrayList<>();
+        for (int i = 0; i < template.size(); i++) {
+            if (!template.get(i).isEmpty()) {
+                occupied.add(i);
+            }
+        }
+        mutableSlots = occupied.stream().limit(changedSlots).mapToInt(Integer::intValue).toArray();
+
+        inventories = new SimpleInventory[players];
+        baselines = new ArrayList<>(players);
+        for (int p = 0; p < players; p++) {
+            SimpleInventory inventory = new SimpleInventory(template.size());
+            for (int i = 0; i < template.size(); i++) {
+                inventory.setStack(i, template.get(i).copy());
+            }
+            inventories[p] = inventory;
+            baselines.add(SyncComponents.ItemListComponent.copyChanged(inventory, null));
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void mutate() {
+        // スタック数を1増やす・戻すを交互に行う（割り当ては発生しない）
+        toggle = !toggle;
+        int delta = toggle ? 1 : -1;
+        for (SimpleInventory inventory : inventories) {
+            for (int slot : mutableSlots) {
+                ItemStack stack = inventory.getStack(slot);
+                stack.setCount(stack.getCount() + delta);
+            }
+        }
+    }
+
+    @Benchmark
+    public void fullCopy(Blackhole blackhole) {
+        for (SimpleInventory inventory : inventories) {
+            blackhole.consume(SyncComponents.ItemListComponent.copyChanged(inventory, null));
+        }
+    }
+
+    @Benchmark
+    public void copyChanged(Blackhole blackhole) {
+        for (int p = 0; p < players; p++) {
+            DefaultedList<ItemStack> snapshot = SyncComponents.ItemListComponent.copyChanged(inventories[p], baselines.get(p));
+            // 書き込みが終わると取得したスナップショットが次の基準になる
+            baselines.set(p, snapshot);
+            blackhole.consume(snapshot);
+        }
+    }
+}
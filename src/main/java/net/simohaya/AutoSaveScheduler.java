@@ -0,0 +1,197 @@
+package net.simohaya;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerPlayerEntity;
+
+/**
+ * 自動保存をプレイヤーごとに分散して、サーバーのtickの中で少しずつ行うスケジューラー。
+ * 全員を同じ瞬間に保存すると、メインスレッドのスナップショット取得とDB書き込みが1か所に集中するため、
+ * 各プレイヤーの保存時刻をUUIDのハッシュで保存間隔の中に散らし、間隔ごとに1回ずつ保存します。
+ *
+ * <ul>
+ *   <li>1tickで自動保存に使う時間は autoSaveTickBudgetMillis までに制限し、超えた分は次のtickに回します。</li>
+ *   <li>tickの処理時間（MSPT）が autoSaveMsptThreshold を、保存先への書き込み時間が autoSaveDbLatencyThresholdMillis を
+ *       超えている場合は、超えている割合に応じて保存間隔を最大 autoSaveMaxStretch 倍まで延ばします。
+ *       MSPTが高い間は1tickあたりの時間も同じ割合で減らします。</li>
+ * </ul>
+ * 変更のないプレイヤーは従来通りスナップショットを取得せずに省略します。メインスレッドからのみ呼び出されます。
+ */
+public class AutoSaveScheduler {
+
+    private static final int TICKS_PER_SECOND = 20;
+    // 書き込みキューが満杯で延期したプレイヤーを再度試すまでのtick数
+    private static final int DEFERRED_RETRY_TICKS = TICKS_PER_SECOND;
+
+    private static boolean registered = false;
+    private static volatile boolean running = false;
+    private static int baseIntervalTicks;
+
+    private static long currentTick;
+    private static final Map<UUID, Long> nextDueTicks = new HashMap<>();
+    private static double stretchFactor = 1.0;
+    private static double budgetFactor = 1.0;
+
+    // 保存間隔1回分ごとにまとめて計測値に記録する
+    private static long windowEndTick;
+    private static int windowWritten;
+    private static int windowSkipped;
+    private static int windowDeferred;
+
+    /**
+     * 自動保存を開始します。既に開始している場合は保存間隔だけを変更します。
+     * @param intervalSeconds 各プレイヤーの保存間隔（秒）
+     */
+    public static void start(int intervalSeconds) {
+        if (!registered) {
+            ServerTickEvents.END_SERVER_TICK.register(AutoSaveScheduler::onTick);
+            registered = true;
+        }
+        baseIntervalTicks = Math.max(1, intervalSeconds * TICKS_PER_SECOND);
+        nextDueTicks.clear();
+        stretchFactor = 1.0;
+        budgetFactor = 1.0;
+        windowEndTick = currentTick + baseIntervalTicks;
+        running = true;
+    }
+
+    public static void stop() {
+        running = false;
+    }
+
+    public static boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 現在の保存間隔の延長倍率を返します。
+     */
+    public static double getStretchFactor() {
+        return stretchFactor;
+    }
+
+    private static void onTick(MinecraftServer server) {
+        currentTick++;
+        if (!running) {
+            return;
+        }
+        if (currentTick % TICKS_PER_SECOND == 0) {
+            updateLoadFactors(server);
+        }
+        int intervalTicks = (int) Math.round(baseIntervalTicks * stretchFactor);
+
+        List<ServerPlayerEntity> due = new ArrayList<>();
+        for (ServerPlayerEntity player : server.getPlayerManager().getPlayerList()) {
+            UUID playerUuid = player.getUuid();
+            Long dueTick = nextDueTicks.get(playerUuid);
+            if (dueTick == null) {
+                // 初めて見たプレイヤーは、UUIDのハッシュで保存間隔の中の位置を決める
+                nextDueTicks.put(playerUuid, currentTick + 1 + Math.floorMod(mix(playerUuid), intervalTicks));
+            } else if (dueTick <= currentTick) {
+                due.add(player);
+            }
+        }
+        if (!due.isEmpty()) {
+            // 期限を最も過ぎているプレイヤーから処理する
+            due.sort(Comparator.comparingLong(player -> nextDueTicks.get(player.getUuid())));
+            saveDuePlayers(due, intervalTicks);
+        }
+        if (currentTick >= windowEndTick) {
+            closeWindow(server, intervalTicks);
+        }
+    }
+
+    private static void saveDuePlayers(List<ServerPlayerEntity> due, int intervalTicks) {
+        long budgetNanos = (long) (TimeUnit.MICROSECONDS.toNanos(Math.round(ConfigManager.getConfig().autoSaveTickBudgetMillis * 1000)) * budgetFactor);
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < due.size(); i++) {
+            // 期限を過ぎたプレイヤーが溜まり続けないよう、1tickに少なくとも1人は処理する
+            if (i > 0 && System.nanoTime() - startNanos >= budgetNanos) {
+                break;
+            }
+            ServerPlayerEntity player = due.get(i);
+            UUID playerUuid = player.getUuid();
+            long dueTick = nextDueTicks.get(playerUuid);
+            // 期限からの遅れを次回に持ち越さず、元の位置を保ったまま次の期限を決める
+            long nextDue = Math.max(dueTick + intervalTicks, currentTick + 1);
+            if (InventorySync.isInventoryLocked(playerUuid)) {
+                nextDueTicks.put(playerUuid, nextDue);
+                continue;
+            }
+            if (!InventoryChangeTracker.hasChanged(player)) {
+                windowSkipped++;
+                nextDueTicks.put(playerUuid, nextDue);
+                continue;
+            }
+            if (InventorySaveQueue.submit(InventorySync.captureSnapshot(player), false)) {
+                windowWritten++;
+                nextDueTicks.put(playerUuid, nextDue);
+            } else {
+                // キューが満杯なので、このtickの処理はここまでにして少し後に再度試す
+                windowDeferred++;
+                nextDueTicks.put(playerUuid, currentTick + DEFERRED_RETRY_TICKS);
+                break;
+            }
+        }
+    }
+
+    /**
+     * tickの処理時間と保存先への書き込み時間から、保存間隔の延長倍率と1tickあたりの時間の割合を更新します。
+     */
+    private static void updateLoadFactors(MinecraftServer server) {
+        ConfigManager.ConfigData config = ConfigManager.getConfig();
+        double mspt = server.getAverageNanosPerTick() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        double msptRatio = mspt / config.autoSaveMsptThreshold;
+        double dbRatio = SyncMetrics.getRecentDbWriteMillis() / config.autoSaveDbLatencyThresholdMillis;
+        double previous = stretchFactor;
+        stretchFactor = clamp(Math.max(msptRatio, dbRatio), 1.0, config.autoSaveMaxStretch);
+        budgetFactor = 1.0 / clamp(msptRatio, 1.0, config.autoSaveMaxStretch);
+        SyncMetrics.recordAutoSaveStretch(stretchFactor);
+        if (previous == 1.0 && stretchFactor > 1.0) {
+            Fabsyncmod.LOGGER.info(String.format(Locale.ROOT, "サーバーの負荷が高いため、自動保存の間隔を %.1f 倍に延ばします（MSPT %.1f ミリ秒、保存先への書き込み %.0f ミリ秒）。",
+                    stretchFactor, mspt, SyncMetrics.getRecentDbWriteMillis()));
+        } else if (previous > 1.0 && stretchFactor == 1.0) {
+            Fabsyncmod.LOGGER.info("サーバーの負荷が下がったため、自動保存の間隔を元に戻しました。");
+        }
+    }
+
+    private static void closeWindow(MinecraftServer server, int intervalTicks) {
+        SyncMetrics.recordAutoSaveCycle(windowWritten, windowSkipped, windowDeferred);
+        Fabsyncmod.LOGGER.debug("自動保存: 書き込み " + windowWritten + " 人、変更なし " + windowSkipped + " 人、延期 " + windowDeferred + " 人");
+        if (windowDeferred > 0) {
+            Fabsyncmod.LOGGER.warn("書き込みキューが満杯のため、" + windowDeferred + " 回のインベントリ保存を延期しました。");
+        }
+        windowWritten = 0;
+        windowSkipped = 0;
+        windowDeferred = 0;
+        windowEndTick = currentTick + intervalTicks;
+
+        // ログアウトしたプレイヤーの予定を削除する
+        Set<UUID> online = new HashSet<>();
+        for (ServerPlayerEntity player : server.getPlayerManager().getPlayerList()) {
+            online.add(player.getUuid());
+        }
+        nextDueTicks.keySet().retainAll(online);
+    }
+
+    private static int mix(UUID playerUuid) {
+        long bits = playerUuid.getMostSignificantBits() ^ playerUuid.getLeastSignificantBits();
+        bits *= 0x9E3779B97F4A7C15L;
+        return (int) (bits ^ (bits >>> 32));
+    }
+
+    private static double clamp(double value, double min, double max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
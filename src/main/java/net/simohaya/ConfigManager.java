@@ -2,6 +2,7 @@ package net.simohaya;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonSyntaxException;
 
 import net.fabricmc.loader.api.FabricLoader;
@@ -11,34 +12,103 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BiConsumer;
 
 public class ConfigManager {
 
     private static final String CONFIG_FILE_NAME = "SyncConf.json";
     private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
-    private static ConfigData config;
+    // 再読み込み（{@link ConfigReloader}）で丸ごと置き換えるため、各項目は読み込んだ ConfigData から一貫して参照する
+    private static volatile ConfigData config;
 
     /**
      * 設定データの内部クラス。JSONファイルとJavaオブジェクトのマッピングに使用。
      */
     public static class ConfigData {
+        public String storageBackend; // 保存先："mysql"（複数サーバーで共有）または "local"（単一サーバー用のローカルファイル）
+        public String localStoragePath; // storageBackend が "local" の場合の保存先ディレクトリ（設定ディレクトリからの相対パス）
+        public boolean fallbackToLocalStorage; // MySQLに接続できない場合にローカルに保存して起動を続けるか（単一サーバー構成専用）
         public String mysqlHost;
         public int mysqlPort; // ★ 新しく追加：MySQLポート
         public String mysqlDatabase;
         public String mysqlUser;
         public String mysqlPassword;
+        public String mysqlStorageLayout; // MySQLへの保存方式："blob"（データ全体を1行に保存）または "slots"（変更されたスロットだけを書き込む）
         public int autoSaveIntervalSeconds;
+        public double autoSaveTickBudgetMillis; // 1tickで自動保存に使う時間の上限
+        public double autoSaveMsptThreshold; // tickの処理時間がこれを超えると自動保存の間隔を延ばす（ミリ秒）
+        public long autoSaveDbLatencyThresholdMillis; // 保存先への書き込み時間がこれを超えると自動保存の間隔を延ばす
+        public double autoSaveMaxStretch; // 自動保存の間隔を延ばす最大倍率
+        public int saveQueueCapacity; // 書き込みキューに保持できる未書き込みプレイヤー数の上限
+        public int dbPoolSize; // コネクションプールの最大接続数
+        public long dbConnectionTimeoutMillis; // プールから接続を取得する際の最大待ち時間
+        public long dbMaxLifetimeMillis; // 接続の最大寿命（MySQLの wait_timeout より短くする）
+        public int dbStatementTimeoutSeconds; // 各SQL文のタイムアウト
+        public int dbMaxAttempts; // 一時的なエラー時の最大試行回数（初回を含む）
+        public long dbRetryBackoffMillis; // リトライ間隔の基準値（試行ごとに倍増）
+        public int dbBatchChunkSize; // 一括保存で1回のバッチ実行にまとめる件数
+        public int loadThreads; // ログイン時のインベントリロードに使うスレッド数
+        public Boolean loginPrefetch; // ログイン処理中（UUIDが確定した時点）にインベントリの読み込みを開始するか
+        public Map<String, Boolean> syncComponents; // 同期する要素ごとの有効・無効（inventory, ender_chest など）
+        public String serverId; // サーバー間の引き継ぎロックでこのサーバーを識別するID（サーバーごとに異なる値にする）
+        public int leaseSeconds; // 引き継ぎロックの有効期間（クラッシュしたサーバーのロックはこの時間で失効する）
+        public long handoffTimeoutMillis; // 他のサーバーのロック解放を待つ最大時間
+        public int journalReplayIntervalSeconds; // 保存先に書き込めなかった保存をジャーナルから再送する間隔
+        public long cacheMaxBytes; // 再ログイン用キャッシュの容量（エンコード後のバイト数の合計）
+        public int cacheTtlSeconds; // 再ログイン用キャッシュのエントリの有効期間
+        public int metricsExportIntervalSeconds; // 計測値をファイルに書き出す間隔（0で無効）
+        public String metricsExportFormat; // 計測値のファイル形式："prometheus" または "json"
+        public Boolean historyEnabled; // 保存したインベントリの履歴を記録し、/syncmod restore で過去の状態に戻せるようにするか
+        public int historyMaxVersions; // プレイヤーごとに保持する直近の履歴の数
+        public int historyCheckpointIntervalMinutes; // 直近の履歴とは別に長く保持する履歴（チェックポイント）の間隔
+        public int historyMaxCheckpoints; // プレイヤーごとに保持するチェックポイントの数
 
         public ConfigData() {}
 
         // ★ コンストラクタを更新：mysqlPort引数を追加
         public ConfigData(String host, int port, String db, String user, String pass, int autoSaveInterval) {
+            this.storageBackend = DatabaseManager.BACKEND_MYSQL;
+            this.localStoragePath = "inventories";
+            this.fallbackToLocalStorage = false;
             this.mysqlHost = host;
             this.mysqlPort = port; // ★ 追加
             this.mysqlDatabase = db;
             this.mysqlUser = user;
             this.mysqlPassword = pass;
+            this.mysqlStorageLayout = MySqlStorageBackend.LAYOUT_BLOB;
             this.autoSaveIntervalSeconds = autoSaveInterval;
+            this.autoSaveTickBudgetMillis = 2.0;
+            this.autoSaveMsptThreshold = 40.0;
+            this.autoSaveDbLatencyThresholdMillis = 250;
+            this.autoSaveMaxStretch = 4.0;
+            this.saveQueueCapacity = 1024;
+            this.dbPoolSize = 10;
+            this.dbConnectionTimeoutMillis = 5000;
+            this.dbMaxLifetimeMillis = 1800000;
+            this.dbStatementTimeoutSeconds = 10;
+            this.dbMaxAttempts = 3;
+            this.dbRetryBackoffMillis = 200;
+            this.dbBatchChunkSize = 100;
+            this.loadThreads = 4;
+            this.loginPrefetch = true;
+            this.syncComponents = SyncComponents.defaultSettings();
+            this.serverId = UUID.randomUUID().toString().substring(0, 8);
+            this.leaseSeconds = 60;
+            this.handoffTimeoutMillis = 10000;
+            this.journalReplayIntervalSeconds = 5;
+            this.cacheMaxBytes = 32L * 1024 * 1024;
+            this.cacheTtlSeconds = 300;
+            this.metricsExportIntervalSeconds = 30;
+            this.metricsExportFormat = MetricsExporter.FORMAT_PROMETHEUS;
+            this.historyEnabled = false;
+            this.historyMaxVersions = 20;
+            this.historyCheckpointIntervalMinutes = 60;
+            this.historyMaxCheckpoints = 48;
         }
     }
 
@@ -46,7 +116,7 @@ public class ConfigManager {
      * 設定ファイルを読み込むか、存在しない場合はデフォルト値で生成する。
      */
     public static ConfigData loadOrCreateConfig() {
-        Path configDir = FabricLoader.getInstance().getConfigDir().resolve(Fabsyncmod.MOD_ID);
+        Path configDir = getConfigDirectory();
         Path configFile = configDir.resolve(CONFIG_FILE_NAME);
 
         if (!Files.exists(configDir)) {
@@ -75,18 +145,8 @@ public class ConfigManager {
                 config = createDefaultConfig();
                 saveConfig(config);
             }
-            // 新しい設定項目（mysqlPort, autoSaveIntervalSeconds）が設定ファイルにない場合、デフォルト値を適用し、ファイルを更新
-            boolean updatedConfig = false;
-            if (config.mysqlPort == 0) { // ポートが未設定（または0）の場合
-                config.mysqlPort = createDefaultConfig().mysqlPort;
-                Fabsyncmod.LOGGER.warn("設定ファイルにMySQLポートの項目が見つからないか不正です。デフォルト値 " + config.mysqlPort + " を適用しました。");
-                updatedConfig = true;
-            }
-            if (config.autoSaveIntervalSeconds <= 0) {
-                config.autoSaveIntervalSeconds = createDefaultConfig().autoSaveIntervalSeconds;
-                Fabsyncmod.LOGGER.warn("設定ファイルに自動保存間隔の項目が見つからないか不正です。デフォルト値 " + config.autoSaveIntervalSeconds + " 秒を適用しました。");
-                updatedConfig = true;
-            }
+            // 新しい設定項目が設定ファイルにない場合、デフォルト値を適用し、ファイルを更新
+            boolean updatedConfig = applyMissingDefaults(config, ConfigManager::warnDefaultApplied);
             if (updatedConfig) {
                 saveConfig(config); // デフォルト値を適用した場合はファイルに保存
             }
@@ -106,11 +166,226 @@ public class ConfigManager {
         }
     }
 
+    /**
+     * 設定ファイルにない、または不正な値の項目にデフォルト値を適用する。
+     * @param onDefaultApplied デフォルト値を適用した項目の名前と値を受け取る
+     * @return いずれかの項目にデフォルト値を適用した場合 true
+     */
+    private static boolean applyMissingDefaults(ConfigData config, BiConsumer<String, Object> onDefaultApplied) {
+        ConfigData defaults = createDefaultConfig();
+        boolean updatedConfig = false;
+        if (!DatabaseManager.BACKEND_MYSQL.equalsIgnoreCase(config.storageBackend)
+                && !DatabaseManager.BACKEND_LOCAL.equalsIgnoreCase(config.storageBackend)) {
+            config.storageBackend = defaults.storageBackend;
+            onDefaultApplied.accept("保存先", config.storageBackend);
+            updatedConfig = true;
+        }
+        if (config.localStoragePath == null || config.localStoragePath.isBlank()) {
+            config.localStoragePath = defaults.localStoragePath;
+            onDefaultApplied.accept("ローカルの保存先ディレクトリ", config.localStoragePath);
+            updatedConfig = true;
+        }
+        if (config.mysqlPort == 0) { // ポートが未設定（または0）の場合
+            config.mysqlPort = defaults.mysqlPort;
+            onDefaultApplied.accept("MySQLポート", config.mysqlPort);
+            updatedConfig = true;
+        }
+        if (!MySqlStorageBackend.LAYOUT_BLOB.equalsIgnoreCase(config.mysqlStorageLayout)
+                && !MySqlStorageBackend.LAYOUT_SLOTS.equalsIgnoreCase(config.mysqlStorageLayout)) {
+            config.mysqlStorageLayout = defaults.mysqlStorageLayout;
+            onDefaultApplied.accept("MySQLへの保存方式", config.mysqlStorageLayout);
+            updatedConfig = true;
+        }
+        if (config.autoSaveIntervalSeconds <= 0) {
+            config.autoSaveIntervalSeconds = defaults.autoSaveIntervalSeconds;
+            onDefaultApplied.accept("自動保存間隔", config.autoSaveIntervalSeconds + " 秒");
+            updatedConfig = true;
+        }
+        if (config.autoSaveTickBudgetMillis <= 0) {
+            config.autoSaveTickBudgetMillis = defaults.autoSaveTickBudgetMillis;
+            onDefaultApplied.accept("1tickあたりの自動保存の時間", config.autoSaveTickBudgetMillis + " ミリ秒");
+            updatedConfig = true;
+        }
+        if (config.autoSaveMsptThreshold <= 0) {
+            config.autoSaveMsptThreshold = defaults.autoSaveMsptThreshold;
+            onDefaultApplied.accept("自動保存を遅らせるMSPT", config.autoSaveMsptThreshold + " ミリ秒");
+            updatedConfig = true;
+        }
+        if (config.autoSaveDbLatencyThresholdMillis <= 0) {
+            config.autoSaveDbLatencyThresholdMillis = defaults.autoSaveDbLatencyThresholdMillis;
+            onDefaultApplied.accept("自動保存を遅らせる書き込み時間", config.autoSaveDbLatencyThresholdMillis + " ミリ秒");
+            updatedConfig = true;
+        }
+        if (config.autoSaveMaxStretch < 1.0) {
+            config.autoSaveMaxStretch = defaults.autoSaveMaxStretch;
+            onDefaultApplied.accept("自動保存の間隔の最大倍率", config.autoSaveMaxStretch);
+            updatedConfig = true;
+        }
+        if (config.saveQueueCapacity <= 0) {
+            config.saveQueueCapacity = defaults.saveQueueCapacity;
+            onDefaultApplied.accept("書き込みキュー容量", config.saveQueueCapacity);
+            updatedConfig = true;
+        }
+        if (config.dbPoolSize <= 0) {
+            config.dbPoolSize = defaults.dbPoolSize;
+            onDefaultApplied.accept("コネクションプールの最大接続数", config.dbPoolSize);
+            updatedConfig = true;
+        }
+        if (config.dbConnectionTimeoutMillis < 250) { // HikariCPの下限は250ミリ秒
+            config.dbConnectionTimeoutMillis = defaults.dbConnectionTimeoutMillis;
+            onDefaultApplied.accept("接続取得タイムアウト", config.dbConnectionTimeoutMillis + " ミリ秒");
+            updatedConfig = true;
+        }
+        if (config.dbMaxLifetimeMillis < 30000) { // HikariCPの下限は30秒
+            config.dbMaxLifetimeMillis = defaults.dbMaxLifetimeMillis;
+            onDefaultApplied.accept("接続の最大寿命", config.dbMaxLifetimeMillis + " ミリ秒");
+            updatedConfig = true;
+        }
+        if (config.dbStatementTimeoutSeconds <= 0) {
+            config.dbStatementTimeoutSeconds = defaults.dbStatementTimeoutSeconds;
+            onDefaultApplied.accept("SQLタイムアウト", config.dbStatementTimeoutSeconds + " 秒");
+            updatedConfig = true;
+        }
+        if (config.dbMaxAttempts <= 0) {
+            config.dbMaxAttempts = defaults.dbMaxAttempts;
+            onDefaultApplied.accept("最大試行回数", config.dbMaxAttempts);
+            updatedConfig = true;
+        }
+        if (config.dbRetryBackoffMillis <= 0) {
+            config.dbRetryBackoffMillis = defaults.dbRetryBackoffMillis;
+            onDefaultApplied.accept("リトライ間隔", config.dbRetryBackoffMillis + " ミリ秒");
+            updatedConfig = true;
+        }
+        if (config.dbBatchChunkSize <= 0) {
+            config.dbBatchChunkSize = defaults.dbBatchChunkSize;
+            onDefaultApplied.accept("一括保存のチャンクサイズ", config.dbBatchChunkSize);
+            updatedConfig = true;
+        }
+        if (config.loadThreads <= 0) {
+            config.loadThreads = defaults.loadThreads;
+            onDefaultApplied.accept("ロード用スレッド数", config.loadThreads);
+            updatedConfig = true;
+        }
+        if (config.loginPrefetch == null) {
+            config.loginPrefetch = defaults.loginPrefetch;
+            onDefaultApplied.accept("ログイン時の先読み", config.loginPrefetch);
+            updatedConfig = true;
+        }
+        if (config.serverId == null || !config.serverId.matches("[A-Za-z0-9_.-]{1,32}")) {
+            config.serverId = defaults.serverId;
+            onDefaultApplied.accept("サーバーID", config.serverId);
+            updatedConfig = true;
+        }
+        if (config.leaseSeconds < 10) {
+            config.leaseSeconds = defaults.leaseSeconds;
+            onDefaultApplied.accept("引き継ぎロックの有効期間", config.leaseSeconds + " 秒");
+            updatedConfig = true;
+        }
+        if (config.handoffTimeoutMillis <= 0) {
+            config.handoffTimeoutMillis = defaults.handoffTimeoutMillis;
+            onDefaultApplied.accept("引き継ぎの最大待ち時間", config.handoffTimeoutMillis + " ミリ秒");
+            updatedConfig = true;
+        }
+        if (config.journalReplayIntervalSeconds <= 0) {
+            config.journalReplayIntervalSeconds = defaults.journalReplayIntervalSeconds;
+            onDefaultApplied.accept("ジャーナルの再送間隔", config.journalReplayIntervalSeconds + " 秒");
+            updatedConfig = true;
+        }
+        if (config.cacheMaxBytes <= 0) {
+            config.cacheMaxBytes = defaults.cacheMaxBytes;
+            onDefaultApplied.accept("キャッシュの容量", config.cacheMaxBytes + " バイト");
+            updatedConfig = true;
+        }
+        if (config.cacheTtlSeconds <= 0) {
+            config.cacheTtlSeconds = defaults.cacheTtlSeconds;
+            onDefaultApplied.accept("キャッシュの有効期間", config.cacheTtlSeconds + " 秒");
+            updatedConfig = true;
+        }
+        if (config.metricsExportIntervalSeconds < 0) {
+            config.metricsExportIntervalSeconds = defaults.metricsExportIntervalSeconds;
+            onDefaultApplied.accept("計測値の書き出し間隔", config.metricsExportIntervalSeconds + " 秒");
+            updatedConfig = true;
+        }
+        if (!MetricsExporter.FORMAT_PROMETHEUS.equalsIgnoreCase(config.metricsExportFormat)
+                && !MetricsExporter.FORMAT_JSON.equalsIgnoreCase(config.metricsExportFormat)) {
+            config.metricsExportFormat = defaults.metricsExportFormat;
+            onDefaultApplied.accept("計測値のファイル形式", config.metricsExportFormat);
+            updatedConfig = true;
+        }
+        if (config.historyEnabled == null) {
+            config.historyEnabled = defaults.historyEnabled;
+            onDefaultApplied.accept("履歴の記録", config.historyEnabled);
+            updatedConfig = true;
+        }
+        if (config.historyMaxVersions <= 0) {
+            config.historyMaxVersions = defaults.historyMaxVersions;
+            onDefaultApplied.accept("保持する直近の履歴の数", config.historyMaxVersions);
+            updatedConfig = true;
+        }
+        if (config.historyCheckpointIntervalMinutes <= 0) {
+            config.historyCheckpointIntervalMinutes = defaults.historyCheckpointIntervalMinutes;
+            onDefaultApplied.accept("履歴のチェックポイントの間隔", config.historyCheckpointIntervalMinutes + " 分");
+            updatedConfig = true;
+        }
+        if (config.historyMaxCheckpoints < 0) {
+            config.historyMaxCheckpoints = defaults.historyMaxCheckpoints;
+            onDefaultApplied.accept("保持するチェックポイントの数", config.historyMaxCheckpoints);
+            updatedConfig = true;
+        }
+        if (config.syncComponents == null) {
+            config.syncComponents = new LinkedHashMap<>();
+        }
+        for (Map.Entry<String, Boolean> entry : defaults.syncComponents.entrySet()) {
+            Boolean enabled = config.syncComponents.get(entry.getKey());
+            if (enabled == null) { // 新しく追加された要素は有効にする
+                config.syncComponents.put(entry.getKey(), entry.getValue());
+                onDefaultApplied.accept("同期要素 " + entry.getKey(), entry.getValue());
+                updatedConfig = true;
+            }
+        }
+        return updatedConfig;
+    }
+
+    /**
+     * 設定ファイルを読み込み直し、検証した設定データを返す。現在の設定やファイルは変更しない。
+     * 再読み込みでは不正な項目にデフォルト値を適用せず、設定全体を拒否する。
+     * @throws IllegalStateException 読み込めない場合や不正な項目がある場合（メッセージに理由を含む）
+     */
+    static ConfigData readForReload() {
+        Path configFile = getConfigDirectory().resolve(CONFIG_FILE_NAME);
+        ConfigData candidate;
+        try (FileReader reader = new FileReader(configFile.toFile())) {
+            candidate = GSON.fromJson(reader, ConfigData.class);
+        } catch (IOException | JsonParseException e) {
+            throw new IllegalStateException("設定ファイルを読み込めませんでした: " + e.getMessage());
+        }
+        if (candidate == null) {
+            throw new IllegalStateException("設定ファイルが空です。");
+        }
+        List<String> invalidItems = new ArrayList<>();
+        applyMissingDefaults(candidate, (itemName, defaultValue) -> invalidItems.add(itemName));
+        if (!invalidItems.isEmpty()) {
+            throw new IllegalStateException("設定ファイルの次の項目が見つからないか不正です: " + String.join("、", invalidItems));
+        }
+        return candidate;
+    }
+
+    /**
+     * 検証済みの設定データで現在の設定を置き換える。
+     */
+    static void setConfig(ConfigData newConfig) {
+        config = newConfig;
+    }
+
+    private static void warnDefaultApplied(String itemName, Object defaultValue) {
+        Fabsyncmod.LOGGER.warn("設定ファイルに" + itemName + "の項目が見つからないか不正です。デフォルト値 " + defaultValue + " を適用しました。");
+    }
+
     /**
      * 現在の設定データをファイルに保存する。
      */
     public static void saveConfig(ConfigData configData) {
-        Path configDir = FabricLoader.getInstance().getConfigDir().resolve(Fabsyncmod.MOD_ID);
+        Path configDir = getConfigDirectory();
         Path configFile = configDir.resolve(CONFIG_FILE_NAME);
 
         try (FileWriter writer = new FileWriter(configFile.toFile())) {
@@ -121,6 +396,13 @@ public class ConfigManager {
         }
     }
 
+    /**
+     * このMODの設定ディレクトリを返す。
+     */
+    public static Path getConfigDirectory() {
+        return FabricLoader.getInstance().getConfigDir().resolve(Fabsyncmod.MOD_ID);
+    }
+
     /**
      * デフォルトの設定データを生成する。
      */
@@ -0,0 +1,223 @@
+package net.simohaya;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.minecraft.server.MinecraftServer;
+
+/**
+ * サーバーを再起動せずに SyncConf.json を読み込み直します（/syncmod reload）。
+ * 設定ファイルに不正な項目がある場合は全体を拒否し、現在の設定のまま動作を続けます。
+ *
+ * <ul>
+ *   <li>自動保存の調整値、キャッシュ、ログイン時の先読みなど、使用時に設定を参照する項目は設定の置き換えと同時に反映されます。</li>
+ *   <li>自動保存の間隔と引き継ぎロックの有効期間は自動保存タスクを、計測値の書き出しと履歴はそれぞれの処理を開始し直して反映します。
+ *       履歴の停止は書き込みの完了を待つため、メインスレッドではなく専用のスレッドで行います。</li>
+ *   <li>保存先や接続の設定を変更した場合は、新しい設定で保存先を開いてから、他の設定を適用した後に、実行中の保存や読み込みが終わるのを待って切り替えます。
+ *       新しい保存先を開けない場合は、設定全体を拒否します。切り替えられなかった場合は、設定を元に戻します。接続先（保存先の種類、ホスト、ポート、データベース、ローカルの保存先）の変更は、
+ *       引き継ぎロックを移せないため、プレイヤーがいない時だけ行えます。</li>
+ *   <li>書き込みキューの容量、ロード用スレッド数、同期要素、サーバーID、ジャーナルの再送間隔は、サーバーの再起動後に反映されます。</li>
+ * </ul>
+ */
+public class ConfigReloader {
+
+    private static final long BACKEND_SWAP_TIMEOUT_SECONDS = 30;
+    private static final long HISTORY_STOP_TIMEOUT_SECONDS = 30;
+    private static final AtomicBoolean reloading = new AtomicBoolean();
+    // 保存先を開く・切り替える、履歴を開始し直すなど、待機を伴う処理を行うスレッド
+    private static final Executor RELOAD_EXECUTOR = runnable -> {
+        Thread thread = new Thread(runnable, "Fabsyncmod-Config-Reload");
+        thread.setDaemon(true);
+        thread.start();
+    };
+
+    /**
+     * 設定を読み込み直して適用します。検証と設定の置き換えはメインスレッドで、保存先の切り替えや履歴の開始し直しは専用のスレッドで行うため、tickを止めません。
+     * 保存先の切り替えは他の設定を適用した後に最後に行い、切り替えられなかった場合は設定を元に戻します。
+     * メインスレッドから呼び出してください。
+     * @return 適用結果のメッセージ。拒否した場合は理由をメッセージに含む IllegalStateException で失敗します
+     */
+    public static CompletableFuture<String> reload(MinecraftServer server) {
+        if (!reloading.compareAndSet(false, true)) {
+            return CompletableFuture.failedFuture(new IllegalStateException("設定を再読み込み中です。"));
+        }
+        CompletableFuture<String> result;
+        try {
+            ConfigManager.ConfigData current = ConfigManager.getConfig();
+            ConfigManager.ConfigData candidate = ConfigManager.readForReload();
+            List<String> restartRequired = keepRestartOnlySettings(current, candidate);
+            boolean storageChanged = storageSettingsChanged(current, candidate);
+            boolean historyChanged = historySettingsChanged(current, candidate);
+            CompletableFuture<StorageBackend> opened = CompletableFuture.completedFuture(null);
+            if (storageChanged) {
+                if (InventoryMigration.isRunning()) {
+                    throw new IllegalStateException("移行の実行中は保存先の設定を変更できません。");
+                }
+                if (endpointChanged(current, candidate) && !server.getPlayerManager().getPlayerList().isEmpty()) {
+                    throw new IllegalStateException("接続先の変更は、プレイヤーがいない時だけ行えます。");
+                }
+                opened = CompletableFuture.supplyAsync(() -> openBackend(candidate), RELOAD_EXECUTOR);
+            }
+            // 設定の置き換えと各処理の開始し直しは、自動保存と同じメインスレッドで行う
+            result = opened.thenCompose(replacement -> CompletableFuture.runAsync(() -> apply(current, candidate), server)
+                    .handleAsync((ignored, error) -> {
+                        if (error != null) {
+                            // 切り替える前に失敗したため、新しい保存先には何も書き込まれていない
+                            if (replacement != null) {
+                                replacement.close();
+                            }
+                            throw error instanceof CompletionException completion ? completion : new CompletionException(error);
+                        }
+                        if (replacement != null) {
+                            swapBackend(server, replacement, current, candidate);
+                        }
+                        if (historyChanged) {
+                            InventoryHistory.stop(HISTORY_STOP_TIMEOUT_SECONDS);
+                            InventoryHistory.start(ConfigManager.getConfigDirectory().resolve("history"), candidate);
+                        }
+                        return message(storageChanged, restartRequired);
+                    }, RELOAD_EXECUTOR));
+        } catch (IllegalStateException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        return result.whenComplete((message, error) -> reloading.set(false));
+    }
+
+    private static StorageBackend openBackend(ConfigManager.ConfigData candidate) {
+        StorageBackend replacement = DatabaseManager.createBackend(candidate.storageBackend, candidate);
+        try {
+            replacement.open();
+        } catch (StorageException e) {
+            replacement.close();
+            Fabsyncmod.LOGGER.error("新しい設定で保存先を開けませんでした。設定の再読み込みを中止します。", e);
+            throw new IllegalStateException("新しい設定で保存先を開けませんでした: " + e.getMessage());
+        }
+        return replacement;
+    }
+
+    /**
+     * 実行中の保存や読み込みが終わるのを待って保存先を切り替えます。切り替えられなかった場合は、メインスレッドで設定を元に戻します。
+     */
+    private static void swapBackend(MinecraftServer server, StorageBackend replacement,
+                                    ConfigManager.ConfigData current, ConfigManager.ConfigData candidate) {
+        boolean swapped;
+        try {
+            swapped = DatabaseManager.swapBackend(replacement, BACKEND_SWAP_TIMEOUT_SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            swapped = false;
+        }
+        if (!swapped) {
+            replacement.close();
+            CompletableFuture.runAsync(() -> apply(candidate, current), server).join();
+            throw new IllegalStateException("実行中の保存が " + BACKEND_SWAP_TIMEOUT_SECONDS + " 秒以内に終わらなかったため、保存先を切り替えられませんでした。");
+        }
+    }
+
+    /**
+     * 設定を置き換え、変更された項目に応じて自動保存と計測値の書き出しを開始し直します。引数を入れ替えて呼び出すと元に戻せます。
+     */
+    private static void apply(ConfigManager.ConfigData previous, ConfigManager.ConfigData next) {
+        ConfigManager.setConfig(next);
+        try {
+            if (previous.autoSaveIntervalSeconds != next.autoSaveIntervalSeconds || previous.leaseSeconds != next.leaseSeconds) {
+                InventorySync.startAutoSaveTask(next.autoSaveIntervalSeconds);
+            }
+            if (previous.metricsExportIntervalSeconds != next.metricsExportIntervalSeconds
+                    || !Objects.equals(previous.metricsExportFormat, next.metricsExportFormat)) {
+                MetricsExporter.stop();
+                MetricsExporter.start(ConfigManager.getConfigDirectory().resolve("metrics"), next.metricsExportFormat, next.metricsExportIntervalSeconds);
+            }
+        } catch (RuntimeException e) {
+            ConfigManager.setConfig(previous);
+            throw e;
+        }
+    }
+
+    private static String message(boolean storageChanged, List<String> restartRequired) {
+        StringBuilder message = new StringBuilder("設定を再読み込みしました。");
+        if (storageChanged) {
+            message.append("保存先: ").append(DatabaseManager.getBackend().getName()).append("。");
+        }
+        if (!restartRequired.isEmpty()) {
+            message.append("次の項目はサーバーの再起動後に反映されます: ").append(String.join("、", restartRequired));
+        }
+        Fabsyncmod.LOGGER.info(message.toString());
+        return message.toString();
+    }
+
+    /**
+     * 再起動しないと反映できない項目を現在の値に戻し、変更されていた項目の名前を返します。
+     */
+    private static List<String> keepRestartOnlySettings(ConfigManager.ConfigData current, ConfigManager.ConfigData candidate) {
+        List<String> changed = new ArrayList<>();
+        if (current.saveQueueCapacity != candidate.saveQueueCapacity) {
+            candidate.saveQueueCapacity = current.saveQueueCapacity;
+            changed.add("saveQueueCapacity");
+        }
+        if (current.loadThreads != candidate.loadThreads) {
+            candidate.loadThreads = current.loadThreads;
+            changed.add("loadThreads");
+        }
+        if (!Objects.equals(current.syncComponents, candidate.syncComponents)) {
+            candidate.syncComponents = current.syncComponents;
+            changed.add("syncComponents");
+        }
+        if (!Objects.equals(current.serverId, candidate.serverId)) {
+            candidate.serverId = current.serverId;
+            changed.add("serverId");
+        }
+        if (current.journalReplayIntervalSeconds != candidate.journalReplayIntervalSeconds) {
+            candidate.journalReplayIntervalSeconds = current.journalReplayIntervalSeconds;
+            changed.add("journalReplayIntervalSeconds");
+        }
+        if (current.fallbackToLocalStorage != candidate.fallbackToLocalStorage) {
+            candidate.fallbackToLocalStorage = current.fallbackToLocalStorage;
+            changed.add("fallbackToLocalStorage");
+        }
+        return changed;
+    }
+
+    /**
+     * 保存先を開き直す必要がある項目（保存先、接続、コネクションプール、SQLの実行に関する項目）が変更されたかを返します。
+     */
+    private static boolean storageSettingsChanged(ConfigManager.ConfigData current, ConfigManager.ConfigData candidate) {
+        return endpointChanged(current, candidate)
+                || !Objects.equals(current.mysqlUser, candidate.mysqlUser)
+                || !Objects.equals(current.mysqlPassword, candidate.mysqlPassword)
+                || !current.mysqlStorageLayout.equalsIgnoreCase(candidate.mysqlStorageLayout)
+                || current.dbPoolSize != candidate.dbPoolSize
+                || current.dbConnectionTimeoutMillis != candidate.dbConnectionTimeoutMillis
+                || current.dbMaxLifetimeMillis != candidate.dbMaxLifetimeMillis
+                || current.dbStatementTimeoutSeconds != candidate.dbStatementTimeoutSeconds
+                || current.dbMaxAttempts != candidate.dbMaxAttempts
+                || current.dbRetryBackoffMillis != candidate.dbRetryBackoffMillis
+                || current.dbBatchChunkSize != candidate.dbBatchChunkSize;
+    }
+
+    /**
+     * 履歴の記録を開始し直す必要がある項目が変更されたかを返します。
+     */
+    private static boolean historySettingsChanged(ConfigManager.ConfigData current, ConfigManager.ConfigData candidate) {
+        return !Objects.equals(current.historyEnabled, candidate.historyEnabled)
+                || current.historyMaxVersions != candidate.historyMaxVersions
+                || current.historyCheckpointIntervalMinutes != candidate.historyCheckpointIntervalMinutes
+                || current.historyMaxCheckpoints != candidate.historyMaxCheckpoints;
+    }
+
+    /**
+     * 接続先（別のデータになる可能性がある項目）が変更されたかを返します。
+     */
+    private static boolean endpointChanged(ConfigManager.ConfigData current, ConfigManager.ConfigData candidate) {
+        return !current.storageBackend.equalsIgnoreCase(candidate.storageBackend)
+                || !Objects.equals(current.localStoragePath, candidate.localStoragePath)
+                || !Objects.equals(current.mysqlHost, candidate.mysqlHost)
+                || current.mysqlPort != candidate.mysqlPort
+                || !Objects.equals(current.mysqlDatabase, candidate.mysqlDatabase);
+    }
+}
@@ -1,47 +1,138 @@
 package net.simohaya;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import net.minecraft.item.ItemStack;
-import net.minecraft.nbt.NbtCompound;
-import net.minecraft.nbt.NbtIo;
-import net.minecraft.nbt.NbtOps;
 import net.minecraft.registry.RegistryWrapper;
 import net.minecraft.server.MinecraftServer;
-import net.minecraft.util.collection.DefaultedList;
-import com.mojang.serialization.DynamicOps;
-import net.minecraft.registry.RegistryOps;
-import net.minecraft.nbt.NbtElement;
-import net.minecraft.nbt.NbtSizeTracker; // NbtSizeTrackerをインポート
 
+/**
+ * プレイヤーデータの保存・読み込みの窓口。実際の保存先は {@link StorageBackend} の実装で、
+ * SyncConf.json の storageBackend により MySQL（"mysql"）かローカルファイル（"local"）を選択します。
+ * エンコード・デコードはここで行い、保存先にはバイト列だけを渡します。
+ */
 public class DatabaseManager {
-    private static Connection connection;
+    public static final String BACKEND_MYSQL = "mysql";
+    public static final String BACKEND_LOCAL = "local";
+
+    private static volatile StorageBackend backend;
+    // 保存先の読み書きは読み込みロック、保存先の切り替え（{@link #swapBackend}）は書き込みロックを取得する
+    private static final ReentrantReadWriteLock backendLock = new ReentrantReadWriteLock();
     private static RegistryWrapper.WrapperLookup registryLookup;
+    private static final AtomicLong versionSequence = new AtomicLong();
 
-    public static boolean initializeDatabase(String host, String database, String user, String password) {
-        String url = "jdbc:mysql://" + host + ":3306/" + database + "?useSSL=false&serverTimezone=UTC";
+    /**
+     * 設定で選択された保存先を開きます。MySQLに接続できず、設定で fallbackToLocalStorage が有効な場合はローカルの保存先を使用します。
+     * @return 保存先を開けた場合 true
+     */
+    public static boolean initializeDatabase(ConfigManager.ConfigData config) {
+        StorageBackend selected = createBackend(config.storageBackend, config);
         try {
-            Class.forName("com.mysql.cj.jdbc.Driver");
-            connection = DriverManager.getConnection(url, user, password);
-            Fabsyncmod.LOGGER.info("MySQLデータベースに正常に接続しました: " + database);
-            createInventoryTable();
+            selected.open();
+            backend = selected;
+            Fabsyncmod.LOGGER.info("保存先として " + selected.getName() + " を使用します。");
             return true;
-        } catch (SQLException e) {
-            Fabsyncmod.LOGGER.error("MySQLデータベースへの接続に失敗しました！", e);
-            return false;
-        } catch (ClassNotFoundException e) {
-            Fabsyncmod.LOGGER.error("MySQL JDBCドライバが見つかりません！", e);
+        } catch (StorageException e) {
+            Fabsyncmod.LOGGER.error(e.getMessage(), e);
+            selected.close();
+        }
+        if (config.fallbackToLocalStorage && !(selected instanceof LocalFileStorageBackend)) {
+            // 他のサーバーとは同期されなくなるため、単一サーバー構成以外では有効にしない
+            StorageBackend fallback = createBackend(BACKEND_LOCAL, config);
+            try {
+                fallback.open();
+                backend = fallback;
+                Fabsyncmod.LOGGER.warn(selected.getName() + " を使用できないため、" + fallback.getName() + " に保存します。他のサーバーとは同期されません。");
+                return true;
+            } catch (StorageException e) {
+                Fabsyncmod.LOGGER.error(e.getMessage(), e);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 保存先を直接指定して使用します。ベンチマークや負荷試験など、設定ファイルを使わない場合に使用します。
+     * @param storageBackend 開いた状態の保存先
+     */
+    public static void useBackend(StorageBackend storageBackend, RegistryWrapper.WrapperLookup lookup) {
+        backend = storageBackend;
+        registryLookup = lookup;
+    }
+
+    /**
+     * 保存先を切り替えます。実行中の保存や読み込みが終わるのを待ってから切り替え、古い保存先を閉じます。
+     * 切り替えた後の読み込みが古い保存先の内容を使わないよう、キャッシュは全て破棄します。
+     * @param replacement 開いた状態の新しい保存先
+     * @return 待機時間内に切り替えられた場合 true。false の場合、新しい保存先は呼び出し元で閉じてください
+     */
+    static boolean swapBackend(StorageBackend replacement, long timeoutSeconds) throws InterruptedException {
+        if (!backendLock.writeLock().tryLock(timeoutSeconds, TimeUnit.SECONDS)) {
             return false;
         }
+        StorageBackend previous;
+        try {
+            previous = backend;
+            backend = replacement;
+            InventoryCache.clear();
+        } finally {
+            backendLock.writeLock().unlock();
+        }
+        if (previous != null) {
+            previous.close();
+        }
+        Fabsyncmod.LOGGER.info("保存先を " + replacement.getName() + " に切り替えました。");
+        return true;
+    }
+
+    /**
+     * 保存先1回分の処理。
+     */
+    @FunctionalInterface
+    private interface BackendWork<T> {
+        T run(StorageBackend backend) throws StorageException;
+    }
+
+    /**
+     * 読み込みロックを取得して保存先の処理を実行します。保存先の切り替えは、実行中の処理が終わるまで待ちます。
+     */
+    private static <T> T withBackend(BackendWork<T> work) throws StorageException {
+        backendLock.readLock().lock();
+        try {
+            return work.run(requireBackend());
+        } finally {
+            backendLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 名前（"mysql" または "local"）から、開く前の保存先を作成します。
+     */
+    static StorageBackend createBackend(String name, ConfigManager.ConfigData config) {
+        if (BACKEND_LOCAL.equalsIgnoreCase(name)) {
+            Path directory = ConfigManager.getConfigDirectory().resolve(config.localStoragePath);
+            return new LocalFileStorageBackend(directory);
+        }
+        return new MySqlStorageBackend(config);
+    }
+
+    /**
+     * 現在の保存先を返します。初期化されていない場合は null。
+     */
+    public static StorageBackend getBackend() {
+        return backend;
     }
 
     public static void setRegistryLookup(MinecraftServer server) {
@@ -53,132 +144,263 @@ public class DatabaseManager {
         }
     }
 
-    private static void createInventoryTable() {
-        if (connection == null) {
-            Fabsyncmod.LOGGER.error("データベース接続がありません。テーブルを作成できません。");
-            return;
-        }
-        String createTableSQL = "CREATE TABLE IF NOT EXISTS player_inventories (" +
-                "uuid VARCHAR(36) PRIMARY KEY," +
-                "inventory_data BLOB NOT NULL" +
-                ");";
-        try (PreparedStatement statement = connection.prepareStatement(createTableSQL)) {
-            statement.executeUpdate();
-            Fabsyncmod.LOGGER.info("テーブル 'player_inventories' が正常に作成または確認されました。");
-        } catch (SQLException e) {
-            Fabsyncmod.LOGGER.error("テーブル 'player_inventories' の作成に失敗しました！", e);
-        }
+    /**
+     * エンコード・デコードに使用するレジストリを返します。サーバーの起動前は null。
+     */
+    static RegistryWrapper.WrapperLookup getRegistryLookup() {
+        return registryLookup;
     }
 
     /**
-     * プレイヤーのインベントリをMySQLデータベースに保存または更新します。
-     * ItemStackの encode/decode には DynamicOps が必要です。
+     * 複数プレイヤーのエンコード済みインベントリを、まとめて保存または更新します。
+     * MySQLの場合は1つのトランザクションで書き込み、失敗した場合は全件がロールバックされます。
+     * 引き継ぎロックの解放を伴うレコードは、書き込みと同時にロックを解放します。
+     * 他のサーバーに引き継ぎロックが移っていたプレイヤーのデータは書き込まず、エラーとして記録します
+     * （再試行しても書き込めないため、失敗としては扱いません）。
+     * @param records 保存するインベントリ
+     * @return 全件の保存が完了した場合 true
      */
-    public static void saveInventory(UUID playerUuid, DefaultedList<ItemStack> inventory) {
-        if (connection == null) {
-            Fabsyncmod.LOGGER.error("データベース接続がありません。インベントリを保存できません。");
-            return;
+    public static boolean saveInventories(Collection<InventoryRecord> records) {
+        if (records.isEmpty()) {
+            return true;
         }
-        if (registryLookup == null) {
-            Fabsyncmod.LOGGER.error("RegistryLookupが設定されていません。インベントリを保存できません。");
-            return;
+        if (backend == null) {
+            Fabsyncmod.LOGGER.error("データベース接続がありません。" + records.size() + " 件のインベントリを保存できません。");
+            return false;
         }
 
+        List<InventoryRecord> recordList = new ArrayList<>(records);
+        long startNanos = System.nanoTime();
         try {
-            DynamicOps<NbtElement> registryOps = RegistryOps.of(NbtOps.INSTANCE, registryLookup);
-
-            NbtCompound rootNbt = new NbtCompound();
-            for (int i = 0; i < inventory.size(); i++) {
-                ItemStack stack = inventory.get(i);
-                if (!stack.isEmpty()) {
-                    rootNbt.put("slot_" + i, ItemStack.CODEC.encodeStart(registryOps, stack).getOrThrow());
+            List<InventoryRecord> lost = withBackend(storage -> storage.saveBatch(recordList));
+            SyncMetrics.recordDbWrite(System.nanoTime() - startNanos, true);
+            SyncMetrics.WRITE_BATCH_SIZE.record(recordList.size());
+            if (!lost.isEmpty()) {
+                onLeaseLost(lost);
+                recordList.removeAll(lost);
+            }
+            // 履歴は別のスレッドで記録するため、保存の完了を遅らせない
+            InventoryHistory.record(recordList);
+            for (InventoryRecord record : recordList) {
+                if (record.releaseLeaseToken() != null) {
+                    InventoryLease.onReleased(record.playerUuid(), record.releaseLeaseToken());
                 }
             }
+            Fabsyncmod.LOGGER.debug(recordList.size() + " 人のインベントリを一括で正常に保存しました。");
+            return true;
+        } catch (StorageException e) {
+            SyncMetrics.recordDbWrite(System.nanoTime() - startNanos, false);
+            SyncMetrics.recordSaveFailure();
+            Fabsyncmod.LOGGER.error(recordList.size() + " 人のインベントリの一括保存中にエラーが発生しました。", e);
+            return false;
+        }
+    }
 
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            NbtIo.writeCompressed(rootNbt, bos);
-            byte[] data = bos.toByteArray();
-
-            String upsertSQL = "INSERT INTO player_inventories (uuid, inventory_data) VALUES (?, ?) " +
-                    "ON DUPLICATE KEY UPDATE inventory_data = VALUES(inventory_data);";
-            try (PreparedStatement statement = connection.prepareStatement(upsertSQL)) {
-                statement.setString(1, playerUuid.toString());
-                statement.setBytes(2, data);
-                statement.executeUpdate();
-                Fabsyncmod.LOGGER.info("プレイヤー " + playerUuid.toString() + " のインベントリを正常に保存しました。");
-            }
-        } catch (SQLException | IOException e) {
-            Fabsyncmod.LOGGER.error("プレイヤー " + playerUuid.toString() + " のインベントリ保存中にエラーが発生しました。", e);
+    /**
+     * 引き継ぎロックを失っていたため書き込まなかった保存を記録します。
+     * このサーバーのキャッシュは書き込まなかった内容を指しているため破棄します。
+     */
+    private static void onLeaseLost(List<InventoryRecord> lost) {
+        SyncMetrics.recordLeaseLost(lost.size());
+        for (InventoryRecord record : lost) {
+            InventoryLease.onLost(record.playerUuid(), record.leaseToken());
+            InventoryCache.invalidate(record.playerUuid());
+            Fabsyncmod.LOGGER.error("プレイヤー " + record.playerUuid() + " の引き継ぎロックが他のサーバーに移っていたため、版番号 " + record.version()
+                    + " の保存を書き込みませんでした。このサーバーでの変更は反映されません。");
         }
     }
 
     /**
-     * プレイヤーのインベントリをMySQLデータベースから読み込みます。
+     * プレイヤーの保存データを削除します。
+     * @return 削除に成功した（または保存データがなかった）場合 true
      */
-    public static DefaultedList<ItemStack> loadInventory(UUID playerUuid) {
-        DefaultedList<ItemStack> loadedInventory = DefaultedList.ofSize(41, ItemStack.EMPTY);
+    public static boolean deleteInventory(UUID playerUuid) {
+        if (backend == null) {
+            Fabsyncmod.LOGGER.error("データベース接続がありません。インベントリを削除できません。");
+            return false;
+        }
+        try {
+            withBackend(storage -> {
+                storage.delete(playerUuid);
+                return null;
+            });
+            InventoryCache.invalidate(playerUuid);
+            Fabsyncmod.LOGGER.info("プレイヤー " + playerUuid + " のインベントリを削除しました。");
+            return true;
+        } catch (StorageException e) {
+            Fabsyncmod.LOGGER.error("プレイヤー " + playerUuid + " のインベントリ削除中にエラーが発生しました。", e);
+            return false;
+        }
+    }
+
+    /**
+     * プレイヤーの引き継ぎロックの取得を1回だけ試みます。
+     * ロックが解放されている、期限切れである、またはこのサーバー自身が保持している場合に取得できます。
+     * @param playerUuid プレイヤーのUUID
+     * @param leaseToken このロックのトークン（"サーバーID:乱数"）
+     * @param leaseSeconds ロックの有効期間（秒）
+     * @return 取得できた場合 true、他のサーバーが保持している場合 false
+     */
+    public static boolean tryAcquireLease(UUID playerUuid, String leaseToken, int leaseSeconds) throws StorageException {
+        return withBackend(storage -> storage.tryAcquireLease(playerUuid, leaseToken, leaseSeconds));
+    }
+
+    /**
+     * 保持している引き継ぎロックの期限をまとめて延長します。
+     * @param leases プレイヤーのUUIDとロックのトークン
+     * @param leaseSeconds 現在時刻からの有効期間（秒）
+     */
+    public static void renewLeases(Map<UUID, String> leases, int leaseSeconds) throws StorageException {
+        withBackend(storage -> {
+            storage.renewLeases(leases, leaseSeconds);
+            return null;
+        });
+    }
+
+    /**
+     * 引き継ぎロックをまとめて解放します。トークンが一致しない（既に他のサーバーが取得した）ロックは変更しません。
+     * @param leases プレイヤーのUUIDとロックのトークン
+     */
+    public static void releaseLeases(Map<UUID, String> leases) throws StorageException {
+        withBackend(storage -> {
+            storage.releaseLeases(leases);
+            return null;
+        });
+    }
+
+    private static StorageBackend requireBackend() throws StorageException {
+        if (backend == null) {
+            throw new StorageException("保存先が初期化されていません。");
+        }
+        return backend;
+    }
+
+    /**
+     * スナップショットを保存用のバイト列にエンコードします（形式は {@link InventoryCodec} を参照）。
+     * 全ての同期要素が1つのバイト列にまとめられるため、要素が増えてもDBアクセスは1回のままです。
+     * データベースへのアクセスは行わないため、どのスレッドからでも呼び出せます。
+     */
+    public static byte[] encodeInventory(InventorySnapshot snapshot) throws IOException {
+        if (registryLookup == null) {
+            throw new IOException("RegistryLookupが設定されていません。インベントリをエンコードできません。");
+        }
+        byte[] data = InventoryCodec.encode(snapshot, registryLookup);
+        SyncMetrics.PAYLOAD_BYTES.record(data.length);
+        return data;
+    }
 
-        if (connection == null) {
-            Fabsyncmod.LOGGER.error("データベース接続がありません。インベントリをロードできません。");
-            return loadedInventory;
+    /**
+     * プレイヤーの状態（インベントリおよび同期要素）を保存先から1回のアクセスで読み込みます。
+     * 最近このサーバーで書き込んだ内容がキャッシュにあり、その後に他のサーバーが書き込んでいなければ、読み込みとデコードを省略します。
+     * ジャーナルに保存先へ未反映のデータがある場合は、保存先よりもそちらを優先します。
+     * 保存データがない場合は、空のインベントリだけを持つスナップショットを返します。
+     * 読み込みやデコードに失敗した場合は、空のインベントリを返すと次の保存で保存データを上書きしてしまうため、例外を投げます。
+     * @throws IllegalStateException 保存先が使用できない場合や、読み込み・デコードに失敗した場合
+     */
+    public static InventorySnapshot loadInventory(UUID playerUuid) {
+        if (backend == null) {
+            throw new IllegalStateException("データベース接続がありません。プレイヤー " + playerUuid + " のインベントリをロードできません。");
         }
         if (registryLookup == null) {
-            Fabsyncmod.LOGGER.error("RegistryLookupが設定されていません。インベントriをロードできません。");
-            return loadedInventory;
-        }
-
-        DynamicOps<NbtElement> registryOps = RegistryOps.of(NbtOps.INSTANCE, registryLookup);
-
-        String selectSQL = "SELECT inventory_data FROM player_inventories WHERE uuid = ?;";
-        try (PreparedStatement statement = connection.prepareStatement(selectSQL)) {
-            statement.setString(1, playerUuid.toString());
-            try (ResultSet resultSet = statement.executeQuery()) {
-                if (resultSet.next()) {
-                    byte[] data = resultSet.getBytes("inventory_data");
-                    if (data != null && data.length > 0) {
-                        ByteArrayInputStream bis = new ByteArrayInputStream(data);
-                        // ★ 修正済み：NbtSizeTrackerのコンストラクタ引数を修正
-                        // NbtSizeTracker(long maxBytes, int maxNbtDepth)
-                        // デフォルト値として、maxBytes = 2097152L (2MB), maxNbtDepth = 512 がよく使われます。
-                        NbtCompound rootNbt = NbtIo.readCompressed(bis, new NbtSizeTracker(2097152L, 512)); // ★ ここを修正
-
-                        for (int i = 0; i < loadedInventory.size(); i++) {
-                            String slotKey = "slot_" + i;
-                            if (rootNbt.contains(slotKey)) {
-                                Optional<ItemStack> itemStackOptional = ItemStack.CODEC.decode(registryOps, rootNbt.get(slotKey)).result().map(pair -> pair.getFirst());
-                                if (itemStackOptional.isPresent()) {
-                                    loadedInventory.set(i, itemStackOptional.get());
-                                } else {
-                                    Fabsyncmod.LOGGER.warn("スロット " + i + " のアイテムのデコードに失敗しました。");
-                                }
-                            }
-                        }
-                        Fabsyncmod.LOGGER.info("プレイヤー " + playerUuid.toString() + " のインベントリを正常にロードしました。");
-                    } else {
-                        Fabsyncmod.LOGGER.warn("プレイヤー " + playerUuid.toString() + " のインベントリデータがデータベースに空で保存されています。");
-                    }
-                } else {
-                    Fabsyncmod.LOGGER.warn("プレイヤー " + playerUuid.toString() + " のインベントリデータがデータベースに見つかりません。新規のインベントリで開始します。");
+            throw new IllegalStateException("RegistryLookupが設定されていません。プレイヤー " + playerUuid + " のインベントリをロードできません。");
+        }
+
+        InventorySnapshot cached = loadFromCache(playerUuid);
+        if (cached != null) {
+            Fabsyncmod.LOGGER.debug("プレイヤー " + playerUuid.toString() + " のインベントリをキャッシュからロードしました。");
+            return cached;
+        }
+
+        try {
+            // 保存データが存在しない場合は Optional.empty()、データが空の場合は長さ0の配列
+            Optional<byte[]> journaled = SaveJournal.getUnflushed(playerUuid);
+            Optional<byte[]> row = journaled;
+            if (row.isEmpty()) {
+                long startNanos = System.nanoTime();
+                row = withBackend(storage -> storage.load(playerUuid));
+                SyncMetrics.DB_READ.record(System.nanoTime() - startNanos);
+            }
+
+            if (row.isPresent()) {
+                byte[] data = row.get();
+                if (data.length > 0) {
+                    // 新形式・旧形式（GZIP圧縮NBT）のどちらも読み込める
+                    long startNanos = System.nanoTime();
+                    InventorySnapshot loadedInventory = InventoryCodec.decode(playerUuid, data, registryLookup);
+                    SyncMetrics.DECODE.record(System.nanoTime() - startNanos);
+                    Fabsyncmod.LOGGER.debug("プレイヤー " + playerUuid.toString() + " のインベントリを正常にロードしました。");
+                    return loadedInventory;
                 }
+                // 引き継ぎロックの取得時に作成された、まだ一度も保存されていない行
+                Fabsyncmod.LOGGER.debug("プレイヤー " + playerUuid.toString() + " のインベントリはまだ保存されていません。新規のインベントリで開始します。");
+            } else {
+                Fabsyncmod.LOGGER.warn("プレイヤー " + playerUuid.toString() + " のインベントリデータがデータベースに見つかりません。新規のインベントリで開始します。");
             }
-        } catch (SQLException | IOException e) {
-            Fabsyncmod.LOGGER.error("プレイヤー " + playerUuid.toString() + " のインベントリロード中にエラーが発生しました。", e);
+            return InventorySnapshot.emptyInventory(playerUuid);
+        } catch (StorageException | IOException e) {
+            SyncMetrics.recordLoadFailure();
+            throw new IllegalStateException("プレイヤー " + playerUuid + " のインベントリロード中にエラーが発生しました。", e);
         }
-        return loadedInventory;
     }
 
-    public static void closeConnection() {
-        if (connection != null) {
+    /**
+     * キャッシュのエントリが最新の書き込みと一致する場合に、そのスナップショットを返します。
+     * 版番号の確認はデータ本体を転送しない軽いクエリで行います。一致しないエントリは破棄します。
+     * @return 使用できるスナップショット。ない場合は null
+     */
+    private static InventorySnapshot loadFromCache(UUID playerUuid) {
+        InventoryCache.Entry entry = InventoryCache.get(playerUuid);
+        if (entry == null) {
+            InventoryCache.recordMiss();
+            return null;
+        }
+        boolean valid;
+        OptionalLong journaledVersion = SaveJournal.getUnflushedVersion(playerUuid);
+        if (journaledVersion.isPresent()) {
+            // 未反映のデータはこのサーバーの書き込みなので、それと一致するかだけを確認すればよい
+            valid = journaledVersion.getAsLong() == entry.version();
+        } else if (!backend.isShared()) {
+            valid = true;
+        } else {
             try {
-                connection.close();
-                Fabsyncmod.LOGGER.info("MySQLデータベース接続を閉じました。");
-            } catch (SQLException e) {
-                Fabsyncmod.LOGGER.error("MySQLデータベース接続のクローズに失敗しました。", e);
+                OptionalLong storedVersion = withBackend(storage -> storage.loadVersion(playerUuid));
+                valid = storedVersion.isPresent() && storedVersion.getAsLong() == entry.version();
+            } catch (StorageException e) {
+                Fabsyncmod.LOGGER.warn("プレイヤー " + playerUuid + " のキャッシュの検証に失敗しました。保存先から読み込みます。", e);
+                valid = false;
             }
         }
+        if (!valid) {
+            InventoryCache.invalidate(playerUuid);
+            InventoryCache.recordMiss();
+            return null;
+        }
+        InventoryCache.recordHit();
+        return entry.snapshot();
     }
 
-    public static Connection getConnection() {
-        return connection;
+    /**
+     * 新しい書き込みの版番号を発行します。時刻（マイクロ秒）を基準に、このサーバー内では必ず増加します。
+     */
+    public static long nextVersion() {
+        long now = System.currentTimeMillis() * 1000;
+        return versionSequence.updateAndGet(previous -> Math.max(previous + 1, now));
+    }
+
+    public static void closeConnection() {
+        if (backend != null) {
+            backend.close();
+        }
+    }
+
+    /**
+     * MySQLのプールから接続を借ります。使用後は必ず close() してプールに返却してください。
+     * 保存先がMySQLでない場合は SQLException をスローします。
+     */
+    public static Connection getConnection() throws SQLException {
+        if (backend instanceof MySqlStorageBackend mySqlBackend) {
+            return mySqlBackend.getConnection();
+        }
+        throw new SQLException("保存先がMySQLではありません。");
     }
-}
\ No newline at end of file
+}
@@ -5,6 +5,8 @@ import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+
 public class Fabsyncmod implements ModInitializer {
 	public static final String MOD_ID = "fab_sync_mod";
 	public static final Logger LOGGER = LoggerFactory.getLogger(MOD_ID);
@@ -15,14 +17,9 @@ public class Fabsyncmod implements ModInitializer {
 
 		ConfigManager.ConfigData config = ConfigManager.loadOrCreateConfig();
 
-		if (!DatabaseManager.initializeDatabase(
-				config.mysqlHost,
-				config.mysqlDatabase,
-				config.mysqlUser,
-				config.mysqlPassword
-		)) {
-			LOGGER.error("MySQLデータベースへの接続に失敗しました。サーバーの起動を中止します。");
-			throw new RuntimeException("Fabsyncmod: MySQL接続に失敗しました。サーバーの起動を中止します。");
+		if (!DatabaseManager.initializeDatabase(config)) {
+			LOGGER.error("保存先（" + config.storageBackend + "）の初期化に失敗しました。サーバーの起動を中止します。");
+			throw new RuntimeException("Fabsyncmod: 保存先の初期化に失敗しました。サーバーの起動を中止します。");
 		}
 
 		// サーバー起動時にDatabaseManagerにRegistryLookupを設定し、InventorySyncにサーバーインスタンスを設定
@@ -31,14 +28,45 @@ public class Fabsyncmod implements ModInitializer {
 			InventorySync.setServerInstance(server);   // ★ InventorySyncにサーバーインスタンスを設定
 		});
 
+		// ジャーナルから再送する保存も履歴に記録する
+		InventoryHistory.start(ConfigManager.getConfigDirectory().resolve("history"), config);
+
+		// 前回の実行で保存先に書き込めなかった保存を、プレイヤーがログインできるようになる前に再送する
+		try {
+			SaveJournal.open(ConfigManager.getConfigDirectory().resolve("journal"));
+			if (SaveJournal.getUnflushedCount() > 0 && SaveJournal.flush()) {
+				LOGGER.info("ジャーナルに残っていた保存を保存先に書き込みました。");
+			}
+			SaveJournal.startReplayer();
+		} catch (IOException e) {
+			LOGGER.error("ジャーナルを開けませんでした。保存先に書き込めない間の保存は失われる可能性があります。", e);
+		}
+
 		PlayerEventHandler.registerEvents(); // PlayerEventHandlerのイベント登録はここで行う
+		SyncCommands.register();
+
+		InventorySaveQueue.start(config.saveQueueCapacity);
+		InventorySync.startLoadExecutor(config.loadThreads);
 
 		InventorySync.startAutoSaveTask(config.autoSaveIntervalSeconds);
+		MetricsExporter.start(ConfigManager.getConfigDirectory().resolve("metrics"), config.metricsExportFormat, config.metricsExportIntervalSeconds);
 
 		ServerLifecycleEvents.SERVER_STOPPING.register(server -> {
 			LOGGER.info("サーバーシャットダウン中... 全プレイヤーのインベントリを保存します。");
+			InventorySync.stopAutoSaveTask();
+			// 実行中の移行は現在のページを書き終えた時点で中断し、次回の起動後に同じコマンドで再開できるようにする
+			InventoryMigration.stop(30);
+			InventorySync.stopLoadExecutor();
 			InventorySync.saveAllPlayersInventories(server);
+			// 書き込みキューに残っている保存を全て書き込んでから接続を閉じる
+			InventorySaveQueue.shutdownAndDrain(60);
+			// 保存先に書き込めなかった保存はジャーナルに残し、次回の起動時に再送する
+			SaveJournal.close();
+			InventoryHistory.stop(30);
+			// 全ての保存を書き込んだ後で、このサーバーが保持している引き継ぎロックを解放する
+			InventoryLease.releaseAll();
 			DatabaseManager.closeConnection();
+			MetricsExporter.stop();
 			LOGGER.info("全プレイヤーのインベントリ保存とデータベース接続のクローズが完了しました。");
 		});
 
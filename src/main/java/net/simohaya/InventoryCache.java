@@ -0,0 +1,155 @@
+package net.simohaya;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 最近保存したプレイヤーの状態を、デコード済みのスナップショットのまま保持するキャッシュ。
+ * 同じサーバーにすぐ再ログインした場合に、保存データの読み込みとデコードを省略します。
+ *
+ * <p>エントリは書き込んだ版番号と一緒に保持し、使用前に保存先の版番号と比較します（{@link DatabaseManager#loadInventory}）。
+ * 他のサーバーが新しい内容を書き込んでいれば版番号が一致しないため、そのエントリは破棄されます。
+ *
+ * <p>容量はエンコード後のバイト数の合計で制限し、超えた場合は最も長く使われていないエントリから破棄します（LRU）。
+ * 書き込みから有効期間（TTL）を過ぎたエントリも使用せずに破棄します。どのスレッドからも呼び出せます。
+ */
+public class InventoryCache {
+
+    private static final Object LOCK = new Object();
+    // アクセス順の LinkedHashMap。先頭が最も長く使われていないエントリ
+    private static final LinkedHashMap<UUID, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private static long totalBytes;
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong invalidations = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * キャッシュのエントリ。
+     * @param snapshot デコード済みのスナップショット
+     * @param version 書き込んだ版番号
+     * @param sizeBytes エンコード後のバイト数
+     * @param expiresAtNanos 有効期限（System.nanoTime 基準）
+     */
+    public record Entry(InventorySnapshot snapshot, long version, int sizeBytes, long expiresAtNanos) {
+    }
+
+    /**
+     * 書き込んだ内容を登録します。同じプレイヤーのエントリは置き換えられます。
+     * @param snapshot 書き込んだスナップショット
+     * @param version 書き込みの版番号
+     * @param sizeBytes エンコード後のバイト数
+     */
+    public static void put(InventorySnapshot snapshot, long version, int sizeBytes) {
+        ConfigManager.ConfigData config = ConfigManager.getConfig();
+        if (config == null || sizeBytes > config.cacheMaxBytes) {
+            invalidate(snapshot.getPlayerUuid());
+            return;
+        }
+        long maxBytes = config.cacheMaxBytes;
+        long expiresAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.cacheTtlSeconds);
+        synchronized (LOCK) {
+            Entry previous = entries.put(snapshot.getPlayerUuid(), new Entry(snapshot, version, sizeBytes, expiresAt));
+            if (previous != null) {
+                totalBytes -= previous.sizeBytes();
+            }
+            totalBytes += sizeBytes;
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (totalBytes > maxBytes && iterator.hasNext()) {
+                Entry eldest = iterator.next();
+                iterator.remove();
+                totalBytes -= eldest.sizeBytes();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 有効期限内のエントリを取得します。まだ検証していないため、使用する前に版番号を確認してください。
+     * @return エントリ。ない場合や期限切れの場合は null
+     */
+    public static Entry get(UUID playerUuid) {
+        synchronized (LOCK) {
+            Entry entry = entries.get(playerUuid);
+            if (entry != null && System.nanoTime() - entry.expiresAtNanos() > 0) {
+                entries.remove(playerUuid);
+                totalBytes -= entry.sizeBytes();
+                evictions.incrementAndGet();
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * プレイヤーのエントリを破棄します。
+     */
+    public static void invalidate(UUID playerUuid) {
+        synchronized (LOCK) {
+            Entry entry = entries.remove(playerUuid);
+            if (entry != null) {
+                totalBytes -= entry.sizeBytes();
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 全てのエントリを破棄します。
+     */
+    public static void clear() {
+        synchronized (LOCK) {
+            entries.clear();
+            totalBytes = 0;
+        }
+    }
+
+    public static void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    public static void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    public static long getHitCount() {
+        return hits.get();
+    }
+
+    public static long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * 他のサーバーの書き込みなどで破棄したエントリ数を返します。
+     */
+    public static long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    /**
+     * 容量超過または期限切れで破棄したエントリ数を返します。
+     */
+    public static long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public static int getEntryCount() {
+        synchronized (LOCK) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * 保持しているエントリのエンコード後のバイト数の合計を返します。
+     */
+    public static long getSizeBytes() {
+        synchronized (LOCK) {
+            return totalBytes;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package net.simohaya;
+
+import net.minecraft.server.network.ServerPlayerEntity;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * プレイヤーごとに最後にデータベースへ書き込んだ（またはロードした）状態を保持し、
+ * 現在の状態に変更があるかを判定します。
+ * 変更のないプレイヤーは自動保存でスナップショットの取得・エンコード・DB書き込みを全て省略できます。
+ * 保持するスナップショットは複製済みで変更されないため、書き込みスレッドとメインスレッドの間で共有できます。
+ */
+public class InventoryChangeTracker {
+
+    private static final Map<UUID, InventorySnapshot> persisted = new ConcurrentHashMap<>();
+
+    /**
+     * ロード直後など、データベースの内容と一致していることが分かっている状態を基準として登録します。
+     * @param snapshot 基準とするスナップショット
+     */
+    public static void track(InventorySnapshot snapshot) {
+        persisted.put(snapshot.getPlayerUuid(), snapshot);
+    }
+
+    /**
+     * スナップショットがデータベースに書き込まれたことを記録します。書き込みスレッドから呼び出されます。
+     * 既にログアウトして追跡をやめたプレイヤーについては何もしません。
+     */
+    public static void markPersisted(InventorySnapshot snapshot) {
+        persisted.computeIfPresent(snapshot.getPlayerUuid(), (uuid, previous) -> snapshot);
+    }
+
+    /**
+     * 現在の状態が最後に書き込んだ内容から変更されているかを、有効な同期要素ごとに判定します。メインスレッドから呼び出してください。
+     * 基準が登録されていない場合や、基準に含まれない要素がある場合は変更ありとみなします。
+     */
+    public static boolean hasChanged(ServerPlayerEntity player) {
+        InventorySnapshot baseline = persisted.get(player.getUuid());
+        if (baseline == null) {
+            return true;
+        }
+        for (SyncComponent<?> component : SyncComponents.enabled()) {
+            if (componentChanged(component, baseline, player)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static <T> boolean componentChanged(SyncComponent<T> component, InventorySnapshot baseline, ServerPlayerEntity player) {
+        T value = baseline.get(component);
+        return value == null || component.hasChanged(value, player);
+    }
+
+    /**
+     * 最後に書き込んだ（またはロードした）スナップショットを返します。追跡していない場合は null。
+     * 次のスナップショットの取得で、変わっていないスロットの複製を省くための基準と、
+     * ロード時に引き継いだ、このサーバーでは扱わない要素の保存データの引き継ぎに使用します。
+     */
+    public static InventorySnapshot getBaseline(UUID playerUuid) {
+        return persisted.get(playerUuid);
+    }
+
+    /**
+     * プレイヤーの追跡をやめます。ログアウト時に呼び出してください。
+     */
+    public static void forget(UUID playerUuid) {
+        persisted.remove(playerUuid);
+    }
+}
@@ -0,0 +1,376 @@
+package net.simohaya;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import com.mojang.serialization.DynamicOps;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtOps;
+import net.minecraft.nbt.NbtSizeTracker;
+import net.minecraft.nbt.NbtTypes;
+import net.minecraft.registry.RegistryOps;
+import net.minecraft.registry.RegistryWrapper;
+import net.minecraft.util.collection.DefaultedList;
+
+/**
+ * プレイヤー状態とデータベースに保存するバイト列の相互変換を行います。
+ *
+ * <p>現在の形式（バージョン2）は以下の通りです。
+ * <pre>
+ *   ヘッダ: マジック 'F' 'S' (2バイト), 形式バージョン (1バイト), 圧縮方式 (1バイト), 圧縮前の長さ (int, LZ4の場合のみ)
+ *   本体:   セクション数 (short), 各セクション = 同期要素の識別子 (UTF) + 長さ (int) + セクション本体
+ *   セクション本体: エントリ数 (short), 各エントリ = 番号 (short) + 長さ (int) + NBT要素（型 (1バイト) + 内容）
+ * </pre>
+ * 1つの同期要素（{@link SyncComponent}）が1つのセクションになり、アイテムのスロット一覧ではスロット番号がエントリ番号になります。
+ * 空のスロットは書き込まず、"slot_" + i のような文字列キーは使いません。
+ * 本体が小さい場合は圧縮せず、それ以外はGZIPより高速なLZ4で圧縮します（LZ4はMinecraft本体に同梱されています）。
+ *
+ * <p>以下の旧形式も読み込めます（いずれもインベントリのみを含みます）。
+ * <ul>
+ *   <li>バージョン1: 本体 = エントリ数 (short), 各エントリ = スロット番号 (unsigned byte) + NBTコンパウンド</li>
+ *   <li>GZIP圧縮されたNBT（"slot_" + i をキーとするコンパウンド）。先頭がGZIPのマジックナンバーで判別します。</li>
+ * </ul>
+ */
+public class InventoryCodec {
+
+    private static final byte MAGIC_0 = 'F';
+    private static final byte MAGIC_1 = 'S';
+    private static final byte GZIP_MAGIC_0 = (byte) 0x1f;
+    private static final byte GZIP_MAGIC_1 = (byte) 0x8b;
+
+    public static final byte FORMAT_VERSION = 2;
+    private static final byte FORMAT_VERSION_SLOTS_ONLY = 1;
+    public static final byte COMPRESSION_NONE = 0;
+    public static final byte COMPRESSION_LZ4 = 1;
+
+    // これより小さい本体は圧縮しても効果が薄いため、そのまま保存する
+    private static final int COMPRESSION_THRESHOLD_BYTES = 256;
+    // NbtSizeTracker(long maxBytes, int maxNbtDepth)：旧形式の読み込みと同じ上限（新形式では1エントリごとに適用）
+    private static final long MAX_NBT_BYTES = 2097152L;
+    // 圧縮前の本体の上限（エンダーチェストまでシュルカーボックスで埋まっていても収まる大きさ）
+    private static final int MAX_BODY_BYTES = 16 * 1024 * 1024;
+    private static final int MAX_NBT_DEPTH = 512;
+
+    private static final LZ4Compressor LZ4_COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+    private static final LZ4FastDecompressor LZ4_DECOMPRESSOR = LZ4Factory.fastestInstance().fastDecompressor();
+
+    /**
+     * スナップショットを現在の形式でエンコードします。このサーバーで扱わない要素の保存データもそのまま書き戻します。
+     * @param snapshot エンコードするスナップショット
+     * @param registryLookup ItemStackなどのエンコードに使うレジストリ
+     */
+    public static byte[] encode(InventorySnapshot snapshot, RegistryWrapper.WrapperLookup registryLookup) throws IOException {
+        DynamicOps<NbtElement> registryOps = RegistryOps.of(NbtOps.INSTANCE, registryLookup);
+
+        long startNanos = System.nanoTime();
+        Map<String, byte[]> sections = new LinkedHashMap<>();
+        for (SyncComponent<?> component : SyncComponents.ALL) {
+            byte[] section = encodeSection(component, snapshot, registryOps);
+            if (section != null) {
+                sections.put(component.getId(), section);
+            }
+        }
+        for (Map.Entry<String, byte[]> preserved : snapshot.getPreservedSections().entrySet()) {
+            sections.putIfAbsent(preserved.getKey(), preserved.getValue());
+        }
+        SyncMetrics.ENCODE.record(System.nanoTime() - startNanos);
+        return encodeSections(sections);
+    }
+
+    /**
+     * バイト列をスナップショットにデコードします。現在の形式と旧形式の両方に対応します。
+     * このサーバーで有効な要素はデコードし、無効な要素や認識できない要素はエンコード済みのまま引き継ぎます。
+     * デコードに失敗したスロットは警告を出して空のままにします。
+     * @param playerUuid プレイヤーのUUID
+     * @param data データベースに保存されていたバイト列
+     * @param registryLookup ItemStackなどのデコードに使うレジストリ
+     */
+    public static InventorySnapshot decode(UUID playerUuid, byte[] data, RegistryWrapper.WrapperLookup registryLookup) throws IOException {
+        DynamicOps<NbtElement> registryOps = RegistryOps.of(NbtOps.INSTANCE, registryLookup);
+        Map<String, Object> components = new LinkedHashMap<>();
+        Map<String, byte[]> preserved = new LinkedHashMap<>();
+
+        if (data.length >= 2 && data[0] == GZIP_MAGIC_0 && data[1] == GZIP_MAGIC_1) {
+            components.put(SyncComponents.INVENTORY.getId(), decodeLegacy(data, 41, registryLookup));
+            return InventorySnapshot.of(playerUuid, components, preserved);
+        }
+
+        byte version = readVersion(data);
+        DataInputStream body = new DataInputStream(new ByteArrayInputStream(unframe(data)));
+        if (version == FORMAT_VERSION_SLOTS_ONLY) {
+            SortedMap<Integer, NbtElement> entries = new TreeMap<>();
+            int entryCount = body.readUnsignedShort();
+            for (int entry = 0; entry < entryCount; entry++) {
+                int slot = body.readUnsignedByte();
+                entries.put(slot, NbtCompound.TYPE.read(body, newSizeTracker()));
+            }
+            components.put(SyncComponents.INVENTORY.getId(), SyncComponents.INVENTORY.decode(entries, registryOps));
+            return InventorySnapshot.of(playerUuid, components, preserved);
+        }
+
+        int sectionCount = body.readUnsignedShort();
+        for (int i = 0; i < sectionCount; i++) {
+            String id = body.readUTF();
+            byte[] section = new byte[body.readInt()];
+            body.readFully(section);
+
+            SyncComponent<?> component = SyncComponents.byId(id);
+            if (component == null || !SyncComponents.isEnabled(component)) {
+                preserved.put(id, section);
+                continue;
+            }
+            Object value = component.decode(readEntries(section), registryOps);
+            if (value != null) {
+                components.put(id, value);
+            }
+        }
+        return InventorySnapshot.of(playerUuid, components, preserved);
+    }
+
+    private static <T> byte[] encodeSection(SyncComponent<T> component, InventorySnapshot snapshot, DynamicOps<NbtElement> registryOps) throws IOException {
+        T value = snapshot.get(component);
+        if (value == null) {
+            return null;
+        }
+        return writeEntries(component.encode(value, registryOps));
+    }
+
+    private static byte[] encodeSections(Map<String, byte[]> sections) throws IOException {
+        int totalLength = 2;
+        for (byte[] section : sections.values()) {
+            totalLength += 6 + section.length;
+        }
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream(totalLength + 64);
+        DataOutputStream body = new DataOutputStream(bodyBytes);
+        body.writeShort(sections.size());
+        for (Map.Entry<String, byte[]> section : sections.entrySet()) {
+            body.writeUTF(section.getKey());
+            body.writeInt(section.getValue().length);
+            body.write(section.getValue());
+        }
+        body.flush();
+        long startNanos = System.nanoTime();
+        byte[] framed = frame(FORMAT_VERSION, bodyBytes.toByteArray());
+        SyncMetrics.COMPRESS.record(System.nanoTime() - startNanos);
+        return framed;
+    }
+
+    /**
+     * 番号付きのNBTエントリをセクション本体に書き込みます。
+     */
+    private static byte[] writeEntries(SortedMap<Integer, NbtElement> entries) throws IOException {
+        ByteArrayOutputStream sectionBytes = new ByteArrayOutputStream(64 + entries.size() * 64);
+        DataOutputStream section = new DataOutputStream(sectionBytes);
+        ByteArrayOutputStream elementBytes = new ByteArrayOutputStream(256);
+        DataOutputStream element = new DataOutputStream(elementBytes);
+
+        section.writeShort(entries.size());
+        for (Map.Entry<Integer, NbtElement> entry : entries.entrySet()) {
+            elementBytes.reset();
+            element.writeByte(entry.getValue().getType());
+            entry.getValue().write(element);
+            element.flush();
+            section.writeShort(entry.getKey());
+            section.writeInt(elementBytes.size());
+            elementBytes.writeTo(section);
+        }
+        section.flush();
+        return sectionBytes.toByteArray();
+    }
+
+    /**
+     * セクション本体から番号付きのNBTエントリを読み込みます。
+     */
+    private static SortedMap<Integer, NbtElement> readEntries(byte[] sectionBytes) throws IOException {
+        DataInputStream section = new DataInputStream(new ByteArrayInputStream(sectionBytes));
+        SortedMap<Integer, NbtElement> entries = new TreeMap<>();
+        int entryCount = section.readUnsignedShort();
+        for (int i = 0; i < entryCount; i++) {
+            int key = section.readUnsignedShort();
+            section.readInt(); // 長さ（エントリ単位で分割する場合にのみ使用）
+            byte type = section.readByte();
+            entries.put(key, NbtTypes.byId(type).read(section, newSizeTracker()));
+        }
+        return entries;
+    }
+
+    /**
+     * 現在の形式のバイト列を、セクションごとのエントリ（NBT要素の型 + 内容のバイト列）に分割します。スロット単位の保存に使用します。
+     * エントリを持たないセクションも空のマップとして含まれます。
+     * @throws IOException 現在の形式（バージョン2）でない場合
+     */
+    public static Map<String, SortedMap<Integer, byte[]>> splitEntries(byte[] data) throws IOException {
+        if (readVersion(data) != FORMAT_VERSION) {
+            throw new IOException("エントリに分割できるのは形式バージョン " + FORMAT_VERSION + " のデータのみです。");
+        }
+        DataInputStream body = new DataInputStream(new ByteArrayInputStream(unframe(data)));
+        Map<String, SortedMap<Integer, byte[]>> sections = new LinkedHashMap<>();
+        int sectionCount = body.readUnsignedShort();
+        for (int i = 0; i < sectionCount; i++) {
+            String id = body.readUTF();
+            body.readInt(); // セクションの長さ
+            SortedMap<Integer, byte[]> entries = new TreeMap<>();
+            int entryCount = body.readUnsignedShort();
+            for (int entry = 0; entry < entryCount; entry++) {
+                int key = body.readUnsignedShort();
+                byte[] element = new byte[body.readInt()];
+                body.readFully(element);
+                entries.put(key, element);
+            }
+            sections.put(id, entries);
+        }
+        return sections;
+    }
+
+    /**
+     * {@link #splitEntries} で分割したエントリから、現在の形式のバイト列を組み立てます。
+     */
+    public static byte[] joinEntries(Map<String, SortedMap<Integer, byte[]>> sections) throws IOException {
+        Map<String, byte[]> encodedSections = new LinkedHashMap<>();
+        for (Map.Entry<String, SortedMap<Integer, byte[]>> section : sections.entrySet()) {
+            int length = 2;
+            for (byte[] element : section.getValue().values()) {
+                length += 6 + element.length;
+            }
+            ByteArrayOutputStream sectionBytes = new ByteArrayOutputStream(length);
+            DataOutputStream out = new DataOutputStream(sectionBytes);
+            out.writeShort(section.getValue().size());
+            for (Map.Entry<Integer, byte[]> entry : section.getValue().entrySet()) {
+                out.writeShort(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+            out.flush();
+            encodedSections.put(section.getKey(), sectionBytes.toByteArray());
+        }
+        return encodeSections(encodedSections);
+    }
+
+    private static NbtSizeTracker newSizeTracker() {
+        // NbtSizeTracker(long maxBytes, int maxNbtDepth)：1エントリ（1スロット）ごとの上限
+        return new NbtSizeTracker(MAX_NBT_BYTES, MAX_NBT_DEPTH);
+    }
+
+    /**
+     * 旧形式（GZIP圧縮NBT）のバイト列をデコードします。
+     */
+    public static DefaultedList<ItemStack> decodeLegacy(byte[] data, int size, RegistryWrapper.WrapperLookup registryLookup) throws IOException {
+        DynamicOps<NbtElement> registryOps = RegistryOps.of(NbtOps.INSTANCE, registryLookup);
+        DefaultedList<ItemStack> inventory = DefaultedList.ofSize(size, ItemStack.EMPTY);
+
+        NbtCompound rootNbt = NbtIo.readCompressed(new ByteArrayInputStream(data), new NbtSizeTracker(MAX_NBT_BYTES, MAX_NBT_DEPTH));
+        for (int i = 0; i < size; i++) {
+            String slotKey = "slot_" + i;
+            if (rootNbt.contains(slotKey)) {
+                int slot = i;
+                decodeStack(registryOps, rootNbt.get(slotKey), slot).ifPresent(stack -> inventory.set(slot, stack));
+            }
+        }
+        return inventory;
+    }
+
+    private static Optional<ItemStack> decodeStack(DynamicOps<NbtElement> registryOps, NbtElement element, int slot) {
+        Optional<ItemStack> stack = ItemStack.CODEC.parse(registryOps, element).result();
+        if (stack.isEmpty()) {
+            Fabsyncmod.LOGGER.warn("スロット " + slot + " のアイテムのデコードに失敗しました。");
+        }
+        return stack;
+    }
+
+    /**
+     * 本体にヘッダを付け、必要であれば圧縮します。
+     */
+    private static byte[] frame(byte version, byte[] body) {
+        if (body.length < COMPRESSION_THRESHOLD_BYTES) {
+            byte[] framed = new byte[4 + body.length];
+            writeHeader(framed, version, COMPRESSION_NONE);
+            System.arraycopy(body, 0, framed, 4, body.length);
+            return framed;
+        }
+
+        int maxCompressedLength = LZ4_COMPRESSOR.maxCompressedLength(body.length);
+        byte[] framed = new byte[8 + maxCompressedLength];
+        writeHeader(framed, version, COMPRESSION_LZ4);
+        framed[4] = (byte) (body.length >>> 24);
+        framed[5] = (byte) (body.length >>> 16);
+        framed[6] = (byte) (body.length >>> 8);
+        framed[7] = (byte) body.length;
+        int compressedLength = LZ4_COMPRESSOR.compress(body, 0, body.length, framed, 8, maxCompressedLength);
+        return Arrays.copyOf(framed, 8 + compressedLength);
+    }
+
+    private static void writeHeader(byte[] target, byte version, byte compression) {
+        target[0] = MAGIC_0;
+        target[1] = MAGIC_1;
+        target[2] = version;
+        target[3] = compression;
+    }
+
+    /**
+     * データが現在の形式（{@link #FORMAT_VERSION}）かを返します。旧形式のデータは移行（{@link InventoryMigration}）で再エンコードします。
+     */
+    public static boolean isCurrentFormat(byte[] data) {
+        return data.length >= 4 && data[0] == MAGIC_0 && data[1] == MAGIC_1 && data[2] == FORMAT_VERSION;
+    }
+
+    /**
+     * データの形式の番号を返します。ヘッダのある形式はヘッダの版番号、旧形式（GZIP）や空のデータは0です。
+     * MySQLの format_id 列に記録し、旧形式の行を探すのに使用できます。
+     */
+    public static int formatId(byte[] data) {
+        return data.length >= 4 && data[0] == MAGIC_0 && data[1] == MAGIC_1 ? data[2] : 0;
+    }
+
+    private static byte readVersion(byte[] data) throws IOException {
+        if (data.length < 4 || data[0] != MAGIC_0 || data[1] != MAGIC_1) {
+            throw new IOException("インベントリデータの形式を認識できません。");
+        }
+        if (data[2] != FORMAT_VERSION && data[2] != FORMAT_VERSION_SLOTS_ONLY) {
+            throw new IOException("未対応のインベントリデータ形式バージョンです: " + data[2]);
+        }
+        return data[2];
+    }
+
+    /**
+     * ヘッダを検証し、圧縮を解いた本体を返します。圧縮方式を比較するベンチマークからも使用します。
+     */
+    static byte[] unframe(byte[] data) throws IOException {
+        readVersion(data);
+        switch (data[3]) {
+            case COMPRESSION_NONE:
+                return Arrays.copyOfRange(data, 4, data.length);
+            case COMPRESSION_LZ4:
+                if (data.length < 8) {
+                    throw new IOException("LZ4圧縮されたインベントリデータのヘッダが不完全です。");
+                }
+                int rawLength = ((data[4] & 0xff) << 24) | ((data[5] & 0xff) << 16) | ((data[6] & 0xff) << 8) | (data[7] & 0xff);
+                if (rawLength < 0 || rawLength > MAX_BODY_BYTES) {
+                    throw new IOException("インベントリデータの長さが不正です: " + rawLength);
+                }
+                try {
+                    return LZ4_DECOMPRESSOR.decompress(data, 8, rawLength);
+                } catch (LZ4Exception e) {
+                    throw new IOException("インベントリデータのLZ4展開に失敗しました。", e);
+                }
+            default:
+                throw new IOException("未対応の圧縮方式です: " + data[3]);
+        }
+    }
+}
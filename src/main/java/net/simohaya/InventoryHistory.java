@@ -0,0 +1,487 @@
+package net.simohaya;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * 保存したインベントリの履歴。アイテムの消失などの際に、/syncmod restore で過去の状態に戻せるようにします（historyEnabled で有効化）。
+ *
+ * <p>保存先への書き込みに成功した保存を、専用のスレッドでプレイヤーごとの履歴ファイル（設定ディレクトリの history 以下）に追記します。
+ * 保存の処理は履歴の書き込みを待たず、履歴のキューが満杯の場合は履歴を記録せずに破棄します。
+ * <ul>
+ *   <li>各履歴は前回の履歴から変更されたスロット（{@link InventorySlots}）だけをLZ4で圧縮して記録するため、
+ *       ファイルの大きさは保存の回数ではなく変更の量に比例します。変更のない保存は記録しません。</li>
+ *   <li>直近の historyMaxVersions 件に加え、historyCheckpointIntervalMinutes ごとの履歴をチェックポイントとして
+ *       historyMaxCheckpoints 件まで保持します。保持数を超えた古い履歴は、同じスレッドでファイルを書き直して削除します。</li>
+ * </ul>
+ * 履歴はこのサーバーで行った保存だけを記録します。複数のサーバーで同じデータベースを共有している場合、
+ * 他のサーバーで行った保存はそのサーバーの履歴に記録されます。
+ */
+public class InventoryHistory {
+
+    // ファイルのヘッダ: "FSHI" + 形式バージョン
+    private static final int FILE_MAGIC = 0x46534849;
+    private static final int FILE_VERSION = 1;
+    private static final int FILE_HEADER_BYTES = 8;
+    // 履歴のヘッダ: 版番号、記録時刻、フラグ、展開後の長さ、圧縮後の長さ、圧縮後のデータのチェックサム
+    private static final int ENTRY_HEADER_BYTES = 29;
+    private static final int MAX_ENTRY_BYTES = 64 * 1024 * 1024;
+    private static final byte FLAG_FULL = 1;
+    private static final byte FLAG_CHECKPOINT = 2;
+    private static final int CHECKSUM_SEED = 0x46534849;
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final String FILE_SUFFIX = ".hist";
+    private static final LZ4Compressor LZ4_COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+    private static final LZ4FastDecompressor LZ4_DECOMPRESSOR = LZ4Factory.fastestInstance().fastDecompressor();
+    private static final XXHash32 CHECKSUM = XXHashFactory.fastestInstance().hash32();
+
+    private static volatile ThreadPoolExecutor historyExecutor;
+    private static Path directory;
+    private static int maxVersions;
+    private static int maxCheckpoints;
+    private static long checkpointIntervalMillis;
+    // プレイヤーごとの最後の履歴の状態。履歴のスレッドからのみ参照する
+    private static final Map<UUID, PlayerState> states = new HashMap<>();
+
+    /**
+     * 一覧表示用の履歴1件分。
+     * @param version 保存時の版番号。/syncmod restore で指定します
+     * @param timeMillis 記録した時刻
+     * @param changedSlots 前の履歴から変更されたスロットの数（最初の履歴は全スロット数）
+     */
+    public record Entry(long version, long timeMillis, boolean checkpoint, int changedSlots) {
+    }
+
+    /**
+     * ファイルに記録された履歴1件分。
+     */
+    private record StoredEntry(long version, long timeMillis, byte flags, List<InventorySlots.Slot> upserts, List<InventorySlots.SlotKey> deletes) {
+    }
+
+    /**
+     * @param validLength 読み込めた最後の履歴の終わりの位置。書きかけの履歴はこれより後ろにあり、次の追記で上書きします
+     */
+    private record HistoryFile(List<StoredEntry> entries, long validLength) {
+    }
+
+    private static final class PlayerState {
+        Map<InventorySlots.SlotKey, Long> hashes;
+        int entryCount;
+        long lastCheckpointMillis;
+        long length;
+    }
+
+    /**
+     * 履歴の記録を開始します。historyEnabled が無効の場合は何もしません。
+     */
+    public static void start(Path historyDirectory, ConfigManager.ConfigData config) {
+        if (!config.historyEnabled || historyExecutor != null) {
+            return;
+        }
+        directory = historyDirectory;
+        maxVersions = config.historyMaxVersions;
+        maxCheckpoints = config.historyMaxCheckpoints;
+        checkpointIntervalMillis = TimeUnit.MINUTES.toMillis(config.historyCheckpointIntervalMinutes);
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            Fabsyncmod.LOGGER.error("履歴のディレクトリを作成できませんでした。履歴は記録されません: " + directory, e);
+            return;
+        }
+        historyExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE_CAPACITY), runnable -> {
+            Thread thread = new Thread(runnable, "Fabsyncmod-History");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Fabsyncmod.LOGGER.info("インベントリの履歴を " + directory + " に記録します（直近 " + maxVersions + " 件、チェックポイント "
+                + config.historyCheckpointIntervalMinutes + " 分ごとに " + maxCheckpoints + " 件）。");
+    }
+
+    /**
+     * キューに残っている履歴を書き込んでから停止します。
+     */
+    public static void stop(long timeoutSeconds) {
+        if (historyExecutor == null) {
+            return;
+        }
+        historyExecutor.shutdown();
+        try {
+            if (!historyExecutor.awaitTermination(timeoutSeconds, TimeUnit.SECONDS)) {
+                Fabsyncmod.LOGGER.warn("履歴の書き込みが " + timeoutSeconds + " 秒以内に終わりませんでした。残りの履歴は記録されません。");
+                historyExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            historyExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        historyExecutor = null;
+    }
+
+    public static boolean isEnabled() {
+        return historyExecutor != null;
+    }
+
+    /**
+     * 保存先に書き込んだ保存を履歴に記録します。書き込みは履歴のスレッドで行い、この呼び出しは待ちません。
+     */
+    public static void record(Collection<InventoryRecord> records) {
+        ThreadPoolExecutor executor = historyExecutor;
+        if (executor == null || records.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<InventoryRecord> recordList = List.copyOf(records);
+        try {
+            executor.execute(() -> {
+                for (InventoryRecord record : recordList) {
+                    append(record, now);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            SyncMetrics.recordHistoryDropped(recordList.size());
+        }
+    }
+
+    /**
+     * プレイヤーの履歴を古い順に返します。ファイルの読み込みは履歴のスレッドで行います。
+     */
+    public static CompletableFuture<List<Entry>> list(UUID playerUuid) {
+        return submit(() -> {
+            List<Entry> entries = new ArrayList<>();
+            for (StoredEntry entry : readFile(historyFile(playerUuid)).entries()) {
+                entries.add(new Entry(entry.version(), entry.timeMillis(), (entry.flags() & FLAG_CHECKPOINT) != 0,
+                        countChangedSlots(entry)));
+            }
+            return entries;
+        });
+    }
+
+    /**
+     * 指定した版番号の履歴の時点のエンコード済みデータを組み立てます。
+     * @return 該当する履歴がない場合は null を結果とする CompletableFuture
+     */
+    public static CompletableFuture<byte[]> reconstruct(UUID playerUuid, long version) {
+        return submit(() -> {
+            Map<InventorySlots.SlotKey, InventorySlots.Slot> state = new LinkedHashMap<>();
+            for (StoredEntry entry : readFile(historyFile(playerUuid)).entries()) {
+                apply(state, entry);
+                if (entry.version() == version) {
+                    return InventorySlots.join(state.values());
+                }
+            }
+            return null;
+        });
+    }
+
+    @FunctionalInterface
+    private interface HistoryTask<T> {
+        T run() throws IOException;
+    }
+
+    private static <T> CompletableFuture<T> submit(HistoryTask<T> task) {
+        ThreadPoolExecutor executor = historyExecutor;
+        if (executor == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("履歴の記録が有効になっていません。"));
+        }
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(task.run());
+                } catch (IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new IllegalStateException("履歴のキューが満杯です。しばらくしてから再度実行してください。"));
+        }
+        return future;
+    }
+
+    private static void append(InventoryRecord record, long now) {
+        UUID playerUuid = record.playerUuid();
+        List<InventorySlots.Slot> slots;
+        try {
+            slots = InventorySlots.split(record.data());
+        } catch (IOException e) {
+            // 現在の形式でないデータはスロットに分割できないため記録しない
+            return;
+        }
+        Path file = historyFile(playerUuid);
+        try {
+            PlayerState state = states.get(playerUuid);
+            if (state == null) {
+                state = loadState(file);
+                states.put(playerUuid, state);
+            }
+            Map<InventorySlots.SlotKey, Long> hashes = InventorySlots.hashes(slots);
+            StoredEntry entry;
+            boolean checkpoint = now - state.lastCheckpointMillis >= checkpointIntervalMillis;
+            byte flags = checkpoint ? FLAG_CHECKPOINT : 0;
+            if (state.hashes == null) {
+                entry = new StoredEntry(record.version(), now, (byte) (flags | FLAG_FULL), slots, List.of());
+            } else {
+                InventorySlots.Delta delta = InventorySlots.diff(state.hashes, slots);
+                if (delta.upserts().isEmpty() && delta.deletes().isEmpty()) {
+                    forgetIfReleased(record);
+                    return;
+                }
+                entry = new StoredEntry(record.version(), now, flags, delta.upserts(), delta.deletes());
+            }
+            state.length = writeEntry(file, state.length, entry);
+            state.hashes = hashes;
+            state.entryCount++;
+            if (checkpoint) {
+                state.lastCheckpointMillis = now;
+            }
+            // 保持数を少し超えるまで溜めてからまとめて削除し、ファイルの書き直しの回数を抑える
+            if (state.entryCount > 2 * maxVersions + maxCheckpoints) {
+                compact(file, state);
+            }
+        } catch (IOException | RuntimeException e) {
+            // 次回はファイルから状態を読み直す
+            states.remove(playerUuid);
+            Fabsyncmod.LOGGER.warn("プレイヤー " + playerUuid + " の履歴を記録できませんでした。", e);
+            return;
+        }
+        forgetIfReleased(record);
+    }
+
+    /**
+     * ログアウト時の保存の後は、プレイヤーの状態をメモリに保持しない（次回はファイルから読み直す）。
+     */
+    private static void forgetIfReleased(InventoryRecord record) {
+        if (record.releaseLeaseToken() != null) {
+            states.remove(record.playerUuid());
+        }
+    }
+
+    private static PlayerState loadState(Path file) throws IOException {
+        PlayerState state = new PlayerState();
+        HistoryFile history = readFile(file);
+        Map<InventorySlots.SlotKey, InventorySlots.Slot> slots = new LinkedHashMap<>();
+        for (StoredEntry entry : history.entries()) {
+            apply(slots, entry);
+            if ((entry.flags() & FLAG_CHECKPOINT) != 0) {
+                state.lastCheckpointMillis = entry.timeMillis();
+            }
+        }
+        state.hashes = history.entries().isEmpty() ? null : InventorySlots.hashes(slots.values());
+        state.entryCount = history.entries().size();
+        state.length = history.validLength();
+        return state;
+    }
+
+    /**
+     * 直近の履歴とチェックポイントだけを残してファイルを書き直します。残す最初の履歴は全スロットを、それ以降は残す履歴同士の差分を記録します。
+     */
+    private static void compact(Path file, PlayerState state) throws IOException {
+        List<StoredEntry> entries = readFile(file).entries();
+        boolean[] keep = new boolean[entries.size()];
+        int checkpoints = 0;
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            if (entries.size() - i <= maxVersions) {
+                keep[i] = true;
+            } else if ((entries.get(i).flags() & FLAG_CHECKPOINT) != 0 && checkpoints < maxCheckpoints) {
+                keep[i] = true;
+                checkpoints++;
+            }
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(temp);
+        Map<InventorySlots.SlotKey, InventorySlots.Slot> current = new LinkedHashMap<>();
+        Map<InventorySlots.SlotKey, Long> keptHashes = null;
+        long length = 0;
+        int kept = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            StoredEntry entry = entries.get(i);
+            apply(current, entry);
+            if (!keep[i]) {
+                continue;
+            }
+            byte checkpointFlag = (byte) (entry.flags() & FLAG_CHECKPOINT);
+            List<InventorySlots.Slot> slots = new ArrayList<>(current.values());
+            StoredEntry rewritten;
+            if (keptHashes == null) {
+                rewritten = new StoredEntry(entry.version(), entry.timeMillis(), (byte) (checkpointFlag | FLAG_FULL), slots, List.of());
+            } else {
+                InventorySlots.Delta delta = InventorySlots.diff(keptHashes, slots);
+                rewritten = new StoredEntry(entry.version(), entry.timeMillis(), checkpointFlag, delta.upserts(), delta.deletes());
+            }
+            length = writeEntry(temp, length, rewritten);
+            keptHashes = InventorySlots.hashes(slots);
+            kept++;
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Fabsyncmod.LOGGER.debug("履歴 " + file.getFileName() + " の古い履歴を削除しました（" + entries.size() + " 件 → " + kept + " 件）。");
+        state.entryCount = kept;
+        state.length = length;
+    }
+
+    private static void apply(Map<InventorySlots.SlotKey, InventorySlots.Slot> state, StoredEntry entry) {
+        if ((entry.flags() & FLAG_FULL) != 0) {
+            state.clear();
+        }
+        for (InventorySlots.Slot slot : entry.upserts()) {
+            state.put(slot.key(), slot);
+        }
+        for (InventorySlots.SlotKey key : entry.deletes()) {
+            state.remove(key);
+        }
+    }
+
+    private static int countChangedSlots(StoredEntry entry) {
+        int count = 0;
+        for (InventorySlots.Slot slot : entry.upserts()) {
+            if (slot.key().slot() != InventorySlots.SECTION_MARKER) {
+                count++;
+            }
+        }
+        for (InventorySlots.SlotKey key : entry.deletes()) {
+            if (key.slot() != InventorySlots.SECTION_MARKER) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 履歴1件をファイルの指定位置に書き込みます。ファイルがない（位置が0の）場合はヘッダから書き込みます。
+     * @return 書き込んだ履歴の終わりの位置
+     */
+    private static long writeEntry(Path file, long position, StoredEntry entry) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(raw);
+        out.writeInt(entry.upserts().size());
+        for (InventorySlots.Slot slot : entry.upserts()) {
+            out.writeUTF(slot.key().section());
+            out.writeInt(slot.key().slot());
+            out.writeInt(slot.data().length);
+            out.write(slot.data());
+        }
+        out.writeInt(entry.deletes().size());
+        for (InventorySlots.SlotKey key : entry.deletes()) {
+            out.writeUTF(key.section());
+            out.writeInt(key.slot());
+        }
+        byte[] rawBytes = raw.toByteArray();
+        byte[] compressed = new byte[LZ4_COMPRESSOR.maxCompressedLength(rawBytes.length)];
+        int compressedLength = LZ4_COMPRESSOR.compress(rawBytes, 0, rawBytes.length, compressed, 0, compressed.length);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (position < FILE_HEADER_BYTES) {
+                channel.truncate(0);
+                writeFully(channel, ByteBuffer.allocate(FILE_HEADER_BYTES).putInt(FILE_MAGIC).putInt(FILE_VERSION).flip());
+                position = FILE_HEADER_BYTES;
+            } else {
+                // 前回の書きかけの履歴があれば上書きする
+                channel.truncate(position);
+            }
+            channel.position(position);
+            ByteBuffer buffer = ByteBuffer.allocate(ENTRY_HEADER_BYTES + compressedLength);
+            buffer.putLong(entry.version()).putLong(entry.timeMillis()).put(entry.flags())
+                    .putInt(rawBytes.length).putInt(compressedLength)
+                    .putInt(CHECKSUM.hash(compressed, 0, compressedLength, CHECKSUM_SEED))
+                    .put(compressed, 0, compressedLength).flip();
+            writeFully(channel, buffer);
+            return channel.position();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * 履歴ファイルを読み込みます。途中で切れている、またはチェックサムが一致しない履歴があれば、その手前までを返します。
+     */
+    private static HistoryFile readFile(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return new HistoryFile(List.of(), 0);
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < FILE_HEADER_BYTES || buffer.getInt() != FILE_MAGIC || buffer.getInt() != FILE_VERSION) {
+            throw new IOException("履歴ファイルの形式を認識できません: " + file);
+        }
+        List<StoredEntry> entries = new ArrayList<>();
+        long validLength = FILE_HEADER_BYTES;
+        while (buffer.remaining() >= ENTRY_HEADER_BYTES) {
+            long version = buffer.getLong();
+            long timeMillis = buffer.getLong();
+            byte flags = buffer.get();
+            int rawLength = buffer.getInt();
+            int compressedLength = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (rawLength < 0 || rawLength > MAX_ENTRY_BYTES || compressedLength < 0 || compressedLength > buffer.remaining()
+                    || CHECKSUM.hash(bytes, buffer.position(), compressedLength, CHECKSUM_SEED) != checksum) {
+                break;
+            }
+            byte[] rawBytes = LZ4_DECOMPRESSOR.decompress(bytes, buffer.position(), rawLength);
+            buffer.position(buffer.position() + compressedLength);
+            entries.add(decodeEntry(version, timeMillis, flags, rawBytes));
+            validLength = buffer.position();
+        }
+        if (validLength < bytes.length) {
+            Fabsyncmod.LOGGER.warn("履歴ファイル " + file + " の末尾の " + (bytes.length - validLength) + " バイトを読み込めませんでした。次の記録で上書きします。");
+        }
+        return new HistoryFile(entries, validLength);
+    }
+
+    private static StoredEntry decodeEntry(long version, long timeMillis, byte flags, byte[] rawBytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(rawBytes));
+        int upsertCount = in.readInt();
+        List<InventorySlots.Slot> upserts = new ArrayList<>(upsertCount);
+        for (int i = 0; i < upsertCount; i++) {
+            InventorySlots.SlotKey key = new InventorySlots.SlotKey(in.readUTF(), in.readInt());
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            upserts.add(InventorySlots.slot(key, data));
+        }
+        int deleteCount = in.readInt();
+        List<InventorySlots.SlotKey> deletes = new ArrayList<>(deleteCount);
+        for (int i = 0; i < deleteCount; i++) {
+            deletes.add(new InventorySlots.SlotKey(in.readUTF(), in.readInt()));
+        }
+        return new StoredEntry(version, timeMillis, flags, upserts, deletes);
+    }
+
+    private static Path historyFile(UUID playerUuid) {
+        return directory.resolve(playerUuid + FILE_SUFFIX);
+    }
+}
@@ -0,0 +1,185 @@
+package net.simohaya;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * サーバー間の引き継ぎロック。同じデータベースを共有する複数のサーバー間でプレイヤーが移動した際に、
+ * 移動元サーバーのログアウト時の保存が書き込まれる前に、移動先サーバーが古いインベントリをロードしないようにします。
+ *
+ * <p>プレイヤーがオンラインの間、そのサーバーがロック（player_inventories_v2 の lease_owner）を保持し、
+ * ログアウト時の保存と同じトランザクションで解放します。ロード時はロックが解放されるまで一定時間待機してから取得します。
+ * クラッシュしたサーバーのロックは有効期間（leaseSeconds）が過ぎると失効するため、保持中は定期的に延長します。
+ *
+ * <p>トークンは "サーバーID:乱数" の形式で、ログインのたびに新しく発行します。
+ * 同じサーバーへの再ログイン時は、自分のサーバーIDのロックを待たずに取得し直せます。
+ */
+public class InventoryLease {
+
+    private static final long INITIAL_POLL_MILLIS = 50;
+    private static final long MAX_POLL_MILLIS = 500;
+
+    // このサーバーが保持しているロック（プレイヤーのUUID → トークン）
+    private static final Map<UUID, String> heldLeases = new ConcurrentHashMap<>();
+    // ログアウト済みで、解放を伴う保存がまだ保存先に書き込まれていないロック
+    private static final Map<UUID, String> releasingLeases = new ConcurrentHashMap<>();
+
+    /**
+     * プレイヤーの引き継ぎロックを取得します。他のサーバーが保持している場合は、解放されるか期限が切れるまで待機します。
+     * DBアクセスと待機を行うため、メインスレッドから呼び出さないでください。
+     * @param playerUuid プレイヤーのUUID
+     * @return 取得したロックのトークン
+     * @throws IllegalStateException 待機時間内に取得できなかった場合、またはデータベースエラーの場合
+     */
+    public static String acquire(UUID playerUuid) {
+        ConfigManager.ConfigData config = ConfigManager.getConfig();
+        String leaseToken = config.serverId + ":" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        long startNanos = System.nanoTime();
+        long deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(config.handoffTimeoutMillis);
+        long pollMillis = INITIAL_POLL_MILLIS;
+        boolean waited = false;
+        try {
+            while (!DatabaseManager.tryAcquireLease(playerUuid, leaseToken, config.leaseSeconds)) {
+                waited = true;
+                if (System.nanoTime() >= deadlineNanos) {
+                    SyncMetrics.recordHandoffTimeout();
+                    throw new IllegalStateException("プレイヤー " + playerUuid + " のインベントリは他のサーバーが使用中です（" + config.handoffTimeoutMillis + " ミリ秒待機しました）。");
+                }
+                Thread.sleep(pollMillis);
+                pollMillis = Math.min(pollMillis * 2, MAX_POLL_MILLIS);
+            }
+        } catch (StorageException e) {
+            throw new IllegalStateException("プレイヤー " + playerUuid + " の引き継ぎロックの取得中にエラーが発生しました。", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("プレイヤー " + playerUuid + " の引き継ぎロックの取得が中断されました。", e);
+        }
+
+        heldLeases.put(playerUuid, leaseToken);
+        if (waited) {
+            long elapsedNanos = System.nanoTime() - startNanos;
+            SyncMetrics.recordHandoffWait(elapsedNanos);
+            Fabsyncmod.LOGGER.info("プレイヤー " + playerUuid + " の移動元サーバーの保存完了を " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ミリ秒待機しました。");
+        }
+        return leaseToken;
+    }
+
+    /**
+     * オフラインのプレイヤーの保存データを書き換えるために、待機せずにロックの取得を1回だけ試みます。
+     * 取得したロックはログアウト時と同じく、解放を伴う保存が書き込まれるまで延長を続けます。
+     * DBアクセスを行うため、メインスレッドから呼び出さないでください。
+     * @return 取得したロックのトークン。他のサーバーが保持している場合や、このサーバーでオンラインの場合は null
+     */
+    public static String tryAcquireForWrite(UUID playerUuid) throws StorageException {
+        if (heldLeases.containsKey(playerUuid)) {
+            return null;
+        }
+        ConfigManager.ConfigData config = ConfigManager.getConfig();
+        String leaseToken = config.serverId + ":" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        if (!DatabaseManager.tryAcquireLease(playerUuid, leaseToken, config.leaseSeconds)) {
+            return null;
+        }
+        releasingLeases.put(playerUuid, leaseToken);
+        return leaseToken;
+    }
+
+    /**
+     * ログアウト時の保存と一緒に解放するため、プレイヤーのロックのトークンを返します。
+     * 保存先の障害で保存がジャーナルに留まっている間に移動先のサーバーが古い内容をロードしないよう、
+     * 解放を伴う保存が書き込まれる（{@link #onReleased}）まではロックの延長を続けます。
+     * @return 保持していたトークン。保持していない場合は null
+     */
+    public static String detach(UUID playerUuid) {
+        String leaseToken = heldLeases.remove(playerUuid);
+        if (leaseToken != null) {
+            releasingLeases.put(playerUuid, leaseToken);
+        }
+        return leaseToken;
+    }
+
+    /**
+     * 解放を伴う保存が保存先に書き込まれ、ロックが解放されたことを記録します。
+     */
+    public static void onReleased(UUID playerUuid, String leaseToken) {
+        releasingLeases.remove(playerUuid, leaseToken);
+    }
+
+    /**
+     * 他のサーバーにロックが移っていたため、保存が書き込まれなかったことを記録します。
+     * 失ったロックは延長も解放もしません。
+     */
+    public static void onLost(UUID playerUuid, String leaseToken) {
+        heldLeases.remove(playerUuid, leaseToken);
+        releasingLeases.remove(playerUuid, leaseToken);
+    }
+
+    /**
+     * プレイヤーについてこのサーバーが保持しているロックのトークンを返します。保持していない場合は null。
+     */
+    public static String getHeldToken(UUID playerUuid) {
+        return heldLeases.get(playerUuid);
+    }
+
+    /**
+     * 保存先の行のロックの保持者から、そのロックのもとで取得したデータを書き込んでよいかを判定します。
+     * ロックがない場合と、このデータを取得したサーバー自身のロックの場合（同じサーバーへの再ログインで取得し直した場合を含む）に書き込めます。
+     * 同じサーバーの保存は書き込みキューとジャーナルで順序が保たれるため、トークンが変わっていても古い内容で上書きすることはありません。
+     * @param leaseOwner 行のロックの保持者。ない場合は null
+     * @param leaseToken データに付いているトークン（{@link InventoryRecord#leaseToken()}）。null の場合は確認しません
+     */
+    public static boolean canWrite(String leaseOwner, String leaseToken) {
+        if (leaseOwner == null || leaseToken == null) {
+            return true;
+        }
+        return serverIdOf(leaseOwner).equals(serverIdOf(leaseToken));
+    }
+
+    private static String serverIdOf(String leaseToken) {
+        int separator = leaseToken.indexOf(':');
+        return separator >= 0 ? leaseToken.substring(0, separator) : leaseToken;
+    }
+
+    /**
+     * ロックを直ちに解放します。ロードが適用されなかった場合に使用します。DBアクセスを行うため、メインスレッドから呼び出さないでください。
+     * @param leaseToken {@link #acquire} で取得したトークン。より新しいロックを取得済みの場合は何もしません
+     */
+    public static void release(UUID playerUuid, String leaseToken) {
+        heldLeases.remove(playerUuid, leaseToken);
+        try {
+            DatabaseManager.releaseLeases(Map.of(playerUuid, leaseToken));
+        } catch (StorageException e) {
+            Fabsyncmod.LOGGER.warn("プレイヤー " + playerUuid + " の引き継ぎロックの解放に失敗しました。有効期間の経過後に失効します。", e);
+        }
+    }
+
+    /**
+     * 保持している全てのロックの期限を延長します。有効期間より短い間隔で定期的に呼び出してください。
+     */
+    public static void renewAll() {
+        Map<UUID, String> leases = new HashMap<>(releasingLeases);
+        leases.putAll(heldLeases);
+        try {
+            DatabaseManager.renewLeases(leases, ConfigManager.getConfig().leaseSeconds);
+        } catch (StorageException e) {
+            Fabsyncmod.LOGGER.warn(leases.size() + " 人分の引き継ぎロックの延長に失敗しました。", e);
+        }
+    }
+
+    /**
+     * 保持している全てのロックを解放します。サーバーシャットダウン時、全ての保存を書き込んだ後に呼び出してください。
+     * 解放を伴う保存がジャーナルに留まっているロックは解放せず、有効期間の経過で失効させます。
+     */
+    public static void releaseAll() {
+        Map<UUID, String> leases = new HashMap<>(heldLeases);
+        heldLeases.clear();
+        try {
+            DatabaseManager.releaseLeases(leases);
+        } catch (StorageException e) {
+            Fabsyncmod.LOGGER.warn(leases.size() + " 人分の引き継ぎロックの解放に失敗しました。有効期間の経過後に失効します。", e);
+        }
+    }
+}
@@ -0,0 +1,734 @@
+package net.simohaya;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+import net.minecraft.registry.RegistryWrapper;
+
+/**
+ * 保存データの一括移行とバックアップ。/syncmod migrate コマンド（{@link SyncCommands}）から実行します。
+ * <ul>
+ *   <li>export: 現在の保存先の全データを、LZ4圧縮したアーカイブファイル（設定ディレクトリの exports 以下）に書き出します。</li>
+ *   <li>import: アーカイブファイルのデータを現在の保存先に書き込みます。</li>
+ *   <li>copy: 現在の保存先の全データを、もう一方の保存先（"mysql" または "local"）に書き込みます。</li>
+ *   <li>reencode: 現在の保存先の旧形式のデータを、現在の形式に再エンコードして書き戻します。</li>
+ * </ul>
+ * 保存先は {@link StorageBackend#scan} でUUIDの順に {@link #PAGE_SIZE} 件ずつ読み込み（キーセット方式のため何ページ目でも同じ速さ）、
+ * 次のページを読み込む間に、旧形式のデータの再エンコードをワーカースレッドで並列に行って書き込みます。
+ * メモリに載るのは同時に2ページ分までです。
+ *
+ * <p>ページを書き込むたびに進捗をチェックポイントファイルに記録するため、中断やサーバーの停止の後に同じコマンドを実行すると続きから再開します。
+ * 現在の保存先に書き込む場合（import、reencode）、このサーバーにオンラインのプレイヤーや、まだ書き込まれていない保存があるプレイヤーは
+ * 新しい保存を上書きしないよう省略します。他のサーバーでオンラインのプレイヤーは判別できないため、移行はプレイヤーがいない時に行ってください。
+ */
+public class InventoryMigration {
+
+    public static final String MODE_EXPORT = "export";
+    public static final String MODE_IMPORT = "import";
+    public static final String MODE_COPY = "copy";
+    public static final String MODE_REENCODE = "reencode";
+
+    private static final int PAGE_SIZE = 500;
+    private static final long PROGRESS_LOG_INTERVAL = 20000;
+    private static final String CHECKPOINT_FILE = "migration-checkpoint.json";
+    private static final String EXPORT_DIRECTORY = "exports";
+    private static final String ARCHIVE_SUFFIX = ".fsma";
+    // アーカイブのヘッダ: "FSMA" + 形式バージョン
+    private static final int ARCHIVE_MAGIC = 0x46534D41;
+    private static final int ARCHIVE_VERSION = 1;
+    private static final int ARCHIVE_HEADER_BYTES = 8;
+    // ブロックのヘッダ: 展開後の長さ、圧縮後の長さ、件数、圧縮後のデータのチェックサム
+    private static final int BLOCK_HEADER_BYTES = 16;
+    private static final int MAX_BLOCK_BYTES = 256 * 1024 * 1024;
+    private static final int CHECKSUM_SEED = 0x46534D41;
+    private static final LZ4Compressor LZ4_COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+    private static final LZ4FastDecompressor LZ4_DECOMPRESSOR = LZ4Factory.fastestInstance().fastDecompressor();
+    private static final XXHash32 CHECKSUM = XXHashFactory.fastestInstance().hash32();
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    private static volatile Job currentJob;
+
+    /**
+     * 移行の進捗。ページを書き込むたびにファイルに保存し、再開時に読み込みます。
+     */
+    static final class Checkpoint {
+        String mode;
+        String argument;
+        // 保存先から読み込む場合の、最後に書き込みまで終えたUUID
+        String lastUuid;
+        // アーカイブを読み書きする場合の、最後に書き込みまで終えたブロックの終わりの位置
+        long archiveOffset;
+        long read;
+        long written;
+        long reencoded;
+        long skipped;
+        long failed;
+    }
+
+    /**
+     * 読み込んだ1ページ分。
+     * @param lastUuid このページの最後のUUID（保存先から読み込む場合）
+     * @param archiveOffset このページを読み終えた位置（アーカイブから読み込む場合）
+     * @param last 最後のページか
+     */
+    private record Page(List<InventoryRecord> records, String lastUuid, long archiveOffset, boolean last) {
+    }
+
+    private interface Source extends Closeable {
+        Page next() throws IOException, StorageException;
+    }
+
+    private interface Target extends Closeable {
+        void write(List<InventoryRecord> records) throws IOException, StorageException;
+
+        /**
+         * 書き込んだ位置（アーカイブの場合）。それ以外は0。
+         */
+        long position() throws IOException;
+    }
+
+    /**
+     * 移行を開始します。同じ移行のチェックポイントがある場合は続きから再開します。
+     * @param mode {@link #MODE_EXPORT}、{@link #MODE_IMPORT}、{@link #MODE_COPY}、{@link #MODE_REENCODE} のいずれか
+     * @param argument export・import ではアーカイブのファイル名、copy では書き込み先（"mysql" または "local"）、reencode では null
+     * @return 開始時のメッセージ
+     * @throws IllegalStateException 開始できない場合（メッセージに理由を含みます）
+     */
+    public static synchronized String start(String mode, String argument) {
+        if (currentJob != null && currentJob.isRunning()) {
+            throw new IllegalStateException("移行を実行中です。/syncmod migrate status で進捗を確認できます。");
+        }
+        StorageBackend live = DatabaseManager.getBackend();
+        RegistryWrapper.WrapperLookup registryLookup = DatabaseManager.getRegistryLookup();
+        if (live == null || registryLookup == null) {
+            throw new IllegalStateException("保存先が初期化されていません。");
+        }
+        String normalizedArgument = argument != null ? argument.toLowerCase(Locale.ROOT) : "";
+
+        Path checkpointFile = getCheckpointFile();
+        Checkpoint checkpoint = readCheckpoint(checkpointFile);
+        boolean resumed = checkpoint != null;
+        if (resumed && !(mode.equals(checkpoint.mode) && normalizedArgument.equals(checkpoint.argument))) {
+            throw new IllegalStateException("途中で止まっている移行（" + checkpoint.mode + " " + checkpoint.argument + "）があります。"
+                    + "同じコマンドで再開するか、/syncmod migrate discard で破棄してください。");
+        }
+        if (!resumed) {
+            checkpoint = new Checkpoint();
+            checkpoint.mode = mode;
+            checkpoint.argument = normalizedArgument;
+        }
+
+        Source source = null;
+        Target target = null;
+        StorageBackend openedBackend = null;
+        boolean liveTarget;
+        boolean writeUnchanged;
+        try {
+            switch (mode) {
+                case MODE_EXPORT -> {
+                    Path archive = resolveArchive(normalizedArgument);
+                    if (!resumed && Files.exists(archive)) {
+                        throw new IllegalStateException("ファイル " + archive + " は既に存在します。別の名前を指定してください。");
+                    }
+                    source = new BackendSource(live, checkpoint.lastUuid);
+                    target = new ArchiveWriter(archive, checkpoint.archiveOffset);
+                    liveTarget = false;
+                    writeUnchanged = true;
+                }
+                case MODE_IMPORT -> {
+                    Path archive = resolveArchive(normalizedArgument);
+                    if (!Files.exists(archive)) {
+                        throw new IllegalStateException("ファイル " + archive + " が見つかりません。");
+                    }
+                    source = new ArchiveReader(archive, checkpoint.archiveOffset);
+                    target = new BackendTarget(live, null);
+                    liveTarget = true;
+                    writeUnchanged = true;
+                }
+                case MODE_COPY -> {
+                    if (!DatabaseManager.BACKEND_MYSQL.equals(normalizedArgument) && !DatabaseManager.BACKEND_LOCAL.equals(normalizedArgument)) {
+                        throw new IllegalStateException("書き込み先は mysql または local を指定してください。");
+                    }
+                    boolean liveIsLocal = live instanceof LocalFileStorageBackend;
+                    if (liveIsLocal == DatabaseManager.BACKEND_LOCAL.equals(normalizedArgument)) {
+                        throw new IllegalStateException("書き込み先が現在の保存先と同じです。形式の更新には /syncmod migrate reencode を使用してください。");
+                    }
+                    openedBackend = DatabaseManager.createBackend(normalizedArgument, ConfigManager.getConfig());
+                    openedBackend.open();
+                    source = new BackendSource(live, checkpoint.lastUuid);
+                    target = new BackendTarget(openedBackend, openedBackend);
+                    liveTarget = false;
+                    writeUnchanged = true;
+                }
+                case MODE_REENCODE -> {
+                    source = new BackendSource(live, checkpoint.lastUuid);
+                    target = new BackendTarget(live, null);
+                    liveTarget = true;
+                    writeUnchanged = false;
+                }
+                default -> throw new IllegalStateException("不明な移行の種類です: " + mode);
+            }
+        } catch (IOException | StorageException e) {
+            closeQuietly(source);
+            closeQuietly(target);
+            if (openedBackend != null) {
+                openedBackend.close();
+            }
+            Fabsyncmod.LOGGER.error("移行（" + mode + "）の準備に失敗しました。", e);
+            throw new IllegalStateException("移行の準備に失敗しました: " + e.getMessage());
+        } catch (IllegalStateException e) {
+            closeQuietly(source);
+            closeQuietly(target);
+            if (openedBackend != null) {
+                openedBackend.close();
+            }
+            throw e;
+        }
+
+        Job job = new Job(checkpoint, checkpointFile, source, target, registryLookup, liveTarget, writeUnchanged);
+        currentJob = job;
+        job.start();
+        String message = "移行（" + mode + (normalizedArgument.isEmpty() ? "" : " " + normalizedArgument) + "）を"
+                + (resumed ? checkpoint.read + " 件目から再開しました。" : "開始しました。");
+        Fabsyncmod.LOGGER.info(message);
+        return message;
+    }
+
+    /**
+     * 実行中または最後に実行した移行の進捗を返します。
+     */
+    public static String status() {
+        Job job = currentJob;
+        if (job != null) {
+            return job.describe();
+        }
+        Checkpoint checkpoint = readCheckpoint(getCheckpointFile());
+        if (checkpoint != null) {
+            return "途中で止まっている移行（" + checkpoint.mode + " " + checkpoint.argument + "）があります: 読み込み " + checkpoint.read + " 件。"
+                    + "同じコマンドで再開できます。";
+        }
+        return "移行は実行されていません。";
+    }
+
+    public static boolean isRunning() {
+        Job job = currentJob;
+        return job != null && job.isRunning();
+    }
+
+    /**
+     * 実行中の移行を、現在のページを書き終えた時点で中断します。チェックポイントは残るため、後で再開できます。
+     * @return 実行中の移行があった場合 true
+     */
+    public static boolean cancel() {
+        Job job = currentJob;
+        if (job == null || !job.isRunning()) {
+            return false;
+        }
+        job.cancelled = true;
+        return true;
+    }
+
+    /**
+     * 途中で止まっている移行のチェックポイントを破棄します。実行中は破棄できません。
+     * @return 破棄した場合 true
+     */
+    public static synchronized boolean discard() {
+        if (currentJob != null && currentJob.isRunning()) {
+            throw new IllegalStateException("移行を実行中です。先に /syncmod migrate cancel で中断してください。");
+        }
+        try {
+            return Files.deleteIfExists(getCheckpointFile());
+        } catch (IOException e) {
+            throw new IllegalStateException("チェックポイントの削除に失敗しました: " + e.getMessage());
+        }
+    }
+
+    /**
+     * サーバーのシャットダウン時に、実行中の移行を中断して終了を待ちます。
+     */
+    public static void stop(long timeoutSeconds) {
+        Job job = currentJob;
+        if (job != null && job.isRunning()) {
+            job.cancelled = true;
+            try {
+                job.thread.join(TimeUnit.SECONDS.toMillis(timeoutSeconds));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 実行中の移行1件。読み込み、再エンコード、書き込みを専用のスレッドで行います。
+     */
+    private static final class Job {
+        private final Checkpoint checkpoint;
+        private final Path checkpointFile;
+        private final Source source;
+        private final Target target;
+        private final RegistryWrapper.WrapperLookup registryLookup;
+        private final boolean liveTarget;
+        private final boolean writeUnchanged;
+        private final Thread thread;
+        private final long startNanos = System.nanoTime();
+        private final long startRead;
+        private volatile boolean cancelled;
+        private volatile String state = "実行中";
+
+        private Job(Checkpoint checkpoint, Path checkpointFile, Source source, Target target,
+                    RegistryWrapper.WrapperLookup registryLookup, boolean liveTarget, boolean writeUnchanged) {
+            this.checkpoint = checkpoint;
+            this.checkpointFile = checkpointFile;
+            this.source = source;
+            this.target = target;
+            this.registryLookup = registryLookup;
+            this.liveTarget = liveTarget;
+            this.writeUnchanged = writeUnchanged;
+            this.startRead = checkpoint.read;
+            this.thread = new Thread(this::run, "Fabsyncmod-Migration");
+            this.thread.setDaemon(true);
+        }
+
+        private void start() {
+            thread.start();
+        }
+
+        private boolean isRunning() {
+            return thread.isAlive();
+        }
+
+        private void run() {
+            int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+            AtomicInteger threadIndex = new AtomicInteger();
+            ExecutorService workers = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread worker = new Thread(runnable, "Fabsyncmod-Migration-Worker-" + threadIndex.incrementAndGet());
+                worker.setDaemon(true);
+                return worker;
+            });
+            ExecutorService reader = Executors.newSingleThreadExecutor(runnable -> {
+                Thread worker = new Thread(runnable, "Fabsyncmod-Migration-Reader");
+                worker.setDaemon(true);
+                return worker;
+            });
+            long nextProgressLog = checkpoint.read + PROGRESS_LOG_INTERVAL;
+            try {
+                Future<Page> pending = reader.submit(source::next);
+                while (true) {
+                    Page page = await(pending);
+                    // 次のページの読み込みを、このページの変換・書き込みと並行して行う
+                    if (!page.last() && !cancelled) {
+                        pending = reader.submit(source::next);
+                    }
+                    List<InventoryRecord> converted = convert(page.records(), workers, threads);
+                    if (!converted.isEmpty()) {
+                        target.write(converted);
+                    }
+                    checkpoint.read += page.records().size();
+                    checkpoint.written += converted.size();
+                    checkpoint.lastUuid = page.lastUuid();
+                    checkpoint.archiveOffset = target instanceof ArchiveWriter ? target.position() : page.archiveOffset();
+                    writeCheckpoint(checkpointFile, checkpoint);
+
+                    if (checkpoint.read >= nextProgressLog) {
+                        Fabsyncmod.LOGGER.info(describe());
+                        nextProgressLog = checkpoint.read + PROGRESS_LOG_INTERVAL;
+                    }
+                    if (page.last()) {
+                        state = "完了";
+                        Files.deleteIfExists(checkpointFile);
+                        break;
+                    }
+                    if (cancelled) {
+                        state = "中断（同じコマンドで再開できます）";
+                        break;
+                    }
+                }
+            } catch (Exception e) {
+                state = "失敗（同じコマンドで再開できます）: " + e.getMessage();
+                Fabsyncmod.LOGGER.error("移行（" + checkpoint.mode + "）中にエラーが発生しました。" + checkpoint.read + " 件目まで完了しています。", e);
+            } finally {
+                workers.shutdownNow();
+                reader.shutdownNow();
+                closeQuietly(source);
+                closeQuietly(target);
+            }
+            Fabsyncmod.LOGGER.info(describe());
+        }
+
+        /**
+         * ページを分割してワーカースレッドで並列に変換し、書き込むデータを元の順序で返します。
+         */
+        private List<InventoryRecord> convert(List<InventoryRecord> records, ExecutorService workers, int threads) throws Exception {
+            if (records.isEmpty()) {
+                return List.of();
+            }
+            int chunkSize = (records.size() + threads - 1) / threads;
+            List<Future<List<InventoryRecord>>> futures = new ArrayList<>(threads);
+            for (int from = 0; from < records.size(); from += chunkSize) {
+                List<InventoryRecord> chunk = records.subList(from, Math.min(records.size(), from + chunkSize));
+                futures.add(workers.submit((Callable<List<InventoryRecord>>) () -> {
+                    List<InventoryRecord> result = new ArrayList<>(chunk.size());
+                    for (InventoryRecord record : chunk) {
+                        InventoryRecord converted = convert(record);
+                        if (converted != null) {
+                            result.add(converted);
+                        }
+                    }
+                    return result;
+                }));
+            }
+            List<InventoryRecord> converted = new ArrayList<>(records.size());
+            for (Future<List<InventoryRecord>> future : futures) {
+                converted.addAll(await(future));
+            }
+            return converted;
+        }
+
+        /**
+         * 1件を変換します。旧形式のデータは現在の形式に再エンコードし、再エンコードに失敗した場合は元のデータのまま書き込みます。
+         * @return 書き込むデータ。書き込まない場合は null
+         */
+        private InventoryRecord convert(InventoryRecord record) {
+            UUID playerUuid = record.playerUuid();
+            if (record.data().length == 0) {
+                // 引き継ぎロックの取得時に作られた、まだ一度も保存されていない行
+                count(() -> checkpoint.skipped++);
+                return null;
+            }
+            if (liveTarget && isInUse(playerUuid)) {
+                count(() -> checkpoint.skipped++);
+                return null;
+            }
+            byte[] data = record.data();
+            if (!InventoryCodec.isCurrentFormat(data)) {
+                try {
+                    data = InventoryCodec.encode(InventoryCodec.decode(playerUuid, data, registryLookup), registryLookup);
+                    count(() -> checkpoint.reencoded++);
+                } catch (IOException | RuntimeException e) {
+                    count(() -> checkpoint.failed++);
+                    Fabsyncmod.LOGGER.warn("プレイヤー " + playerUuid + " のデータを再エンコードできませんでした。元のデータのまま扱います。", e);
+                    if (!writeUnchanged) {
+                        return null;
+                    }
+                }
+            } else if (!writeUnchanged) {
+                return null;
+            }
+            return new InventoryRecord(playerUuid, data, null, false, liveTarget ? DatabaseManager.nextVersion() : record.version());
+        }
+
+        private void count(Runnable update) {
+            synchronized (checkpoint) {
+                update.run();
+            }
+        }
+
+        private String describe() {
+            long elapsedNanos = System.nanoTime() - startNanos;
+            double rate = (checkpoint.read - startRead) / Math.max(1e-9, elapsedNanos / 1e9);
+            synchronized (checkpoint) {
+                return String.format(Locale.ROOT, "移行（%s%s）: %s 読み込み %d 件、書き込み %d 件（うち再エンコード %d 件）、省略 %d 件、失敗 %d 件（%.0f 件/秒、%d 秒経過）",
+                        checkpoint.mode, checkpoint.argument.isEmpty() ? "" : " " + checkpoint.argument, state,
+                        checkpoint.read, checkpoint.written, checkpoint.reencoded, checkpoint.skipped, checkpoint.failed,
+                        rate, TimeUnit.NANOSECONDS.toSeconds(elapsedNanos));
+            }
+        }
+    }
+
+    /**
+     * このサーバーでオンライン、または保存先にまだ書き込まれていない保存があるプレイヤーかを返します。
+     * 現在の保存先に書き込む場合、これらのプレイヤーのデータは上書きしません。
+     */
+    private static boolean isInUse(UUID playerUuid) {
+        return InventoryChangeTracker.getBaseline(playerUuid) != null
+                || InventorySync.isInventoryLocked(playerUuid)
+                || InventorySaveQueue.getPendingSnapshot(playerUuid).isPresent()
+                || SaveJournal.getUnflushedVersion(playerUuid).isPresent();
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 保存先からUUIDの順に読み込みます。
+     */
+    private static final class BackendSource implements Source {
+        private final StorageBackend backend;
+        private String after;
+
+        private BackendSource(StorageBackend backend, String after) {
+            this.backend = backend;
+            this.after = after;
+        }
+
+        @Override
+        public Page next() throws StorageException {
+            List<InventoryRecord> records = backend.scan(after, PAGE_SIZE);
+            if (!records.isEmpty()) {
+                after = records.get(records.size() - 1).playerUuid().toString();
+            }
+            return new Page(records, after, 0, records.size() < PAGE_SIZE);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * 保存先に書き込みます。
+     */
+    private static final class BackendTarget implements Target {
+        private final StorageBackend backend;
+        // この移行のために開いた保存先（終了時に閉じる）。現在の保存先の場合は null
+        private final StorageBackend owned;
+
+        private BackendTarget(StorageBackend backend, StorageBackend owned) {
+            this.backend = backend;
+            this.owned = owned;
+        }
+
+        @Override
+        public void write(List<InventoryRecord> records) throws StorageException {
+            backend.saveBatch(records);
+            if (owned == null) {
+                // ローカルの保存先ではキャッシュを版番号で検証しないため、書き換えたプレイヤーのエントリは破棄する
+                for (InventoryRecord record : records) {
+                    InventoryCache.invalidate(record.playerUuid());
+                }
+            }
+        }
+
+        @Override
+        public long position() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+            if (owned != null) {
+                owned.close();
+            }
+        }
+    }
+
+    /**
+     * アーカイブファイルに書き込みます。1ページを1ブロックとしてLZ4で圧縮し、ブロックごとに fsync します。
+     * 再開時はチェックポイントの位置より後ろ（書きかけのブロック）を切り詰めてから追記します。
+     */
+    private static final class ArchiveWriter implements Target {
+        private final FileChannel channel;
+
+        private ArchiveWriter(Path file, long offset) throws IOException {
+            Files.createDirectories(file.getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (offset < ARCHIVE_HEADER_BYTES) {
+                channel.truncate(0);
+                ByteBuffer header = ByteBuffer.allocate(ARCHIVE_HEADER_BYTES).putInt(ARCHIVE_MAGIC).putInt(ARCHIVE_VERSION).flip();
+                writeFully(header);
+            } else {
+                channel.truncate(offset);
+                channel.position(offset);
+            }
+        }
+
+        @Override
+        public void write(List<InventoryRecord> records) throws IOException {
+            ByteArrayOutputStream raw = new ByteArrayOutputStream(records.size() * 4096);
+            DataOutputStream out = new DataOutputStream(raw);
+            for (InventoryRecord record : records) {
+                out.writeLong(record.playerUuid().getMostSignificantBits());
+                out.writeLong(record.playerUuid().getLeastSignificantBits());
+                out.writeLong(record.version());
+                out.writeInt(record.data().length);
+                out.write(record.data());
+            }
+            byte[] rawBytes = raw.toByteArray();
+            byte[] compressed = new byte[LZ4_COMPRESSOR.maxCompressedLength(rawBytes.length)];
+            int compressedLength = LZ4_COMPRESSOR.compress(rawBytes, 0, rawBytes.length, compressed, 0, compressed.length);
+
+            ByteBuffer block = ByteBuffer.allocate(BLOCK_HEADER_BYTES + compressedLength);
+            block.putInt(rawBytes.length).putInt(compressedLength).putInt(records.size())
+                    .putInt(CHECKSUM.hash(compressed, 0, compressedLength, CHECKSUM_SEED))
+                    .put(compressed, 0, compressedLength).flip();
+            writeFully(block);
+            channel.force(false);
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * アーカイブファイルから1ブロックずつ読み込みます。
+     */
+    private static final class ArchiveReader implements Source {
+        private final FileChannel channel;
+        private final DataInputStream in;
+        private long position;
+
+        private ArchiveReader(Path file, long offset) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            in = new DataInputStream(Channels.newInputStream(channel));
+            if (in.readInt() != ARCHIVE_MAGIC || in.readInt() != ARCHIVE_VERSION) {
+                channel.close();
+                throw new IOException("移行用のアーカイブファイルではないか、未対応の形式です: " + file);
+            }
+            position = Math.max(offset, ARCHIVE_HEADER_BYTES);
+            channel.position(position);
+        }
+
+        @Override
+        public Page next() throws IOException {
+            if (position >= channel.size()) {
+                return new Page(List.of(), null, position, true);
+            }
+            int rawLength;
+            int compressedLength;
+            int count;
+            int checksum;
+            byte[] compressed;
+            try {
+                rawLength = in.readInt();
+                compressedLength = in.readInt();
+                count = in.readInt();
+                checksum = in.readInt();
+                if (rawLength < 0 || rawLength > MAX_BLOCK_BYTES || compressedLength < 0 || compressedLength > MAX_BLOCK_BYTES || count < 0) {
+                    throw new IOException("アーカイブのブロック（位置 " + position + "）のヘッダが不正です。");
+                }
+                compressed = new byte[compressedLength];
+                in.readFully(compressed);
+            } catch (EOFException e) {
+                throw new IOException("アーカイブが途中で切れています（位置 " + position + "）。", e);
+            }
+            if (CHECKSUM.hash(compressed, 0, compressedLength, CHECKSUM_SEED) != checksum) {
+                throw new IOException("アーカイブのブロック（位置 " + position + "）のチェックサムが一致しません。");
+            }
+            byte[] rawBytes = LZ4_DECOMPRESSOR.decompress(compressed, rawLength);
+            DataInputStream block = new DataInputStream(new ByteArrayInputStream(rawBytes));
+            List<InventoryRecord> records = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                UUID playerUuid = new UUID(block.readLong(), block.readLong());
+                long version = block.readLong();
+                byte[] data = new byte[block.readInt()];
+                block.readFully(data);
+                records.add(new InventoryRecord(playerUuid, data, null, false, version));
+            }
+            position += BLOCK_HEADER_BYTES + compressedLength;
+            return new Page(records, null, position, position >= channel.size());
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * アーカイブのファイル名を、設定ディレクトリの exports 以下のパスに変換します。
+     */
+    private static Path resolveArchive(String name) {
+        if (!name.matches("[a-z0-9_.-]{1,64}") || name.contains("..")) {
+            throw new IllegalStateException("ファイル名には英数字と _ . - のみ使用できます: " + name);
+        }
+        String fileName = name.endsWith(ARCHIVE_SUFFIX) ? name : name + ARCHIVE_SUFFIX;
+        return ConfigManager.getConfigDirectory().resolve(EXPORT_DIRECTORY).resolve(fileName);
+    }
+
+    private static Path getCheckpointFile() {
+        return ConfigManager.getConfigDirectory().resolve(CHECKPOINT_FILE);
+    }
+
+    private static Checkpoint readCheckpoint(Path file) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return GSON.fromJson(reader, Checkpoint.class);
+        } catch (IOException | JsonParseException e) {
+            Fabsyncmod.LOGGER.warn("移行のチェックポイントを読み込めませんでした: " + file, e);
+            return null;
+        }
+    }
+
+    private static void writeCheckpoint(Path file, Checkpoint checkpoint) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        synchronized (checkpoint) {
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                GSON.toJson(checkpoint, writer);
+            }
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Fabsyncmod.LOGGER.warn("移行で使用したファイルを閉じられませんでした。", e);
+        }
+    }
+}
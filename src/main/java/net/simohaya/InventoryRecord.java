@@ -0,0 +1,30 @@
+package net.simohaya;
+
+import java.util.UUID;
+
+/**
+ * データベースに書き込む、エンコード済みのインベントリ1件分。
+ * @param playerUuid プレイヤーのUUID
+ * @param data エンコード・圧縮済みのインベントリデータ
+ * @param leaseToken このデータを取得した時に保持していた引き継ぎロックのトークン。他のサーバーがロックを保持している場合は書き込みません
+ *                   （{@link InventoryLease#canWrite}）。ロックを伴わない管理用の書き込み（移行など）では null
+ * @param releaseLease 書き込みと同時に leaseToken のロックを解放するか
+ * @param version この書き込みの版番号（{@link DatabaseManager#nextVersion()}）。キャッシュの検証に使用します
+ */
+public record InventoryRecord(UUID playerUuid, byte[] data, String leaseToken, boolean releaseLease, long version) {
+
+    public InventoryRecord(UUID playerUuid, byte[] data, String leaseToken, boolean releaseLease) {
+        this(playerUuid, data, leaseToken, releaseLease, DatabaseManager.nextVersion());
+    }
+
+    public InventoryRecord(UUID playerUuid, byte[] data) {
+        this(playerUuid, data, null, false);
+    }
+
+    /**
+     * 書き込みと同時に解放する引き継ぎロックのトークンを返します。解放しない場合は null。
+     */
+    public String releaseLeaseToken() {
+        return releaseLease ? leaseToken : null;
+    }
+}
@@ -0,0 +1,334 @@
+package net.simohaya;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * インベントリ保存の書き込み遅延（write-behind）キュー。
+ * メインスレッドはスナップショットを投入するだけで、エンコード・圧縮・DB書き込みは専用の書き込みスレッドで行います。
+ * 同じプレイヤーの未書き込みスナップショットは最新のものに置き換えられ、キューの容量は未書き込みのプレイヤー数で制限されます。
+ * 書き込みスレッドはキューに溜まっている分をまとめて取り出し、1つのトランザクションで一括保存します。
+ * ジャーナルにも保存先にも書き込めなかったスナップショットは未書き込みのまま残し、間隔を延ばしながら再試行します。
+ */
+public class InventorySaveQueue {
+
+    private static final long INITIAL_RETRY_MILLIS = 500;
+    private static final long MAX_RETRY_MILLIS = 30_000;
+
+    private static final Object LOCK = new Object();
+    private static final Map<UUID, InventorySnapshot> pending = new ConcurrentHashMap<>();
+    private static final BlockingQueue<UUID> queue = new LinkedBlockingQueue<>();
+    private static Semaphore permits = new Semaphore(0);
+    // 書き込みに失敗し、再試行を待っているプレイヤー（スナップショットは pending に残したまま）
+    private static final DelayQueue<Retry> retries = new DelayQueue<>();
+    private static final Map<UUID, Integer> failedAttempts = new ConcurrentHashMap<>();
+    // 容量を超えて受け付けた（容量を消費していない）プレイヤー
+    private static final Set<UUID> unpermitted = ConcurrentHashMap.newKeySet();
+    private static ExecutorService writerExecutor;
+    private static volatile boolean running = false;
+
+    private record Retry(UUID playerUuid, long dueNanos) implements Delayed {
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    /**
+     * 書き込みスレッドを開始します。
+     * @param capacity 同時に保持できる未書き込みプレイヤー数の上限
+     */
+    public static void start(int capacity) {
+        if (running) {
+            return;
+        }
+        permits = new Semaphore(capacity);
+        running = true;
+        writerExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Fabsyncmod-Inventory-Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writerExecutor.execute(InventorySaveQueue::runWriter);
+        Fabsyncmod.LOGGER.info("インベントリ書き込みキューを開始しました（容量: " + capacity + "）。");
+    }
+
+    /**
+     * スナップショットをキューに投入します。メインスレッドから呼び出されるため、待機や保存先への書き込みは行いません。
+     * 同じプレイヤーの未書き込みスナップショットがあれば置き換えるだけで、容量は消費しません。
+     * ロック解放付き（ログアウト時）のスナップショットが置き換えられるのは同じサーバーに再ログインした後だけで、
+     * その時点で古いトークンのロックは新しいロックに置き換わっているため、解放しなくても問題ありません。
+     * @param snapshot 保存するスナップショット
+     * @param required true の場合、キューが満杯でも受け付けます。その場合はジャーナルへの追記だけを行い、保存先への書き込みは再送スレッドに任せます。
+     *                 ジャーナルも使用できない場合は、容量を超えて未書き込みとして保持します。
+     * @return キューに受け付けられた（またはジャーナルに追記された）場合 true、required が false でキューが満杯の場合 false
+     */
+    public static boolean submit(InventorySnapshot snapshot, boolean required) {
+        UUID playerUuid = snapshot.getPlayerUuid();
+        if (!running) {
+            // 停止処理（shutdownAndDrain）の後だけで、サーバーは既に停止中のため呼び出し元のスレッドで書き込む
+            Fabsyncmod.LOGGER.warn("書き込みキューが停止しているため、プレイヤー " + playerUuid + " のインベントリを直接保存します。");
+            logLost(writeSnapshots(List.of(snapshot)));
+            return true;
+        }
+        if (replaceIfPending(snapshot)) {
+            return true;
+        }
+        if (permits.tryAcquire()) {
+            enqueue(snapshot, true);
+            return true;
+        }
+        if (!required) {
+            return false;
+        }
+        if (appendToJournal(snapshot)) {
+            Fabsyncmod.LOGGER.debug("書き込みキューが満杯のため、プレイヤー " + playerUuid + " のインベントリをジャーナルに追記しました。");
+            return true;
+        }
+        Fabsyncmod.LOGGER.warn("書き込みキューが満杯でジャーナルも使用できないため、プレイヤー " + playerUuid + " のインベントリを容量を超えて保持します。");
+        enqueue(snapshot, false);
+        return true;
+    }
+
+    private static void enqueue(InventorySnapshot snapshot, boolean permitted) {
+        UUID playerUuid = snapshot.getPlayerUuid();
+        synchronized (LOCK) {
+            if (pending.containsKey(playerUuid)) {
+                pending.put(playerUuid, snapshot);
+                if (permitted) {
+                    permits.release();
+                }
+            } else {
+                pending.put(playerUuid, snapshot);
+                queue.add(playerUuid);
+                if (!permitted) {
+                    unpermitted.add(playerUuid);
+                }
+            }
+        }
+        SyncMetrics.recordQueueDepth(pending.size());
+    }
+
+    /**
+     * キューが満杯の場合に、スナップショットをジャーナルにだけ追記します。保存先への書き込みはジャーナルの再送スレッドが行います。
+     * @return 追記できた場合 true
+     */
+    private static boolean appendToJournal(InventorySnapshot snapshot) {
+        InventoryRecord record;
+        try {
+            record = new InventoryRecord(snapshot.getPlayerUuid(), DatabaseManager.encodeInventory(snapshot), snapshot.getLeaseToken(), snapshot.isReleaseLease());
+        } catch (IOException | RuntimeException e) {
+            SyncMetrics.recordEncodeFailure();
+            Fabsyncmod.LOGGER.error("プレイヤー " + snapshot.getPlayerUuid() + " のインベントリのエンコード中にエラーが発生しました。", e);
+            return false;
+        }
+        if (!SaveJournal.append(List.of(record))) {
+            return false;
+        }
+        markPersisted(List.of(snapshot), List.of(record));
+        return true;
+    }
+
+    private static boolean replaceIfPending(InventorySnapshot snapshot) {
+        synchronized (LOCK) {
+            if (pending.containsKey(snapshot.getPlayerUuid())) {
+                pending.put(snapshot.getPlayerUuid(), snapshot);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * まだデータベースに書き込まれていない、プレイヤーの最新スナップショットを取得します。
+     * ロード時にデータベースより新しい内容を優先するために使用します。
+     */
+    public static Optional<InventorySnapshot> getPendingSnapshot(UUID playerUuid) {
+        return Optional.ofNullable(pending.get(playerUuid));
+    }
+
+    /**
+     * 現在の未書き込みプレイヤー数を返します。
+     */
+    public static int getPendingCount() {
+        return pending.size();
+    }
+
+    private static void runWriter() {
+        while (running || !queue.isEmpty()) {
+            // 待機時間が過ぎた再試行をキューに戻す
+            for (Retry retry = retries.poll(); retry != null; retry = retries.poll()) {
+                queue.add(retry.playerUuid());
+            }
+            UUID firstUuid;
+            try {
+                firstUuid = queue.poll(500, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // shutdownNow による割り込みの場合は終了し、残りは停止処理側で保存する
+                if (!running) {
+                    return;
+                }
+                continue;
+            }
+            if (firstUuid == null) {
+                continue;
+            }
+
+            // 溜まっている分をまとめて取り出し、一括で書き込む
+            List<UUID> batch = new ArrayList<>();
+            batch.add(firstUuid);
+            queue.drainTo(batch);
+
+            Map<UUID, InventorySnapshot> snapshots = new LinkedHashMap<>();
+            for (UUID playerUuid : batch) {
+                InventorySnapshot snapshot = pending.get(playerUuid);
+                if (snapshot != null) {
+                    snapshots.put(playerUuid, snapshot);
+                }
+            }
+            List<InventorySnapshot> failed = writeSnapshots(snapshots.values());
+
+            synchronized (LOCK) {
+                for (UUID playerUuid : batch) {
+                    InventorySnapshot written = snapshots.get(playerUuid);
+                    if (written == null) {
+                        continue;
+                    }
+                    if (failed.contains(written)) {
+                        // 未書き込みのまま残し（容量も解放しない）、間隔を置いて書き込み直す。新しいスナップショットが投入されていればそちらを書き込む
+                        scheduleRetry(playerUuid);
+                        continue;
+                    }
+                    failedAttempts.remove(playerUuid);
+                    if (pending.get(playerUuid) == written) {
+                        pending.remove(playerUuid);
+                        if (!unpermitted.remove(playerUuid)) {
+                            permits.release();
+                        }
+                    } else {
+                        // 書き込み中に新しいスナップショットが投入されたので、もう一度キューに入れる
+                        queue.add(playerUuid);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void scheduleRetry(UUID playerUuid) {
+        int attempts = failedAttempts.merge(playerUuid, 1, Integer::sum);
+        long delayMillis = Math.min(INITIAL_RETRY_MILLIS << Math.min(attempts - 1, 16), MAX_RETRY_MILLIS);
+        retries.add(new Retry(playerUuid, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis)));
+        Fabsyncmod.LOGGER.warn("プレイヤー " + playerUuid + " のインベントリを書き込めませんでした。" + delayMillis + " ミリ秒後に再試行します（" + attempts + " 回目）。");
+    }
+
+    private static void logLost(List<InventorySnapshot> failed) {
+        for (InventorySnapshot snapshot : failed) {
+            Fabsyncmod.LOGGER.error("プレイヤー " + snapshot.getPlayerUuid() + " のインベントリを書き込めませんでした。この保存は失われます。");
+        }
+    }
+
+    /**
+     * スナップショットをエンコードし、ジャーナルに追記してから保存先に書き込みます。
+     * ジャーナルへの追記（fsync）が完了した時点で保存は失われないため、変更検出の基準を更新します。
+     * 保存先への書き込みに失敗している間は追記だけを行い、保存先への書き込みはジャーナルの再送スレッドに任せます。
+     * @return ジャーナルにも保存先にも書き込めなかった（エンコードに失敗したものを含む）スナップショット
+     */
+    private static List<InventorySnapshot> writeSnapshots(Collection<InventorySnapshot> snapshots) {
+        List<InventorySnapshot> encoded = new ArrayList<>(snapshots.size());
+        List<InventoryRecord> records = new ArrayList<>(snapshots.size());
+        List<InventorySnapshot> failed = new ArrayList<>();
+        for (InventorySnapshot snapshot : snapshots) {
+            try {
+                records.add(new InventoryRecord(snapshot.getPlayerUuid(), DatabaseManager.encodeInventory(snapshot), snapshot.getLeaseToken(), snapshot.isReleaseLease()));
+                encoded.add(snapshot);
+            } catch (IOException | RuntimeException e) {
+                SyncMetrics.recordEncodeFailure();
+                Fabsyncmod.LOGGER.error("プレイヤー " + snapshot.getPlayerUuid() + " のインベントリのエンコード中にエラーが発生しました。", e);
+                failed.add(snapshot);
+            }
+        }
+        if (records.isEmpty()) {
+            return failed;
+        }
+        if (SaveJournal.append(records)) {
+            markPersisted(encoded, records);
+            if (!SaveJournal.isDegraded()) {
+                SaveJournal.flush();
+            }
+            return failed;
+        }
+        // ジャーナルを使用できない場合は、保存先に直接書き込む
+        if (DatabaseManager.saveInventories(records)) {
+            markPersisted(encoded, records);
+        } else {
+            failed.addAll(encoded);
+        }
+        return failed;
+    }
+
+    /**
+     * 書き込んだスナップショットを変更検出の基準とし、再ログイン時にそのまま使えるようキャッシュに登録します。
+     */
+    private static void markPersisted(List<InventorySnapshot> snapshots, List<InventoryRecord> records) {
+        for (int i = 0; i < snapshots.size(); i++) {
+            InventorySnapshot snapshot = snapshots.get(i);
+            InventoryRecord record = records.get(i);
+            InventoryChangeTracker.markPersisted(snapshot);
+            InventoryCache.put(snapshot, record.version(), record.data().length);
+        }
+    }
+
+    /**
+     * 新規の受け付けを停止し、キューに残っている全てのスナップショットを書き込んでから書き込みスレッドを終了します。
+     * サーバーシャットダウン時、データベース接続を閉じる前に呼び出してください。
+     * @param timeoutSeconds 書き込み完了を待つ最大秒数
+     */
+    public static void shutdownAndDrain(long timeoutSeconds) {
+        if (!running) {
+            return;
+        }
+        Fabsyncmod.LOGGER.info("書き込みキューを停止しています... 未書き込み: " + pending.size() + " 件");
+        running = false;
+        writerExecutor.shutdown();
+        try {
+            if (!writerExecutor.awaitTermination(timeoutSeconds, TimeUnit.SECONDS)) {
+                Fabsyncmod.LOGGER.error("書き込みキューの排出がタイムアウトしました。残り " + pending.size() + " 件を直接保存します。");
+                writerExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writerExecutor.shutdownNow();
+        }
+        // タイムアウトや割り込みで残ったものは呼び出し元のスレッドで保存する
+        if (!pending.isEmpty()) {
+            logLost(writeSnapshots(new ArrayList<>(pending.values())));
+        }
+        pending.clear();
+        queue.clear();
+        retries.clear();
+        failedAttempts.clear();
+        unpermitted.clear();
+        Fabsyncmod.LOGGER.info("書き込みキューを停止しました。");
+    }
+}
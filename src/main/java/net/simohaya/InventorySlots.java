@@ -0,0 +1,115 @@
+package net.simohaya;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import net.jpountz.xxhash.XXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * スロット単位の保存（mysqlStorageLayout が "slots" の場合）で使う、エンコード済みデータとスロットの相互変換と差分計算。
+ *
+ * <p>現在の形式（{@link InventoryCodec}）の各エントリ（インベントリなら1スロット）を1つのスロットとし、
+ * 内容のハッシュ（xxHash64）を前回書き込んだ内容のハッシュと比較して、変更のあったスロットだけを書き込みます。
+ * エントリを持たないセクションも復元できるよう、セクションごとに番号 {@link #SECTION_MARKER} の空のスロットを1つ持ちます。
+ */
+public class InventorySlots {
+
+    /** セクションの存在を表すスロットの番号 */
+    public static final int SECTION_MARKER = -1;
+
+    private static final XXHash64 HASH = XXHashFactory.fastestInstance().hash64();
+    private static final long HASH_SEED = 0x46534C4F54L; // "FSLOT"
+
+    /**
+     * スロットの識別子。
+     * @param section 同期要素の識別子
+     * @param slot エントリ番号。セクション自体を表す場合は {@link #SECTION_MARKER}
+     */
+    public record SlotKey(String section, int slot) {
+    }
+
+    /**
+     * 1スロット分のデータ。
+     * @param data NBT要素の型 + 内容のバイト列（圧縮なし）
+     * @param hash data の xxHash64
+     */
+    public record Slot(SlotKey key, byte[] data, long hash) {
+    }
+
+    /**
+     * 前回の書き込みとの差分。
+     * @param upserts 書き込む（追加または更新する）スロット
+     * @param deletes 削除するスロット
+     */
+    public record Delta(List<Slot> upserts, List<SlotKey> deletes) {
+    }
+
+    /**
+     * エンコード済みのデータをスロットに分割します。
+     * @throws IOException 現在の形式でない場合
+     */
+    public static List<Slot> split(byte[] data) throws IOException {
+        List<Slot> slots = new ArrayList<>();
+        for (Map.Entry<String, SortedMap<Integer, byte[]>> section : InventoryCodec.splitEntries(data).entrySet()) {
+            slots.add(slot(new SlotKey(section.getKey(), SECTION_MARKER), new byte[0]));
+            for (Map.Entry<Integer, byte[]> entry : section.getValue().entrySet()) {
+                slots.add(slot(new SlotKey(section.getKey(), entry.getKey()), entry.getValue()));
+            }
+        }
+        return slots;
+    }
+
+    public static Slot slot(SlotKey key, byte[] data) {
+        return new Slot(key, data, HASH.hash(data, 0, data.length, HASH_SEED));
+    }
+
+    /**
+     * スロットからエンコード済みのデータを組み立てます。
+     */
+    public static byte[] join(Collection<Slot> slots) throws IOException {
+        Map<String, SortedMap<Integer, byte[]>> sections = new LinkedHashMap<>();
+        for (Slot slot : slots) {
+            SortedMap<Integer, byte[]> entries = sections.computeIfAbsent(slot.key().section(), section -> new TreeMap<>());
+            if (slot.key().slot() != SECTION_MARKER) {
+                entries.put(slot.key().slot(), slot.data());
+            }
+        }
+        return InventoryCodec.joinEntries(sections);
+    }
+
+    /**
+     * スロットごとのハッシュを返します。次回の差分計算の基準として保持します。
+     */
+    public static Map<SlotKey, Long> hashes(Collection<Slot> slots) {
+        Map<SlotKey, Long> hashes = new HashMap<>(slots.size() * 2);
+        for (Slot slot : slots) {
+            hashes.put(slot.key(), slot.hash());
+        }
+        return hashes;
+    }
+
+    /**
+     * 前回書き込んだスロットのハッシュと比較し、書き込みが必要なスロットと削除が必要なスロットを求めます。
+     * @param baseline 前回書き込んだスロットのハッシュ
+     * @param slots 今回のスロット
+     */
+    public static Delta diff(Map<SlotKey, Long> baseline, List<Slot> slots) {
+        List<Slot> upserts = new ArrayList<>();
+        Map<SlotKey, Long> removed = new HashMap<>(baseline);
+        for (Slot slot : slots) {
+            Long previous = removed.remove(slot.key());
+            if (previous == null || previous != slot.hash()) {
+                upserts.add(slot);
+            }
+        }
+        return new Delta(upserts, new ArrayList<>(removed.keySet()));
+    }
+}
@@ -0,0 +1,179 @@
+package net.simohaya;
+
+import net.minecraft.item.ItemStack;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.util.collection.DefaultedList;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * メインスレッドで取得した、プレイヤー状態の不変スナップショット。
+ * 有効な同期要素（{@link SyncComponents}）ごとの状態を保持します。各要素の状態は取得時に複製されるため、
+ * 取得後にゲーム側で変更されても影響を受けず、書き込みスレッドから安全に参照できます。
+ *
+ * <p>このサーバーで無効になっている要素や、認識できない要素の保存データは、エンコード済みのまま
+ * preservedSections として引き継ぎ、保存時にそのまま書き戻します。無効な要素のデータを消さないためです。
+ */
+public final class InventorySnapshot {
+    private final UUID playerUuid;
+    private final String playerName;
+    private final Map<String, Object> components;
+    private final Map<String, byte[]> preservedSections;
+    private final String leaseToken;
+    private final boolean releaseLease;
+
+    private InventorySnapshot(UUID playerUuid, String playerName, Map<String, Object> components, Map<String, byte[]> preservedSections) {
+        this(playerUuid, playerName, components, preservedSections, null, false);
+    }
+
+    private InventorySnapshot(UUID playerUuid, String playerName, Map<String, Object> components, Map<String, byte[]> preservedSections,
+                              String leaseToken, boolean releaseLease) {
+        this.playerUuid = playerUuid;
+        this.playerName = playerName;
+        this.components = Collections.unmodifiableMap(components);
+        this.preservedSections = Collections.unmodifiableMap(preservedSections);
+        this.leaseToken = leaseToken;
+        this.releaseLease = releaseLease;
+    }
+
+    /**
+     * プレイヤーの有効な同期要素からスナップショットを作成します。サーバーのメインスレッドから呼び出してください。
+     * 基準のスナップショットがある場合、変わっていないスロットや要素は基準の（複製済みの）値を共有し、変わった部分だけを複製します。
+     * @param player 対象のプレイヤー
+     * @param baseline 最後に保存した（またはロードした）スナップショット。ない場合は null。
+     *                 ロード時に引き継いだ、このサーバーでは扱わない要素の保存データもここから引き継ぎます
+     * @return 複製された状態を持つスナップショット
+     */
+    public static InventorySnapshot capture(ServerPlayerEntity player, InventorySnapshot baseline) {
+        Map<String, Object> components = new LinkedHashMap<>();
+        for (SyncComponent<?> component : SyncComponents.enabled()) {
+            components.put(component.getId(), captureComponent(component, player, baseline));
+        }
+        return ofCaptured(player.getUuid(), player.getName().getString(), components, baseline);
+    }
+
+    /**
+     * 取得した要素の状態からスナップショットを作成し、基準のスナップショットから、このサーバーでは扱わない要素の保存データを引き継ぎます。
+     * @param baseline 最後に保存した（またはロードした）スナップショット。ない場合は null（引き継ぐデータはありません）
+     */
+    static InventorySnapshot ofCaptured(UUID playerUuid, String playerName, Map<String, Object> components, InventorySnapshot baseline) {
+        Map<String, byte[]> preserved = new LinkedHashMap<>();
+        if (baseline != null) {
+            preserved.putAll(baseline.getPreservedSections());
+            preserved.keySet().removeAll(components.keySet());
+        }
+        return new InventorySnapshot(playerUuid, playerName, new LinkedHashMap<>(components), preserved);
+    }
+
+    private static <T> T captureComponent(SyncComponent<T> component, ServerPlayerEntity player, InventorySnapshot baseline) {
+        return component.capture(player, baseline != null ? baseline.get(component) : null);
+    }
+
+    /**
+     * デコードした状態からスナップショットを作成します。
+     */
+    public static InventorySnapshot of(UUID playerUuid, Map<String, Object> components, Map<String, byte[]> preservedSections) {
+        return new InventorySnapshot(playerUuid, null, new LinkedHashMap<>(components), new LinkedHashMap<>(preservedSections));
+    }
+
+    /**
+     * 保存データが存在しないプレイヤー用に、空のインベントリだけを持つスナップショットを作成します。
+     */
+    public static InventorySnapshot emptyInventory(UUID playerUuid) {
+        Map<String, Object> components = new LinkedHashMap<>();
+        components.put(SyncComponents.INVENTORY.getId(), DefaultedList.ofSize(41, ItemStack.EMPTY));
+        return new InventorySnapshot(playerUuid, null, components, new LinkedHashMap<>());
+    }
+
+    /**
+     * 取得時に保持していた引き継ぎロック（{@link InventoryLease}）のトークンを付けたスナップショットを返します。
+     * 書き込みまでの間に他のサーバーにロックが移っていた場合、このスナップショットは書き込まれません。
+     * @param leaseToken 保持しているロックのトークン。null の場合はロックを確認せずに書き込みます
+     */
+    public InventorySnapshot withLease(String leaseToken) {
+        return new InventorySnapshot(playerUuid, playerName, components, preservedSections, leaseToken, false);
+    }
+
+    /**
+     * 書き込みと同時に引き継ぎロック（{@link InventoryLease}）を解放するスナップショットを返します。ログアウト時の保存に使用します。
+     * @param leaseToken 解放するロックのトークン。null の場合は解放しません
+     */
+    public InventorySnapshot withLeaseRelease(String leaseToken) {
+        return new InventorySnapshot(playerUuid, playerName, components, preservedSections, leaseToken, leaseToken != null);
+    }
+
+    public UUID getPlayerUuid() {
+        return playerUuid;
+    }
+
+    /**
+     * プレイヤー名を返します。データベースからデコードしたスナップショットでは null です。
+     */
+    public String getPlayerName() {
+        return playerName;
+    }
+
+    /**
+     * 取得時に保持していた引き継ぎロックのトークンを返します。ロックを確認しない場合は null。
+     */
+    public String getLeaseToken() {
+        return leaseToken;
+    }
+
+    /**
+     * 書き込みと同時に {@link #getLeaseToken()} のロックを解放するかを返します。
+     */
+    public boolean isReleaseLease() {
+        return releaseLease;
+    }
+
+    /**
+     * 要素の状態を返します。スナップショットに含まれていない場合は null。返された値は変更しないでください。
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(SyncComponent<T> component) {
+        return (T) components.get(component.getId());
+    }
+
+    /**
+     * 要素の識別子と状態の一覧を返します。
+     */
+    public Map<String, Object> getComponents() {
+        return components;
+    }
+
+    /**
+     * このサーバーでは扱わない要素の、エンコード済みの保存データを返します。
+     */
+    public Map<String, byte[]> getPreservedSections() {
+        return preservedSections;
+    }
+
+    /**
+     * インベントリ（41スロット）の状態を返します。含まれていない場合は空のリストを返します。返されたリストおよびスタックは変更しないでください。
+     */
+    public DefaultedList<ItemStack> getStacks() {
+        DefaultedList<ItemStack> stacks = get(SyncComponents.INVENTORY);
+        return stacks != null ? stacks : DefaultedList.ofSize(41, ItemStack.EMPTY);
+    }
+
+    /**
+     * スナップショットに含まれる、このサーバーで有効な要素をプレイヤーに適用します。メインスレッドから呼び出してください。
+     * 含まれていない要素は変更しません。
+     */
+    public void applyTo(ServerPlayerEntity player) {
+        for (SyncComponent<?> component : SyncComponents.enabled()) {
+            applyComponent(component, player);
+        }
+    }
+
+    private <T> void applyComponent(SyncComponent<T> component, ServerPlayerEntity player) {
+        T value = get(component);
+        if (value != null) {
+            component.apply(player, value);
+        }
+    }
+}
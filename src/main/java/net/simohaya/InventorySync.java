@@ -3,59 +3,219 @@ package net.simohaya;
 import net.minecraft.entity.player.PlayerEntity;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.network.ServerPlayerEntity;
-import net.minecraft.item.ItemStack;
-import net.minecraft.util.collection.DefaultedList;
 import net.minecraft.text.Text;
 
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class InventorySync {
 
     private static ScheduledExecutorService autoSaveScheduler;
+    private static ExecutorService loadExecutor;
     private static MinecraftServer currentServerInstance; // サーバーインスタンスを保持するための変数
 
+    // ロードが完了していない（インベントリがロックされている）プレイヤーと、そのロード要求の識別子
+    private static final Map<UUID, Long> pendingLoads = new ConcurrentHashMap<>();
+    private static final AtomicLong loadRequestSequence = new AtomicLong();
+
     /**
-     * プレイヤーのインベントリをサーバーのMySQLデータベースに保存します。
-     * @param player 保存するプレイヤーエンティティ
+     * ログアウトしたプレイヤーのインベントリを保存し、書き込みと同時にサーバー間の引き継ぎロックを解放します。
+     * 移動先のサーバーはロックの解放を待ってからロードするため、この保存より古い内容を読み込むことはありません。
+     * スナップショットの取得後に、プレイヤーの変更検出の基準を破棄します。基準にはこのサーバーでは扱わない要素の保存データが
+     * 含まれているため、先に破棄するとログアウト時の保存でそれらが消えてしまいます。
+     * @param player ログアウトしたプレイヤーエンティティ
      */
-    public static void savePlayerInventory(ServerPlayerEntity player) {
-        // プレイヤーのメインインベントリ、防具、オフハンドの全てのアイテムを取得
-        DefaultedList<ItemStack> inventoryToSave = DefaultedList.ofSize(player.getInventory().size(), ItemStack.EMPTY);
-        for (int i = 0; i < player.getInventory().size(); i++) {
-            inventoryToSave.set(i, player.getInventory().getStack(i));
-        }
-
-        DatabaseManager.saveInventory(player.getUuid(), inventoryToSave);
-        player.sendMessage(Text.of("§aインベントリをサーバーに保存しました。"), false);
+    public static void savePlayerInventoryOnLogout(ServerPlayerEntity player) {
+        String leaseToken = InventoryLease.detach(player.getUuid());
+        InventorySaveQueue.submit(captureSnapshot(player).withLeaseRelease(leaseToken), true);
+        InventoryChangeTracker.forget(player.getUuid());
     }
 
     /**
-     * プレイヤーのインベントリをサーバーのMySQLデータベースからロードし、プレイヤーのインベントリを更新します。
+     * プレイヤーのインベントリを非同期でロードします。
+     * DBアクセスとデコードはロード用スレッドで行い、結果は後続のTickでメインスレッドから適用します。
+     * 他のサーバーから移動してきた場合は、移動元のログアウト時の保存が書き込まれる（引き継ぎロックが解放される）まで待機してからロードします。
+     * 適用されるまでプレイヤーのインベントリはロックされ、操作・保存ができません。
+     * ログイン処理中に先読み（{@link LoginPrefetch}）を開始していた場合は、改めて読み込まずにその結果を使用します。
      * @param player ロードするプレイヤーエンティティ
+     * @param server Minecraftサーバーインスタンス
+     */
+    public static void loadPlayerInventoryAsync(ServerPlayerEntity player, MinecraftServer server) {
+        UUID playerUuid = player.getUuid();
+        long requestId = loadRequestSequence.incrementAndGet();
+        long startNanos = System.nanoTime();
+        pendingLoads.put(playerUuid, requestId);
+
+        // ログイン処理中に開始した先読みがあれば、その結果を待つ
+        LoginPrefetch.Prefetch prefetch = LoginPrefetch.claim(playerUuid);
+        boolean prefetched = prefetch != null;
+        AtomicReference<String> leaseToken = prefetched ? prefetch.leaseToken() : new AtomicReference<>();
+        CompletableFuture<InventorySnapshot> load = prefetched ? prefetch.future() : fetchAsync(playerUuid, leaseToken);
+        load.whenComplete((loadedSnapshot, error) -> server.execute(() -> {
+            Long currentRequest = pendingLoads.get(playerUuid);
+            if (currentRequest == null || currentRequest != requestId) {
+                releaseLeaseAsync(playerUuid, leaseToken.get());
+                return; // 切断済み、または新しいロードに置き換えられた
+            }
+            if (player.isDisconnected()) {
+                pendingLoads.remove(playerUuid, requestId);
+                releaseLeaseAsync(playerUuid, leaseToken.get());
+                return;
+            }
+            if (error != null) {
+                releaseLeaseAsync(playerUuid, leaseToken.get());
+                // ロックしたまま切断し、空のインベントリが保存されないようにする
+                Fabsyncmod.LOGGER.error("プレイヤー " + player.getName().getString() + " のインベントリロード中にエラーが発生しました。", error);
+                player.networkHandler.disconnect(Text.of("§cインベントリのロードに失敗しました。再接続してください。"));
+                return;
+            }
+            applyInventory(player, loadedSnapshot);
+            pendingLoads.remove(playerUuid, requestId);
+            long elapsedNanos = System.nanoTime() - startNanos;
+            SyncMetrics.recordJoinLoad(elapsedNanos, prefetched);
+            Fabsyncmod.LOGGER.debug(player.getName().getString() + " のインベントリを適用しました（ログインから " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ミリ秒" + (prefetched ? "、先読みあり" : "") + "）。");
+        }));
+    }
+
+    /**
+     * 引き継ぎロックを取得してからインベントリを読み込みます。ロード用スレッドで実行されます。
+     * @param leaseToken 取得したロックのトークンの格納先。読み込みに失敗してもロックを解放できるよう、取得直後に設定します
      */
-    public static void loadPlayerInventory(ServerPlayerEntity player) {
-        DefaultedList<ItemStack> loadedInventory = DatabaseManager.loadInventory(player.getUuid());
+    static InventorySnapshot acquireAndFetch(UUID playerUuid, AtomicReference<String> leaseToken) {
+        leaseToken.set(InventoryLease.acquire(playerUuid));
+        return fetchInventory(playerUuid);
+    }
 
-        player.getInventory().clear(); // 現在のインベントリをクリア
-        for (int i = 0; i < loadedInventory.size(); i++) {
-            player.getInventory().setStack(i, loadedInventory.get(i));
+    /**
+     * ロード用スレッドで引き継ぎロックの取得と読み込みを開始します。
+     * スレッドプールが停止している場合は失敗したロードとして扱い、ロックしたままプレイヤーを切断させます
+     * （ロード待ちは切断時に破棄されるため、ロックが残り続けることはありません）。
+     */
+    private static CompletableFuture<InventorySnapshot> fetchAsync(UUID playerUuid, AtomicReference<String> leaseToken) {
+        ExecutorService executor = getLoadExecutor();
+        if (executor == null) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("インベントリのロード用スレッドプールが停止しています。"));
+        }
+        try {
+            return CompletableFuture.supplyAsync(() -> acquireAndFetch(playerUuid, leaseToken), executor);
+        } catch (RejectedExecutionException e) {
+            // 確認した直後に停止された
+            return CompletableFuture.failedFuture(e);
         }
+    }
+
+    /**
+     * インベントリのロード用スレッドプールを返します。開始していない、または停止済みの場合は null。
+     */
+    static ExecutorService getLoadExecutor() {
+        return loadExecutor != null && !loadExecutor.isShutdown() ? loadExecutor : null;
+    }
+
+    /**
+     * 適用しなかったロードで取得した引き継ぎロックを、ロード用スレッドで解放します。
+     * スレッドプールが停止している場合は、シャットダウン時の {@link InventoryLease#releaseAll} に解放を任せます。
+     */
+    static void releaseLeaseAsync(UUID playerUuid, String leaseToken) {
+        ExecutorService executor = getLoadExecutor();
+        if (leaseToken == null || executor == null) {
+            return;
+        }
+        try {
+            executor.execute(() -> InventoryLease.release(playerUuid, leaseToken));
+        } catch (RejectedExecutionException e) {
+            // 確認した直後に停止された。releaseAll で解放される
+        }
+    }
+
+    private static InventorySnapshot fetchInventory(UUID playerUuid) {
+        // まだ書き込まれていない保存があれば、データベースよりもそちらが新しい
+        return InventorySaveQueue.getPendingSnapshot(playerUuid)
+                .orElseGet(() -> DatabaseManager.loadInventory(playerUuid));
+    }
+
+    private static void applyInventory(ServerPlayerEntity player, InventorySnapshot loadedSnapshot) {
+        // 各要素は適用時に複製されるため、スナップショット自体を変更検出の基準として登録できる
+        loadedSnapshot.applyTo(player);
+        InventoryChangeTracker.track(loadedSnapshot);
+        // ロック中に拒否された操作でクライアント側の表示がずれている可能性があるため、再同期する
+        player.currentScreenHandler.syncState();
         player.sendMessage(Text.of("§aインベントリをサーバーからロードしました。"), false);
     }
 
+    /**
+     * プレイヤーの有効な同期要素のスナップショットを取得します。ロード時に引き継いだ、このサーバーでは扱わない要素の保存データも含めます。
+     * 保持している引き継ぎロックのトークンを付け、書き込みまでにロックを失っていた場合は書き込まれないようにします。
+     */
+    static InventorySnapshot captureSnapshot(ServerPlayerEntity player) {
+        long startNanos = System.nanoTime();
+        InventorySnapshot snapshot = InventorySnapshot.capture(player, InventoryChangeTracker.getBaseline(player.getUuid()))
+                .withLease(InventoryLease.getHeldToken(player.getUuid()));
+        SyncMetrics.SNAPSHOT.record(System.nanoTime() - startNanos);
+        return snapshot;
+    }
+
+    /**
+     * プレイヤーのインベントリがロード待ちでロックされているかを返します。
+     * ネットワークスレッドからも呼び出されます。
+     */
+    public static boolean isInventoryLocked(UUID playerUuid) {
+        return pendingLoads.containsKey(playerUuid);
+    }
+
+    /**
+     * 切断したプレイヤーのロード待ちを破棄します。
+     * @return ロード待ちだった（インベントリが未適用だった）場合 true
+     */
+    public static boolean cancelPendingLoad(UUID playerUuid) {
+        return pendingLoads.remove(playerUuid) != null;
+    }
+
+    /**
+     * インベントリのロード用スレッドプールを開始します。
+     * @param threads スレッド数
+     */
+    public static void startLoadExecutor(int threads) {
+        AtomicInteger threadIndex = new AtomicInteger();
+        loadExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "Fabsyncmod-Inventory-Loader-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * インベントリのロード用スレッドプールを停止します。
+     */
+    public static void stopLoadExecutor() {
+        if (loadExecutor != null) {
+            loadExecutor.shutdownNow();
+        }
+    }
+
     /**
      * 全てのオンラインプレイヤーのインベントリをデータベースに保存します。
-     * 主にサーバーシャットダウン時や定期保存時に使用します。
+     * 主にサーバーシャットダウン時に使用します。キューが満杯の場合はジャーナルへの追記だけを行い、
+     * キューに残った分はその後の {@link InventorySaveQueue#shutdownAndDrain} で書き込みます。
+     * 最後に書き込んだ内容から変更のないプレイヤーは保存を省略します。
      * @param server Minecraftサーバーインスタンス
      */
     public static void saveAllPlayersInventories(MinecraftServer server) {
         // サーバーがまだ稼働していることを確認
         if (server != null) {
             for (ServerPlayerEntity player : server.getPlayerManager().getPlayerList()) {
-                savePlayerInventory(player);
+                if (!isInventoryLocked(player.getUuid()) && InventoryChangeTracker.hasChanged(player)) {
+                    InventorySaveQueue.submit(captureSnapshot(player), true);
+                }
             }
         } else {
             Fabsyncmod.LOGGER.warn("MinecraftServerインスタンスがnullのため、全プレイヤーのインベントリ保存をスキップしました。");
@@ -63,37 +223,32 @@ public class InventorySync {
     }
 
     /**
-     * 定期的なインベントリ自動保存タスクを開始します。
-     * @param intervalSeconds 保存間隔（秒）
+     * インベントリ自動保存を開始します。保存はプレイヤーごとに保存間隔の中で分散して、サーバーのtickの中で行います（{@link AutoSaveScheduler}）。
+     * 引き継ぎロックの延長はDBアクセスのみのため、専用のスレッドで行います。
+     * @param intervalSeconds 各プレイヤーの保存間隔（秒）
      */
     public static void startAutoSaveTask(int intervalSeconds) {
         if (autoSaveScheduler != null && !autoSaveScheduler.isShutdown()) {
             autoSaveScheduler.shutdownNow(); // 既存のタスクがあれば停止
         }
 
-        autoSaveScheduler = Executors.newSingleThreadScheduledExecutor();
-        autoSaveScheduler.scheduleAtFixedRate(() -> {
-            // スケジューラーはメインスレッドとは別のスレッドで実行されるため、
-            // MinecraftServerインスタンスへのアクセスは注意が必要です。
-            // サーバーのTick内で安全に実行するために、サーバー実行キューにタスクを投入します。
-            if (currentServerInstance != null) {
-                currentServerInstance.execute(() -> { // サーバーのメインスレッドで実行
-                    Fabsyncmod.LOGGER.info("自動保存タスク実行中... 全プレイヤーのインベントリを保存します。");
-                    saveAllPlayersInventories(currentServerInstance);
-                });
-            } else {
-                Fabsyncmod.LOGGER.warn("自動保存中にMinecraftServerインスタンスが取得できませんでした。サーバーが起動していない可能性があります。");
-            }
+        AutoSaveScheduler.start(intervalSeconds);
+        Fabsyncmod.LOGGER.info("インベントリ自動保存を " + intervalSeconds + " 秒間隔で開始しました（プレイヤーごとに分散）。");
 
-        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
-        Fabsyncmod.LOGGER.info("インベントリ自動保存タスクを " + intervalSeconds + " 秒間隔で開始しました。");
+        autoSaveScheduler = Executors.newSingleThreadScheduledExecutor();
+        // 引き継ぎロックが失効しないよう、有効期間の1/3ごとに延長する
+        int renewSeconds = Math.max(1, ConfigManager.getConfig().leaseSeconds / 3);
+        autoSaveScheduler.scheduleAtFixedRate(InventoryLease::renewAll, renewSeconds, renewSeconds, TimeUnit.SECONDS);
+        // JOINまで進まなかったログインの先読みを破棄し、取得したロックを解放する
+        autoSaveScheduler.scheduleAtFixedRate(LoginPrefetch::evictExpired, renewSeconds, renewSeconds, TimeUnit.SECONDS);
     }
 
     /**
-     * 定期的なインベントリ自動保存タスクを停止します。
+     * インベントリ自動保存を停止します。
      * サーバーシャットダウン時に呼び出すことができます。
      */
     public static void stopAutoSaveTask() {
+        AutoSaveScheduler.stop();
         if (autoSaveScheduler != null && !autoSaveScheduler.isShutdown()) {
             autoSaveScheduler.shutdown();
             Fabsyncmod.LOGGER.info("インベントリ自動保存タスクを停止しました。");
@@ -0,0 +1,214 @@
+package net.simohaya;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.UUID;
+
+/**
+ * ローカルのディレクトリに、プレイヤーごとに1ファイル（{@code <uuid>.bin}）で保存する保存先。
+ * MySQLを使わない単一サーバー構成や、MySQLなしでの同期処理のテスト・ベンチマークに使用します。
+ *
+ * <p>各ファイルは一時ファイルに書き込んで fsync した後、アトミックに置き換えるため、書き込み中にクラッシュしても
+ * 古い内容か新しい内容のどちらかが必ず残ります。ただし一括保存で複数のファイルをまとめて置き換えることはできません。
+ * 他のサーバーと共有されないため、引き継ぎロックは常に取得できます。
+ */
+public class LocalFileStorageBackend implements StorageBackend {
+
+    private static final String FILE_SUFFIX = ".bin";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    // scan のページング用に、走査の開始時に一覧したファイル名（UUID）を名前順に保持する
+    private final Object scanLock = new Object();
+    private String[] scanListing;
+    private int scanPosition;
+    private String scanCursor;
+
+    /**
+     * @param directory 保存先のディレクトリ。存在しない場合は {@link #open()} で作成します
+     */
+    public LocalFileStorageBackend(Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public String getName() {
+        return "ローカルファイル（" + directory + "）";
+    }
+
+    @Override
+    public void open() throws StorageException {
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new StorageException("保存先ディレクトリの作成に失敗しました: " + directory, e);
+        }
+        Fabsyncmod.LOGGER.info("ローカルの保存先を開きました: " + directory);
+    }
+
+    private Path fileOf(UUID playerUuid) {
+        return directory.resolve(playerUuid + FILE_SUFFIX);
+    }
+
+    /**
+     * 1件ずつファイルを書き換えます。他のサーバーと共有しないため、引き継ぎロックを失うことはありません。
+     */
+    @Override
+    public List<InventoryRecord> saveBatch(Collection<InventoryRecord> records) throws StorageException {
+        for (InventoryRecord record : records) {
+            write(record.playerUuid(), record.data());
+        }
+        return List.of();
+    }
+
+    private void write(UUID playerUuid, byte[] data) throws StorageException {
+        Path target = fileOf(playerUuid);
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(directory, playerUuid.toString(), TEMP_SUFFIX);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException deleteError) {
+                    e.addSuppressed(deleteError);
+                }
+            }
+            throw new StorageException("プレイヤー " + playerUuid + " のインベントリの書き込みに失敗しました: " + target, e);
+        }
+    }
+
+    @Override
+    public Optional<byte[]> load(UUID playerUuid) throws StorageException {
+        Path file = fileOf(playerUuid);
+        try {
+            return Optional.of(Files.readAllBytes(file));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            throw new StorageException("プレイヤー " + playerUuid + " のインベントリの読み込みに失敗しました: " + file, e);
+        }
+    }
+
+    /**
+     * after より後のファイル名のうち小さいものから limit 件を読み込みます。
+     * ディレクトリの一覧は走査の最初のページで1回だけ作成し、前のページの続きを読む間は使い回します。
+     * 走査の途中で新しく作成されたファイルは含まれません。
+     * ファイルには版番号を保存しないため、版番号は0になります。
+     */
+    @Override
+    public List<InventoryRecord> scan(String after, int limit) throws StorageException {
+        synchronized (scanLock) {
+            // 前のページの続きでなければ（最初のページや、中断した移行の再開など）、ディレクトリを一覧し直す
+            if (scanListing == null || !Objects.equals(after, scanCursor)) {
+                scanListing = listPlayerFiles();
+                if (after == null) {
+                    scanPosition = 0;
+                } else {
+                    int index = Arrays.binarySearch(scanListing, after);
+                    scanPosition = index >= 0 ? index + 1 : -index - 1;
+                }
+            }
+            List<InventoryRecord> records = new ArrayList<>(Math.min(limit, 1024));
+            while (records.size() < limit && scanPosition < scanListing.length) {
+                String name = scanListing[scanPosition++];
+                UUID playerUuid;
+                try {
+                    playerUuid = UUID.fromString(name);
+                } catch (IllegalArgumentException e) {
+                    continue; // このMOD以外が置いたファイル
+                }
+                load(playerUuid).ifPresent(data -> records.add(new InventoryRecord(playerUuid, data, null, false, 0)));
+            }
+            if (records.isEmpty()) {
+                scanListing = null;
+                scanCursor = null;
+            } else {
+                scanCursor = records.get(records.size() - 1).playerUuid().toString();
+            }
+            return records;
+        }
+    }
+
+    private String[] listPlayerFiles() throws StorageException {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + FILE_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                names.add(name.substring(0, name.length() - FILE_SUFFIX.length()));
+            }
+        } catch (IOException e) {
+            throw new StorageException("保存先ディレクトリの走査に失敗しました: " + directory, e);
+        }
+        String[] sorted = names.toArray(new String[0]);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * ファイルには版番号を保存しないため、常に empty を返します。このサーバー以外は書き込まないため検証は不要です。
+     */
+    @Override
+    public OptionalLong loadVersion(UUID playerUuid) {
+        return OptionalLong.empty();
+    }
+
+    @Override
+    public boolean isShared() {
+        return false;
+    }
+
+    @Override
+    public void delete(UUID playerUuid) throws StorageException {
+        try {
+            Files.deleteIfExists(fileOf(playerUuid));
+        } catch (IOException e) {
+            throw new StorageException("プレイヤー " + playerUuid + " のインベントリの削除に失敗しました。", e);
+        }
+    }
+
+    @Override
+    public boolean tryAcquireLease(UUID playerUuid, String leaseToken, int leaseSeconds) {
+        return true;
+    }
+
+    @Override
+    public void renewLeases(Map<UUID, String> leases, int leaseSeconds) {
+    }
+
+    @Override
+    public void releaseLeases(Map<UUID, String> leases) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
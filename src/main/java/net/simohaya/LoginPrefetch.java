@@ -0,0 +1,108 @@
+package net.simohaya;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ログイン処理中のインベントリの先読み。
+ * プレイヤーのUUIDが確定した時点（ログイン成功の送信直前。同じUUIDの古い接続の切断と、そのログアウト時の保存の投入は済んでいる）で
+ * 引き継ぎロックの取得と読み込み・デコードを開始し、設定フェーズなどの残りのログイン処理と並行して進めます。
+ * JOIN時には {@link InventorySync#loadPlayerInventoryAsync} がこの結果を引き取るため、多くの場合は待たずに適用できます。
+ *
+ * <p>ログインが中断された場合や、期限（{@link #EXPIRY_SECONDS}）までにJOINしなかった場合は先読みを破棄し、取得したロックを解放します。
+ * 先読みの有無は SyncConf.json の loginPrefetch で切り替えられます。
+ */
+public class LoginPrefetch {
+
+    // 設定フェーズでのリソースパックの読み込みなどを考慮した、先読みを保持する最大時間
+    private static final long EXPIRY_SECONDS = 60;
+
+    /**
+     * 開始した先読み。future の結果はロード用スレッドで読み込んだスナップショットで、破棄済みの場合は null になります。
+     * @param leaseToken 取得した引き継ぎロックのトークン（取得前は null）
+     * @param abandoned 破棄済みか。まだ開始していない場合に、読み込みを省くために参照する
+     */
+    public record Prefetch(CompletableFuture<InventorySnapshot> future, AtomicReference<String> leaseToken, AtomicBoolean abandoned, long startNanos) {
+    }
+
+    private static final Map<UUID, Prefetch> prefetches = new ConcurrentHashMap<>();
+
+    /**
+     * プレイヤーのインベントリの先読みを開始します。ログイン処理から呼び出されます。
+     * 同じプレイヤーの先読みが残っている場合は破棄してから開始し直します。
+     */
+    public static void start(UUID playerUuid) {
+        ConfigManager.ConfigData config = ConfigManager.getConfig();
+        ExecutorService executor = InventorySync.getLoadExecutor();
+        if (config == null || !Boolean.TRUE.equals(config.loginPrefetch) || executor == null) {
+            return;
+        }
+        AtomicReference<String> leaseToken = new AtomicReference<>();
+        CompletableFuture<InventorySnapshot> future = new CompletableFuture<>();
+        Prefetch prefetch = new Prefetch(future, leaseToken, new AtomicBoolean(), System.nanoTime());
+        Prefetch previous = prefetches.put(playerUuid, prefetch);
+        if (previous != null) {
+            abandon(playerUuid, previous);
+        }
+        executor.execute(() -> {
+            if (prefetch.abandoned().get()) {
+                future.complete(null);
+                return;
+            }
+            try {
+                future.complete(InventorySync.acquireAndFetch(playerUuid, leaseToken));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        Fabsyncmod.LOGGER.debug("プレイヤー " + playerUuid + " のインベントリの先読みを開始しました。");
+    }
+
+    /**
+     * JOIN時に先読みを引き取ります。以後、取得したロックの扱いは呼び出し元の責任になります。
+     * @return 先読みがない場合は null
+     */
+    public static Prefetch claim(UUID playerUuid) {
+        return prefetches.remove(playerUuid);
+    }
+
+    /**
+     * ログインが中断されたプレイヤーの先読みを破棄します。
+     */
+    public static void cancel(UUID playerUuid) {
+        Prefetch prefetch = prefetches.remove(playerUuid);
+        if (prefetch != null) {
+            abandon(playerUuid, prefetch);
+            Fabsyncmod.LOGGER.debug("ログインが中断されたため、プレイヤー " + playerUuid + " のインベントリの先読みを破棄しました。");
+        }
+    }
+
+    /**
+     * 期限までにJOINしなかった先読みを破棄します。定期的に呼び出してください。
+     */
+    public static void evictExpired() {
+        long now = System.nanoTime();
+        for (Map.Entry<UUID, Prefetch> entry : prefetches.entrySet()) {
+            if (now - entry.getValue().startNanos() > TimeUnit.SECONDS.toNanos(EXPIRY_SECONDS)
+                    && prefetches.remove(entry.getKey(), entry.getValue())) {
+                abandon(entry.getKey(), entry.getValue());
+                Fabsyncmod.LOGGER.debug("プレイヤー " + entry.getKey() + " のインベントリの先読みが " + EXPIRY_SECONDS + " 秒以内に使われなかったため破棄しました。");
+            }
+        }
+    }
+
+    /**
+     * 先読みを破棄し、読み込みが終わった時点で取得済みのロックを解放します。
+     */
+    private static void abandon(UUID playerUuid, Prefetch prefetch) {
+        SyncMetrics.recordPrefetchAbandoned();
+        prefetch.abandoned().set(true);
+        prefetch.future().whenComplete((snapshot, error) -> InventorySync.releaseLeaseAsync(playerUuid, prefetch.leaseToken().get()));
+    }
+}
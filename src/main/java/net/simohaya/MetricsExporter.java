@@ -0,0 +1,185 @@
+package net.simohaya;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+/**
+ * {@link SyncMetrics} の値を、外部の監視ツールが読めるファイルに定期的に書き出します。
+ * 形式は SyncConf.json の metricsExportFormat で選択します。
+ * <ul>
+ *   <li>"prometheus": Prometheus のテキスト形式（node_exporter の textfile collector などで読み込めます）</li>
+ *   <li>"json": JSON形式</li>
+ * </ul>
+ * ファイルは一時ファイルに書き込んでから置き換えるため、読み込み中に書きかけの内容が見えることはありません。
+ */
+public class MetricsExporter {
+
+    public static final String FORMAT_PROMETHEUS = "prometheus";
+    public static final String FORMAT_JSON = "json";
+    private static final String METRIC_PREFIX = "fabsyncmod_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    private static ScheduledExecutorService exportExecutor;
+    private static Path outputFile;
+    private static String format;
+
+    /**
+     * 定期的な書き出しを開始します。間隔が0以下の場合は何もしません。
+     * @param directory 書き出し先のディレクトリ
+     */
+    public static void start(Path directory, String exportFormat, int intervalSeconds) {
+        if (intervalSeconds <= 0 || exportExecutor != null) {
+            return;
+        }
+        format = FORMAT_JSON.equalsIgnoreCase(exportFormat) ? FORMAT_JSON : FORMAT_PROMETHEUS;
+        outputFile = directory.resolve(FORMAT_JSON.equals(format) ? "metrics.json" : "metrics.prom");
+        exportExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Fabsyncmod-Metrics-Exporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        exportExecutor.scheduleAtFixedRate(MetricsExporter::export, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        Fabsyncmod.LOGGER.info("計測値を " + intervalSeconds + " 秒ごとに " + outputFile + " に書き出します。");
+    }
+
+    /**
+     * 定期的な書き出しを停止し、最後の値を書き出します。
+     */
+    public static void stop() {
+        if (exportExecutor == null) {
+            return;
+        }
+        exportExecutor.shutdownNow();
+        exportExecutor = null;
+        export();
+    }
+
+    private static void export() {
+        try {
+            String content = FORMAT_JSON.equals(format) ? renderJson() : renderPrometheus();
+            Files.createDirectories(outputFile.getParent());
+            Path temp = Files.createTempFile(outputFile.getParent(), "metrics", ".tmp");
+            try {
+                Files.writeString(temp, content, StandardCharsets.UTF_8);
+                try {
+                    Files.move(temp, outputFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, outputFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException | RuntimeException e) {
+            Fabsyncmod.LOGGER.warn("計測値の書き出しに失敗しました: " + outputFile, e);
+        }
+    }
+
+    /**
+     * 回数の累計（カウンタ）。
+     */
+    static Map<String, Long> counters() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        counters.put("save_failures_total", SyncMetrics.getSaveFailureCount());
+        counters.put("load_failures_total", SyncMetrics.getLoadFailureCount());
+        counters.put("encode_failures_total", SyncMetrics.getEncodeFailureCount());
+        counters.put("db_retries_total", SyncMetrics.getDbRetryCount());
+        counters.put("handoff_timeouts_total", SyncMetrics.getHandoffTimeoutCount());
+        counters.put("lease_lost_writes_total", SyncMetrics.getLeaseLostCount());
+        counters.put("prefetch_abandoned_total", SyncMetrics.getPrefetchAbandonedCount());
+        counters.put("history_dropped_total", SyncMetrics.getHistoryDroppedCount());
+        counters.put("autosave_written_total", SyncMetrics.getAutoSaveWrittenTotal());
+        counters.put("autosave_skipped_total", SyncMetrics.getAutoSaveSkippedTotal());
+        counters.put("autosave_deferred_total", SyncMetrics.getAutoSaveDeferredTotal());
+        counters.put("cache_hits_total", InventoryCache.getHitCount());
+        counters.put("cache_misses_total", InventoryCache.getMissCount());
+        counters.put("cache_invalidations_total", InventoryCache.getInvalidationCount());
+        counters.put("cache_evictions_total", InventoryCache.getEvictionCount());
+        return counters;
+    }
+
+    /**
+     * 現在の値（ゲージ）。
+     */
+    static Map<String, Long> gauges() {
+        Map<String, Long> gauges = new LinkedHashMap<>();
+        gauges.put("save_queue_pending", (long) InventorySaveQueue.getPendingCount());
+        gauges.put("save_queue_pending_max", SyncMetrics.getQueueDepthMax());
+        gauges.put("journal_unflushed", (long) SaveJournal.getUnflushedCount());
+        gauges.put("journal_degraded", SaveJournal.isDegraded() ? 1L : 0L);
+        gauges.put("cache_entries", (long) InventoryCache.getEntryCount());
+        gauges.put("cache_bytes", InventoryCache.getSizeBytes());
+        gauges.put("autosave_stretch_percent", Math.round(SyncMetrics.getAutoSaveStretch() * 100));
+        return gauges;
+    }
+
+    static String renderPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        for (SyncMetrics.Histogram histogram : SyncMetrics.HISTOGRAMS) {
+            String name = METRIC_PREFIX + histogram.getId() + (histogram.getUnit() == SyncMetrics.Unit.NANOS ? "_seconds" : "");
+            out.append("# TYPE ").append(name).append(" summary\n");
+            for (double quantile : QUANTILES) {
+                out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(formatValue(histogram, histogram.getPercentile(quantile))).append('\n');
+            }
+            out.append(name).append("_sum ").append(formatValue(histogram, histogram.getSum())).append('\n');
+            out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+        }
+        for (Map.Entry<String, Long> counter : counters().entrySet()) {
+            out.append("# TYPE ").append(METRIC_PREFIX).append(counter.getKey()).append(" counter\n");
+            out.append(METRIC_PREFIX).append(counter.getKey()).append(' ').append(counter.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Long> gauge : gauges().entrySet()) {
+            out.append("# TYPE ").append(METRIC_PREFIX).append(gauge.getKey()).append(" gauge\n");
+            out.append(METRIC_PREFIX).append(gauge.getKey()).append(' ').append(gauge.getValue()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static String formatValue(SyncMetrics.Histogram histogram, long value) {
+        if (histogram.getUnit() == SyncMetrics.Unit.NANOS) {
+            return String.format(Locale.ROOT, "%.9f", value / 1e9);
+        }
+        return Long.toString(value);
+    }
+
+    static String renderJson() {
+        JsonObject root = new JsonObject();
+        root.addProperty("timestamp", System.currentTimeMillis());
+        JsonObject histograms = new JsonObject();
+        for (SyncMetrics.Histogram histogram : SyncMetrics.HISTOGRAMS) {
+            JsonObject entry = new JsonObject();
+            entry.addProperty("unit", histogram.getUnit().name().toLowerCase(Locale.ROOT));
+            entry.addProperty("count", histogram.getCount());
+            entry.addProperty("sum", histogram.getSum());
+            entry.addProperty("mean", histogram.getMean());
+            entry.addProperty("max", histogram.getMax());
+            for (double quantile : QUANTILES) {
+                entry.addProperty("p" + Math.round(quantile * 100), histogram.getPercentile(quantile));
+            }
+            histograms.add(histogram.getId(), entry);
+        }
+        root.add("histograms", histograms);
+        JsonObject counters = new JsonObject();
+        counters().forEach(counters::addProperty);
+        root.add("counters", counters);
+        JsonObject gauges = new JsonObject();
+        gauges().forEach(gauges::addProperty);
+        root.add("gauges", gauges);
+        return GSON.toJson(root);
+    }
+}
@@ -0,0 +1,442 @@
+package net.simohaya;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * MySQLのテーブル定義を、版番号の付いた手順（{@link Step}）で順に更新します。起動時に {@link #migrate} で未適用の手順を適用し、
+ * 適用した手順は fabsyncmod_schema_history に記録します。複数のサーバーが同時に起動しても、
+ * MySQLの名前付きロック（GET_LOCK）で1台ずつ適用するため、同じ手順が二重に適用されることはありません。
+ *
+ * <p>手順1では、UUIDを BINARY(16) の主キーとし、データの形式（format_id）と更新時刻（updated_at）の列を持つ新しいテーブル
+ * （{@link #INVENTORY_TABLE}、{@link #SLOT_TABLE}）を作成します。旧テーブル（文字列のUUID）の行はサーバーを止めずに移します。
+ * <ul>
+ *   <li>読み込みや引き継ぎロックの取得の前に、そのプレイヤーの行を旧テーブルから写します（{@link #copyLegacyRow}）。</li>
+ *   <li>それ以外の行は、バックグラウンドで {@link #BACKFILL_BATCH_SIZE} 件ずつ写します（{@link #backfillBatch}）。
+ *       進捗は履歴テーブルに記録するため、再起動後も続きから再開します。</li>
+ * </ul>
+ * どちらも、新しいテーブルに行がなければ追加し、既にある場合は旧テーブルの版番号（書き込み時刻を基準とする）の方が新しい時だけ
+ * 行とスロットを置き換えます。新しいテーブルに既に書き込まれた新しいデータを古いデータで上書きすることはなく、
+ * 写した後に更新前のサーバーが旧テーブルに書き込んだ内容も、次に写す時に反映されます。
+ *
+ * <p>このバージョン以降のサーバーは {@link #SERVER_TABLE} に登録します（{@link #registerServer}）。
+ * 登録されていないサーバーが旧テーブルの引き継ぎロックを保持している間は、更新前のサーバーが旧テーブルに書き込んでいるとみなし
+ * （{@link #hasLegacyWriters}）、写し終えた後も読み込みや引き継ぎロックの取得の前に写し続けます。
+ * 旧テーブルのロックも一緒に写すため、更新前のサーバーからの移動では、そのサーバーがログアウト時の保存を書き込むまで待ってからロードします。
+ * 更新前のサーバーは新しいテーブルを読まないため、更新中は更新済みのサーバーから更新前のサーバーへプレイヤーを移動させないでください。
+ *
+ * <p>手順2では、旧テーブルの inventory_data を BLOB（64KB まで）から MEDIUMBLOB に広げます。
+ * 更新前のサーバーが書き込む大きなインベントリや、写し終えるまで旧テーブルから読む行が途中で切れないようにするためです。
+ *
+ * <p>手順3では、更新済みのサーバーを登録するテーブル（{@link #SERVER_TABLE}）を作成します。
+ *
+ * <p>旧テーブルは削除しないため、全てのサーバーを更新して旧テーブルを写さなくなった後で、必要に応じて手動で削除してください。
+ */
+public class MySqlSchemaMigrator {
+
+    public static final String INVENTORY_TABLE = "player_inventories_v2";
+    public static final String SLOT_TABLE = "player_inventory_slots_v2";
+    static final String LEGACY_INVENTORY_TABLE = "player_inventories";
+    static final String LEGACY_SLOT_TABLE = "player_inventory_slots";
+    static final int BACKFILL_BATCH_SIZE = 200;
+
+    private static final String HISTORY_TABLE = "fabsyncmod_schema_history";
+    private static final String LOCK_NAME = "fabsyncmod_schema";
+    private static final int LOCK_TIMEOUT_SECONDS = 60;
+    private static final int BINARY_UUID_STEP = 1;
+    private static final int LEGACY_MEDIUMBLOB_STEP = 2;
+    private static final int SERVER_REGISTRY_STEP = 3;
+    public static final String SERVER_TABLE = "fabsyncmod_servers";
+
+    private static final String CREATE_HISTORY_TABLE_SQL = "CREATE TABLE IF NOT EXISTS " + HISTORY_TABLE + " (" +
+            "version INT PRIMARY KEY," +
+            "description VARCHAR(255) NOT NULL," +
+            "applied_at DATETIME(3) NOT NULL," +
+            "backfill_position VARCHAR(36) NULL," +
+            "backfill_completed_at DATETIME(3) NULL" +
+            ");";
+    private static final String SELECT_HISTORY_SQL = "SELECT version, backfill_completed_at FROM " + HISTORY_TABLE + " ORDER BY version;";
+    private static final String INSERT_HISTORY_SQL = "INSERT INTO " + HISTORY_TABLE + " (version, description, applied_at, backfill_completed_at) " +
+            "VALUES (?, ?, NOW(3), IF(?, NOW(3), NULL));";
+    private static final String SELECT_BACKFILL_POSITION_SQL = "SELECT backfill_position, backfill_completed_at FROM " + HISTORY_TABLE + " WHERE version = ?;";
+    private static final String UPDATE_BACKFILL_POSITION_SQL = "UPDATE " + HISTORY_TABLE + " SET backfill_position = ? WHERE version = ?;";
+    private static final String COMPLETE_BACKFILL_SQL = "UPDATE " + HISTORY_TABLE + " SET backfill_completed_at = NOW(3) WHERE version = ? AND backfill_completed_at IS NULL;";
+
+    // 旧テーブルの行を写す。inventory_data の先頭4バイトのヘッダ（'F' 'S' 版 圧縮方式）から形式の番号を求め、旧形式（GZIP）は0とする
+    private static final String COPY_LEGACY_ROW_SQL = "INSERT IGNORE INTO " + INVENTORY_TABLE +
+            " (uuid, inventory_data, version, storage_format, format_id, lease_owner, lease_until, updated_at) " +
+            "SELECT UNHEX(REPLACE(uuid, '-', '')), inventory_data, version, storage_format, " + formatIdOf("") + ", " +
+            "lease_owner, lease_until, NOW(3) FROM " + LEGACY_INVENTORY_TABLE + " WHERE uuid = ?;";
+    // 既に写した行は、旧テーブルの版番号の方が新しい場合だけ置き換える
+    private static final String REFRESH_LEGACY_ROW_SQL = "UPDATE " + INVENTORY_TABLE + " target JOIN " + LEGACY_INVENTORY_TABLE + " source " +
+            "ON source.uuid = ? SET target.inventory_data = source.inventory_data, target.storage_format = source.storage_format, " +
+            "target.format_id = " + formatIdOf("source.") + ", target.lease_owner = source.lease_owner, target.lease_until = source.lease_until, " +
+            "target.updated_at = NOW(3), target.version = source.version " +
+            "WHERE target.uuid = UNHEX(REPLACE(?, '-', '')) AND source.version > target.version;";
+    private static final String DELETE_COPIED_SLOTS_SQL = "DELETE FROM " + SLOT_TABLE + " WHERE uuid = UNHEX(REPLACE(?, '-', ''));";
+    private static final String COPY_LEGACY_SLOTS_SQL = "INSERT IGNORE INTO " + SLOT_TABLE + " (uuid, section, slot, slot_hash, slot_data) " +
+            "SELECT UNHEX(REPLACE(uuid, '-', '')), section, slot, slot_hash, slot_data FROM " + LEGACY_SLOT_TABLE + " WHERE uuid = ?;";
+    private static final String REGISTER_SERVER_SQL = "INSERT INTO " + SERVER_TABLE + " (server_id, schema_version, registered_at) VALUES (?, ?, NOW(3)) " +
+            "ON DUPLICATE KEY UPDATE schema_version = GREATEST(schema_version, VALUES(schema_version));";
+    // トークンは "サーバーID:乱数" の形式（{@link InventoryLease}）
+    private static final String COUNT_LEGACY_WRITERS_SQL = "SELECT COUNT(*) FROM " + LEGACY_INVENTORY_TABLE +
+            " WHERE lease_owner IS NOT NULL AND lease_until > NOW(3) " +
+            "AND SUBSTRING_INDEX(lease_owner, ':', 1) NOT IN (SELECT server_id FROM " + SERVER_TABLE + ");";
+    private static final String SELECT_LEGACY_PAGE_SQL = "SELECT uuid FROM " + LEGACY_INVENTORY_TABLE + " WHERE uuid > ? ORDER BY uuid LIMIT ?;";
+
+    /**
+     * テーブル定義の更新1回分。
+     */
+    @FunctionalInterface
+    private interface StepWork {
+        void apply(Connection connection) throws SQLException;
+    }
+
+    /**
+     * @param version 版番号。1から順に適用します
+     * @param backfill 適用後にバックグラウンドで旧テーブルの行を写す必要があるか
+     */
+    private record Step(int version, String description, StepWork work, boolean backfill) {
+    }
+
+    private static String formatIdOf(String alias) {
+        return "CASE WHEN " + alias + "storage_format = 1 THEN " + InventoryCodec.FORMAT_VERSION + " " +
+                "WHEN LENGTH(" + alias + "inventory_data) >= 4 AND SUBSTRING(" + alias + "inventory_data, 1, 2) = 'FS' " +
+                "THEN ASCII(SUBSTRING(" + alias + "inventory_data, 3, 1)) ELSE 0 END";
+    }
+
+    private static final List<Step> STEPS = List.of(
+            new Step(BINARY_UUID_STEP, "UUIDをBINARY(16)の主キーにし、形式の番号と更新時刻の列を追加", MySqlSchemaMigrator::createBinaryUuidTables, true),
+            new Step(LEGACY_MEDIUMBLOB_STEP, "旧テーブルの inventory_data を MEDIUMBLOB に変更", MySqlSchemaMigrator::widenLegacyInventoryData, false),
+            new Step(SERVER_REGISTRY_STEP, "更新済みのサーバーを登録するテーブルを作成", MySqlSchemaMigrator::createServerTable, false)
+    );
+
+    /**
+     * 未適用の手順を適用します。
+     * @return 旧テーブルの行を写し終えていない場合 true（{@link #copyLegacyRow} と {@link #backfillBatch} が必要）
+     */
+    public static boolean migrate(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(CREATE_HISTORY_TABLE_SQL)) {
+            statement.executeUpdate();
+        }
+        acquireLock(connection);
+        try {
+            List<Integer> applied = new ArrayList<>();
+            boolean backfillPending = false;
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_HISTORY_SQL);
+                 ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    applied.add(resultSet.getInt("version"));
+                    if (resultSet.getInt("version") == BINARY_UUID_STEP && resultSet.getTimestamp("backfill_completed_at") == null) {
+                        backfillPending = true;
+                    }
+                }
+            }
+            for (Step step : STEPS) {
+                if (applied.contains(step.version())) {
+                    continue;
+                }
+                step.work().apply(connection);
+                // 旧テーブルがない（新規のデータベース）場合は写す行がない
+                boolean nothingToCopy = !step.backfill() || !tableExists(connection, LEGACY_INVENTORY_TABLE);
+                try (PreparedStatement statement = connection.prepareStatement(INSERT_HISTORY_SQL)) {
+                    statement.setInt(1, step.version());
+                    statement.setString(2, step.description());
+                    statement.setBoolean(3, nothingToCopy);
+                    statement.executeUpdate();
+                }
+                if (step.version() == BINARY_UUID_STEP) {
+                    backfillPending = !nothingToCopy;
+                }
+                Fabsyncmod.LOGGER.info("データベースのテーブル定義を版 " + step.version() + " に更新しました: " + step.description());
+            }
+            return backfillPending;
+        } finally {
+            releaseLock(connection);
+        }
+    }
+
+    private static void createBinaryUuidTables(Connection connection) throws SQLException {
+        execute(connection, "CREATE TABLE IF NOT EXISTS " + INVENTORY_TABLE + " (" +
+                "uuid BINARY(16) PRIMARY KEY," +
+                "inventory_data MEDIUMBLOB NOT NULL," +
+                "version BIGINT NOT NULL DEFAULT 0," +
+                "storage_format TINYINT NOT NULL DEFAULT 0," +
+                "format_id TINYINT NOT NULL DEFAULT 0," +
+                "lease_owner VARCHAR(64) NULL," +
+                "lease_until DATETIME(3) NULL," +
+                "updated_at DATETIME(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3)," +
+                "KEY idx_updated_at (updated_at)" +
+                ");");
+        execute(connection, "CREATE TABLE IF NOT EXISTS " + SLOT_TABLE + " (" +
+                "uuid BINARY(16) NOT NULL," +
+                "section VARCHAR(64) NOT NULL," +
+                "slot INT NOT NULL," +
+                "slot_hash BIGINT NOT NULL," +
+                "slot_data MEDIUMBLOB NOT NULL," +
+                "PRIMARY KEY (uuid, section, slot)" +
+                ");");
+        if (tableExists(connection, LEGACY_INVENTORY_TABLE)) {
+            // 引き継ぎロックやスロット単位の保存の導入前に作成された旧テーブルには、写す前に列を追加する
+            addLegacyColumnIfMissing(connection, "version", "BIGINT NOT NULL DEFAULT 0");
+            addLegacyColumnIfMissing(connection, "lease_owner", "VARCHAR(64) NULL");
+            addLegacyColumnIfMissing(connection, "lease_until", "DATETIME(3) NULL");
+            addLegacyColumnIfMissing(connection, "storage_format", "TINYINT NOT NULL DEFAULT 0");
+            execute(connection, "CREATE TABLE IF NOT EXISTS " + LEGACY_SLOT_TABLE + " (" +
+                    "uuid VARCHAR(36) NOT NULL," +
+                    "section VARCHAR(64) NOT NULL," +
+                    "slot INT NOT NULL," +
+                    "slot_hash BIGINT NOT NULL," +
+                    "slot_data MEDIUMBLOB NOT NULL," +
+                    "PRIMARY KEY (uuid, section, slot)" +
+                    ");");
+        }
+    }
+
+    private static void createServerTable(Connection connection) throws SQLException {
+        execute(connection, "CREATE TABLE IF NOT EXISTS " + SERVER_TABLE + " (" +
+                "server_id VARCHAR(64) PRIMARY KEY," +
+                "schema_version INT NOT NULL," +
+                "registered_at DATETIME(3) NOT NULL" +
+                ");");
+    }
+
+    /**
+     * このサーバーを、新しいテーブルを使う更新済みのサーバーとして登録します。{@link #migrate} の後に呼び出してください。
+     */
+    public static void registerServer(Connection connection, String serverId) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(REGISTER_SERVER_SQL)) {
+            statement.setString(1, serverId);
+            statement.setInt(2, STEPS.get(STEPS.size() - 1).version());
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * 登録されていない（更新前の）サーバーが、旧テーブルの引き継ぎロックを保持しているかを返します。旧テーブルがない場合は false。
+     */
+    public static boolean hasLegacyWriters(Connection connection) throws SQLException {
+        if (!tableExists(connection, LEGACY_INVENTORY_TABLE)) {
+            return false;
+        }
+        try (PreparedStatement statement = connection.prepareStatement(COUNT_LEGACY_WRITERS_SQL);
+             ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() && resultSet.getLong(1) > 0;
+        }
+    }
+
+    private static void widenLegacyInventoryData(Connection connection) throws SQLException {
+        if (!tableExists(connection, LEGACY_INVENTORY_TABLE)) {
+            return;
+        }
+        try (ResultSet columns = connection.getMetaData().getColumns(connection.getCatalog(), null, LEGACY_INVENTORY_TABLE, "inventory_data")) {
+            // 既に MEDIUMBLOB（または LONGBLOB）の場合は、テーブルの再構築を避ける
+            if (!columns.next() || !"BLOB".equalsIgnoreCase(columns.getString("TYPE_NAME"))) {
+                return;
+            }
+        }
+        execute(connection, "ALTER TABLE " + LEGACY_INVENTORY_TABLE + " MODIFY inventory_data MEDIUMBLOB NOT NULL;");
+        Fabsyncmod.LOGGER.info("テーブル '" + LEGACY_INVENTORY_TABLE + "' の列 'inventory_data' を MEDIUMBLOB に変更しました。");
+    }
+
+    /**
+     * プレイヤーの行がまだ新しいテーブルにないか、旧テーブルの方が新しい場合に、旧テーブルから行とスロットを写します。
+     * 1つのトランザクションで行い、行を写せた場合だけスロットも置き換えるため、新しいテーブルに書き込まれたスロットに古いスロットが混ざることはありません。
+     */
+    public static void copyLegacyRow(Connection connection, UUID playerUuid) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            copyLegacyRowInTransaction(connection, playerUuid.toString());
+            connection.commit();
+        } catch (SQLException e) {
+            rollback(connection, e);
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static boolean copyLegacyRowInTransaction(Connection connection, String uuid) throws SQLException {
+        boolean inserted;
+        try (PreparedStatement copyRow = connection.prepareStatement(COPY_LEGACY_ROW_SQL)) {
+            copyRow.setString(1, uuid);
+            inserted = copyRow.executeUpdate() > 0;
+        }
+        if (!inserted) {
+            try (PreparedStatement refreshRow = connection.prepareStatement(REFRESH_LEGACY_ROW_SQL)) {
+                refreshRow.setString(1, uuid);
+                refreshRow.setString(2, uuid);
+                if (refreshRow.executeUpdate() == 0) {
+                    return false;
+                }
+            }
+            try (PreparedStatement deleteSlots = connection.prepareStatement(DELETE_COPIED_SLOTS_SQL)) {
+                deleteSlots.setString(1, uuid);
+                deleteSlots.executeUpdate();
+            }
+        }
+        try (PreparedStatement copySlots = connection.prepareStatement(COPY_LEGACY_SLOTS_SQL)) {
+            copySlots.setString(1, uuid);
+            copySlots.executeUpdate();
+        }
+        return true;
+    }
+
+    /**
+     * 旧テーブルの行を、前回の続きから最大 {@link #BACKFILL_BATCH_SIZE} 件写し、進捗を記録します。
+     * @return 全ての行を写し終えた場合 true
+     */
+    public static boolean backfillBatch(Connection connection) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            String position;
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_BACKFILL_POSITION_SQL + " FOR UPDATE")) {
+                statement.setInt(1, BINARY_UUID_STEP);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    if (!resultSet.next() || resultSet.getTimestamp("backfill_completed_at") != null) {
+                        // 他のサーバーが写し終えた
+                        connection.commit();
+                        return true;
+                    }
+                    position = resultSet.getString("backfill_position");
+                }
+            }
+            List<String> page = selectLegacyPage(connection, position);
+            int copied = 0;
+            for (String uuid : page) {
+                if (copyLegacyRowInTransaction(connection, uuid)) {
+                    copied++;
+                }
+            }
+            boolean completed = page.size() < BACKFILL_BATCH_SIZE;
+            if (!page.isEmpty()) {
+                try (PreparedStatement statement = connection.prepareStatement(UPDATE_BACKFILL_POSITION_SQL)) {
+                    statement.setString(1, page.get(page.size() - 1));
+                    statement.setInt(2, BINARY_UUID_STEP);
+                    statement.executeUpdate();
+                }
+            }
+            if (completed) {
+                try (PreparedStatement statement = connection.prepareStatement(COMPLETE_BACKFILL_SQL)) {
+                    statement.setInt(1, BINARY_UUID_STEP);
+                    statement.executeUpdate();
+                }
+            }
+            connection.commit();
+            Fabsyncmod.LOGGER.debug("旧テーブルから " + copied + " / " + page.size() + " 件を写しました（" + (page.isEmpty() ? position : page.get(page.size() - 1)) + " まで）。");
+            return completed;
+        } catch (SQLException e) {
+            rollback(connection, e);
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * 旧テーブルの after より後の行を最大 {@link #BACKFILL_BATCH_SIZE} 件確認し、旧テーブルの方が新しい行だけを写し直します。
+     * 更新前のサーバーがなくなった後に、写した後で旧テーブルに書き込まれた行が残っていないかを確認するために使用します。進捗は記録しません。
+     * @param after 前回確認した最後の行のUUID。最初は null
+     * @return 最後に確認した行のUUID。確認する行がなくなった場合は null
+     */
+    public static String resyncLegacyPage(Connection connection, String after) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            List<String> page = selectLegacyPage(connection, after);
+            for (String uuid : page) {
+                copyLegacyRowInTransaction(connection, uuid);
+            }
+            connection.commit();
+            return page.size() < BACKFILL_BATCH_SIZE ? null : page.get(page.size() - 1);
+        } catch (SQLException e) {
+            rollback(connection, e);
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static List<String> selectLegacyPage(Connection connection, String after) throws SQLException {
+        List<String> page = new ArrayList<>(BACKFILL_BATCH_SIZE);
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_LEGACY_PAGE_SQL)) {
+            statement.setString(1, after != null ? after : "");
+            statement.setInt(2, BACKFILL_BATCH_SIZE);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    page.add(resultSet.getString("uuid"));
+                }
+            }
+        }
+        return page;
+    }
+
+    /**
+     * UUIDを BINARY(16) の列に書き込むバイト列に変換します。バイト列の順序は文字列のUUIDの順序と一致します。
+     */
+    public static byte[] toBytes(UUID playerUuid) {
+        return ByteBuffer.allocate(16).putLong(playerUuid.getMostSignificantBits()).putLong(playerUuid.getLeastSignificantBits()).array();
+    }
+
+    public static UUID fromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    private static void acquireLock(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT GET_LOCK(?, ?);")) {
+            statement.setString(1, LOCK_NAME);
+            statement.setInt(2, LOCK_TIMEOUT_SECONDS);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next() || resultSet.getInt(1) != 1) {
+                    throw new SQLException("テーブル定義の更新のロックを " + LOCK_TIMEOUT_SECONDS + " 秒以内に取得できませんでした。");
+                }
+            }
+        }
+    }
+
+    private static void releaseLock(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT RELEASE_LOCK(?);")) {
+            statement.setString(1, LOCK_NAME);
+            statement.executeQuery().close();
+        }
+    }
+
+    private static boolean tableExists(Connection connection, String table) throws SQLException {
+        try (ResultSet tables = connection.getMetaData().getTables(connection.getCatalog(), null, table, null)) {
+            return tables.next();
+        }
+    }
+
+    private static void addLegacyColumnIfMissing(Connection connection, String column, String definition) throws SQLException {
+        try (ResultSet columns = connection.getMetaData().getColumns(connection.getCatalog(), null, LEGACY_INVENTORY_TABLE, column)) {
+            if (columns.next()) {
+                return;
+            }
+        }
+        execute(connection, "ALTER TABLE " + LEGACY_INVENTORY_TABLE + " ADD COLUMN " + column + " " + definition + ";");
+        Fabsyncmod.LOGGER.info("テーブル '" + LEGACY_INVENTORY_TABLE + "' に列 '" + column + "' を追加しました。");
+    }
+
+    private static void execute(Connection connection, String sql) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.executeUpdate();
+        }
+    }
+
+    private static void rollback(Connection connection, SQLException error) {
+        try {
+            connection.rollback();
+        } catch (SQLException rollbackError) {
+            error.addSuppressed(rollbackError);
+        }
+    }
+}
@@ -0,0 +1,768 @@
+package net.simohaya;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.pool.HikariPool;
+
+/**
+ * MySQLの player_inventories_v2 テーブルに保存する保存先。複数のサーバーで同じデータベースを共有できます。
+ * 接続はHikariCPのコネクションプールから借り、一時的なエラーは指数バックオフで再試行します。
+ *
+ * <p>保存の方式は mysqlStorageLayout で選択します。
+ * <ul>
+ *   <li>"blob"（デフォルト）: エンコード済みのデータ全体を inventory_data に書き込みます。</li>
+ *   <li>"slots": スロットごとに player_inventory_slots_v2 の1行として保存し、前回書き込んだ内容から変更されたスロットだけを書き込みます
+ *       （{@link InventorySlots}）。player_inventories_v2 の行は版番号と引き継ぎロックのために残り、inventory_data は空になります。</li>
+ * </ul>
+ * どちらの方式で書き込まれた行かは storage_format 列で判別するため、読み込みは設定に関係なく両方の方式に対応します。
+ * ただし "slots" を有効にする前に、同じデータベースを使う全てのサーバーをこの方式を読めるバージョンに更新してください。
+ *
+ * <p>テーブル定義は起動時に {@link MySqlSchemaMigrator} で更新します。UUIDは BINARY(16) で保存します。
+ */
+public class MySqlStorageBackend implements StorageBackend {
+    public static final String LAYOUT_BLOB = "blob";
+    public static final String LAYOUT_SLOTS = "slots";
+    private static final int STORAGE_FORMAT_BLOB = 0;
+    private static final int STORAGE_FORMAT_SLOTS = 1;
+
+    // MySQLのエラーコード：ロック待ちタイムアウトとデッドロックは再試行で解消することが多い
+    private static final int ER_LOCK_WAIT_TIMEOUT = 1205;
+    private static final int ER_LOCK_DEADLOCK = 1213;
+    // 保存のたびに version を必ず増やす。通常は書き込んだサーバーが決めた版番号（時刻ベース）になるため、
+    // その値と一致するかどうかで、自分の書き込みの後に他のサーバーが書き込んでいないかを判定できる
+    private static final String INVENTORY_TABLE = MySqlSchemaMigrator.INVENTORY_TABLE;
+    private static final String SLOT_TABLE = MySqlSchemaMigrator.SLOT_TABLE;
+    // 旧テーブルの行を写し終えるまでの、バックグラウンドでの1回分の間隔。通常の読み書きへの影響を抑える
+    private static final long BACKFILL_PAUSE_MILLIS = 100;
+    private static final long BACKFILL_RETRY_MILLIS = 30000;
+    // 更新前のサーバーが旧テーブルを使い終えたかを確認する間隔
+    private static final long LEGACY_WRITER_CHECK_MILLIS = 60000;
+    private static final String UPSERT_INVENTORY_SQL = "INSERT INTO " + INVENTORY_TABLE + " (uuid, inventory_data, version, storage_format, format_id, updated_at) VALUES (?, ?, ?, ?, ?, NOW(3)) " +
+            "ON DUPLICATE KEY UPDATE inventory_data = VALUES(inventory_data), version = GREATEST(version + 1, VALUES(version)), " +
+            "storage_format = VALUES(storage_format), format_id = VALUES(format_id), updated_at = VALUES(updated_at);";
+    // スロット単位で保存された行の場合だけスロットの行を結合するため、どちらの方式でも1回のクエリで読み込める
+    private static final String SELECT_INVENTORY_SQL = "SELECT p.inventory_data, p.version, p.storage_format, s.section, s.slot, s.slot_hash, s.slot_data " +
+            "FROM " + INVENTORY_TABLE + " p LEFT JOIN " + SLOT_TABLE + " s ON s.uuid = p.uuid AND p.storage_format = " + STORAGE_FORMAT_SLOTS + " " +
+            "WHERE p.uuid = ?;";
+    // 移行用の全件読み込み。主キーの範囲で読むため、何ページ目でも同じ速さで読める
+    private static final String SCAN_INVENTORIES_SQL = "SELECT p.uuid, p.inventory_data, p.version, p.storage_format, s.section, s.slot, s.slot_hash, s.slot_data " +
+            "FROM (SELECT uuid, inventory_data, version, storage_format FROM " + INVENTORY_TABLE + " WHERE uuid > ? ORDER BY uuid LIMIT ?) p " +
+            "LEFT JOIN " + SLOT_TABLE + " s ON s.uuid = p.uuid AND p.storage_format = " + STORAGE_FORMAT_SLOTS + " " +
+            "ORDER BY p.uuid;";
+    private static final String LOCK_ROWS_SQL_PREFIX = "SELECT uuid, version, storage_format, lease_owner FROM " + INVENTORY_TABLE + " WHERE uuid IN (";
+    private static final String UPSERT_SLOT_SQL = "INSERT INTO " + SLOT_TABLE + " (uuid, section, slot, slot_hash, slot_data) VALUES (?, ?, ?, ?, ?) " +
+            "ON DUPLICATE KEY UPDATE slot_hash = VALUES(slot_hash), slot_data = VALUES(slot_data);";
+    private static final String DELETE_SLOT_SQL = "DELETE FROM " + SLOT_TABLE + " WHERE uuid = ? AND section = ? AND slot = ?;";
+    private static final String DELETE_ALL_SLOTS_SQL = "DELETE FROM " + SLOT_TABLE + " WHERE uuid = ?;";
+    private static final String SELECT_VERSION_SQL = "SELECT version FROM " + INVENTORY_TABLE + " WHERE uuid = ?;";
+    private static final String DELETE_INVENTORY_SQL = "DELETE FROM " + INVENTORY_TABLE + " WHERE uuid = ?;";
+    // 旧テーブルから行を写し終えるまでは、削除した行が写し直されないよう旧テーブルからも削除する
+    private static final String DELETE_LEGACY_SLOTS_SQL = "DELETE FROM " + MySqlSchemaMigrator.LEGACY_SLOT_TABLE + " WHERE uuid = ?;";
+    private static final String DELETE_LEGACY_INVENTORY_SQL = "DELETE FROM " + MySqlSchemaMigrator.LEGACY_INVENTORY_TABLE + " WHERE uuid = ?;";
+    // 引き継ぎロックの期限はDBサーバーの時刻で判定するため、各サーバーの時計のずれの影響を受けない
+    private static final String ACQUIRE_LEASE_SQL = "UPDATE " + INVENTORY_TABLE + " SET lease_owner = ?, lease_until = DATE_ADD(NOW(3), INTERVAL ? SECOND) " +
+            "WHERE uuid = ? AND (lease_owner IS NULL OR lease_until < NOW(3) OR SUBSTRING_INDEX(lease_owner, ':', 1) = ?);";
+    private static final String INSERT_LEASED_ROW_SQL = "INSERT IGNORE INTO " + INVENTORY_TABLE + " (uuid, inventory_data, version, lease_owner, lease_until) " +
+            "VALUES (?, ?, 0, ?, DATE_ADD(NOW(3), INTERVAL ? SECOND));";
+    private static final String RENEW_LEASE_SQL = "UPDATE " + INVENTORY_TABLE + " SET lease_until = DATE_ADD(NOW(3), INTERVAL ? SECOND) " +
+            "WHERE uuid = ? AND lease_owner = ?;";
+    private static final String RELEASE_LEASE_SQL = "UPDATE " + INVENTORY_TABLE + " SET lease_owner = NULL, lease_until = NULL " +
+            "WHERE uuid = ? AND lease_owner = ?;";
+
+    private final ConfigManager.ConfigData config;
+    private HikariDataSource dataSource;
+    // スロット単位の保存で、プレイヤーごとに最後に書き込んだ（または読み込んだ）スロットのハッシュ。差分計算の基準
+    private final Map<UUID, SlotBaseline> slotBaselines = new ConcurrentHashMap<>();
+    // 読み込みや引き継ぎロックの取得の前に、旧テーブル（文字列のUUID）の行を写す必要がある間は true（{@link MySqlSchemaMigrator}）。
+    // 全ての行を写し終え、更新前のサーバーが旧テーブルを使わなくなるまで続く
+    private volatile boolean legacyCopyPending;
+    // 旧テーブルの行をまだ全て写し終えていない間は true
+    private volatile boolean legacyBackfillPending;
+    private Thread backfillThread;
+
+    /**
+     * 差分計算の基準。行の版番号が version と一致する場合のみ、保存先の内容が hashes と一致していると判断できます。
+     */
+    private record SlotBaseline(long version, Map<InventorySlots.SlotKey, Long> hashes) {
+    }
+
+    /**
+     * 保存の前にロックした行の、現在の版番号・保存方式・引き継ぎロックの保持者。
+     */
+    private record LockedRow(long version, int storageFormat, String leaseOwner) {
+    }
+
+    /**
+     * データベースへの処理1回分。接続はプールから借りたものが渡され、処理後にプールへ返却されます。
+     */
+    @FunctionalInterface
+    private interface SqlWork<T> {
+        T run(Connection connection) throws SQLException;
+    }
+
+    public MySqlStorageBackend(ConfigManager.ConfigData config) {
+        this.config = config;
+    }
+
+    @Override
+    public String getName() {
+        return LAYOUT_SLOTS.equalsIgnoreCase(config.mysqlStorageLayout) ? "MySQL（スロット単位）" : "MySQL";
+    }
+
+    @Override
+    public void open() throws StorageException {
+        String url = "jdbc:mysql://" + config.mysqlHost + ":" + config.mysqlPort + "/" + config.mysqlDatabase + "?useSSL=false&serverTimezone=UTC&rewriteBatchedStatements=true";
+
+        HikariConfig hikariConfig = new HikariConfig();
+        hikariConfig.setPoolName("Fabsyncmod-MySQL");
+        hikariConfig.setDriverClassName("com.mysql.cj.jdbc.Driver");
+        hikariConfig.setJdbcUrl(url);
+        hikariConfig.setUsername(config.mysqlUser);
+        hikariConfig.setPassword(config.mysqlPassword);
+        // 借りる際に接続を検証し、切れていれば作り直す（wait_timeout対策）
+        hikariConfig.setMaximumPoolSize(config.dbPoolSize);
+        hikariConfig.setMinimumIdle(Math.min(2, config.dbPoolSize));
+        hikariConfig.setConnectionTimeout(config.dbConnectionTimeoutMillis);
+        hikariConfig.setValidationTimeout(Math.min(config.dbConnectionTimeoutMillis, 3000));
+        hikariConfig.setMaxLifetime(config.dbMaxLifetimeMillis);
+        hikariConfig.setKeepaliveTime(Math.min(300000, config.dbMaxLifetimeMillis / 2));
+        hikariConfig.addDataSourceProperty("cachePrepStmts", "true");
+        hikariConfig.addDataSourceProperty("prepStmtCacheSize", "64");
+        hikariConfig.addDataSourceProperty("tcpKeepAlive", "true");
+
+        try {
+            dataSource = new HikariDataSource(hikariConfig);
+        } catch (HikariPool.PoolInitializationException e) {
+            throw new StorageException("MySQLデータベースへの接続に失敗しました！", e);
+        } catch (RuntimeException e) {
+            // ドライバクラスが見つからない場合などもここに来る
+            throw new StorageException("MySQLコネクションプールの初期化に失敗しました！", e);
+        }
+        Fabsyncmod.LOGGER.info("MySQLデータベースに正常に接続しました: " + config.mysqlDatabase + "（最大接続数: " + config.dbPoolSize + "）");
+        migrateSchema();
+    }
+
+    /**
+     * 接続をプールから借りて処理を実行します。一時的なエラー（接続断、ロック待ちタイムアウト、デッドロックなど）の場合は
+     * 指数バックオフで再試行し、再試行のたびにプールから検証済みの接続を借り直します。
+     */
+    private <T> T executeWithRetry(SqlWork<T> work) throws SQLException {
+        if (dataSource == null) {
+            throw new SQLException("コネクションプールが初期化されていません。");
+        }
+        int maxAttempts = config.dbMaxAttempts;
+        SQLException lastError = null;
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            try (Connection connection = dataSource.getConnection()) {
+                return work.run(connection);
+            } catch (SQLException e) {
+                lastError = e;
+                if (!isTransient(e) || attempt == maxAttempts) {
+                    break;
+                }
+                long backoff = config.dbRetryBackoffMillis << (attempt - 1);
+                backoff += ThreadLocalRandom.current().nextLong(backoff / 2 + 1); // 同時リトライの集中を避ける
+                SyncMetrics.recordDbRetry();
+                Fabsyncmod.LOGGER.warn("データベース処理で一時的なエラーが発生しました（" + attempt + "/" + maxAttempts + "回目）。" + backoff + " ミリ秒後に再試行します: " + e.getMessage());
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        throw lastError;
+    }
+
+    private static boolean isTransient(SQLException e) {
+        if (e instanceof SQLTransientException || e instanceof SQLRecoverableException) {
+            return true;
+        }
+        String sqlState = e.getSQLState();
+        if (sqlState != null && (sqlState.startsWith("08") || sqlState.startsWith("40"))) {
+            return true; // 08: 接続エラー, 40: トランザクションのロールバック
+        }
+        return e.getErrorCode() == ER_LOCK_WAIT_TIMEOUT || e.getErrorCode() == ER_LOCK_DEADLOCK;
+    }
+
+    private PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        statement.setQueryTimeout(config.dbStatementTimeoutSeconds);
+        return statement;
+    }
+
+    private void migrateSchema() throws StorageException {
+        try {
+            legacyBackfillPending = executeWithRetry(MySqlSchemaMigrator::migrate);
+            executeWithRetry(connection -> {
+                MySqlSchemaMigrator.registerServer(connection, config.serverId);
+                return null;
+            });
+            legacyCopyPending = legacyBackfillPending || executeWithRetry(MySqlSchemaMigrator::hasLegacyWriters);
+            Fabsyncmod.LOGGER.info("テーブル '" + INVENTORY_TABLE + "' が正常に作成または確認されました。");
+        } catch (SQLException e) {
+            dataSource.close();
+            dataSource = null;
+            throw new StorageException("データベースのテーブル定義の更新に失敗しました！", e);
+        }
+        if (legacyCopyPending) {
+            Fabsyncmod.LOGGER.info("旧テーブル '" + MySqlSchemaMigrator.LEGACY_INVENTORY_TABLE + "' の行をバックグラウンドで新しいテーブルに写します。");
+            backfillThread = new Thread(this::runBackfill, "Fabsyncmod-Schema-Backfill");
+            backfillThread.setDaemon(true);
+            backfillThread.start();
+        }
+    }
+
+    /**
+     * 旧テーブルの行を少しずつ新しいテーブルに写します。失敗した場合は時間をおいて続きから再開します。
+     * 写し終えた後は、更新前のサーバーが旧テーブルを使わなくなるまで待ち、最後に全ての行をもう一度確認してから写すのをやめます。
+     */
+    private void runBackfill() {
+        String resyncPosition = null;
+        while (legacyCopyPending && dataSource != null && !dataSource.isClosed()) {
+            try {
+                if (legacyBackfillPending) {
+                    if (executeWithRetry(MySqlSchemaMigrator::backfillBatch)) {
+                        legacyBackfillPending = false;
+                        Fabsyncmod.LOGGER.info("旧テーブル '" + MySqlSchemaMigrator.LEGACY_INVENTORY_TABLE + "' の全ての行を新しいテーブルに写しました。");
+                    }
+                    Thread.sleep(BACKFILL_PAUSE_MILLIS);
+                    continue;
+                }
+                if (resyncPosition == null && executeWithRetry(MySqlSchemaMigrator::hasLegacyWriters)) {
+                    Thread.sleep(LEGACY_WRITER_CHECK_MILLIS);
+                    continue;
+                }
+                String after = resyncPosition;
+                resyncPosition = executeWithRetry(connection -> MySqlSchemaMigrator.resyncLegacyPage(connection, after));
+                if (resyncPosition == null) {
+                    legacyCopyPending = false;
+                    Fabsyncmod.LOGGER.info("更新前のサーバーが旧テーブル '" + MySqlSchemaMigrator.LEGACY_INVENTORY_TABLE + "' を使用しなくなったため、写すのをやめました。"
+                            + "全てのサーバーを更新した後で、旧テーブルは削除できます。");
+                    return;
+                }
+                Thread.sleep(BACKFILL_PAUSE_MILLIS);
+            } catch (SQLException e) {
+                Fabsyncmod.LOGGER.warn("旧テーブルの行を写せませんでした。" + BACKFILL_RETRY_MILLIS / 1000 + " 秒後に再試行します: " + e.getMessage());
+                try {
+                    Thread.sleep(BACKFILL_RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 旧テーブルの行を写し終えていない間、プレイヤーの行がまだ新しいテーブルになければ写します。
+     */
+    private void copyLegacyRowIfPending(Connection connection, UUID playerUuid) throws SQLException {
+        if (legacyCopyPending) {
+            MySqlSchemaMigrator.copyLegacyRow(connection, playerUuid);
+        }
+    }
+
+    /**
+     * 1つのトランザクションでまとめて保存します。JDBCバッチを設定のチャンクサイズごとに実行するため
+     * （rewriteBatchedStatements により複数行のINSERTに書き換えられます）、往復回数は件数ではなくチャンク数で決まります。
+     * 失敗した場合は全件がロールバックされます。
+     * 引き継ぎロックの解放を伴うレコードは、同じトランザクション内でロックを解放するため、
+     * 他のサーバーはロックの解放を確認した時点で必ずこの書き込みを読み込めます。
+     * UPSERT には条件を付けられないため、先に対象の行をロックして lease_owner を確認し、
+     * 他のサーバーがロックを保持している行には書き込みません。
+     */
+    @Override
+    public List<InventoryRecord> saveBatch(Collection<InventoryRecord> records) throws StorageException {
+        if (records.isEmpty()) {
+            return List.of();
+        }
+        if (LAYOUT_SLOTS.equalsIgnoreCase(config.mysqlStorageLayout)) {
+            return saveSlotsBatch(records);
+        }
+        List<InventoryRecord> recordList = new ArrayList<>(records);
+        int batchChunkSize = config.dbBatchChunkSize;
+        List<InventoryRecord> lost = new ArrayList<>();
+        try {
+            executeWithRetry(connection -> {
+                connection.setAutoCommit(false);
+                lost.clear();
+                try (PreparedStatement statement = prepare(connection, UPSERT_INVENTORY_SQL)) {
+                    for (int start = 0; start < recordList.size(); start += batchChunkSize) {
+                        List<InventoryRecord> chunk = recordList.subList(start, Math.min(start + batchChunkSize, recordList.size()));
+                        Map<UUID, LockedRow> rows = lockRows(connection, chunk);
+                        for (InventoryRecord record : chunk) {
+                            if (isLeaseLost(rows.get(record.playerUuid()), record)) {
+                                lost.add(record);
+                                continue;
+                            }
+                            statement.setBytes(1, MySqlSchemaMigrator.toBytes(record.playerUuid()));
+                            statement.setBytes(2, record.data());
+                            statement.setLong(3, record.version());
+                            statement.setInt(4, STORAGE_FORMAT_BLOB);
+                            statement.setInt(5, InventoryCodec.formatId(record.data()));
+                            statement.addBatch();
+                        }
+                        statement.executeBatch();
+                    }
+                    releaseLeases(connection, recordList);
+                    connection.commit();
+                    return null;
+                } catch (SQLException e) {
+                    // 自動コミットの設定はプールへの返却時にHikariCPが元に戻す
+                    try {
+                        connection.rollback();
+                    } catch (SQLException rollbackError) {
+                        e.addSuppressed(rollbackError);
+                    }
+                    throw e;
+                }
+            });
+        } catch (SQLException e) {
+            throw new StorageException(recordList.size() + " 件のインベントリの保存に失敗しました。", e);
+        }
+        return lost;
+    }
+
+    /**
+     * スロット単位で保存します。1つのトランザクションで、対象の行をロックして版番号を確認し、
+     * 前回の書き込みから他のサーバーが書き込んでいなければ変更されたスロットだけを、それ以外は全スロットを書き直します。
+     * 現在の形式でないデータ（分割できないデータ）は従来通り inventory_data に書き込みます。
+     */
+    private List<InventoryRecord> saveSlotsBatch(Collection<InventoryRecord> records) throws StorageException {
+        List<InventoryRecord> recordList = new ArrayList<>(records);
+        // 同じプレイヤーが複数含まれる場合は最後のデータだけを書き込む（ロックの解放は全レコード分行う）
+        Map<UUID, InventoryRecord> latest = new LinkedHashMap<>();
+        for (InventoryRecord record : recordList) {
+            latest.remove(record.playerUuid());
+            latest.put(record.playerUuid(), record);
+        }
+        List<InventoryRecord> writeList = new ArrayList<>(latest.values());
+        int batchChunkSize = config.dbBatchChunkSize;
+        Map<UUID, SlotBaseline> written;
+        List<InventoryRecord> lost = new ArrayList<>();
+        try {
+            written = executeWithRetry(connection -> {
+                connection.setAutoCommit(false);
+                lost.clear();
+                Map<UUID, SlotBaseline> baselines = new HashMap<>();
+                try (PreparedStatement upsertRow = prepare(connection, UPSERT_INVENTORY_SQL);
+                     PreparedStatement deleteAllSlots = prepare(connection, DELETE_ALL_SLOTS_SQL);
+                     PreparedStatement deleteSlot = prepare(connection, DELETE_SLOT_SQL);
+                     PreparedStatement upsertSlot = prepare(connection, UPSERT_SLOT_SQL)) {
+                    for (int start = 0; start < writeList.size(); start += batchChunkSize) {
+                        List<InventoryRecord> chunk = writeList.subList(start, Math.min(start + batchChunkSize, writeList.size()));
+                        Map<UUID, LockedRow> rows = lockRows(connection, chunk);
+                        for (InventoryRecord record : chunk) {
+                            UUID playerUuid = record.playerUuid();
+                            LockedRow row = rows.get(playerUuid);
+                            if (isLeaseLost(row, record)) {
+                                lost.add(record);
+                                continue;
+                            }
+                            List<InventorySlots.Slot> slots;
+                            try {
+                                slots = InventorySlots.split(record.data());
+                            } catch (IOException e) {
+                                addRowUpsert(upsertRow, record, record.data(), STORAGE_FORMAT_BLOB);
+                                continue;
+                            }
+                            addRowUpsert(upsertRow, record, new byte[0], STORAGE_FORMAT_SLOTS);
+
+                            SlotBaseline baseline = slotBaselines.get(playerUuid);
+                            List<InventorySlots.Slot> upserts;
+                            if (row != null && row.storageFormat() == STORAGE_FORMAT_SLOTS && baseline != null && baseline.version() == row.version()) {
+                                InventorySlots.Delta delta = InventorySlots.diff(baseline.hashes(), slots);
+                                upserts = delta.upserts();
+                                for (InventorySlots.SlotKey key : delta.deletes()) {
+                                    deleteSlot.setBytes(1, MySqlSchemaMigrator.toBytes(playerUuid));
+                                    deleteSlot.setString(2, key.section());
+                                    deleteSlot.setInt(3, key.slot());
+                                    deleteSlot.addBatch();
+                                }
+                            } else {
+                                // 基準がない、または他のサーバーが書き込んだ後なので、全スロットを書き直す
+                                upserts = slots;
+                                deleteAllSlots.setBytes(1, MySqlSchemaMigrator.toBytes(playerUuid));
+                                deleteAllSlots.addBatch();
+                            }
+                            for (InventorySlots.Slot slot : upserts) {
+                                upsertSlot.setBytes(1, MySqlSchemaMigrator.toBytes(playerUuid));
+                                upsertSlot.setString(2, slot.key().section());
+                                upsertSlot.setInt(3, slot.key().slot());
+                                upsertSlot.setLong(4, slot.hash());
+                                upsertSlot.setBytes(5, slot.data());
+                                upsertSlot.addBatch();
+                            }
+                            // 書き込み後の版番号は UPSERT の GREATEST と同じ計算で求められる
+                            long newVersion = row != null ? Math.max(row.version() + 1, record.version()) : record.version();
+                            baselines.put(playerUuid, new SlotBaseline(newVersion, InventorySlots.hashes(slots)));
+                        }
+                        deleteAllSlots.executeBatch();
+                        deleteSlot.executeBatch();
+                        upsertSlot.executeBatch();
+                        upsertRow.executeBatch();
+                    }
+                    releaseLeases(connection, recordList);
+                    connection.commit();
+                    return baselines;
+                } catch (SQLException e) {
+                    try {
+                        connection.rollback();
+                    } catch (SQLException rollbackError) {
+                        e.addSuppressed(rollbackError);
+                    }
+                    throw e;
+                }
+            });
+        } catch (SQLException e) {
+            throw new StorageException(recordList.size() + " 件のインベントリの保存に失敗しました。", e);
+        }
+        for (InventoryRecord record : writeList) {
+            SlotBaseline baseline = written.get(record.playerUuid());
+            if (baseline == null || record.releaseLeaseToken() != null) {
+                // ログアウトしたプレイヤーの基準は保持しない（次のロード時に作り直す）
+                slotBaselines.remove(record.playerUuid());
+            } else {
+                slotBaselines.put(record.playerUuid(), baseline);
+            }
+        }
+        return lost;
+    }
+
+    /**
+     * 保存する行をロックし、現在の版番号・保存方式・引き継ぎロックの保持者を読み込みます。
+     * @return プレイヤーごとの行。行が存在しないプレイヤーは含まれません
+     */
+    private Map<UUID, LockedRow> lockRows(Connection connection, List<InventoryRecord> records) throws SQLException {
+        StringBuilder sql = new StringBuilder(LOCK_ROWS_SQL_PREFIX);
+        for (int i = 0; i < records.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(") FOR UPDATE;");
+        Map<UUID, LockedRow> rows = new HashMap<>();
+        try (PreparedStatement statement = prepare(connection, sql.toString())) {
+            for (int i = 0; i < records.size(); i++) {
+                statement.setBytes(i + 1, MySqlSchemaMigrator.toBytes(records.get(i).playerUuid()));
+            }
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    rows.put(MySqlSchemaMigrator.fromBytes(resultSet.getBytes("uuid")),
+                            new LockedRow(resultSet.getLong("version"), resultSet.getInt("storage_format"), resultSet.getString("lease_owner")));
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * 行のロックを他のサーバーが保持していて、レコードを書き込めないかを返します。行がない場合はロックもありません。
+     */
+    private static boolean isLeaseLost(LockedRow row, InventoryRecord record) {
+        return row != null && !InventoryLease.canWrite(row.leaseOwner(), record.leaseToken());
+    }
+
+    private static void addRowUpsert(PreparedStatement statement, InventoryRecord record, byte[] data, int storageFormat) throws SQLException {
+        statement.setBytes(1, MySqlSchemaMigrator.toBytes(record.playerUuid()));
+        statement.setBytes(2, data);
+        statement.setLong(3, record.version());
+        statement.setInt(4, storageFormat);
+        statement.setInt(5, storageFormat == STORAGE_FORMAT_SLOTS ? InventoryCodec.FORMAT_VERSION : InventoryCodec.formatId(data));
+        statement.addBatch();
+    }
+
+    private void releaseLeases(Connection connection, List<InventoryRecord> records) throws SQLException {
+        try (PreparedStatement statement = prepare(connection, RELEASE_LEASE_SQL)) {
+            boolean hasRelease = false;
+            for (InventoryRecord record : records) {
+                if (record.releaseLeaseToken() != null) {
+                    statement.setBytes(1, MySqlSchemaMigrator.toBytes(record.playerUuid()));
+                    statement.setString(2, record.releaseLeaseToken());
+                    statement.addBatch();
+                    hasRelease = true;
+                }
+            }
+            if (hasRelease) {
+                statement.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * スロット単位で保存された行はスロットから組み立てて返します。どちらの方式の行も1回のクエリで読み込みます。
+     */
+    @Override
+    public Optional<byte[]> load(UUID playerUuid) throws StorageException {
+        try {
+            // 行が存在しない場合は Optional.empty()、データが空の場合は長さ0の配列
+            return executeWithRetry(connection -> {
+                copyLegacyRowIfPending(connection, playerUuid);
+                try (PreparedStatement statement = prepare(connection, SELECT_INVENTORY_SQL)) {
+                    statement.setBytes(1, MySqlSchemaMigrator.toBytes(playerUuid));
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        if (!resultSet.next()) {
+                            return Optional.empty();
+                        }
+                        if (resultSet.getInt("storage_format") != STORAGE_FORMAT_SLOTS) {
+                            byte[] bytes = resultSet.getBytes("inventory_data");
+                            return Optional.of(bytes != null ? bytes : new byte[0]);
+                        }
+                        long version = resultSet.getLong("version");
+                        List<InventorySlots.Slot> slots = new ArrayList<>();
+                        do {
+                            String section = resultSet.getString("section");
+                            if (section != null) {
+                                slots.add(new InventorySlots.Slot(new InventorySlots.SlotKey(section, resultSet.getInt("slot")),
+                                        resultSet.getBytes("slot_data"), resultSet.getLong("slot_hash")));
+                            }
+                        } while (resultSet.next());
+                        return Optional.of(assembleSlots(playerUuid, version, slots));
+                    }
+                }
+            });
+        } catch (SQLException e) {
+            throw new StorageException("プレイヤー " + playerUuid + " のインベントリの読み込みに失敗しました。", e);
+        }
+    }
+
+    private byte[] assembleSlots(UUID playerUuid, long version, List<InventorySlots.Slot> slots) throws SQLException {
+        byte[] data;
+        try {
+            data = InventorySlots.join(slots);
+        } catch (IOException e) {
+            throw new SQLException("プレイヤー " + playerUuid + " のスロットからインベントリを組み立てられませんでした。", e);
+        }
+        if (LAYOUT_SLOTS.equalsIgnoreCase(config.mysqlStorageLayout)) {
+            slotBaselines.put(playerUuid, new SlotBaseline(version, InventorySlots.hashes(slots)));
+        }
+        return data;
+    }
+
+    /**
+     * スロット単位で保存された行はスロットから組み立てて返します。差分計算の基準は更新しません。
+     */
+    @Override
+    public List<InventoryRecord> scan(String after, int limit) throws StorageException {
+        if (legacyBackfillPending) {
+            throw new StorageException("旧テーブルの行を新しいテーブルに写し終えていません。完了するまでお待ちください。");
+        }
+        try {
+            return executeWithRetry(connection -> {
+                try (PreparedStatement statement = prepare(connection, SCAN_INVENTORIES_SQL)) {
+                    statement.setBytes(1, after != null ? MySqlSchemaMigrator.toBytes(UUID.fromString(after)) : new byte[0]);
+                    statement.setInt(2, limit);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        List<InventoryRecord> records = new ArrayList<>(limit);
+                        UUID currentUuid = null;
+                        byte[] currentData = null;
+                        long currentVersion = 0;
+                        List<InventorySlots.Slot> currentSlots = null;
+                        while (resultSet.next()) {
+                            UUID uuid = MySqlSchemaMigrator.fromBytes(resultSet.getBytes("uuid"));
+                            if (!uuid.equals(currentUuid)) {
+                                if (currentUuid != null) {
+                                    records.add(scannedRecord(currentUuid, currentData, currentVersion, currentSlots));
+                                }
+                                currentUuid = uuid;
+                                currentData = resultSet.getBytes("inventory_data");
+                                currentVersion = resultSet.getLong("version");
+                                currentSlots = resultSet.getInt("storage_format") == STORAGE_FORMAT_SLOTS ? new ArrayList<>() : null;
+                            }
+                            String section = resultSet.getString("section");
+                            if (currentSlots != null && section != null) {
+                                currentSlots.add(new InventorySlots.Slot(new InventorySlots.SlotKey(section, resultSet.getInt("slot")),
+                                        resultSet.getBytes("slot_data"), resultSet.getLong("slot_hash")));
+                            }
+                        }
+                        if (currentUuid != null) {
+                            records.add(scannedRecord(currentUuid, currentData, currentVersion, currentSlots));
+                        }
+                        return records;
+                    }
+                }
+            });
+        } catch (SQLException e) {
+            throw new StorageException("インベントリの一括読み込みに失敗しました（" + after + " 以降）。", e);
+        }
+    }
+
+    private static InventoryRecord scannedRecord(UUID playerUuid, byte[] data, long version, List<InventorySlots.Slot> slots) throws SQLException {
+        if (slots != null) {
+            try {
+                data = InventorySlots.join(slots);
+            } catch (IOException e) {
+                throw new SQLException("プレイヤー " + playerUuid + " のスロットからインベントリを組み立てられませんでした。", e);
+            }
+        }
+        return new InventoryRecord(playerUuid, data != null ? data : new byte[0], null, false, version);
+    }
+
+    @Override
+    public OptionalLong loadVersion(UUID playerUuid) throws StorageException {
+        try {
+            return executeWithRetry(connection -> {
+                copyLegacyRowIfPending(connection, playerUuid);
+                try (PreparedStatement statement = prepare(connection, SELECT_VERSION_SQL)) {
+                    statement.setBytes(1, MySqlSchemaMigrator.toBytes(playerUuid));
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        return resultSet.next() ? OptionalLong.of(resultSet.getLong("version")) : OptionalLong.empty();
+                    }
+                }
+            });
+        } catch (SQLException e) {
+            throw new StorageException("プレイヤー " + playerUuid + " の版番号の読み込みに失敗しました。", e);
+        }
+    }
+
+    @Override
+    public boolean isShared() {
+        return true;
+    }
+
+    @Override
+    public void delete(UUID playerUuid) throws StorageException {
+        try {
+            executeWithRetry(connection -> {
+                if (legacyCopyPending) {
+                    try (PreparedStatement statement = prepare(connection, DELETE_LEGACY_SLOTS_SQL)) {
+                        statement.setString(1, playerUuid.toString());
+                        statement.executeUpdate();
+                    }
+                    try (PreparedStatement statement = prepare(connection, DELETE_LEGACY_INVENTORY_SQL)) {
+                        statement.setString(1, playerUuid.toString());
+                        statement.executeUpdate();
+                    }
+                }
+                try (PreparedStatement statement = prepare(connection, DELETE_ALL_SLOTS_SQL)) {
+                    statement.setBytes(1, MySqlSchemaMigrator.toBytes(playerUuid));
+                    statement.executeUpdate();
+                }
+                try (PreparedStatement statement = prepare(connection, DELETE_INVENTORY_SQL)) {
+                    statement.setBytes(1, MySqlSchemaMigrator.toBytes(playerUuid));
+                    return statement.executeUpdate();
+                }
+            });
+            slotBaselines.remove(playerUuid);
+        } catch (SQLException e) {
+            throw new StorageException("プレイヤー " + playerUuid + " のインベントリの削除に失敗しました。", e);
+        }
+    }
+
+    /**
+     * ロックが解放されている、期限切れである、またはこのサーバー自身が保持している場合に取得できます。
+     * 行が存在しない（初めてのプレイヤー）場合は、空のデータとロックを持つ行を作成します。
+     */
+    @Override
+    public boolean tryAcquireLease(UUID playerUuid, String leaseToken, int leaseSeconds) throws StorageException {
+        String serverId = leaseToken.substring(0, leaseToken.indexOf(':'));
+        try {
+            return executeWithRetry(connection -> {
+                // 旧テーブルにしか行がないプレイヤーに、空のデータの行を作らないよう先に写す
+                copyLegacyRowIfPending(connection, playerUuid);
+                try (PreparedStatement statement = prepare(connection, ACQUIRE_LEASE_SQL)) {
+                    statement.setString(1, leaseToken);
+                    statement.setInt(2, leaseSeconds);
+                    statement.setBytes(3, MySqlSchemaMigrator.toBytes(playerUuid));
+                    statement.setString(4, serverId);
+                    if (statement.executeUpdate() > 0) {
+                        return true;
+                    }
+                }
+                try (PreparedStatement statement = prepare(connection, INSERT_LEASED_ROW_SQL)) {
+                    statement.setBytes(1, MySqlSchemaMigrator.toBytes(playerUuid));
+                    statement.setBytes(2, new byte[0]);
+                    statement.setString(3, leaseToken);
+                    statement.setInt(4, leaseSeconds);
+                    return statement.executeUpdate() > 0;
+                }
+            });
+        } catch (SQLException e) {
+            throw new StorageException("プレイヤー " + playerUuid + " の引き継ぎロックの取得に失敗しました。", e);
+        }
+    }
+
+    @Override
+    public void renewLeases(Map<UUID, String> leases, int leaseSeconds) throws StorageException {
+        if (leases.isEmpty()) {
+            return;
+        }
+        try {
+            executeWithRetry(connection -> {
+                try (PreparedStatement statement = prepare(connection, RENEW_LEASE_SQL)) {
+                    for (Map.Entry<UUID, String> lease : leases.entrySet()) {
+                        statement.setInt(1, leaseSeconds);
+                        statement.setBytes(2, MySqlSchemaMigrator.toBytes(lease.getKey()));
+                        statement.setString(3, lease.getValue());
+                        statement.addBatch();
+                    }
+                    return statement.executeBatch();
+                }
+            });
+        } catch (SQLException e) {
+            throw new StorageException(leases.size() + " 件の引き継ぎロックの延長に失敗しました。", e);
+        }
+    }
+
+    @Override
+    public void releaseLeases(Map<UUID, String> leases) throws StorageException {
+        if (leases.isEmpty()) {
+            return;
+        }
+        try {
+            executeWithRetry(connection -> {
+                try (PreparedStatement statement = prepare(connection, RELEASE_LEASE_SQL)) {
+                    for (Map.Entry<UUID, String> lease : leases.entrySet()) {
+                        statement.setBytes(1, MySqlSchemaMigrator.toBytes(lease.getKey()));
+                        statement.setString(2, lease.getValue());
+                        statement.addBatch();
+                    }
+                    return statement.executeBatch();
+                }
+            });
+        } catch (SQLException e) {
+            throw new StorageException(leases.size() + " 件の引き継ぎロックの解放に失敗しました。", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (backfillThread != null) {
+            backfillThread.interrupt();
+        }
+        if (dataSource != null) {
+            dataSource.close();
+            Fabsyncmod.LOGGER.info("MySQLデータベース接続を閉じました。");
+        }
+    }
+
+    /**
+     * プールから接続を借ります。使用後は必ず close() してプールに返却してください。
+     */
+    public Connection getConnection() throws SQLException {
+        if (dataSource == null) {
+            throw new SQLException("コネクションプールが初期化されていません。");
+        }
+        return dataSource.getConnection();
+    }
+}
@@ -1,7 +1,14 @@
 package net.simohaya;
 
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.player.AttackBlockCallback;
+import net.fabricmc.fabric.api.event.player.AttackEntityCallback;
+import net.fabricmc.fabric.api.event.player.UseBlockCallback;
+import net.fabricmc.fabric.api.event.player.UseEntityCallback;
+import net.fabricmc.fabric.api.event.player.UseItemCallback;
+import net.minecraft.entity.player.PlayerEntity;
 import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.util.ActionResult;
 import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents; // このインポートが必要です
 
 public class PlayerEventHandler {
@@ -21,16 +28,35 @@ public class PlayerEventHandler {
         // ServerPlayConnectionEvents.JOIN を使用してプレイヤーの接続イベントを処理します。
         ServerPlayConnectionEvents.JOIN.register((handler, sender, server) -> {
             // handler.player で ServerPlayerEntity を取得できます。
-            Fabsyncmod.LOGGER.info(handler.player.getName().getString() + " がログインしました。インベントリをロード中...");
-            InventorySync.loadPlayerInventory(handler.player);
+            Fabsyncmod.LOGGER.debug(handler.player.getName().getString() + " がログインしました。インベントリをロード中...");
+            // DBアクセスとデコードは別スレッドで行い、適用されるまでインベントリをロックする
+            InventorySync.loadPlayerInventoryAsync(handler.player, server);
         });
 
         // ★ 修正済み：プレイヤーがサーバーから切断（ログアウト）した際のイベント
         // ServerPlayConnectionEvents.DISCONNECT を使用してプレイヤーの切断イベントを処理します。
         ServerPlayConnectionEvents.DISCONNECT.register((handler, server) -> {
             // handler.player で ServerPlayerEntity を取得できます。
-            Fabsyncmod.LOGGER.info(handler.player.getName().getString() + " がログアウトしました。インベントリを保存中...");
-            InventorySync.savePlayerInventory(handler.player);
+            if (InventorySync.cancelPendingLoad(handler.player.getUuid())) {
+                InventoryChangeTracker.forget(handler.player.getUuid());
+                // ロードが適用される前に切断した場合、現在のインベントリは本来の内容ではないため保存しない
+                Fabsyncmod.LOGGER.info(handler.player.getName().getString() + " がインベントリのロード完了前にログアウトしました。保存をスキップします。");
+                return;
+            }
+            Fabsyncmod.LOGGER.debug(handler.player.getName().getString() + " がログアウトしました。インベントリを保存中...");
+            // 書き込みと同時に引き継ぎロックを解放し、移動先のサーバーがロードできるようにする（変更検出の基準の破棄も行う）
+            InventorySync.savePlayerInventoryOnLogout(handler.player);
         });
+
+        // インベントリのロード待ちの間は、アイテムの使用やブロック・エンティティへの操作を拒否する
+        UseItemCallback.EVENT.register((player, world, hand) -> rejectIfLocked(player));
+        UseBlockCallback.EVENT.register((player, world, hand, hitResult) -> rejectIfLocked(player));
+        UseEntityCallback.EVENT.register((player, world, hand, entity, hitResult) -> rejectIfLocked(player));
+        AttackBlockCallback.EVENT.register((player, world, hand, pos, direction) -> rejectIfLocked(player));
+        AttackEntityCallback.EVENT.register((player, world, hand, entity, hitResult) -> rejectIfLocked(player));
+    }
+
+    private static ActionResult rejectIfLocked(PlayerEntity player) {
+        return InventorySync.isInventoryLocked(player.getUuid()) ? ActionResult.FAIL : ActionResult.PASS;
     }
 }
\ No newline at end of file
@@ -0,0 +1,422 @@
+package net.simohaya;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * 保存のローカル先行書き込みジャーナル（write-ahead journal）。
+ * 書き込みスレッドはエンコードしたデータをまずこのジャーナルに追記して fsync し、その後で保存先（MySQLなど）に書き込みます。
+ * 保存先への書き込みに失敗しても、データはジャーナルに残り、バックグラウンドの再送スレッドが保存先に書き込めるまで再試行します。
+ * サーバーが停止・クラッシュした場合も、次回の起動時にプレイヤーのロードより先に再送します。
+ *
+ * <p>ファイルはレコードの追記のみで、各レコードはCRC32で保護されます。
+ * DATA レコードはエンコード済みのデータ、FLUSHED レコードはそのシーケンス番号のデータが保存先に書き込まれたことを表します。
+ * 未反映のデータがなくなった時点でファイルを空にし、未反映のまま大きくなった場合は未反映分だけを書き直して圧縮します。
+ *
+ * <p>保存先に未反映のデータがあるプレイヤーのロードでは、保存先よりもジャーナルの内容を優先します。
+ */
+public class SaveJournal {
+
+    private static final String JOURNAL_FILE_NAME = "save-journal.log";
+    // レコードの形式（数値はビッグエンディアン）:
+    //   共通部   種類(1) シーケンス番号(8) UUID(16)
+    //   DATA     共通部 版番号(8) フラグ(1) トークンの長さ(2) トークン(UTF-8) データの長さ(4) データ CRC32(4)
+    //   FLUSHED  共通部 CRC32(4)
+    // CRC32 はその前の全てのバイトから計算する。トークンは引き継ぎロックのトークンで、フラグはそのロックを解放するかを表す
+    private static final byte RECORD_FLUSHED = 2;
+    private static final byte RECORD_DATA = 4;
+    private static final int RECORD_HEADER_BYTES = 1 + 8 + 16;
+    private static final int RECORD_DATA_FIXED_BYTES = 8 + 1 + 2 + 4;
+    private static final int FLAG_RELEASE_LEASE = 1;
+    private static final int RECORD_CRC_BYTES = 4;
+    // 未反映のデータが残ったままファイルがこの大きさを超えたら、未反映分だけを書き直す
+    private static final long COMPACT_THRESHOLD_BYTES = 64L * 1024 * 1024;
+    // 再送時に1回の一括保存にまとめる最大件数
+    private static final int REPLAY_BATCH_SIZE = 500;
+    private static final int MAX_RECORD_DATA_BYTES = 16 * 1024 * 1024;
+
+    private static final Object FILE_LOCK = new Object();
+    private static final Object FLUSH_LOCK = new Object();
+    // 保存先に未反映の、プレイヤーごとの最新のデータ
+    private static final Map<UUID, Entry> unflushed = new ConcurrentHashMap<>();
+
+    private static Path journalFile;
+    private static FileChannel channel;
+    private static long nextSequence;
+    private static ScheduledExecutorService replayExecutor;
+    // 直前の保存先への書き込みが失敗したか。失敗中は書き込みスレッドは追記だけを行い、再送を再送スレッドに任せる
+    private static volatile boolean degraded = false;
+
+    private record Entry(long sequence, UUID playerUuid, InventoryRecord record) {
+    }
+
+    /**
+     * ジャーナルを開き、前回の実行で保存先に反映されなかったデータを読み込みます。
+     * 末尾に書き込み途中の壊れたレコードがある場合は切り詰めます。
+     * @param directory ジャーナルファイルを置くディレクトリ
+     */
+    public static void open(Path directory) throws IOException {
+        synchronized (FILE_LOCK) {
+            Files.createDirectories(directory);
+            journalFile = directory.resolve(JOURNAL_FILE_NAME);
+            long validLength = Files.exists(journalFile) ? readJournal(journalFile) : 0;
+            channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() > validLength) {
+                Fabsyncmod.LOGGER.warn("ジャーナルの末尾に不完全なレコードがあったため、" + (channel.size() - validLength) + " バイトを切り詰めました。");
+                channel.truncate(validLength);
+                channel.force(true);
+            }
+            channel.position(validLength);
+        }
+        if (!unflushed.isEmpty()) {
+            Fabsyncmod.LOGGER.warn("ジャーナルに保存先へ未反映のインベントリが " + unflushed.size() + " 件あります。");
+        }
+    }
+
+    private static long readJournal(Path file) throws IOException {
+        long validLength = 0;
+        CRC32 crc = new CRC32();
+        try (InputStream fileInput = new BufferedInputStream(Files.newInputStream(file))) {
+            CheckedInputStream checked = new CheckedInputStream(fileInput, crc);
+            DataInputStream checkedInput = new DataInputStream(checked);
+            DataInputStream rawInput = new DataInputStream(fileInput);
+            while (true) {
+                crc.reset();
+                long recordLength;
+                Entry entry;
+                byte type;
+                try {
+                    type = checkedInput.readByte();
+                    long sequence = checkedInput.readLong();
+                    UUID playerUuid = new UUID(checkedInput.readLong(), checkedInput.readLong());
+                    recordLength = RECORD_HEADER_BYTES;
+                    if (type == RECORD_DATA) {
+                        long version = checkedInput.readLong();
+                        int flags = checkedInput.readUnsignedByte();
+                        int tokenLength = checkedInput.readUnsignedShort();
+                        String token = null;
+                        if (tokenLength > 0) {
+                            byte[] tokenBytes = checkedInput.readNBytes(tokenLength);
+                            if (tokenBytes.length < tokenLength) {
+                                break;
+                            }
+                            token = new String(tokenBytes, StandardCharsets.UTF_8);
+                        }
+                        int dataLength = checkedInput.readInt();
+                        if (dataLength < 0 || dataLength > MAX_RECORD_DATA_BYTES) {
+                            break;
+                        }
+                        byte[] data = checkedInput.readNBytes(dataLength);
+                        if (data.length < dataLength) {
+                            break;
+                        }
+                        recordLength += RECORD_DATA_FIXED_BYTES + tokenLength + dataLength;
+                        entry = new Entry(sequence, playerUuid, new InventoryRecord(playerUuid, data, token, (flags & FLAG_RELEASE_LEASE) != 0, version));
+                    } else if (type == RECORD_FLUSHED) {
+                        entry = new Entry(sequence, playerUuid, null);
+                    } else {
+                        break;
+                    }
+                    long expectedCrc = crc.getValue();
+                    if ((rawInput.readInt() & 0xFFFFFFFFL) != expectedCrc) {
+                        break;
+                    }
+                    recordLength += RECORD_CRC_BYTES;
+                } catch (EOFException e) {
+                    break;
+                }
+
+                if (entry.record() != null) {
+                    unflushed.put(entry.playerUuid(), entry);
+                } else {
+                    unflushed.computeIfPresent(entry.playerUuid(), (uuid, current) -> current.sequence() == entry.sequence() ? null : current);
+                }
+                nextSequence = Math.max(nextSequence, entry.sequence() + 1);
+                validLength += recordLength;
+            }
+        }
+        return validLength;
+    }
+
+    /**
+     * ジャーナルが開かれているかを返します。
+     */
+    public static boolean isOpen() {
+        return channel != null;
+    }
+
+    /**
+     * エンコード済みのデータをジャーナルに追記し、fsync します。
+     * @return 追記に成功した場合 true。ジャーナルが開かれていない場合や書き込みに失敗した場合は false
+     */
+    public static boolean append(Collection<InventoryRecord> records) {
+        if (records.isEmpty()) {
+            return true;
+        }
+        synchronized (FILE_LOCK) {
+            if (channel == null) {
+                return false;
+            }
+            List<Entry> entries = new ArrayList<>(records.size());
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            long start = -1;
+            try {
+                long startNanos = System.nanoTime();
+                start = channel.position();
+                for (InventoryRecord record : records) {
+                    Entry entry = new Entry(nextSequence++, record.playerUuid(), record);
+                    writeRecord(buffer, RECORD_DATA, entry);
+                    entries.add(entry);
+                }
+                writeFully(buffer.toByteArray());
+                channel.force(false);
+                SyncMetrics.JOURNAL_APPEND.record(System.nanoTime() - startNanos);
+            } catch (IOException e) {
+                Fabsyncmod.LOGGER.error("ジャーナルへの追記に失敗しました。", e);
+                // 書きかけのレコードの後ろに追記すると、次回の起動時にそれ以降を読み込めなくなるため切り詰める
+                if (start >= 0) {
+                    try {
+                        channel.truncate(start);
+                        channel.position(start);
+                    } catch (IOException truncateError) {
+                        e.addSuppressed(truncateError);
+                    }
+                }
+                return false;
+            }
+            for (Entry entry : entries) {
+                unflushed.put(entry.playerUuid(), entry);
+            }
+            return true;
+        }
+    }
+
+    private static void writeRecord(ByteArrayOutputStream buffer, byte type, Entry entry) throws IOException {
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(recordBytes);
+        output.writeByte(type);
+        output.writeLong(entry.sequence());
+        output.writeLong(entry.playerUuid().getMostSignificantBits());
+        output.writeLong(entry.playerUuid().getLeastSignificantBits());
+        if (type == RECORD_DATA) {
+            InventoryRecord record = entry.record();
+            byte[] token = record.leaseToken() != null ? record.leaseToken().getBytes(StandardCharsets.UTF_8) : new byte[0];
+            output.writeLong(record.version());
+            output.writeByte(record.releaseLease() ? FLAG_RELEASE_LEASE : 0);
+            output.writeShort(token.length);
+            output.write(token);
+            output.writeInt(record.data().length);
+            output.write(record.data());
+        }
+        output.flush();
+        CRC32 crc = new CRC32();
+        crc.update(recordBytes.toByteArray());
+        output.writeInt((int) crc.getValue());
+        output.flush();
+        recordBytes.writeTo(buffer);
+    }
+
+    private static void writeFully(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * 保存先に未反映のデータがあれば、そのデータを返します。ロード時に保存先より優先して使用します。
+     */
+    public static Optional<byte[]> getUnflushed(UUID playerUuid) {
+        Entry entry = unflushed.get(playerUuid);
+        return entry != null ? Optional.of(entry.record().data()) : Optional.empty();
+    }
+
+    /**
+     * 保存先に未反映のデータの版番号を返します。未反映のデータがない場合は empty。
+     */
+    public static OptionalLong getUnflushedVersion(UUID playerUuid) {
+        Entry entry = unflushed.get(playerUuid);
+        return entry != null ? OptionalLong.of(entry.record().version()) : OptionalLong.empty();
+    }
+
+    /**
+     * 保存先に未反映のデータの件数を返します。
+     */
+    public static int getUnflushedCount() {
+        return unflushed.size();
+    }
+
+    /**
+     * 直前の保存先への書き込みが失敗しているかを返します。この間、書き込みスレッドは保存先への書き込みを再送スレッドに任せます。
+     */
+    public static boolean isDegraded() {
+        return degraded;
+    }
+
+    /**
+     * 未反映のデータを保存先に書き込み、成功した分を反映済みとして記録します。
+     * 書き込みスレッドと再送スレッドの両方から呼び出されるため、同時には1つだけ実行されます。
+     * @return 全ての未反映データを書き込めた場合 true
+     */
+    public static boolean flush() {
+        synchronized (FLUSH_LOCK) {
+            List<Entry> entries = new ArrayList<>(unflushed.values());
+            for (int start = 0; start < entries.size(); start += REPLAY_BATCH_SIZE) {
+                List<Entry> batch = entries.subList(start, Math.min(start + REPLAY_BATCH_SIZE, entries.size()));
+                List<InventoryRecord> records = new ArrayList<>(batch.size());
+                for (Entry entry : batch) {
+                    records.add(entry.record());
+                }
+                if (!DatabaseManager.saveInventories(records)) {
+                    if (!degraded) {
+                        Fabsyncmod.LOGGER.warn("保存先に書き込めないため、以後の保存はジャーナルに蓄積し、" + getReplayIntervalSeconds() + " 秒ごとに再送します。");
+                    }
+                    degraded = true;
+                    return false;
+                }
+                markFlushed(batch);
+            }
+            if (degraded) {
+                Fabsyncmod.LOGGER.info("ジャーナルに蓄積していた保存を全て保存先に書き込みました。");
+            }
+            degraded = false;
+            return true;
+        }
+    }
+
+    private static void markFlushed(List<Entry> entries) {
+        synchronized (FILE_LOCK) {
+            for (Entry entry : entries) {
+                // 書き込み中に同じプレイヤーの新しいデータが追記されていれば、そちらは未反映のまま残る
+                unflushed.remove(entry.playerUuid(), entry);
+            }
+            if (channel == null) {
+                return;
+            }
+            try {
+                if (unflushed.isEmpty()) {
+                    // 全て反映済みになったので、ジャーナルを空にする
+                    channel.truncate(0);
+                    channel.position(0);
+                    channel.force(true);
+                    return;
+                }
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                for (Entry entry : entries) {
+                    writeRecord(buffer, RECORD_FLUSHED, entry);
+                }
+                writeFully(buffer.toByteArray());
+                channel.force(false);
+                if (channel.size() > COMPACT_THRESHOLD_BYTES) {
+                    compact();
+                }
+            } catch (IOException e) {
+                // 反映済みの記録が残らなくても、次回の起動時に同じ内容を再送するだけで済む
+                Fabsyncmod.LOGGER.warn("ジャーナルへの反映済みの記録に失敗しました。", e);
+            }
+        }
+    }
+
+    /**
+     * 未反映のデータだけを新しいファイルに書き直し、アトミックに置き換えます。FILE_LOCK を保持した状態で呼び出してください。
+     */
+    private static void compact() throws IOException {
+        Path temp = journalFile.resolveSibling(JOURNAL_FILE_NAME + ".compact");
+        try (FileChannel compacted = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            for (Entry entry : unflushed.values()) {
+                writeRecord(buffer, RECORD_DATA, entry);
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+            while (bytes.hasRemaining()) {
+                compacted.write(bytes);
+            }
+            compacted.force(true);
+        }
+        long before = channel.size();
+        channel.close();
+        try {
+            Files.move(temp, journalFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, journalFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        channel = FileChannel.open(journalFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        Fabsyncmod.LOGGER.info("ジャーナルを圧縮しました（" + before + " → " + channel.size() + " バイト、未反映 " + unflushed.size() + " 件）。");
+    }
+
+    /**
+     * 未反映のデータを定期的に保存先へ再送するスレッドを開始します。
+     */
+    public static void startReplayer() {
+        int intervalSeconds = getReplayIntervalSeconds();
+        replayExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Fabsyncmod-Journal-Replayer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        replayExecutor.scheduleWithFixedDelay(() -> {
+            if (!unflushed.isEmpty()) {
+                flush();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private static int getReplayIntervalSeconds() {
+        ConfigManager.ConfigData config = ConfigManager.getConfig();
+        return config != null ? config.journalReplayIntervalSeconds : 5;
+    }
+
+    /**
+     * 再送スレッドを停止し、最後にもう一度未反映のデータの書き込みを試みてからジャーナルを閉じます。
+     * 書き込めなかったデータはファイルに残り、次回の起動時に再送されます。
+     * 閉じた後はメモリ上の未反映のデータを保持せず、次に開いた時にファイルから読み込み直します。
+     */
+    public static void close() {
+        if (replayExecutor != null) {
+            replayExecutor.shutdownNow();
+        }
+        if (!unflushed.isEmpty() && !flush()) {
+            Fabsyncmod.LOGGER.error("保存先に書き込めなかった " + unflushed.size() + " 件のインベントリをジャーナルに残しました。次回の起動時に再送します。");
+        }
+        synchronized (FILE_LOCK) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    Fabsyncmod.LOGGER.warn("ジャーナルのクローズに失敗しました。", e);
+                }
+                channel = null;
+            }
+            unflushed.clear();
+            nextSequence = 0;
+            degraded = false;
+        }
+    }
+}
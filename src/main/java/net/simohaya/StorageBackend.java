@@ -0,0 +1,90 @@
+package net.simohaya;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.UUID;
+
+/**
+ * エンコード済みのプレイヤーデータの保存先。{@link DatabaseManager} はこのインターフェースを通してのみ保存先にアクセスします。
+ * 使用する実装は SyncConf.json の storageBackend で選択します（"mysql" または "local"）。
+ *
+ * <p>実装はどのスレッドからも同時に呼び出される可能性があるため、スレッドセーフでなければなりません。
+ * データのエンコード・デコードは呼び出し側で行うため、実装はバイト列をそのまま保存・返却するだけです。
+ */
+public interface StorageBackend {
+
+    /**
+     * ログやコマンドで表示する保存先の名前。
+     */
+    String getName();
+
+    /**
+     * 保存先に接続し、必要なテーブルやディレクトリを作成します。他のメソッドより先に1回だけ呼び出されます。
+     */
+    void open() throws StorageException;
+
+    /**
+     * 複数プレイヤーのデータをまとめて保存または更新します。
+     * 可能な実装では全件を1つのトランザクションで書き込み、引き継ぎロックの解放（{@link InventoryRecord#releaseLeaseToken()}）も同時に行います。
+     * 他のサーバーに引き継ぎロックが移っているプレイヤーのデータ（{@link InventoryLease#canWrite}）は書き込みません。
+     * @return ロックを失っていたため書き込まなかったレコード。全件を書き込んだ場合は空のリスト
+     */
+    List<InventoryRecord> saveBatch(Collection<InventoryRecord> records) throws StorageException;
+
+    /**
+     * プレイヤーのデータを読み込みます。
+     * @return 保存データ。存在しない場合は Optional.empty()、引き継ぎロックの取得時に作られた未保存の行の場合は長さ0の配列
+     */
+    Optional<byte[]> load(UUID playerUuid) throws StorageException;
+
+    /**
+     * 全プレイヤーのデータを、UUIDの文字列表現の順に少しずつ読み込みます（キーセット方式のページング）。
+     * 移行やバックアップ（{@link InventoryMigration}）で、全件を一度にメモリに載せずに読み込むために使用します。
+     * @param after このUUID（文字列表現）より後のデータから読み込みます。先頭から読み込む場合は null
+     * @param limit 読み込む最大件数
+     * @return UUIDの順に並んだデータ。件数が limit 未満の場合は最後まで読み込んだことを示します。
+     *         引き継ぎロックの取得時に作られた未保存の行は、データが長さ0の配列になります
+     */
+    List<InventoryRecord> scan(String after, int limit) throws StorageException;
+
+    /**
+     * 最後に書き込まれたデータの版番号だけを読み込みます。データ本体を転送しないため、キャッシュの検証に使用します。
+     * @return 版番号。データが存在しない場合は empty
+     */
+    OptionalLong loadVersion(UUID playerUuid) throws StorageException;
+
+    /**
+     * 複数のサーバーで共有される保存先かを返します。共有されない場合、このサーバー以外が書き込むことはありません。
+     */
+    boolean isShared();
+
+    /**
+     * プレイヤーのデータを削除します。存在しない場合は何もしません。
+     */
+    void delete(UUID playerUuid) throws StorageException;
+
+    /**
+     * プレイヤーの引き継ぎロックの取得を1回だけ試みます（{@link InventoryLease} を参照）。
+     * 複数のサーバーで共有されない保存先では常に取得できます。
+     * @return 取得できた場合 true、他のサーバーが保持している場合 false
+     */
+    boolean tryAcquireLease(UUID playerUuid, String leaseToken, int leaseSeconds) throws StorageException;
+
+    /**
+     * 保持している引き継ぎロックの期限をまとめて延長します。
+     */
+    void renewLeases(Map<UUID, String> leases, int leaseSeconds) throws StorageException;
+
+    /**
+     * 引き継ぎロックをまとめて解放します。トークンが一致しないロックは変更しません。
+     */
+    void releaseLeases(Map<UUID, String> leases) throws StorageException;
+
+    /**
+     * 保存先への接続を閉じます。
+     */
+    void close();
+}
@@ -0,0 +1,15 @@
+package net.simohaya;
+
+/**
+ * 保存先（{@link StorageBackend}）へのアクセスに失敗したことを表す例外。
+ */
+public class StorageException extends Exception {
+
+    public StorageException(String message) {
+        super(message);
+    }
+
+    public StorageException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,303 @@
+package net.simohaya;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.mojang.authlib.GameProfile;
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.LongArgumentType;
+import com.mojang.brigadier.arguments.StringArgumentType;
+import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
+import net.minecraft.command.argument.GameProfileArgumentType;
+import net.minecraft.server.command.CommandManager;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.text.Text;
+
+/**
+ * 管理用の /syncmod コマンドを登録します。権限レベル2（オペレーター）以上で使用できます。
+ * <ul>
+ *   <li>/syncmod stats: 同期処理の計測値（{@link SyncMetrics}）を表示します。</li>
+ *   <li>/syncmod reload: SyncConf.json を読み込み直して適用します（{@link ConfigReloader}）。</li>
+ *   <li>/syncmod history &lt;プレイヤー&gt;: プレイヤーのインベントリの履歴（{@link InventoryHistory}）を新しい順に表示します。</li>
+ *   <li>/syncmod restore &lt;プレイヤー&gt; &lt;版番号&gt;: プレイヤーのインベントリを履歴の時点の状態に戻します。</li>
+ *   <li>/syncmod migrate export|import|copy|reencode|status|cancel|discard: 保存データの一括移行（{@link InventoryMigration}）を行います。</li>
+ * </ul>
+ */
+public class SyncCommands {
+
+    private static final int PERMISSION_LEVEL = 2;
+    private static final int HISTORY_LIST_LIMIT = 20;
+    private static final DateTimeFormatter HISTORY_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    public static void register() {
+        CommandRegistrationCallback.EVENT.register((dispatcher, registryAccess, environment) -> registerCommands(dispatcher));
+    }
+
+    private static void registerCommands(CommandDispatcher<ServerCommandSource> dispatcher) {
+        dispatcher.register(CommandManager.literal("syncmod")
+                .requires(source -> source.hasPermissionLevel(PERMISSION_LEVEL))
+                .then(CommandManager.literal("stats").executes(SyncCommands::showStats))
+                .then(CommandManager.literal("reload").executes(SyncCommands::reloadConfig))
+                .then(CommandManager.literal("history")
+                        .then(CommandManager.argument("player", GameProfileArgumentType.gameProfile())
+                                .executes(SyncCommands::showHistory)))
+                .then(CommandManager.literal("restore")
+                        .then(CommandManager.argument("player", GameProfileArgumentType.gameProfile())
+                                .then(CommandManager.argument("version", LongArgumentType.longArg(0))
+                                        .executes(SyncCommands::restoreHistory))))
+                .then(CommandManager.literal("migrate")
+                        .then(CommandManager.literal(InventoryMigration.MODE_EXPORT)
+                                .then(CommandManager.argument("file", StringArgumentType.word())
+                                        .executes(context -> startMigration(context, InventoryMigration.MODE_EXPORT, StringArgumentType.getString(context, "file")))))
+                        .then(CommandManager.literal(InventoryMigration.MODE_IMPORT)
+                                .then(CommandManager.argument("file", StringArgumentType.word())
+                                        .executes(context -> startMigration(context, InventoryMigration.MODE_IMPORT, StringArgumentType.getString(context, "file")))))
+                        .then(CommandManager.literal(InventoryMigration.MODE_COPY)
+                                .then(CommandManager.argument("backend", StringArgumentType.word())
+                                        .executes(context -> startMigration(context, InventoryMigration.MODE_COPY, StringArgumentType.getString(context, "backend")))))
+                        .then(CommandManager.literal(InventoryMigration.MODE_REENCODE)
+                                .executes(context -> startMigration(context, InventoryMigration.MODE_REENCODE, null)))
+                        .then(CommandManager.literal("status").executes(SyncCommands::showMigrationStatus))
+                        .then(CommandManager.literal("cancel").executes(SyncCommands::cancelMigration))
+                        .then(CommandManager.literal("discard").executes(SyncCommands::discardMigration))));
+    }
+
+    private static int reloadConfig(CommandContext<ServerCommandSource> context) {
+        ServerCommandSource source = context.getSource();
+        ConfigReloader.reload(source.getServer()).whenComplete((message, error) -> source.getServer().execute(() -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                Fabsyncmod.LOGGER.warn("設定の再読み込みを拒否しました。現在の設定のまま動作します: " + cause.getMessage());
+                source.sendError(Text.literal("設定を再読み込みできませんでした。現在の設定のまま動作します: " + cause.getMessage()));
+            } else {
+                feedback(source, message);
+            }
+        }));
+        return 1;
+    }
+
+    private static int showHistory(CommandContext<ServerCommandSource> context) throws CommandSyntaxException {
+        ServerCommandSource source = context.getSource();
+        GameProfile profile = getSingleProfile(context);
+        if (profile == null) {
+            return 0;
+        }
+        if (!InventoryHistory.isEnabled()) {
+            source.sendError(Text.literal("履歴の記録が有効になっていません（SyncConf.json の historyEnabled）。"));
+            return 0;
+        }
+        InventoryHistory.list(profile.getId()).whenComplete((entries, error) -> source.getServer().execute(() -> {
+            if (error != null) {
+                source.sendError(Text.literal("履歴を読み込めませんでした: " + error.getMessage()));
+                return;
+            }
+            if (entries.isEmpty()) {
+                feedback(source, profile.getName() + " の履歴はありません。");
+                return;
+            }
+            feedback(source, "§e=== " + profile.getName() + " の履歴（" + entries.size() + " 件、新しい順）===");
+            for (int i = entries.size() - 1; i >= Math.max(0, entries.size() - HISTORY_LIST_LIMIT); i--) {
+                InventoryHistory.Entry entry = entries.get(i);
+                feedback(source, entry.version() + "  " + HISTORY_TIME_FORMAT.format(Instant.ofEpochMilli(entry.timeMillis()))
+                        + "  変更 " + entry.changedSlots() + " スロット" + (entry.checkpoint() ? "  [チェックポイント]" : ""));
+            }
+        }));
+        return 1;
+    }
+
+    /**
+     * 履歴の時点の状態に戻します。このサーバーにオンラインのプレイヤーには直接適用して保存し、
+     * オフラインのプレイヤーは引き継ぎロックを取得してから、通常の保存と同じく書き込みキューとジャーナルを通して書き換えます。
+     * 他のサーバーにオンラインでロックが保持されている場合は実行しません。
+     */
+    private static int restoreHistory(CommandContext<ServerCommandSource> context) throws CommandSyntaxException {
+        ServerCommandSource source = context.getSource();
+        GameProfile profile = getSingleProfile(context);
+        if (profile == null) {
+            return 0;
+        }
+        if (!InventoryHistory.isEnabled()) {
+            source.sendError(Text.literal("履歴の記録が有効になっていません（SyncConf.json の historyEnabled）。"));
+            return 0;
+        }
+        UUID playerUuid = profile.getId();
+        long version = LongArgumentType.getLong(context, "version");
+        InventoryHistory.reconstruct(playerUuid, version).whenComplete((data, error) -> source.getServer().execute(() -> {
+            if (error != null) {
+                source.sendError(Text.literal("履歴を読み込めませんでした: " + error.getMessage()));
+            } else if (data == null) {
+                source.sendError(Text.literal(profile.getName() + " の履歴に版番号 " + version + " はありません。"));
+            } else {
+                restore(source, profile, data, version);
+            }
+        }));
+        return 1;
+    }
+
+    private static void restore(ServerCommandSource source, GameProfile profile, byte[] data, long version) {
+        UUID playerUuid = profile.getId();
+        if (InventorySync.isInventoryLocked(playerUuid)) {
+            source.sendError(Text.literal(profile.getName() + " のインベントリはロード中です。しばらくしてから再度実行してください。"));
+            return;
+        }
+        ServerPlayerEntity player = source.getServer().getPlayerManager().getPlayer(playerUuid);
+        if (player != null) {
+            InventorySnapshot snapshot;
+            try {
+                snapshot = InventoryCodec.decode(playerUuid, data, DatabaseManager.getRegistryLookup());
+            } catch (IOException e) {
+                source.sendError(Text.literal("履歴のデータをデコードできませんでした: " + e.getMessage()));
+                return;
+            }
+            snapshot.applyTo(player);
+            player.currentScreenHandler.syncState();
+            InventorySaveQueue.submit(snapshot.withLease(InventoryLease.getHeldToken(playerUuid)), true);
+            Fabsyncmod.LOGGER.info(source.getName() + " が " + profile.getName() + " のインベントリを版番号 " + version + " の状態に戻しました。");
+            feedback(source, profile.getName() + " のインベントリを版番号 " + version + " の状態に戻しました。");
+            return;
+        }
+        if (InventorySaveQueue.getPendingSnapshot(playerUuid).isPresent() || SaveJournal.getUnflushedVersion(playerUuid).isPresent()) {
+            source.sendError(Text.literal(profile.getName() + " の保存がまだ書き込まれていません。しばらくしてから再度実行してください。"));
+            return;
+        }
+        ExecutorService executor = InventorySync.getLoadExecutor();
+        if (executor == null) {
+            source.sendError(Text.literal("サーバーの停止中は実行できません。"));
+            return;
+        }
+        CompletableFuture.supplyAsync(() -> restoreOffline(playerUuid, data), executor)
+                .whenComplete((restored, error) -> source.getServer().execute(() -> {
+                    if (error != null) {
+                        Fabsyncmod.LOGGER.error(profile.getName() + " のインベントリを書き込めませんでした。", error);
+                        source.sendError(Text.literal(profile.getName() + " のインベントリを書き込めませんでした。詳細はログを確認してください。"));
+                        return;
+                    }
+                    if (!restored) {
+                        source.sendError(Text.literal(profile.getName() + " は他のサーバーにオンラインです。そのサーバーで実行するか、ログアウトしてから再度実行してください。"));
+                        return;
+                    }
+                    Fabsyncmod.LOGGER.info(source.getName() + " が " + profile.getName() + " のインベントリを版番号 " + version + " の状態に戻しました。");
+                    feedback(source, profile.getName() + " のインベントリを版番号 " + version + " の状態に戻しました。");
+                }));
+    }
+
+    /**
+     * オフラインのプレイヤーの保存データを書き換えます。ロード用スレッドで実行されます。
+     * 引き継ぎロックを取得し、書き込みと同時に解放する保存として書き込みキューに投入します。
+     * @return 他のサーバーがロックを保持していて書き換えなかった場合は false
+     */
+    private static boolean restoreOffline(UUID playerUuid, byte[] data) {
+        try {
+            // ロックを取得する前にデコードし、失敗してもロックが残らないようにする
+            InventorySnapshot snapshot = InventoryCodec.decode(playerUuid, data, DatabaseManager.getRegistryLookup());
+            String leaseToken = InventoryLease.tryAcquireForWrite(playerUuid);
+            if (leaseToken == null) {
+                return false;
+            }
+            InventorySaveQueue.submit(snapshot.withLeaseRelease(leaseToken), true);
+            return true;
+        } catch (IOException | StorageException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static GameProfile getSingleProfile(CommandContext<ServerCommandSource> context) throws CommandSyntaxException {
+        Collection<GameProfile> profiles = GameProfileArgumentType.getProfileArgument(context, "player");
+        if (profiles.size() != 1) {
+            context.getSource().sendError(Text.literal("プレイヤーを1人だけ指定してください。"));
+            return null;
+        }
+        return profiles.iterator().next();
+    }
+
+    private static int startMigration(CommandContext<ServerCommandSource> context, String mode, String argument) {
+        try {
+            feedback(context.getSource(), InventoryMigration.start(mode, argument));
+            return 1;
+        } catch (IllegalStateException e) {
+            context.getSource().sendError(Text.literal(e.getMessage()));
+            return 0;
+        }
+    }
+
+    private static int showMigrationStatus(CommandContext<ServerCommandSource> context) {
+        feedback(context.getSource(), InventoryMigration.status());
+        return 1;
+    }
+
+    private static int cancelMigration(CommandContext<ServerCommandSource> context) {
+        if (!InventoryMigration.cancel()) {
+            context.getSource().sendError(Text.literal("実行中の移行はありません。"));
+            return 0;
+        }
+        feedback(context.getSource(), "現在のページを書き終えた時点で移行を中断します。同じコマンドで再開できます。");
+        return 1;
+    }
+
+    private static int discardMigration(CommandContext<ServerCommandSource> context) {
+        try {
+            feedback(context.getSource(), InventoryMigration.discard() ? "途中で止まっている移行を破棄しました。" : "途中で止まっている移行はありません。");
+            return 1;
+        } catch (IllegalStateException e) {
+            context.getSource().sendError(Text.literal(e.getMessage()));
+            return 0;
+        }
+    }
+
+    private static int showStats(CommandContext<ServerCommandSource> context) {
+        ServerCommandSource source = context.getSource();
+        feedback(source, "§e=== Fabsyncmod 計測値 ===");
+        feedback(source, "保存先: " + (DatabaseManager.getBackend() != null ? DatabaseManager.getBackend().getName() : "なし"));
+        for (SyncMetrics.Histogram histogram : SyncMetrics.HISTOGRAMS) {
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            feedback(source, histogram.getLabel() + ": " + histogram.getCount() + " 回"
+                    + " 平均 " + format(histogram, Math.round(histogram.getMean()))
+                    + " / p50 " + format(histogram, histogram.getPercentile(0.5))
+                    + " / p99 " + format(histogram, histogram.getPercentile(0.99))
+                    + " / 最大 " + format(histogram, histogram.getMax()));
+        }
+        feedback(source, "書き込みキュー: " + InventorySaveQueue.getPendingCount() + " 人（最大 " + SyncMetrics.getQueueDepthMax() + " 人）"
+                + "、ジャーナル未反映: " + SaveJournal.getUnflushedCount() + " 件" + (SaveJournal.isDegraded() ? "（保存先に書き込めていません）" : ""));
+        feedback(source, "自動保存（直近）: 書き込み " + SyncMetrics.getLastAutoSaveWritten() + " 人、変更なし " + SyncMetrics.getLastAutoSaveSkipped()
+                + " 人、延期 " + SyncMetrics.getLastAutoSaveDeferred() + " 人"
+                + String.format(Locale.ROOT, "、間隔 %.1f 倍", SyncMetrics.getAutoSaveStretch()));
+        feedback(source, "キャッシュ: " + InventoryCache.getEntryCount() + " 件（" + InventoryCache.getSizeBytes() / 1024 + " KB）"
+                + "、ヒット " + InventoryCache.getHitCount() + " / ミス " + InventoryCache.getMissCount());
+        StringBuilder failures = new StringBuilder("失敗・再試行:");
+        for (Map.Entry<String, Long> counter : MetricsExporter.counters().entrySet()) {
+            if (counter.getKey().endsWith("failures_total") || counter.getKey().equals("db_retries_total") || counter.getKey().equals("handoff_timeouts_total")
+                    || counter.getKey().equals("lease_lost_writes_total")) {
+                failures.append(' ').append(counter.getKey().replace("_total", "")).append('=').append(counter.getValue());
+            }
+        }
+        feedback(source, failures.toString());
+        return 1;
+    }
+
+    private static String format(SyncMetrics.Histogram histogram, long value) {
+        return switch (histogram.getUnit()) {
+            case NANOS -> String.format(Locale.ROOT, "%.2fms", value / (double) TimeUnit.MILLISECONDS.toNanos(1));
+            case BYTES -> value >= 1024 ? String.format(Locale.ROOT, "%.1fKB", value / 1024.0) : value + "B";
+            case COUNT -> Long.toString(value);
+        };
+    }
+
+    private static void feedback(ServerCommandSource source, String message) {
+        source.sendFeedback(() -> Text.literal(message), false);
+    }
+}
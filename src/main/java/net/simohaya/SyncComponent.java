@@ -0,0 +1,60 @@
+package net.simohaya;
+
+import java.util.SortedMap;
+
+import com.mojang.serialization.DynamicOps;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.server.network.ServerPlayerEntity;
+
+/**
+ * サーバー間で同期するプレイヤー状態の1要素（インベントリ、エンダーチェスト、経験値など）。
+ * 全ての要素は1つのレコードにまとめてエンコードされ、1回のDBアクセスで読み書きされます。
+ *
+ * <p>各要素は番号付きのエントリ（スロット番号など）の集まりとしてエンコードされます。値が1つだけの要素はエントリ0を使います。
+ * @param <T> 取得した状態の型。取得後に変更されないもの（複製）でなければなりません。
+ */
+public interface SyncComponent<T> {
+
+    /**
+     * 保存データと設定ファイル（SyncConf.json の syncComponents）で使う識別子。
+     */
+    String getId();
+
+    /**
+     * プレイヤーから現在の状態を取得します。メインスレッドから呼び出されます。
+     * 返す値は以後ゲーム側の変更の影響を受けないよう複製してください。
+     */
+    T capture(ServerPlayerEntity player);
+
+    /**
+     * 前回取得した状態を再利用しながら、現在の状態を取得します。メインスレッドから呼び出されます。
+     * 取得済みの状態は変更されないため、変わっていない部分は前回の値をそのまま共有できます。
+     * 既定の実装は前回の値を使わずに {@link #capture(ServerPlayerEntity)} を呼び出します。
+     * @param previous 前回取得した（または最後に保存した）状態。ない場合は null
+     */
+    default T capture(ServerPlayerEntity player, T previous) {
+        return capture(player);
+    }
+
+    /**
+     * 状態をプレイヤーに適用します。メインスレッドから呼び出されます。
+     * 値は他の場所でも共有されるため、ゲームに渡す前に複製してください。
+     */
+    void apply(ServerPlayerEntity player, T value);
+
+    /**
+     * プレイヤーの現在の状態が、最後に保存した状態から変更されているかを判定します。メインスレッドから呼び出されます。
+     */
+    boolean hasChanged(T persisted, ServerPlayerEntity player);
+
+    /**
+     * 状態を番号付きのNBTエントリにエンコードします。どのスレッドからでも呼び出されます。
+     */
+    SortedMap<Integer, NbtElement> encode(T value, DynamicOps<NbtElement> ops);
+
+    /**
+     * 番号付きのNBTエントリから状態をデコードします。どのスレッドからでも呼び出されます。
+     * @return デコードした状態。デコードできなかった場合は null
+     */
+    T decode(SortedMap<Integer, NbtElement> entries, DynamicOps<NbtElement> ops);
+}
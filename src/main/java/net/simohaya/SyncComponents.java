@@ -0,0 +1,357 @@
+package net.simohaya;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.DynamicOps;
+import com.mojang.serialization.codecs.RecordCodecBuilder;
+import net.minecraft.entity.effect.StatusEffectInstance;
+import net.minecraft.entity.player.HungerManager;
+import net.minecraft.inventory.Inventory;
+import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.network.packet.s2c.play.UpdateSelectedSlotS2CPacket;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.util.collection.DefaultedList;
+
+/**
+ * 同期できるプレイヤー状態の一覧。新しい要素を追加する場合は {@link #ALL} に登録してください。
+ * 有効・無効は SyncConf.json の syncComponents で要素ごとに切り替えられます。
+ */
+public class SyncComponents {
+
+    /** メインインベントリ、防具、オフハンド（41スロット） */
+    public static final ItemListComponent INVENTORY = new ItemListComponent("inventory", 41) {
+        @Override
+        protected Inventory inventoryOf(ServerPlayerEntity player) {
+            return player.getInventory();
+        }
+    };
+
+    /** エンダーチェスト（27スロット） */
+    public static final ItemListComponent ENDER_CHEST = new ItemListComponent("ender_chest", 27) {
+        @Override
+        protected Inventory inventoryOf(ServerPlayerEntity player) {
+            return player.getEnderChestInventory();
+        }
+    };
+
+    /** 経験値レベルと経験値 */
+    public static final SyncComponent<Experience> EXPERIENCE = new ValueComponent<>("experience", Experience.CODEC) {
+        @Override
+        public Experience capture(ServerPlayerEntity player) {
+            return new Experience(player.experienceLevel, player.experienceProgress, player.totalExperience);
+        }
+
+        @Override
+        public void apply(ServerPlayerEntity player, Experience value) {
+            player.setExperienceLevel(value.level()); // クライアントへの再送信もここで予約される
+            player.experienceProgress = value.progress();
+            player.totalExperience = value.total();
+        }
+    };
+
+    /** 体力と満腹度 */
+    public static final SyncComponent<Vitals> VITALS = new ValueComponent<>("vitals", Vitals.CODEC) {
+        @Override
+        public Vitals capture(ServerPlayerEntity player) {
+            HungerManager hunger = player.getHungerManager();
+            return new Vitals(player.getHealth(), hunger.getFoodLevel(), hunger.getSaturationLevel());
+        }
+
+        @Override
+        public void apply(ServerPlayerEntity player, Vitals value) {
+            // 体力0で適用すると死亡処理を経ずに倒れた状態になるため、最低でも1にする
+            player.setHealth(value.health() > 0 ? value.health() : 1.0f);
+            player.getHungerManager().setFoodLevel(value.foodLevel());
+            player.getHungerManager().setSaturationLevel(value.saturation());
+        }
+    };
+
+    /** ステータス効果 */
+    public static final SyncComponent<List<StatusEffectInstance>> EFFECTS = new ValueComponent<>("effects", StatusEffectInstance.CODEC.listOf()) {
+        @Override
+        public List<StatusEffectInstance> capture(ServerPlayerEntity player) {
+            List<StatusEffectInstance> effects = new ArrayList<>();
+            for (StatusEffectInstance effect : player.getStatusEffects()) {
+                effects.add(new StatusEffectInstance(effect));
+            }
+            return Collections.unmodifiableList(effects);
+        }
+
+        @Override
+        public boolean hasChanged(List<StatusEffectInstance> persisted, ServerPlayerEntity player) {
+            // 残り時間は毎Tick減るため比較せず、効果の種類・レベル・表示の設定が変わった場合だけ変更とみなす
+            if (persisted.size() != player.getStatusEffects().size()) {
+                return true;
+            }
+            for (StatusEffectInstance effect : persisted) {
+                StatusEffectInstance active = player.getStatusEffect(effect.getEffectType());
+                if (active == null
+                        || active.getAmplifier() != effect.getAmplifier()
+                        || active.isInfinite() != effect.isInfinite()
+                        || active.isAmbient() != effect.isAmbient()
+                        || active.shouldShowParticles() != effect.shouldShowParticles()
+                        || active.shouldShowIcon() != effect.shouldShowIcon()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void apply(ServerPlayerEntity player, List<StatusEffectInstance> value) {
+            player.clearStatusEffects();
+            for (StatusEffectInstance effect : value) {
+                player.addStatusEffect(new StatusEffectInstance(effect));
+            }
+        }
+    };
+
+    /** ホットバーで選択中のスロット */
+    public static final SyncComponent<Integer> SELECTED_SLOT = new ValueComponent<>("selected_slot", Codec.INT) {
+        @Override
+        public Integer capture(ServerPlayerEntity player) {
+            return player.getInventory().getSelectedSlot();
+        }
+
+        @Override
+        public void apply(ServerPlayerEntity player, Integer value) {
+            if (value >= 0 && value < 9) {
+                player.getInventory().setSelectedSlot(value);
+                player.networkHandler.sendPacket(new UpdateSelectedSlotS2CPacket(value));
+            }
+        }
+    };
+
+    /** 登録されている全ての要素（エンコード順） */
+    public static final List<SyncComponent<?>> ALL = List.of(INVENTORY, ENDER_CHEST, EXPERIENCE, VITALS, EFFECTS, SELECTED_SLOT);
+
+    /**
+     * 識別子から要素を取得します。
+     * @return 見つからない場合は null
+     */
+    public static SyncComponent<?> byId(String id) {
+        for (SyncComponent<?> component : ALL) {
+            if (component.getId().equals(id)) {
+                return component;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 要素が設定で有効になっているかを返します。設定が読み込まれていない場合や項目がない場合は有効とみなします。
+     */
+    public static boolean isEnabled(SyncComponent<?> component) {
+        ConfigManager.ConfigData config = ConfigManager.getConfig();
+        if (config == null || config.syncComponents == null) {
+            return true;
+        }
+        return config.syncComponents.getOrDefault(component.getId(), true);
+    }
+
+    /**
+     * 設定で有効になっている要素の一覧を返します。
+     */
+    public static List<SyncComponent<?>> enabled() {
+        List<SyncComponent<?>> enabled = new ArrayList<>(ALL.size());
+        for (SyncComponent<?> component : ALL) {
+            if (isEnabled(component)) {
+                enabled.add(component);
+            }
+        }
+        return enabled;
+    }
+
+    /**
+     * 全ての要素を有効にした、設定ファイル用の初期値を返します。
+     */
+    public static Map<String, Boolean> defaultSettings() {
+        Map<String, Boolean> settings = new LinkedHashMap<>();
+        for (SyncComponent<?> component : ALL) {
+            settings.put(component.getId(), true);
+        }
+        return settings;
+    }
+
+    public record Experience(int level, float progress, int total) {
+        public static final Codec<Experience> CODEC = RecordCodecBuilder.create(instance -> instance.group(
+                Codec.INT.fieldOf("level").forGetter(Experience::level),
+                Codec.FLOAT.fieldOf("progress").forGetter(Experience::progress),
+                Codec.INT.fieldOf("total").forGetter(Experience::total)
+        ).apply(instance, Experience::new));
+    }
+
+    public record Vitals(float health, int foodLevel, float saturation) {
+        public static final Codec<Vitals> CODEC = RecordCodecBuilder.create(instance -> instance.group(
+                Codec.FLOAT.fieldOf("health").forGetter(Vitals::health),
+                Codec.INT.fieldOf("food").forGetter(Vitals::foodLevel),
+                Codec.FLOAT.fieldOf("saturation").forGetter(Vitals::saturation)
+        ).apply(instance, Vitals::new));
+    }
+
+    /**
+     * アイテムのスロット一覧を同期する要素。各スロットをスロット番号のエントリとしてエンコードします（空のスロットは書き込みません）。
+     */
+    public abstract static class ItemListComponent implements SyncComponent<DefaultedList<ItemStack>> {
+        private final String id;
+        private final int defaultSize;
+
+        protected ItemListComponent(String id, int defaultSize) {
+            this.id = id;
+            this.defaultSize = defaultSize;
+        }
+
+        protected abstract Inventory inventoryOf(ServerPlayerEntity player);
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public DefaultedList<ItemStack> capture(ServerPlayerEntity player) {
+            return copyChanged(inventoryOf(player), null);
+        }
+
+        @Override
+        public DefaultedList<ItemStack> capture(ServerPlayerEntity player, DefaultedList<ItemStack> previous) {
+            return copyChanged(inventoryOf(player), previous);
+        }
+
+        /**
+         * インベントリの内容を複製します。前回の状態と同じスロットは前回の（複製済みの）スタックを共有し、
+         * 変わったスロットだけを {@link ItemStack#copy()} します。全てのスロットが同じ場合は前回のリストをそのまま返すため、何も割り当てません。
+         * @param previous 前回取得した状態。ない場合は null（全てのスロットを複製します）
+         */
+        public static DefaultedList<ItemStack> copyChanged(Inventory inventory, DefaultedList<ItemStack> previous) {
+            int size = inventory.size();
+            if (previous == null || previous.size() != size) {
+                DefaultedList<ItemStack> copied = DefaultedList.ofSize(size, ItemStack.EMPTY);
+                for (int i = 0; i < size; i++) {
+                    ItemStack stack = inventory.getStack(i);
+                    if (!stack.isEmpty()) {
+                        copied.set(i, stack.copy());
+                    }
+                }
+                return copied;
+            }
+            // 最初に変わったスロットが見つかるまではリストを作らない
+            DefaultedList<ItemStack> copied = null;
+            for (int i = 0; i < size; i++) {
+                ItemStack stack = inventory.getStack(i);
+                ItemStack previousStack = previous.get(i);
+                if (ItemStack.areEqual(previousStack, stack)) {
+                    if (copied != null) {
+                        copied.set(i, previousStack);
+                    }
+                    continue;
+                }
+                if (copied == null) {
+                    copied = DefaultedList.ofSize(size, ItemStack.EMPTY);
+                    for (int j = 0; j < i; j++) {
+                        copied.set(j, previous.get(j));
+                    }
+                }
+                copied.set(i, stack.isEmpty() ? ItemStack.EMPTY : stack.copy());
+            }
+            return copied != null ? copied : previous;
+        }
+
+        @Override
+        public void apply(ServerPlayerEntity player, DefaultedList<ItemStack> value) {
+            Inventory inventory = inventoryOf(player);
+            inventory.clear(); // 現在の内容をクリア
+            for (int i = 0; i < value.size() && i < inventory.size(); i++) {
+                inventory.setStack(i, value.get(i).copy());
+            }
+        }
+
+        @Override
+        public boolean hasChanged(DefaultedList<ItemStack> persisted, ServerPlayerEntity player) {
+            Inventory inventory = inventoryOf(player);
+            if (persisted.size() != inventory.size()) {
+                return true;
+            }
+            for (int i = 0; i < inventory.size(); i++) {
+                if (!ItemStack.areEqual(persisted.get(i), inventory.getStack(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public SortedMap<Integer, NbtElement> encode(DefaultedList<ItemStack> value, DynamicOps<NbtElement> ops) {
+            SortedMap<Integer, NbtElement> entries = new TreeMap<>();
+            for (int i = 0; i < value.size(); i++) {
+                ItemStack stack = value.get(i);
+                if (!stack.isEmpty()) {
+                    entries.put(i, ItemStack.CODEC.encodeStart(ops, stack).getOrThrow());
+                }
+            }
+            return entries;
+        }
+
+        @Override
+        public DefaultedList<ItemStack> decode(SortedMap<Integer, NbtElement> entries, DynamicOps<NbtElement> ops) {
+            int size = entries.isEmpty() ? 0 : entries.lastKey() + 1;
+            DefaultedList<ItemStack> stacks = DefaultedList.ofSize(Math.max(size, defaultSize), ItemStack.EMPTY);
+            for (Map.Entry<Integer, NbtElement> entry : entries.entrySet()) {
+                int slot = entry.getKey();
+                ItemStack.CODEC.parse(ops, entry.getValue()).result().ifPresentOrElse(
+                        stack -> stacks.set(slot, stack),
+                        () -> Fabsyncmod.LOGGER.warn(id + " のスロット " + slot + " のアイテムのデコードに失敗しました。"));
+            }
+            return stacks;
+        }
+    }
+
+    /**
+     * 1つの Codec でエンコードできる値を同期する要素。エントリ0に値全体を書き込みます。
+     */
+    public abstract static class ValueComponent<T> implements SyncComponent<T> {
+        private final String id;
+        private final Codec<T> codec;
+
+        protected ValueComponent(String id, Codec<T> codec) {
+            this.id = id;
+            this.codec = codec;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public boolean hasChanged(T persisted, ServerPlayerEntity player) {
+            return !Objects.equals(persisted, capture(player));
+        }
+
+        @Override
+        public SortedMap<Integer, NbtElement> encode(T value, DynamicOps<NbtElement> ops) {
+            SortedMap<Integer, NbtElement> entries = new TreeMap<>();
+            entries.put(0, codec.encodeStart(ops, value).getOrThrow());
+            return entries;
+        }
+
+        @Override
+        public T decode(SortedMap<Integer, NbtElement> entries, DynamicOps<NbtElement> ops) {
+            NbtElement element = entries.get(0);
+            if (element == null) {
+                return null;
+            }
+            return codec.parse(ops, element).resultOrPartial(error ->
+                    Fabsyncmod.LOGGER.warn(id + " のデコードに失敗しました: " + error)).orElse(null);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package net.simohaya;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 同期処理の計測値を保持します。どのスレッドからでも低コストで記録できます。
+ * 所要時間やバイト数は {@link Histogram} に、失敗や再試行の回数はカウンタに記録します。
+ * 値は /syncmod stats コマンド（{@link SyncCommands}）と、定期的に書き出すファイル（{@link MetricsExporter}）で確認できます。
+ */
+public class SyncMetrics {
+
+    /**
+     * ヒストグラムの値の単位。
+     */
+    public enum Unit {
+        NANOS, BYTES, COUNT
+    }
+
+    /**
+     * 2のべき乗ごとの区間に値を数えるヒストグラム。記録は配列の1要素の加算だけで済み、ロックを使いません。
+     * パーセンタイルは値が含まれる区間の上限で近似します（誤差は最大2倍）。
+     */
+    public static final class Histogram {
+        private final String id;
+        private final String label;
+        private final Unit unit;
+        // buckets[i] は 2^(i-1) <= 値 < 2^i の件数（buckets[0] は値が0以下）
+        private final AtomicLongArray buckets = new AtomicLongArray(65);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        private Histogram(String id, String label, Unit unit) {
+            this.id = id;
+            this.label = label;
+            this.unit = unit;
+        }
+
+        public void record(long value) {
+            buckets.incrementAndGet(value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value));
+            count.increment();
+            sum.add(value);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        /**
+         * エクスポートで使う識別子（英小文字とアンダースコア）。
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * コマンドで表示する名前。
+         */
+        public String getLabel() {
+            return label;
+        }
+
+        public Unit getUnit() {
+            return unit;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long n = count.sum();
+            return n == 0 ? 0 : sum.sum() / (double) n;
+        }
+
+        /**
+         * パーセンタイルの近似値を返します。記録がない場合は 0。
+         * @param quantile 0.0 から 1.0（例: 0.99）
+         */
+        public long getPercentile(double quantile) {
+            long total = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                total += buckets.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= Math.max(rank, 1)) {
+                    long upperBound = i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+                    return Math.min(upperBound, max.get());
+                }
+            }
+            return max.get();
+        }
+    }
+
+    // ログイン（JOIN）からインベントリ適用までの時間。ログイン処理中に先読みを開始できたかどうかで分けて記録する
+    public static final Histogram JOIN_LOAD = new Histogram("join_load", "ログインから適用まで（先読みなし）", Unit.NANOS);
+    public static final Histogram JOIN_LOAD_PREFETCHED = new Histogram("join_load_prefetched", "ログインから適用まで（先読みあり）", Unit.NANOS);
+    // 他のサーバーからの引き継ぎで、ロックの解放を待った時間
+    public static final Histogram HANDOFF_WAIT = new Histogram("handoff_wait", "引き継ぎの待機", Unit.NANOS);
+    // メインスレッドでのスナップショットの取得（スタックの複製）
+    public static final Histogram SNAPSHOT = new Histogram("snapshot", "スナップショット取得", Unit.NANOS);
+    // 同期要素のNBTへのエンコード（圧縮を除く）
+    public static final Histogram ENCODE = new Histogram("encode", "エンコード", Unit.NANOS);
+    public static final Histogram COMPRESS = new Histogram("compress", "圧縮", Unit.NANOS);
+    public static final Histogram DECODE = new Histogram("decode", "デコード", Unit.NANOS);
+    // 保存先への一括保存1回（MySQLの場合は往復とコミットを含む）
+    public static final Histogram DB_WRITE = new Histogram("db_write", "保存先への書き込み", Unit.NANOS);
+    public static final Histogram DB_READ = new Histogram("db_read", "保存先からの読み込み", Unit.NANOS);
+    public static final Histogram JOURNAL_APPEND = new Histogram("journal_append", "ジャーナルへの追記", Unit.NANOS);
+    // エンコード・圧縮後の1人分のデータの大きさ
+    public static final Histogram PAYLOAD_BYTES = new Histogram("payload_bytes", "保存データの大きさ", Unit.BYTES);
+    // 一括保存1回にまとめた人数
+    public static final Histogram WRITE_BATCH_SIZE = new Histogram("write_batch_size", "一括保存の人数", Unit.COUNT);
+
+    public static final List<Histogram> HISTOGRAMS = List.of(
+            JOIN_LOAD, JOIN_LOAD_PREFETCHED, HANDOFF_WAIT, SNAPSHOT, ENCODE, COMPRESS, DECODE, DB_WRITE, DB_READ, JOURNAL_APPEND, PAYLOAD_BYTES, WRITE_BATCH_SIZE);
+
+    private static final AtomicLong handoffTimeoutCount = new AtomicLong();
+    private static final AtomicLong leaseLostCount = new AtomicLong();
+    private static final AtomicLong prefetchAbandonedCount = new AtomicLong();
+    private static final AtomicLong historyDroppedCount = new AtomicLong();
+    private static final AtomicLong saveFailureCount = new AtomicLong();
+    private static final AtomicLong loadFailureCount = new AtomicLong();
+    private static final AtomicLong encodeFailureCount = new AtomicLong();
+    private static final AtomicLong dbRetryCount = new AtomicLong();
+    private static final AtomicLong queueDepthMax = new AtomicLong();
+    // 保存先への書き込み時間の指数移動平均（ナノ秒）。自動保存の間隔の調整に使用する
+    private static final AtomicLong recentDbWriteNanos = new AtomicLong();
+    private static volatile double autoSaveStretch = 1.0;
+
+    // 自動保存の書き込み・省略・延期の人数（累計と直近の1回分）
+    private static final AtomicLong autoSaveWrittenTotal = new AtomicLong();
+    private static final AtomicLong autoSaveSkippedTotal = new AtomicLong();
+    private static final AtomicLong autoSaveDeferredTotal = new AtomicLong();
+    private static volatile int lastAutoSaveWritten;
+    private static volatile int lastAutoSaveSkipped;
+    private static volatile int lastAutoSaveDeferred;
+
+    /**
+     * ログインからインベントリ適用までの時間を記録します。
+     * @param nanos 経過時間（ナノ秒）
+     * @param prefetched ログイン処理中に開始した先読み（{@link LoginPrefetch}）を使用したか
+     */
+    public static void recordJoinLoad(long nanos, boolean prefetched) {
+        (prefetched ? JOIN_LOAD_PREFETCHED : JOIN_LOAD).record(nanos);
+    }
+
+    /**
+     * ログインが中断された、または期限内に使われなかったために破棄した先読みを記録します。
+     */
+    public static void recordPrefetchAbandoned() {
+        prefetchAbandonedCount.incrementAndGet();
+    }
+
+    public static long getPrefetchAbandonedCount() {
+        return prefetchAbandonedCount.get();
+    }
+
+    /**
+     * 履歴のキューが満杯のため記録しなかった保存の件数を記録します。
+     */
+    public static void recordHistoryDropped(int count) {
+        historyDroppedCount.addAndGet(count);
+    }
+
+    public static long getHistoryDroppedCount() {
+        return historyDroppedCount.get();
+    }
+
+    /**
+     * 他のサーバーの引き継ぎロックの解放を待ってから取得できた場合に、待機時間を記録します。
+     * @param nanos 待機時間（ナノ秒）
+     */
+    public static void recordHandoffWait(long nanos) {
+        HANDOFF_WAIT.record(nanos);
+    }
+
+    /**
+     * 引き継ぎロックの解放を待ちきれずにロードを中止したことを記録します。
+     */
+    public static void recordHandoffTimeout() {
+        handoffTimeoutCount.incrementAndGet();
+    }
+
+    public static long getHandoffTimeoutCount() {
+        return handoffTimeoutCount.get();
+    }
+
+    /**
+     * 引き継ぎロックが他のサーバーに移っていたため、書き込まなかった保存の件数を記録します。
+     */
+    public static void recordLeaseLost(int count) {
+        leaseLostCount.addAndGet(count);
+    }
+
+    public static long getLeaseLostCount() {
+        return leaseLostCount.get();
+    }
+
+    /**
+     * 保存先への一括保存1回の所要時間を記録します。失敗した書き込みは直近の平均にだけ反映します。
+     * @param nanos 所要時間（ナノ秒）
+     * @param succeeded 書き込みに成功したか
+     */
+    public static void recordDbWrite(long nanos, boolean succeeded) {
+        if (succeeded) {
+            DB_WRITE.record(nanos);
+        }
+        recentDbWriteNanos.accumulateAndGet(nanos, (average, sample) -> average == 0 ? sample : average + (sample - average) / 8);
+    }
+
+    /**
+     * 直近の保存先への書き込み時間の平均（ミリ秒）を返します。記録がない場合は 0。
+     */
+    public static double getRecentDbWriteMillis() {
+        return recentDbWriteNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * 自動保存の間隔の延長倍率を記録します。
+     */
+    public static void recordAutoSaveStretch(double stretch) {
+        autoSaveStretch = stretch;
+    }
+
+    public static double getAutoSaveStretch() {
+        return autoSaveStretch;
+    }
+
+    /**
+     * 保存先への書き込みの失敗（再試行しても書き込めなかった一括保存）を記録します。
+     */
+    public static void recordSaveFailure() {
+        saveFailureCount.incrementAndGet();
+    }
+
+    public static long getSaveFailureCount() {
+        return saveFailureCount.get();
+    }
+
+    /**
+     * 保存先からの読み込み、またはデコードの失敗を記録します。
+     */
+    public static void recordLoadFailure() {
+        loadFailureCount.incrementAndGet();
+    }
+
+    public static long getLoadFailureCount() {
+        return loadFailureCount.get();
+    }
+
+    /**
+     * スナップショットのエンコードの失敗を記録します。
+     */
+    public static void recordEncodeFailure() {
+        encodeFailureCount.incrementAndGet();
+    }
+
+    public static long getEncodeFailureCount() {
+        return encodeFailureCount.get();
+    }
+
+    /**
+     * 一時的なエラーによるデータベース処理の再試行を記録します。
+     */
+    public static void recordDbRetry() {
+        dbRetryCount.incrementAndGet();
+    }
+
+    public static long getDbRetryCount() {
+        return dbRetryCount.get();
+    }
+
+    /**
+     * 書き込みキューの未書き込み人数を記録し、最大値を更新します。
+     */
+    public static void recordQueueDepth(int depth) {
+        queueDepthMax.accumulateAndGet(depth, Math::max);
+    }
+
+    public static long getQueueDepthMax() {
+        return queueDepthMax.get();
+    }
+
+    /**
+     * 自動保存1回分の結果を記録します。
+     * @param written 書き込みキューに投入した人数
+     * @param skipped 変更がないため省略した人数
+     * @param deferred キューが満杯のため次回に延期した人数
+     */
+    public static void recordAutoSaveCycle(int written, int skipped, int deferred) {
+        autoSaveWrittenTotal.addAndGet(written);
+        autoSaveSkippedTotal.addAndGet(skipped);
+        autoSaveDeferredTotal.addAndGet(deferred);
+        lastAutoSaveWritten = written;
+        lastAutoSaveSkipped = skipped;
+        lastAutoSaveDeferred = deferred;
+    }
+
+    public static long getAutoSaveWrittenTotal() {
+        return autoSaveWrittenTotal.get();
+    }
+
+    public static long getAutoSaveSkippedTotal() {
+        return autoSaveSkippedTotal.get();
+    }
+
+    public static long getAutoSaveDeferredTotal() {
+        return autoSaveDeferredTotal.get();
+    }
+
+    public static int getLastAutoSaveWritten() {
+        return lastAutoSaveWritten;
+    }
+
+    public static int getLastAutoSaveSkipped() {
+        return lastAutoSaveSkipped;
+    }
+
+    public static int getLastAutoSaveDeferred() {
+        return lastAutoSaveDeferred;
+    }
+}
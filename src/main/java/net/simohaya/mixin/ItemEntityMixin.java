@@ -0,0 +1,23 @@
+package net.simohaya.mixin;
+
+import net.minecraft.entity.ItemEntity;
+import net.minecraft.entity.player.PlayerEntity;
+import net.simohaya.InventorySync;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+/**
+ * インベントリのロード待ちでロックされているプレイヤーがアイテムを拾えないようにします。
+ * 拾ったアイテムはロード結果の適用で上書きされて失われるためです。
+ */
+@Mixin(ItemEntity.class)
+public class ItemEntityMixin {
+	@Inject(at = @At("HEAD"), method = "onPlayerCollision", cancellable = true)
+	private void fabsyncmod$rejectPickupWhileLocked(PlayerEntity player, CallbackInfo info) {
+		if (InventorySync.isInventoryLocked(player.getUuid())) {
+			info.cancel();
+		}
+	}
+}
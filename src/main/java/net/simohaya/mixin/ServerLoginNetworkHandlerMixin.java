@@ -0,0 +1,35 @@
+package net.simohaya.mixin;
+
+import com.mojang.authlib.GameProfile;
+import net.minecraft.network.DisconnectionInfo;
+import net.minecraft.server.network.ServerLoginNetworkHandler;
+import net.simohaya.LoginPrefetch;
+import org.jetbrains.annotations.Nullable;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+/**
+ * ログイン処理中にインベントリの先読み（{@link LoginPrefetch}）を開始し、ログインが中断された場合は破棄します。
+ */
+@Mixin(ServerLoginNetworkHandler.class)
+public abstract class ServerLoginNetworkHandlerMixin {
+	@Shadow
+	@Nullable
+	private GameProfile profile;
+
+	// 同じUUIDの古い接続が切断され、そのログアウト時の保存が書き込みキューに入った後に呼ばれる
+	@Inject(at = @At("HEAD"), method = "sendSuccessPacket")
+	private void fabsyncmod$startPrefetch(GameProfile profile, CallbackInfo info) {
+		LoginPrefetch.start(profile.getId());
+	}
+
+	@Inject(at = @At("HEAD"), method = "onDisconnected")
+	private void fabsyncmod$cancelPrefetch(DisconnectionInfo disconnectionInfo, CallbackInfo info) {
+		if (this.profile != null) {
+			LoginPrefetch.cancel(this.profile.getId());
+		}
+	}
+}
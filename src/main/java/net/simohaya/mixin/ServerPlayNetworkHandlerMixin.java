@@ -0,0 +1,44 @@
+package net.simohaya.mixin;
+
+import net.minecraft.network.packet.c2s.play.ClickSlotC2SPacket;
+import net.minecraft.network.packet.c2s.play.CreativeInventoryActionC2SPacket;
+import net.minecraft.network.packet.c2s.play.PlayerActionC2SPacket;
+import net.minecraft.server.network.ServerPlayNetworkHandler;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.simohaya.InventorySync;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+/**
+ * インベントリのロード待ちでロックされているプレイヤーのインベントリ操作を拒否します。
+ */
+@Mixin(ServerPlayNetworkHandler.class)
+public abstract class ServerPlayNetworkHandlerMixin {
+	@Shadow
+	public ServerPlayerEntity player;
+
+	@Inject(at = @At("HEAD"), method = "onClickSlot", cancellable = true)
+	private void fabsyncmod$rejectClickSlotWhileLocked(ClickSlotC2SPacket packet, CallbackInfo info) {
+		if (InventorySync.isInventoryLocked(this.player.getUuid())) {
+			info.cancel();
+		}
+	}
+
+	@Inject(at = @At("HEAD"), method = "onCreativeInventoryAction", cancellable = true)
+	private void fabsyncmod$rejectCreativeActionWhileLocked(CreativeInventoryActionC2SPacket packet, CallbackInfo info) {
+		if (InventorySync.isInventoryLocked(this.player.getUuid())) {
+			info.cancel();
+		}
+	}
+
+	// アイテムのドロップやオフハンドとの持ち替えもここを通る
+	@Inject(at = @At("HEAD"), method = "onPlayerAction", cancellable = true)
+	private void fabsyncmod$rejectPlayerActionWhileLocked(PlayerActionC2SPacket packet, CallbackInfo info) {
+		if (InventorySync.isInventoryLocked(this.player.getUuid())) {
+			info.cancel();
+		}
+	}
+}
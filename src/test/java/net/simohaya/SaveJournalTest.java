@@ -0,0 +1,283 @@
+package net.simohaya;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * {@link SaveJournal} が起動時にジャーナルファイルから未反映のデータを読み込む処理のテスト。
+ * レコードはジャーナルの形式の説明に従ってテスト側で組み立て、レコードの境界で切り詰めたり壊したりしたファイルを開きます。
+ * 保存先は設定しないため、{@link SaveJournal#close} での再送は失敗し、データはファイルに残ります。
+ */
+class SaveJournalTest {
+
+    private static final String JOURNAL_FILE_NAME = "save-journal.log";
+    private static final byte RECORD_FLUSHED = 2;
+    private static final byte RECORD_DATA = 4;
+    private static final int FLAG_RELEASE_LEASE = 1;
+
+    private static final UUID PLAYER_A = new UUID(0L, 1L);
+    private static final UUID PLAYER_B = new UUID(0L, 2L);
+    private static final UUID PLAYER_C = new UUID(0L, 3L);
+
+    @TempDir
+    Path directory;
+
+    @AfterEach
+    void tearDown() {
+        SaveJournal.close();
+    }
+
+    @Test
+    void replaysDataRecordsWithoutFlushedMarker() throws IOException {
+        writeJournal(
+                data(0, PLAYER_A, 100, "server-1:a", false, bytes("a1")),
+                data(1, PLAYER_B, 200, "server-1:b", true, bytes("b1")));
+
+        SaveJournal.open(directory);
+
+        assertEquals(2, SaveJournal.getUnflushedCount());
+        assertArrayEquals(bytes("a1"), SaveJournal.getUnflushed(PLAYER_A).orElseThrow());
+        assertEquals(100, SaveJournal.getUnflushedVersion(PLAYER_A).orElseThrow());
+        assertArrayEquals(bytes("b1"), SaveJournal.getUnflushed(PLAYER_B).orElseThrow());
+        assertEquals(200, SaveJournal.getUnflushedVersion(PLAYER_B).orElseThrow());
+    }
+
+    @Test
+    void keepsLatestDataPerPlayer() throws IOException {
+        writeJournal(
+                data(0, PLAYER_A, 100, null, false, bytes("a1")),
+                data(1, PLAYER_A, 101, null, false, bytes("a2")));
+
+        SaveJournal.open(directory);
+
+        assertEquals(1, SaveJournal.getUnflushedCount());
+        assertArrayEquals(bytes("a2"), SaveJournal.getUnflushed(PLAYER_A).orElseThrow());
+        assertEquals(101, SaveJournal.getUnflushedVersion(PLAYER_A).orElseThrow());
+    }
+
+    @Test
+    void flushedRecordClearsOnlyMatchingSequence() throws IOException {
+        writeJournal(
+                data(0, PLAYER_A, 100, null, false, bytes("a1")),
+                data(1, PLAYER_B, 200, null, false, bytes("b1")),
+                data(2, PLAYER_A, 101, null, false, bytes("a2")),
+                // A の古いデータ（シーケンス番号 0）の反映は、後から追記された新しいデータを消さない
+                flushed(0, PLAYER_A),
+                flushed(1, PLAYER_B),
+                // 存在しないシーケンス番号や、別のプレイヤーの反映済みの記録は無視する
+                flushed(2, PLAYER_C),
+                flushed(7, PLAYER_A));
+
+        SaveJournal.open(directory);
+
+        assertEquals(1, SaveJournal.getUnflushedCount());
+        assertArrayEquals(bytes("a2"), SaveJournal.getUnflushed(PLAYER_A).orElseThrow());
+        assertFalse(SaveJournal.getUnflushed(PLAYER_B).isPresent());
+        assertFalse(SaveJournal.getUnflushed(PLAYER_C).isPresent());
+    }
+
+    @Test
+    void flushedRecordBeforeDataDoesNotClearIt() throws IOException {
+        writeJournal(
+                flushed(3, PLAYER_A),
+                data(3, PLAYER_A, 100, null, false, bytes("a1")));
+
+        SaveJournal.open(directory);
+
+        assertArrayEquals(bytes("a1"), SaveJournal.getUnflushed(PLAYER_A).orElseThrow());
+    }
+
+    @Test
+    void truncatesTornTailAtEveryCutPoint() throws IOException {
+        byte[] first = data(0, PLAYER_A, 100, "server-1:a", false, bytes("a1"));
+        byte[] second = data(1, PLAYER_B, 200, "server-1:b", true, bytes("b1"));
+        byte[] third = flushed(0, PLAYER_A);
+        byte[] intact = concat(first, second);
+
+        for (byte[] tail : List.of(second, third)) {
+            byte[] prefix = tail == second ? first : intact;
+            for (int cut = 0; cut < tail.length; cut++) {
+                writeJournal(prefix, Arrays.copyOf(tail, cut));
+
+                SaveJournal.open(directory);
+
+                String message = "末尾のレコードを " + cut + " バイトで切り詰めた場合";
+                assertArrayEquals(bytes("a1"), SaveJournal.getUnflushed(PLAYER_A).orElseThrow(), message);
+                assertEquals(tail == second ? 1 : 2, SaveJournal.getUnflushedCount(), message);
+                assertEquals(prefix.length, Files.size(journalFile()), message);
+                SaveJournal.close();
+            }
+        }
+    }
+
+    @Test
+    void stopsAtCrcMismatch() throws IOException {
+        byte[] first = data(0, PLAYER_A, 100, null, false, bytes("a1"));
+        byte[] second = data(1, PLAYER_B, 200, null, false, bytes("b1"));
+        byte[] third = data(2, PLAYER_C, 300, null, false, bytes("c1"));
+        // 2件目のデータ本体の1バイトを書き換える（CRC32 の直前）
+        second[second.length - 5] ^= 0x01;
+        writeJournal(first, second, third);
+
+        SaveJournal.open(directory);
+
+        // 壊れたレコード以降は信用できないため、後ろの正しいレコードも読み込まない
+        assertEquals(1, SaveJournal.getUnflushedCount());
+        assertTrue(SaveJournal.getUnflushed(PLAYER_A).isPresent());
+        assertFalse(SaveJournal.getUnflushed(PLAYER_B).isPresent());
+        assertFalse(SaveJournal.getUnflushed(PLAYER_C).isPresent());
+        assertEquals(first.length, Files.size(journalFile()));
+    }
+
+    @Test
+    void stopsAtCorruptedFlushedRecord() throws IOException {
+        byte[] first = data(0, PLAYER_A, 100, null, false, bytes("a1"));
+        byte[] marker = flushed(0, PLAYER_A);
+        marker[marker.length - 1] ^= 0x01;
+        writeJournal(first, marker);
+
+        SaveJournal.open(directory);
+
+        // 反映済みの記録が壊れていれば、データは未反映のまま再送する
+        assertArrayEquals(bytes("a1"), SaveJournal.getUnflushed(PLAYER_A).orElseThrow());
+        assertEquals(first.length, Files.size(journalFile()));
+    }
+
+    @Test
+    void stopsAtUnknownRecordType() throws IOException {
+        byte[] first = data(0, PLAYER_A, 100, null, false, bytes("a1"));
+        byte[] unknown = data(1, PLAYER_B, 200, null, false, bytes("b1"));
+        unknown[0] = 9;
+        byte[] third = data(2, PLAYER_C, 300, null, false, bytes("c1"));
+        writeJournal(first, unknown, third);
+
+        SaveJournal.open(directory);
+
+        assertEquals(1, SaveJournal.getUnflushedCount());
+        assertTrue(SaveJournal.getUnflushed(PLAYER_A).isPresent());
+        assertEquals(first.length, Files.size(journalFile()));
+    }
+
+    @Test
+    void stopsAtOversizedDataLength() throws IOException {
+        byte[] first = data(0, PLAYER_A, 100, null, false, bytes("a1"));
+        ByteArrayOutputStream oversized = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(oversized);
+        writeHeader(output, RECORD_DATA, 1, PLAYER_B);
+        output.writeLong(200);
+        output.writeByte(0);
+        output.writeShort(0);
+        output.writeInt(Integer.MAX_VALUE);
+        writeJournal(first, oversized.toByteArray());
+
+        SaveJournal.open(directory);
+
+        assertEquals(1, SaveJournal.getUnflushedCount());
+        assertEquals(first.length, Files.size(journalFile()));
+    }
+
+    @Test
+    void appendsAfterTruncatedTailAndReplaysBoth() throws IOException {
+        byte[] first = data(0, PLAYER_A, 100, null, false, bytes("a1"));
+        byte[] torn = data(1, PLAYER_B, 200, null, false, bytes("b1"));
+        writeJournal(first, Arrays.copyOf(torn, torn.length / 2));
+
+        SaveJournal.open(directory);
+        assertTrue(SaveJournal.append(List.of(new InventoryRecord(PLAYER_C, bytes("c1"), "server-1:c", true, 300))));
+        SaveJournal.close();
+
+        SaveJournal.open(directory);
+
+        assertEquals(2, SaveJournal.getUnflushedCount());
+        assertArrayEquals(bytes("a1"), SaveJournal.getUnflushed(PLAYER_A).orElseThrow());
+        assertArrayEquals(bytes("c1"), SaveJournal.getUnflushed(PLAYER_C).orElseThrow());
+        assertEquals(300, SaveJournal.getUnflushedVersion(PLAYER_C).orElseThrow());
+    }
+
+    @Test
+    void appendedRecordsUseTheDocumentedFormat() throws IOException {
+        SaveJournal.open(directory);
+        assertTrue(SaveJournal.append(List.of(
+                new InventoryRecord(PLAYER_A, bytes("a1"), "server-1:a", false, 100),
+                new InventoryRecord(PLAYER_B, bytes("b1"), "server-1:b", true, 200),
+                new InventoryRecord(PLAYER_C, bytes("c1"), null, false, 300))));
+        SaveJournal.close();
+
+        byte[] expected = concat(
+                data(0, PLAYER_A, 100, "server-1:a", false, bytes("a1")),
+                data(1, PLAYER_B, 200, "server-1:b", true, bytes("b1")),
+                data(2, PLAYER_C, 300, null, false, bytes("c1")));
+        assertArrayEquals(expected, Files.readAllBytes(journalFile()));
+    }
+
+    private Path journalFile() {
+        return directory.resolve(JOURNAL_FILE_NAME);
+    }
+
+    private void writeJournal(byte[]... records) throws IOException {
+        Files.write(journalFile(), concat(records));
+    }
+
+    private static byte[] data(long sequence, UUID playerUuid, long version, String leaseToken, boolean releaseLease, byte[] data) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(record);
+        writeHeader(output, RECORD_DATA, sequence, playerUuid);
+        byte[] token = leaseToken != null ? leaseToken.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        output.writeLong(version);
+        output.writeByte(releaseLease ? FLAG_RELEASE_LEASE : 0);
+        output.writeShort(token.length);
+        output.write(token);
+        output.writeInt(data.length);
+        output.write(data);
+        return withCrc(record);
+    }
+
+    private static byte[] flushed(long sequence, UUID playerUuid) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        writeHeader(new DataOutputStream(record), RECORD_FLUSHED, sequence, playerUuid);
+        return withCrc(record);
+    }
+
+    private static void writeHeader(DataOutputStream output, byte type, long sequence, UUID playerUuid) throws IOException {
+        output.writeByte(type);
+        output.writeLong(sequence);
+        output.writeLong(playerUuid.getMostSignificantBits());
+        output.writeLong(playerUuid.getLeastSignificantBits());
+    }
+
+    private static byte[] withCrc(ByteArrayOutputStream record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record.toByteArray());
+        new DataOutputStream(record).writeInt((int) crc.getValue());
+        return record.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            joined.writeBytes(part);
+        }
+        return joined.toByteArray();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}